@@ -0,0 +1,104 @@
+/**
+ * benchmark of formatting log records
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import org.mountainsensing.fetcher.utils.ContextFormatter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Formatting typical log records, with a node as the context, for the console and the log file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContextFormatterBenchmark {
+
+    /**
+     * The formatter used: console or file.
+     */
+    @Param({"console", "file"})
+    public String output;
+
+    /**
+     * The formatter.
+     */
+    private Formatter formatter;
+
+    /**
+     * Record without parameters.
+     */
+    private LogRecord plain;
+
+    /**
+     * Record with parameters.
+     */
+    private LogRecord parameters;
+
+    /**
+     * Record with a multi line message.
+     */
+    private LogRecord multiLine;
+
+    /**
+     * Create the formatter and records.
+     */
+    @Setup
+    public void setup() {
+        ContextFormatter contextFormatter = new ContextFormatter();
+        contextFormatter.setContext(Corpus.getAddress(0));
+        formatter = output.equals("console") ? contextFormatter.getConsoleFormatter() : contextFormatter.getFileFormatter();
+
+        plain = new LogRecord(Level.INFO, "No more samples available");
+
+        parameters = new LogRecord(Level.INFO, "Sample {0} deleted from node");
+        parameters.setParameters(new Object[] {1234});
+
+        multiLine = new LogRecord(Level.INFO, "Sample:\ntime: 1420070400\nbatt: 3.3\ntemp: 12.5\nid: 1234");
+    }
+
+    /**
+     * Format a record without parameters.
+     * @return The formatted record.
+     */
+    @Benchmark
+    public String plain() {
+        return formatter.format(plain);
+    }
+
+    /**
+     * Format a record with parameters.
+     * @return The formatted record.
+     */
+    @Benchmark
+    public String parameters() {
+        return formatter.format(parameters);
+    }
+
+    /**
+     * Format a record with a multi line message.
+     * @return The formatted record.
+     */
+    @Benchmark
+    public String multiLine() {
+        return formatter.format(multiLine);
+    }
+}
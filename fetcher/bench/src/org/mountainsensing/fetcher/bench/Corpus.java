@@ -0,0 +1,441 @@
+/**
+ * realistic, reproducible input data for the benchmarks
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.bench;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.mountainsensing.pb.Readings.Sample;
+import org.mountainsensing.pb.Rs485Message.Rs485;
+
+/**
+ * Generates the inputs of the benchmarks: samples from a deployment of nodes, the serial and hex dumps they're decoded from, and hosts files.
+ * Everything is generated from a fixed seed, so every run (and every version being compared) uses exactly the same data.
+ *
+ * Samples are built from the descriptor of {@link Sample}, so they have every field the protocol buffers define,
+ * whichever version of them is checked out: every node samples every 20 minutes, ids count up,
+ * floating point readings drift daily around a per node value, integer readings look like ADC counts,
+ * optional fields are occasionally missing, and the AVR field holds an encoded {@link Rs485} message.
+ *
+ * Running this writes the corpus to a directory, so the same inputs can be fed to the fetcher itself.
+ */
+public class Corpus {
+
+    /**
+     * Seed every corpus is generated from.
+     */
+    private static final long SEED = 0x6D6F756E7461696EL;
+
+    /**
+     * Number of nodes the samples are from.
+     */
+    public static final int NODES = 24;
+
+    /**
+     * Default number of samples.
+     */
+    public static final int SAMPLES = 10000;
+
+    /**
+     * Default number of hosts in a hosts file.
+     */
+    public static final int HOSTS = 10000;
+
+    /**
+     * Prefix of the addresses of the nodes, as used by the deployment.
+     */
+    private static final String PREFIX = "2a01:348:24b:2:c30c::";
+
+    /**
+     * Time of the first sample, 2015-01-01 00:00:00 UTC.
+     */
+    private static final long START_TIME = 1420070400;
+
+    /**
+     * Interval between two samples of a node, in seconds.
+     */
+    private static final int SAMPLE_INTERVAL = 20 * 60;
+
+    /**
+     * Number of samples a node takes in a day.
+     */
+    private static final int SAMPLES_PER_DAY = 24 * 60 * 60 / SAMPLE_INTERVAL;
+
+    /**
+     * Probability an optional field is set.
+     */
+    private static final double OPTIONAL_PROBABILITY = 0.9;
+
+    /**
+     * Largest number of values in a repeated field.
+     */
+    private static final int MAX_REPEATED = 8;
+
+    /**
+     * Markers of a serial dump, as written by z1-coap-serial-dump.
+     */
+    private static final String NODEID = "+++SERIALDUMP+++NODEID+++";
+    private static final String SAMPLE_START = "+++SERIALDUMP+++SAMPLE+++START+++";
+    private static final String SAMPLE_END = "+++SERIALDUMP+++SAMPLE+++END+++";
+
+    /**
+     * Hex digits, in lower case.
+     */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Private constructor, as this is a static utility class.
+     */
+    private Corpus() {
+
+    }
+
+    /**
+     * Write a corpus to a directory.
+     * @param args The directory, and optionally the number of samples.
+     * @throws IOException If the corpus can't be written.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: Corpus <directory> [samples]");
+            System.exit(1);
+        }
+
+        File dir = new File(args[0]);
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : SAMPLES;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+
+        List<byte[]> samples = samples(count);
+
+        write(new File(dir, "samples.bin"), delimited(samples));
+        write(new File(dir, "samples.hex"), hexDump(samples));
+        write(new File(dir, "samples.dump"), serialDump(samples));
+        write(new File(dir, "hosts"), hostsFile(HOSTS));
+    }
+
+    /**
+     * Generate samples, from all the nodes in turn.
+     * @param count The number of samples.
+     * @return The encoded samples, not delimited.
+     */
+    public static List<byte[]> samples(int count) {
+        Random random = new Random(SEED);
+        List<byte[]> samples = new ArrayList<>(count);
+
+        // Every node has it's own baseline for every reading
+        double[] baselines = new double[NODES];
+        for (int i = 0; i < NODES; i++) {
+            baselines[i] = 25 * random.nextDouble();
+        }
+
+        for (int i = 0; i < count; i++) {
+            int node = i % NODES;
+            int index = i / NODES;
+
+            samples.add(sample(random, baselines[node], index + 1, START_TIME + (long) index * SAMPLE_INTERVAL + random.nextInt(30)));
+        }
+
+        return samples;
+    }
+
+    /**
+     * Generate a single sample.
+     * @param random Source of randomness.
+     * @param baseline Baseline of the node's readings, between 0 and 25.
+     * @param id The id of the sample. Readings drift with it, as if the node sampled every 20 minutes.
+     * @param time The time of the sample, in seconds since the epoch.
+     * @return The encoded sample, not delimited.
+     */
+    public static byte[] sample(Random random, double baseline, int id, long time) {
+        DynamicMessage.Builder builder = DynamicMessage.newBuilder(Sample.getDescriptor());
+
+        for (Descriptors.FieldDescriptor field : Sample.getDescriptor().getFields()) {
+            if (field.getNumber() == Sample.TIME_FIELD_NUMBER) {
+                builder.setField(field, (int) time);
+            } else if (field.getNumber() == Sample.ID_FIELD_NUMBER) {
+                builder.setField(field, id);
+            } else if (field.getNumber() == Sample.AVR_FIELD_NUMBER) {
+                if (random.nextDouble() < OPTIONAL_PROBABILITY / 2) {
+                    builder.setField(field, message(Rs485.getDescriptor(), random, baseline, id).toByteString());
+                }
+            } else {
+                fill(builder, field, random, baseline, id);
+            }
+        }
+
+        return builder.build().toByteArray();
+    }
+
+    /**
+     * Generate a message with every field set, such as a config.
+     * @param type The type of message.
+     * @param random Source of randomness.
+     * @return The encoded message, not delimited.
+     */
+    public static byte[] message(Descriptors.Descriptor type, Random random) {
+        return message(type, random, 25 * random.nextDouble(), 0).toByteArray();
+    }
+
+    /**
+     * Concatenate samples, each prefixed by it's length, as read by decode-sample and written by grab-sample.
+     * @param samples The encoded samples.
+     * @return The delimited samples.
+     */
+    public static byte[] delimited(List<byte[]> samples) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for (byte[] sample : samples) {
+            byte[] delimited = delimit(sample);
+            out.write(delimited, 0, delimited.length);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Hex encode delimited samples, one per line, as read by decode-sample --hex-dump.
+     * @param samples The encoded samples.
+     * @return The hex dump.
+     */
+    public static byte[] hexDump(List<byte[]> samples) {
+        StringBuilder builder = new StringBuilder();
+
+        for (byte[] sample : samples) {
+            appendHex(builder, delimit(sample));
+            builder.append('\n');
+        }
+
+        return builder.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Write samples as serial dumps, one per node, as read by decode-sample --serial-dump.
+     * @param samples The encoded samples. Sample i is from node i % {@link #NODES}.
+     * @return The serial dumps, one after the other.
+     */
+    public static byte[] serialDump(List<byte[]> samples) {
+        StringBuilder builder = new StringBuilder();
+
+        for (int node = 0; node < NODES; node++) {
+            builder.append("Dumping flash of node\n");
+            builder.append(NODEID).append('\n').append(getNodeId(node)).append('\n');
+            builder.append(SAMPLE_START).append('\n');
+
+            for (int i = node; i < samples.size(); i += NODES) {
+                appendHex(builder, delimit(samples.get(i)));
+                builder.append('\n');
+            }
+
+            builder.append(SAMPLE_END).append('\n');
+        }
+
+        return builder.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Generate a hosts file, with a few comments and aliases like a hand maintained one.
+     * @param count The number of hosts.
+     * @return The hosts file.
+     */
+    public static byte[] hostsFile(int count) {
+        Random random = new Random(SEED);
+        StringBuilder builder = new StringBuilder("# Mountain sensing deployment\n\n");
+
+        for (int i = 0; i < count; i++) {
+            if (i % 100 == 0) {
+                builder.append("\n# Site ").append(i / 100).append('\n');
+            }
+
+            String id = getNodeId(i);
+            builder.append(PREFIX).append(id).append('\t').append("node").append(id);
+
+            if (random.nextInt(4) == 0) {
+                builder.append(' ').append("site").append(i / 100).append('-').append(i % 100);
+            }
+
+            if (random.nextInt(10) == 0) {
+                builder.append("\t# replaced battery");
+            }
+
+            builder.append('\n');
+        }
+
+        return builder.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Get the short id of a node, the last part of it's address.
+     * @param node The number of the node.
+     * @return The id, in hex.
+     */
+    public static String getNodeId(int node) {
+        return Integer.toHexString(0x1000 + node);
+    }
+
+    /**
+     * Get the address of a node.
+     * @param node The number of the node.
+     * @return The IPv6 address.
+     */
+    public static String getAddress(int node) {
+        return PREFIX + getNodeId(node);
+    }
+
+    /**
+     * Build a message with every field filled in.
+     * @param type The type of message.
+     * @param random Source of randomness.
+     * @param baseline Baseline of the node's readings.
+     * @param index Number of the sample from the node.
+     * @return The message.
+     */
+    private static DynamicMessage message(Descriptors.Descriptor type, Random random, double baseline, int index) {
+        DynamicMessage.Builder builder = DynamicMessage.newBuilder(type);
+
+        for (Descriptors.FieldDescriptor field : type.getFields()) {
+            fill(builder, field, random, baseline, index);
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Set a field of a message to realistic values.
+     * Optional fields are sometimes left out, repeated fields get a few values.
+     * @param builder The message.
+     * @param field The field.
+     * @param random Source of randomness.
+     * @param baseline Baseline of the node's readings.
+     * @param index Number of the sample from the node.
+     */
+    private static void fill(DynamicMessage.Builder builder, Descriptors.FieldDescriptor field, Random random, double baseline, int index) {
+        if (field.isRepeated()) {
+            int count = 1 + random.nextInt(MAX_REPEATED);
+            for (int i = 0; i < count; i++) {
+                builder.addRepeatedField(field, value(field, random, baseline, index));
+            }
+            return;
+        }
+
+        if (field.isRequired() || random.nextDouble() < OPTIONAL_PROBABILITY) {
+            builder.setField(field, value(field, random, baseline, index));
+        }
+    }
+
+    /**
+     * Get a realistic value for a field.
+     * @param field The field.
+     * @param random Source of randomness.
+     * @param baseline Baseline of the node's readings.
+     * @param index Number of the sample from the node.
+     * @return The value, of the Java type of the field.
+     */
+    private static Object value(Descriptors.FieldDescriptor field, Random random, double baseline, int index) {
+        // Readings drift over the day, with a little noise
+        double reading = baseline + 4 * Math.sin(2 * Math.PI * index / SAMPLES_PER_DAY) + random.nextGaussian() / 4;
+
+        switch (field.getJavaType()) {
+            case FLOAT:
+                return (float) reading;
+            case DOUBLE:
+                return reading;
+            case INT:
+                // ADC counts, signed readings around 0
+                return isSigned(field) ? (int) Math.round(reading * 10) - 125 : random.nextInt(4096);
+            case LONG:
+                return isSigned(field) ? Math.round(reading * 1000) - 12500 : (long) random.nextInt(1 << 20);
+            case BOOLEAN:
+                return random.nextInt(10) == 0;
+            case ENUM:
+                List<Descriptors.EnumValueDescriptor> values = field.getEnumType().getValues();
+                return values.get(random.nextInt(values.size()));
+            case STRING:
+                return "s" + random.nextInt(1000);
+            case BYTE_STRING:
+                byte[] bytes = new byte[8 + random.nextInt(56)];
+                random.nextBytes(bytes);
+                return ByteString.copyFrom(bytes);
+            case MESSAGE:
+                return message(field.getMessageType(), random, baseline, index);
+            default:
+                throw new IllegalArgumentException("Unknown type of field " + field.getFullName());
+        }
+    }
+
+    /**
+     * Check if a field holds signed values.
+     * @param field An integer field.
+     * @return True if negative values are meaningful for it.
+     */
+    private static boolean isSigned(Descriptors.FieldDescriptor field) {
+        switch (field.getType()) {
+            case INT32:
+            case SINT32:
+            case SFIXED32:
+            case INT64:
+            case SINT64:
+            case SFIXED64:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Prefix an encoded sample with it's length, as nodes store them.
+     * @param sample The encoded sample.
+     * @return The delimited sample.
+     */
+    public static byte[] delimit(byte[] sample) {
+        byte[] delimited = new byte[CodedOutputStream.computeRawVarint32Size(sample.length) + sample.length];
+        CodedOutputStream coded = CodedOutputStream.newInstance(delimited);
+
+        try {
+            coded.writeRawVarint32(sample.length);
+            coded.writeRawBytes(sample);
+        } catch (IOException e) {
+            // Can't happen, the array is exactly big enough
+            throw new IllegalStateException(e);
+        }
+
+        return delimited;
+    }
+
+    /**
+     * Append bytes in hex.
+     * @param builder Where to append the bytes.
+     * @param bytes The bytes.
+     */
+    private static void appendHex(StringBuilder builder, byte[] bytes) {
+        for (byte b : bytes) {
+            builder.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+        }
+    }
+
+    /**
+     * Write bytes to a file.
+     * @param file The file.
+     * @param data The bytes.
+     * @throws IOException If the file can't be written.
+     */
+    private static void write(File file, byte[] data) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+}
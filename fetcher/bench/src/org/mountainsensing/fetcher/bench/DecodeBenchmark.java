@@ -0,0 +1,102 @@
+/**
+ * benchmarks of decode-sample on hex and serial dumps
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.bench;
+
+import com.beust.jcommander.JCommander;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.mountainsensing.fetcher.Commands;
+import org.mountainsensing.fetcher.Operation;
+import org.mountainsensing.fetcher.utils.ContextFormatter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The whole of decode-sample on a hex dump or serial dump file: reading, hex decoding, parsing, and writing the samples out as JSON lines.
+ * Results are per sample.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark {
+
+    /**
+     * Number of samples in the dump.
+     */
+    private static final int SAMPLES = Corpus.SAMPLES;
+
+    /**
+     * The kind of dump: hex (one sample per line) or dump (serial dumps of every node).
+     */
+    @Param({"hex", "dump"})
+    public String format;
+
+    /**
+     * The dump file.
+     */
+    private File input;
+
+    /**
+     * Write the dump.
+     * @throws IOException If the dump can't be written.
+     */
+    @Setup
+    public void setup() throws IOException {
+        // Operations need a formatter to set their logging context
+        Operation.setContextFormatter(new ContextFormatter());
+
+        List<byte[]> samples = Corpus.samples(SAMPLES);
+        input = File.createTempFile("bench-", "." + format);
+
+        try (OutputStream out = new FileOutputStream(input)) {
+            out.write(format.equals("hex") ? Corpus.hexDump(samples) : Corpus.serialDump(samples));
+        }
+    }
+
+    /**
+     * Delete the dump.
+     * @throws IOException If the dump can't be deleted.
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(input.toPath());
+    }
+
+    /**
+     * Decode the whole dump.
+     * @throws Exception If the command is invalid.
+     */
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public void decode() throws Exception {
+        String dumpOption = format.equals("hex") ? "--hex-dump" : "--serial-dump";
+
+        JCommander parser = Commands.newParser(new Object());
+        parser.parse("decode-sample", dumpOption, "-f", "jsonl", "-o", "/dev/null", input.getPath());
+
+        Operation operation = Commands.getParsedOperation(parser);
+        operation.validate();
+        operation.perform(0, 0);
+    }
+}
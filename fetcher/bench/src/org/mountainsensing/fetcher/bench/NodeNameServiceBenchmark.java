@@ -0,0 +1,62 @@
+/**
+ * benchmark of parsing hosts files
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.mountainsensing.fetcher.net.NodeNameService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing a large hosts file, as given with --nodes.
+ * Results are per line.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NodeNameServiceBenchmark {
+
+    /**
+     * Number of hosts in the file.
+     */
+    private static final int HOSTS = Corpus.HOSTS;
+
+    /**
+     * The hosts file.
+     */
+    private byte[] hosts;
+
+    /**
+     * Generate the hosts file.
+     */
+    @Setup
+    public void setup() {
+        hosts = Corpus.hostsFile(HOSTS);
+    }
+
+    /**
+     * Parse the hosts file. Every parse registers the same hosts again.
+     * @throws IOException If the file can't be parsed.
+     */
+    @Benchmark
+    @OperationsPerInvocation(HOSTS)
+    public void parse() throws IOException {
+        NodeNameService.getInstance().parse(new ByteArrayInputStream(hosts));
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * benchmarks of decoding and printing samples
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.mountainsensing.fetcher.utils.ProtoBufUtils;
+import org.mountainsensing.pb.Readings.Sample;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding samples as they're received from nodes, and printing them as get-sample and decode-sample do.
+ * Results are per sample.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtoBufBenchmark {
+
+    /**
+     * Number of samples decoded or printed per invocation.
+     */
+    private static final int SAMPLES = 1000;
+
+    /**
+     * The samples, delimited one after the other.
+     */
+    private byte[] delimited;
+
+    /**
+     * The samples, decoded.
+     */
+    private List<Sample> samples;
+
+    /**
+     * Generate the samples.
+     * @throws IOException If the generated samples can't be decoded.
+     */
+    @Setup
+    public void setup() throws IOException {
+        List<byte[]> encoded = Corpus.samples(SAMPLES);
+        delimited = Corpus.delimited(encoded);
+
+        samples = new ArrayList<>(SAMPLES);
+        for (byte[] sample : encoded) {
+            samples.add(Sample.parseFrom(sample));
+        }
+    }
+
+    /**
+     * Decode delimited samples, like a response to a GET of a sample.
+     * @param blackhole Consumes the samples.
+     * @throws IOException If a sample can't be decoded.
+     */
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public void parseDelimited(Blackhole blackhole) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(delimited);
+
+        for (int i = 0; i < SAMPLES; i++) {
+            blackhole.consume(Sample.parseDelimitedFrom(in));
+        }
+    }
+
+    /**
+     * Print samples in the text format.
+     * @param blackhole Consumes the text.
+     * @throws IOException If a sample can't be printed.
+     */
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public void toText(Blackhole blackhole) throws IOException {
+        for (Sample sample : samples) {
+            blackhole.consume(ProtoBufUtils.toString(sample));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * benchmark of writing route graphs
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.mountainsensing.fetcher.utils.RouteGraph;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Writing the DOT graph of a network, as get-routes --graph does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RouteGraphBenchmark {
+
+    /**
+     * Number of nodes in the network.
+     */
+    @Param({"24", "500"})
+    public int nodes;
+
+    /**
+     * The graph.
+     */
+    private RouteGraph graph;
+
+    /**
+     * Stream discarding what's written to it.
+     */
+    private static class NullOutputStream extends OutputStream {
+
+        /**
+         * Consumes what's written.
+         */
+        private final Blackhole blackhole;
+
+        /**
+         * Create a new stream.
+         * @param blackhole Consumes what's written.
+         */
+        NullOutputStream(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(int b) {
+            blackhole.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            blackhole.consume(b);
+        }
+    }
+
+    /**
+     * Build a mesh: every node routes to every node below it in a tree, and has a few neighbours.
+     */
+    @Setup
+    public void setup() {
+        Random random = new Random(nodes);
+        graph = new RouteGraph("routes");
+
+        for (int i = 1; i < nodes; i++) {
+            String node = Corpus.getAddress(i);
+
+            // Routes to every node in the subtree, through the parent
+            for (int child = 2 * i; child < nodes && child < 2 * i + 2; child++) {
+                graph.addRoute(node, Corpus.getAddress(child));
+            }
+
+            for (int j = 0; j < 3; j++) {
+                graph.addNeighbour(node, Corpus.getAddress(random.nextInt(nodes)));
+            }
+        }
+    }
+
+    /**
+     * Write the graph.
+     * @param blackhole Consumes the graph.
+     * @throws IOException If the graph can't be written.
+     */
+    @Benchmark
+    public void write(Blackhole blackhole) throws IOException {
+        graph.write(new NullOutputStream(blackhole));
+    }
+}
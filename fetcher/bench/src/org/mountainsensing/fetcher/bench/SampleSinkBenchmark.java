@@ -0,0 +1,141 @@
+/**
+ * benchmark of saving grabbed samples
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.mountainsensing.fetcher.storage.DirectorySink;
+import org.mountainsensing.fetcher.storage.SampleQueue;
+import org.mountainsensing.fetcher.storage.SampleSink;
+import org.mountainsensing.pb.Readings.Sample;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Saving samples durably, as grab-sample does before deleting them from their node.
+ * Every iteration saves to a new, empty, destination in the temporary directory (ie java.io.tmpdir should be on the same disk as the real destination).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SampleSinkBenchmark {
+
+    /**
+     * Number of different samples saved.
+     */
+    private static final int SAMPLES = 1000;
+
+    /**
+     * The fetcher's logger, kept so it's level isn't lost.
+     * Every saved sample is logged at INFO, which would otherwise flood the console.
+     */
+    private static final Logger fetcherLog = Logger.getLogger("org.mountainsensing.fetcher");
+
+    /**
+     * The destination: directory (a file per sample) or queue (grab-sample --queue).
+     */
+    @Param({"directory", "queue"})
+    public String sinkType;
+
+    /**
+     * The samples.
+     */
+    private List<Sample> samples;
+
+    /**
+     * Directory the samples are saved in, for the current iteration.
+     */
+    private File dir;
+
+    /**
+     * Where the samples are saved, for the current iteration.
+     */
+    private SampleSink sink;
+
+    /**
+     * Index of the next sample to save.
+     */
+    private int next = 0;
+
+    /**
+     * Generate the samples.
+     * @throws IOException If a generated sample can't be decoded.
+     */
+    @Setup(Level.Trial)
+    public void setupTrial() throws IOException {
+        fetcherLog.setLevel(java.util.logging.Level.WARNING);
+
+        samples = new ArrayList<>(SAMPLES);
+        for (byte[] sample : Corpus.samples(SAMPLES)) {
+            samples.add(Sample.parseFrom(sample));
+        }
+    }
+
+    /**
+     * Open a new destination.
+     * @throws IOException If it can't be created.
+     */
+    @Setup(Level.Iteration)
+    public void setupIteration() throws IOException {
+        dir = Files.createTempDirectory("bench-sink-").toFile();
+        sink = sinkType.equals("queue") ? new SampleQueue(dir) : new DirectorySink(dir);
+    }
+
+    /**
+     * Close and delete the destination.
+     * @throws IOException If it can't be closed or deleted.
+     */
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() throws IOException {
+        sink.close();
+        delete(dir);
+    }
+
+    /**
+     * Save a sample, from the nodes in turn.
+     * @throws IOException If the sample can't be saved.
+     */
+    @Benchmark
+    public void save() throws IOException {
+        int index = next++;
+        sink.save(Corpus.getAddress(index % Corpus.NODES), samples.get(index % SAMPLES));
+    }
+
+    /**
+     * Delete a directory and everything in it.
+     * @param file The directory, or a file.
+     * @throws IOException If something can't be deleted.
+     */
+    private static void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+
+        Files.delete(file.toPath());
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * counters of what a node farm has done
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.bench.sim;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the traffic and work of every node in a farm, so a load test can be checked against what the fetcher reports.
+ * Thread safe.
+ */
+class FarmStats {
+
+    /**
+     * Number of requests handled.
+     */
+    private final LongAdder requests = new LongAdder();
+
+    /**
+     * Number of samples returned.
+     */
+    private final LongAdder samplesServed = new LongAdder();
+
+    /**
+     * Number of samples deleted.
+     */
+    private final LongAdder samplesDeleted = new LongAdder();
+
+    /**
+     * Number of datagrams sent by the nodes.
+     */
+    private final LongAdder datagramsSent = new LongAdder();
+
+    /**
+     * Number of datagrams received by the nodes.
+     */
+    private final LongAdder datagramsReceived = new LongAdder();
+
+    /**
+     * Number of bytes sent by the nodes.
+     */
+    private final LongAdder bytesSent = new LongAdder();
+
+    /**
+     * Number of bytes received by the nodes.
+     */
+    private final LongAdder bytesReceived = new LongAdder();
+
+    /**
+     * Number of datagrams lost, in either direction.
+     */
+    private final LongAdder datagramsDropped = new LongAdder();
+
+    /**
+     * Number of reboots.
+     */
+    private final LongAdder reboots = new LongAdder();
+
+    /**
+     * Count a request.
+     */
+    public void request() {
+        requests.increment();
+    }
+
+    /**
+     * Count a sample returned.
+     */
+    public void sampleServed() {
+        samplesServed.increment();
+    }
+
+    /**
+     * Count a sample deleted.
+     */
+    public void sampleDeleted() {
+        samplesDeleted.increment();
+    }
+
+    /**
+     * Count a datagram sent by a node.
+     * @param size The size of the datagram, in bytes.
+     */
+    public void sent(int size) {
+        datagramsSent.increment();
+        bytesSent.add(size);
+    }
+
+    /**
+     * Count a datagram received by a node.
+     * @param size The size of the datagram, in bytes.
+     */
+    public void received(int size) {
+        datagramsReceived.increment();
+        bytesReceived.add(size);
+    }
+
+    /**
+     * Count a lost datagram.
+     */
+    public void dropped() {
+        datagramsDropped.increment();
+    }
+
+    /**
+     * Count a reboot.
+     */
+    public void reboot() {
+        reboots.increment();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d request(s), %d sample(s) served, %d sample(s) deleted, %d reboot(s). "
+                + "Datagrams: %d received (%d bytes), %d sent (%d bytes), %d lost",
+                requests.sum(), samplesServed.sum(), samplesDeleted.sum(), reboots.sum(),
+                datagramsReceived.sum(), bytesReceived.sum(), datagramsSent.sum(), bytesSent.sum(), datagramsDropped.sum());
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * lossy, slow radio link in front of a simulated node
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.bench.sim;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.californium.elements.Connector;
+import org.eclipse.californium.elements.RawData;
+import org.eclipse.californium.elements.RawDataChannel;
+
+/**
+ * Connector standing in for the radio link of a node: datagrams in both directions are delayed and randomly lost,
+ * and nothing gets through while the node is down.
+ * Loss is per datagram, so CoAP retransmissions behave as they do on the mesh: a retransmitted request can get through when the first didn't.
+ * Half of the delay is applied to datagrams received by the node, and half to datagrams it sends.
+ */
+class LinkConnector implements Connector {
+
+    /**
+     * The underlying UDP connector.
+     */
+    private final Connector connector;
+
+    /**
+     * How the link behaves.
+     */
+    private final NodeProfile profile;
+
+    /**
+     * Number of hops between the node and the border router.
+     */
+    private final int hops;
+
+    /**
+     * Executor delayed datagrams are delivered on.
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Counts the datagrams.
+     */
+    private final FarmStats stats;
+
+    /**
+     * Time until which the node is down, in ms since the epoch.
+     */
+    private volatile long downUntil = 0;
+
+    /**
+     * Create a new link.
+     * @param connector The underlying UDP connector.
+     * @param profile How the link behaves.
+     * @param hops Number of hops between the node and the border router.
+     * @param executor Executor delayed datagrams are delivered on.
+     * @param stats Counts the datagrams.
+     */
+    public LinkConnector(Connector connector, NodeProfile profile, int hops, ScheduledExecutorService executor, FarmStats stats) {
+        this.connector = connector;
+        this.profile = profile;
+        this.hops = hops;
+        this.executor = executor;
+        this.stats = stats;
+    }
+
+    /**
+     * Take the link down, dropping every datagram for a while.
+     * @param millis How long the link is down for, in ms.
+     */
+    public void down(long millis) {
+        downUntil = System.currentTimeMillis() + millis;
+    }
+
+    /**
+     * Check if the link is down.
+     * @return True if datagrams are being dropped.
+     */
+    public boolean isDown() {
+        return System.currentTimeMillis() < downUntil;
+    }
+
+    @Override
+    public void start() throws IOException {
+        connector.start();
+    }
+
+    @Override
+    public void stop() {
+        connector.stop();
+    }
+
+    @Override
+    public void destroy() {
+        connector.destroy();
+    }
+
+    @Override
+    public void send(final RawData msg) {
+        if (isLost()) {
+            return;
+        }
+
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                // The node could have gone down while the datagram was in flight
+                if (!isDown()) {
+                    stats.sent(msg.getSize());
+                    connector.send(msg);
+                }
+            }
+        }, getDelay(), TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public void setRawDataReceiver(final RawDataChannel receiver) {
+        connector.setRawDataReceiver(new RawDataChannel() {
+            @Override
+            public void receiveData(final RawData msg) {
+                if (isLost()) {
+                    return;
+                }
+
+                executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isDown()) {
+                            stats.received(msg.getSize());
+                            receiver.receiveData(msg);
+                        }
+                    }
+                }, getDelay(), TimeUnit.MICROSECONDS);
+            }
+        });
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        return connector.getAddress();
+    }
+
+    /**
+     * Decide if a datagram is lost, counting it if it is.
+     * @return True if the datagram should be dropped.
+     */
+    private boolean isLost() {
+        if (isDown() || ThreadLocalRandom.current().nextDouble() < profile.getLoss()) {
+            stats.dropped();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Get the delay of a datagram in one direction.
+     * @return The delay, in microseconds.
+     */
+    private long getDelay() {
+        double millis = profile.getLatency() + hops * profile.getHopLatency() + ThreadLocalRandom.current().nextDouble() * profile.getJitter();
+        return Math.round(millis * 1000 / 2);
+    }
+}
@@ -0,0 +1,440 @@
+/**
+ * farm of simulated nodes, to load test the fetcher without a mesh
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.bench.sim;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+
+/**
+ * Serves hundreds of {@link SimulatedNode}s from one machine, so grab-sample and friends can be load tested against something that
+ * behaves like a mesh: every node has it's own address, a backlog of samples, a lossy link whose latency grows with it's depth in
+ * the routing tree, and can reboot.
+ *
+ * Nodes are numbered from a short id, which is the last 2 bytes of their address, so their routes use the same short ids the real nodes do.
+ * Every node needs it's own address: IPv4 loopback prefixes (ie 127.1.0.0) work out of the box on Linux,
+ * IPv6 addresses have to be added to the loopback interface first (ie {@code ip -6 addr add fdde:ad00:beef::8001/128 dev lo}).
+ * A hosts file naming every node can be written, to give to the fetcher with -n.
+ */
+public class NodeFarm {
+
+    private static final Logger log = Logger.getLogger(NodeFarm.class.getName());
+
+    /**
+     * Californium's logger, kept so it's level isn't lost if it's garbage collected.
+     * Californium logs every endpoint and server started, which is a lot of noise for hundreds of nodes.
+     */
+    private static final Logger californiumLog = Logger.getLogger("org.eclipse.californium");
+
+    @Parameter(names = {"-h", "--help"}, help = true, description = "Show this help")
+    private boolean isHelp = false;
+
+    @Parameter(names = {"-n", "--nodes"}, description = "Number of nodes")
+    private int nodeCount = 100;
+
+    @Parameter(names = {"-p", "--prefix"}, description = "Address the addresses of the nodes are based on. The last 2 bytes are replaced by the short id of the node")
+    private String prefix = "127.1.0.0";
+
+    @Parameter(names = {"-f", "--first"}, description = "Short id of the first node, in hex")
+    private String firstId = "8001";
+
+    @Parameter(names = {"-b", "--backlog"}, description = "Number of samples on every node when the farm starts")
+    private int backlog = 72;
+
+    @Parameter(names = {"-i", "--interval"}, description = "Interval at which nodes take new samples, in seconds. 0 to never take new samples")
+    private int sampleInterval = 0;
+
+    @Parameter(names = {"--latency"}, description = "Base round trip latency of the links, in ms")
+    private double latency = 20;
+
+    @Parameter(names = {"--jitter"}, description = "Largest random latency added to the round trip, in ms")
+    private double jitter = 30;
+
+    @Parameter(names = {"--hop-latency"}, description = "Round trip latency added for every hop between a node and the border router, in ms")
+    private double hopLatency = 40;
+
+    @Parameter(names = {"--loss"}, description = "Probability of a datagram being lost, in either direction")
+    private double loss = 0.02;
+
+    @Parameter(names = {"--reboot"}, description = "Mean time between spontaneous reboots of a node, in seconds. 0 for nodes to never reboot on their own")
+    private double rebootInterval = 0;
+
+    @Parameter(names = {"--downtime"}, description = "Time a node is unreachable for when it reboots, in seconds")
+    private double downtime = 30;
+
+    @Parameter(names = {"--profiles"}, description = "File overriding the latency, loss, and reboots of specific nodes. See NodeProfile for the format")
+    private String profilesPath;
+
+    @Parameter(names = {"--roots"}, description = "Number of nodes that are directly attached to the border router")
+    private int roots = 4;
+
+    @Parameter(names = {"--fanout"}, description = "Largest number of children a node has in the routing tree")
+    private int fanout = 4;
+
+    @Parameter(names = {"--border-router"}, description = "Short id of the border router, in hex")
+    private String borderRouterId = "0001";
+
+    @Parameter(names = {"--hosts"}, description = "Write a hosts file naming the nodes node<id> to this file")
+    private String hostsPath;
+
+    @Parameter(names = {"--seed"}, description = "Seed of the randomness, the same seed always gives the same farm")
+    private long seed = 0x6D6F756E7461696EL;
+
+    @Parameter(names = {"--threads"}, description = "Number of threads handling requests and delaying datagrams for all the nodes")
+    private int threads = Math.max(2, 2 * Runtime.getRuntime().availableProcessors());
+
+    @Parameter(names = {"--duration"}, description = "Stop after this many seconds. 0 to run until killed")
+    private int duration = 0;
+
+    @Parameter(names = {"--report"}, description = "Interval at which what the farm has done is logged, in seconds. 0 to only log it when the farm stops")
+    private int reportInterval = 10;
+
+    /**
+     * The nodes of the farm.
+     */
+    private final List<SimulatedNode> nodes = new ArrayList<>();
+
+    /**
+     * Counts what the nodes do.
+     */
+    private final FarmStats stats = new FarmStats();
+
+    /**
+     * Run a farm until it's killed, or it's duration is up.
+     * @param args The command line arguments.
+     * @throws Exception If the farm can't be started.
+     */
+    public static void main(String[] args) throws Exception {
+        NodeFarm farm = new NodeFarm();
+        JCommander jc = new JCommander(farm);
+        jc.setProgramName(NodeFarm.class.getSimpleName());
+
+        try {
+            jc.parse(args);
+            farm.validate();
+        } catch (ParameterException e) {
+            System.err.println(e.getMessage());
+            jc.usage();
+            System.exit(1);
+        }
+
+        if (farm.isHelp) {
+            jc.usage();
+            return;
+        }
+
+        californiumLog.setLevel(Level.WARNING);
+        farm.run();
+    }
+
+    /**
+     * Check the options make sense.
+     * @throws ParameterException If they don't.
+     */
+    private void validate() {
+        int first = parseId(firstId);
+        parseId(borderRouterId);
+
+        if (nodeCount < 1 || first + nodeCount - 1 > 0xFFFF) {
+            throw new ParameterException("Short ids of the nodes must be between 0000 and ffff");
+        }
+
+        if (backlog < 0 || sampleInterval < 0 || duration < 0 || reportInterval < 0) {
+            throw new ParameterException("Backlog, interval, duration, and report must not be negative");
+        }
+
+        if (roots < 1 || fanout < 1 || threads < 1) {
+            throw new ParameterException("Roots, fanout and threads must be positive");
+        }
+
+        try {
+            getDefaultProfile().validate();
+        } catch (IllegalArgumentException e) {
+            throw new ParameterException(e.getMessage());
+        }
+    }
+
+    /**
+     * Build the nodes, start them, and serve requests until killed or the duration is up.
+     * @throws IOException If the profiles or the hosts file can't be read or written, or a node can't be started.
+     * @throws InterruptedException If interrupted while running.
+     */
+    private void run() throws IOException, InterruptedException {
+        final ScheduledExecutorService executor = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "farm-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        buildNodes(executor);
+
+        if (hostsPath != null) {
+            writeHosts(new File(hostsPath));
+        }
+
+        for (SimulatedNode node : nodes) {
+            try {
+                node.start(sampleInterval);
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "Unable to start node " + node.getAddress().getHostAddress() + ": " + e.getMessage()
+                        + ". IPv6 addresses must be added to the loopback interface first, or use an IPv4 loopback prefix such as 127.1.0.0", e);
+                stop(executor);
+                System.exit(1);
+            }
+        }
+
+        log.log(Level.INFO, "Simulating {0} node(s), from {1} to {2}", new Object[] {
+            nodes.size(), nodes.get(0).getAddress().getHostAddress(), nodes.get(nodes.size() - 1).getAddress().getHostAddress()
+        });
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stop(executor);
+            }
+        }, "farm-shutdown"));
+
+        if (reportInterval > 0) {
+            executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    report();
+                }
+            }, reportInterval, reportInterval, TimeUnit.SECONDS);
+        }
+
+        if (duration > 0) {
+            Thread.sleep(duration * 1000L);
+            System.exit(0);
+        }
+
+        Thread.currentThread().join();
+    }
+
+    /**
+     * Stop every node, and print what the farm has done.
+     * @param executor The executor of the nodes.
+     */
+    private synchronized void stop(ScheduledExecutorService executor) {
+        if (executor.isShutdown()) {
+            return;
+        }
+
+        executor.shutdownNow();
+
+        for (SimulatedNode node : nodes) {
+            node.stop();
+        }
+
+        // Printed, as the LogManager's own shutdown hook can close the handlers first
+        System.err.println(getReport());
+    }
+
+    /**
+     * Log what the farm has done.
+     */
+    private void report() {
+        log.log(Level.INFO, getReport());
+    }
+
+    /**
+     * Describe what the farm has done, and how many samples are left.
+     * @return The description.
+     */
+    private String getReport() {
+        long samples = 0;
+        for (SimulatedNode node : nodes) {
+            samples += node.getSampleCount();
+        }
+
+        return stats + ". " + samples + " sample(s) left";
+    }
+
+    /**
+     * Build the nodes, and the routing tree connecting them to the border router.
+     * The first nodes are attached to the border router, every other node picks a random parent amongst the nodes before it with room for another child.
+     * A node's neighbours are it's parent, it's children, and a couple of nodes at the same depth.
+     * It has a route to every node below it, through the child that node is below.
+     * @param executor Executor the nodes run on.
+     * @throws IOException If the profiles can't be read.
+     */
+    private void buildNodes(ScheduledExecutorService executor) throws IOException {
+        Random random = new Random(seed);
+        int first = parseId(firstId);
+        NodeProfile defaults = getDefaultProfile();
+        Map<Integer, NodeProfile> profiles = profilesPath == null ? Collections.<Integer, NodeProfile>emptyMap() : NodeProfile.read(new File(profilesPath), defaults);
+
+        int[] parents = new int[nodeCount];
+        int[] depths = new int[nodeCount];
+        List<List<Integer>> children = new ArrayList<>();
+        List<List<Integer>> byDepth = new ArrayList<>();
+        List<Integer> open = new ArrayList<>();
+
+        for (int i = 0; i < nodeCount; i++) {
+            children.add(new ArrayList<Integer>());
+
+            if (i < roots) {
+                parents[i] = -1;
+                depths[i] = 1;
+            } else {
+                int index = random.nextInt(open.size());
+                int parent = open.get(index);
+
+                parents[i] = parent;
+                depths[i] = depths[parent] + 1;
+                children.get(parent).add(i);
+
+                if (children.get(parent).size() == fanout) {
+                    open.set(index, open.get(open.size() - 1));
+                    open.remove(open.size() - 1);
+                }
+            }
+
+            open.add(i);
+
+            while (byDepth.size() <= depths[i]) {
+                byDepth.add(new ArrayList<Integer>());
+            }
+            byDepth.get(depths[i]).add(i);
+        }
+
+        NetworkConfig config = NetworkConfig.createStandardWithoutFile();
+        byte[] base = getPrefix().getAddress();
+
+        for (int i = 0; i < nodeCount; i++) {
+            StringBuilder routes = new StringBuilder();
+            routes.append(parents[i] < 0 ? formatId(parseId(borderRouterId)) : formatId(first + parents[i])).append('\n');
+
+            List<Integer> neighbours = new ArrayList<>(children.get(i));
+            List<Integer> sameDepth = byDepth.get(depths[i]);
+            for (int j = 0; j < 2 && sameDepth.size() > 1; j++) {
+                int neighbour = sameDepth.get(random.nextInt(sameDepth.size()));
+                if (neighbour != i && !neighbours.contains(neighbour)) {
+                    neighbours.add(neighbour);
+                }
+            }
+
+            if (parents[i] >= 0) {
+                routes.append(formatId(first + parents[i])).append('\n');
+            }
+            for (int neighbour : neighbours) {
+                routes.append(formatId(first + neighbour)).append('\n');
+            }
+
+            for (int child : children.get(i)) {
+                appendRoutes(routes, children, child, formatId(first + child), first);
+            }
+
+            int id = first + i;
+            byte[] address = base.clone();
+            address[address.length - 2] = (byte) (id >> 8);
+            address[address.length - 1] = (byte) id;
+
+            NodeProfile profile = profiles.containsKey(id) ? profiles.get(id) : defaults;
+            nodes.add(new SimulatedNode(InetAddress.getByAddress(address), id, profile, depths[i], routes.toString(), backlog, random.nextLong(), config, executor, stats));
+        }
+    }
+
+    /**
+     * Append routes to a node and every node below it.
+     * @param routes Where to append the routes.
+     * @param children The children of every node.
+     * @param node The node.
+     * @param via The short id of the neighbour the routes go through.
+     * @param first The short id of the first node.
+     */
+    private static void appendRoutes(StringBuilder routes, List<List<Integer>> children, int node, String via, int first) {
+        routes.append(formatId(first + node)).append('@').append(via).append('\n');
+
+        for (int child : children.get(node)) {
+            appendRoutes(routes, children, child, via, first);
+        }
+    }
+
+    /**
+     * Write a hosts file naming every node.
+     * @param file The file.
+     * @throws IOException If the file can't be written.
+     */
+    private void writeHosts(File file) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write("# Simulated nodes\n");
+
+            for (SimulatedNode node : nodes) {
+                writer.write(node.getAddress().getHostAddress() + "\tnode" + formatId(node.getId()) + "\n");
+            }
+        }
+    }
+
+    /**
+     * Get the profile of nodes that aren't in the profile file.
+     * @return The profile given by the options.
+     */
+    private NodeProfile getDefaultProfile() {
+        return new NodeProfile(latency, jitter, hopLatency, loss, rebootInterval, downtime);
+    }
+
+    /**
+     * Get the address the addresses of the nodes are based on.
+     * @return The address.
+     * @throws UnknownHostException If the prefix isn't a literal address.
+     */
+    private InetAddress getPrefix() throws UnknownHostException {
+        if (!prefix.matches("[0-9a-fA-F:.]+")) {
+            throw new UnknownHostException("Prefix must be a literal address: " + prefix);
+        }
+
+        return InetAddress.getByName(prefix);
+    }
+
+    /**
+     * Parse a short id.
+     * @param id The id, in hex.
+     * @return The id.
+     * @throws ParameterException If the id isn't 1 to 4 hex digits.
+     */
+    private static int parseId(String id) {
+        if (!id.matches("[0-9a-fA-F]{1,4}")) {
+            throw new ParameterException("Invalid short id " + id + ", expected up to 4 hex digits");
+        }
+
+        return Integer.parseInt(id, 16);
+    }
+
+    /**
+     * Format a short id, as the nodes do.
+     * @param id The id.
+     * @return The id, as 4 hex digits.
+     */
+    private static String formatId(int id) {
+        return String.format("%04x", id);
+    }
+}
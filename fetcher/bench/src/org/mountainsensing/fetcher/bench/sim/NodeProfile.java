@@ -0,0 +1,232 @@
+/**
+ * how a simulated node and it's link behave
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.bench.sim;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The behaviour of a simulated node: the latency and loss of it's link, and how often it reboots.
+ * Every node starts with the profile given on the command line, which a profile file can override per node.
+ *
+ * A profile file has a line per node: the node's short id (the last 4 hex digits of it's address),
+ * followed by any number of {@code key=value} settings, ie
+ * <pre>
+ * # Flaky node at the edge of the mesh
+ * 8012 latency=400 jitter=300 loss=0.3 reboot=600
+ * </pre>
+ * The keys are latency, jitter and hop-latency (in ms), loss (a probability), reboot and downtime (in s).
+ * Anything after a # is a comment.
+ */
+class NodeProfile {
+
+    /**
+     * Base round trip latency of the link, in ms.
+     */
+    private double latency;
+
+    /**
+     * Largest random latency added to the round trip, in ms.
+     */
+    private double jitter;
+
+    /**
+     * Round trip latency added for every hop between the node and the border router, in ms.
+     */
+    private double hopLatency;
+
+    /**
+     * Probability of a datagram being lost, in either direction.
+     */
+    private double loss;
+
+    /**
+     * Mean time between spontaneous reboots, in seconds. 0 if the node never reboots on it's own.
+     */
+    private double rebootInterval;
+
+    /**
+     * Time a node is unreachable for when it reboots, in seconds.
+     */
+    private double downtime;
+
+    /**
+     * Create a new profile.
+     * @param latency Base round trip latency of the link, in ms.
+     * @param jitter Largest random latency added to the round trip, in ms.
+     * @param hopLatency Round trip latency added for every hop between the node and the border router, in ms.
+     * @param loss Probability of a datagram being lost, in either direction.
+     * @param rebootInterval Mean time between spontaneous reboots, in seconds. 0 if the node never reboots on it's own.
+     * @param downtime Time a node is unreachable for when it reboots, in seconds.
+     */
+    public NodeProfile(double latency, double jitter, double hopLatency, double loss, double rebootInterval, double downtime) {
+        this.latency = latency;
+        this.jitter = jitter;
+        this.hopLatency = hopLatency;
+        this.loss = loss;
+        this.rebootInterval = rebootInterval;
+        this.downtime = downtime;
+    }
+
+    /**
+     * Copy a profile.
+     * @param profile The profile to copy.
+     */
+    private NodeProfile(NodeProfile profile) {
+        this(profile.latency, profile.jitter, profile.hopLatency, profile.loss, profile.rebootInterval, profile.downtime);
+    }
+
+    /**
+     * Get the base round trip latency of the link.
+     * @return The latency, in ms.
+     */
+    public double getLatency() {
+        return latency;
+    }
+
+    /**
+     * Get the largest random latency added to the round trip.
+     * @return The jitter, in ms.
+     */
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * Get the round trip latency added for every hop between the node and the border router.
+     * @return The latency, in ms.
+     */
+    public double getHopLatency() {
+        return hopLatency;
+    }
+
+    /**
+     * Get the probability of a datagram being lost.
+     * @return The probability, between 0 and 1.
+     */
+    public double getLoss() {
+        return loss;
+    }
+
+    /**
+     * Get the mean time between spontaneous reboots.
+     * @return The time, in seconds. 0 if the node never reboots on it's own.
+     */
+    public double getRebootInterval() {
+        return rebootInterval;
+    }
+
+    /**
+     * Get the time a node is unreachable for when it reboots.
+     * @return The time, in seconds.
+     */
+    public double getDowntime() {
+        return downtime;
+    }
+
+    /**
+     * Check the settings of the profile are sensible.
+     * @throws IllegalArgumentException If a setting is out of range.
+     */
+    public void validate() {
+        if (latency < 0 || jitter < 0 || hopLatency < 0 || rebootInterval < 0 || downtime < 0) {
+            throw new IllegalArgumentException("Latencies and times can't be negative");
+        }
+
+        if (loss < 0 || loss >= 1) {
+            throw new IllegalArgumentException("Loss must be at least 0, and less than 1");
+        }
+    }
+
+    /**
+     * Change a setting.
+     * @param key The name of the setting.
+     * @param value The new value.
+     * @throws IllegalArgumentException If the setting is unknown, or the value isn't a number.
+     */
+    private void set(String key, String value) {
+        double number = Double.parseDouble(value);
+
+        switch (key) {
+            case "latency":
+                latency = number;
+                break;
+            case "jitter":
+                jitter = number;
+                break;
+            case "hop-latency":
+                hopLatency = number;
+                break;
+            case "loss":
+                loss = number;
+                break;
+            case "reboot":
+                rebootInterval = number;
+                break;
+            case "downtime":
+                downtime = number;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown setting " + key);
+        }
+    }
+
+    /**
+     * Read the profiles of nodes from a file.
+     * @param file The profile file.
+     * @param defaults The profile of nodes, that the file overrides.
+     * @return The profiles in the file, by short id.
+     * @throws IOException If the file can't be read, or is malformed.
+     */
+    public static Map<Integer, NodeProfile> read(File file, NodeProfile defaults) throws IOException {
+        Map<Integer, NodeProfile> profiles = new HashMap<>();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            int number = 0;
+
+            while ((line = reader.readLine()) != null) {
+                number++;
+
+                if (line.contains("#")) {
+                    line = line.substring(0, line.indexOf('#'));
+                }
+
+                String[] parts = line.trim().split("\\s+");
+
+                if (parts[0].isEmpty()) {
+                    continue;
+                }
+
+                try {
+                    NodeProfile profile = new NodeProfile(defaults);
+
+                    for (int i = 1; i < parts.length; i++) {
+                        String[] setting = parts[i].split("=", 2);
+
+                        if (setting.length != 2) {
+                            throw new IllegalArgumentException("Expected key=value, got " + parts[i]);
+                        }
+
+                        profile.set(setting[0], setting[1]);
+                    }
+
+                    profile.validate();
+                    profiles.put(Integer.parseInt(parts[0], 16), profile);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(file + ":" + number + ": " + e.getMessage(), e);
+                }
+            }
+        }
+
+        return profiles;
+    }
+}
@@ -0,0 +1,553 @@
+/**
+ * a virtual node, serving the same CoAP resources as the real thing
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.bench.sim;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.core.server.resources.Resource;
+import org.eclipse.californium.elements.UDPConnector;
+import org.mountainsensing.fetcher.bench.Corpus;
+import org.mountainsensing.pb.Settings.SensorConfig;
+
+/**
+ * A virtual node, with it's own address and CoAP server, serving the resources the fetcher uses:
+ * <ul>
+ * <li>{@code sample}: GET returns the latest sample, GET or DELETE {@code sample/<id>} a specific one. Samples that don't exist are 4.04.</li>
+ * <li>{@code config}: GET returns the config, POST replaces it. Both are delimited SensorConfigs.</li>
+ * <li>{@code date}: GET returns the node's epoch, POST sets it.</li>
+ * <li>{@code uptime}: GET returns the seconds since the node booted.</li>
+ * <li>{@code reboot}: GET returns the number of reboots, POST reboots the node without answering.</li>
+ * <li>{@code routes}: GET returns the node's parent, neighbours and routes, by short id.</li>
+ * </ul>
+ * Samples are stored delimited, as they are in the node's flash, and survive reboots.
+ */
+class SimulatedNode {
+
+    private static final Logger log = Logger.getLogger(SimulatedNode.class.getName());
+
+    /**
+     * Interval between two samples, in seconds.
+     */
+    private static final int SAMPLE_INTERVAL = 20 * 60;
+
+    /**
+     * Largest drift of a node's clock, in seconds.
+     */
+    private static final int MAX_DRIFT = 120;
+
+    /**
+     * Longest time a node has been up for when the farm starts, in seconds.
+     */
+    private static final int MAX_UPTIME = 30 * 24 * 60 * 60;
+
+    /**
+     * The address of the node.
+     */
+    private final InetAddress address;
+
+    /**
+     * The short id of the node, as used by the routes resource.
+     */
+    private final int id;
+
+    /**
+     * How the node behaves.
+     */
+    private final NodeProfile profile;
+
+    /**
+     * Executor the node's server and link run on.
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Counts what the node does.
+     */
+    private final FarmStats stats;
+
+    /**
+     * Contents of the routes resource.
+     */
+    private final String routes;
+
+    /**
+     * Source of randomness for the node's samples.
+     * Guarded by this.
+     */
+    private final Random random;
+
+    /**
+     * Baseline of the node's readings.
+     */
+    private final double baseline;
+
+    /**
+     * The samples on the node, delimited, by id.
+     * Guarded by this.
+     */
+    private final TreeMap<Integer, byte[]> samples = new TreeMap<>();
+
+    /**
+     * The id of the next sample taken.
+     * Guarded by this.
+     */
+    private int nextSampleId = 1;
+
+    /**
+     * The config, delimited.
+     */
+    private volatile byte[] config;
+
+    /**
+     * Difference between the node's clock and ours, in seconds.
+     */
+    private volatile long clockOffset;
+
+    /**
+     * Time the node booted, in ms since the epoch.
+     */
+    private volatile long bootTime;
+
+    /**
+     * Number of times the node has rebooted.
+     */
+    private volatile int rebootCount = 0;
+
+    /**
+     * The node's link.
+     */
+    private final LinkConnector link;
+
+    /**
+     * The node's server.
+     */
+    private final CoapServer server;
+
+    /**
+     * The tasks taking samples and rebooting the node, if any.
+     */
+    private ScheduledFuture<?> sampler, rebooter;
+
+    /**
+     * Create a new node. It isn't reachable until it's started.
+     * @param address The address of the node.
+     * @param id The short id of the node.
+     * @param profile How the node behaves.
+     * @param hops Number of hops between the node and the border router.
+     * @param routes Contents of the routes resource.
+     * @param backlog Number of samples on the node.
+     * @param seed Seed of the node's randomness.
+     * @param networkConfig Config of the node's server.
+     * @param executor Executor the node's server and link run on.
+     * @param stats Counts what the node does.
+     */
+    public SimulatedNode(InetAddress address, int id, NodeProfile profile, int hops, String routes, int backlog, long seed, NetworkConfig networkConfig, ScheduledExecutorService executor, FarmStats stats) {
+        this.address = address;
+        this.id = id;
+        this.profile = profile;
+        this.routes = routes;
+        this.executor = executor;
+        this.stats = stats;
+
+        random = new Random(seed);
+        baseline = 25 * random.nextDouble();
+        clockOffset = random.nextInt(2 * MAX_DRIFT + 1) - MAX_DRIFT;
+        bootTime = System.currentTimeMillis() - random.nextInt(MAX_UPTIME) * 1000L;
+        this.config = Corpus.delimit(Corpus.message(SensorConfig.getDescriptor(), random));
+
+        long now = System.currentTimeMillis() / 1000;
+        for (int i = backlog; i > 0; i--) {
+            takeSample(now - (long) i * SAMPLE_INTERVAL);
+        }
+
+        link = new LinkConnector(new UDPConnector(new InetSocketAddress(address, networkConfig.getInt(NetworkConfig.Keys.COAP_PORT))), profile, hops, executor, stats);
+
+        server = new CoapServer(networkConfig);
+        server.addEndpoint(new CoapEndpoint(link, networkConfig));
+        server.add(new SampleResource(), new ConfigResource(), new DateResource(), new UptimeResource(), new RebootResource(), new RoutesResource());
+    }
+
+    /**
+     * Get the address of the node.
+     * @return The address.
+     */
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Get the short id of the node.
+     * @return The id.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Get the number of samples on the node.
+     * @return The number of samples.
+     */
+    public synchronized int getSampleCount() {
+        return samples.size();
+    }
+
+    /**
+     * Start serving requests, taking new samples, and rebooting.
+     * @param sampleInterval Interval between new samples, in seconds. 0 to never take new samples.
+     * @throws IOException If the node's address can't be bound.
+     */
+    public void start(long sampleInterval) throws IOException {
+        // Started ourselves, as the server only logs endpoints that can't start
+        server.getEndpoints().get(0).start();
+        server.setExecutor(executor);
+        server.start();
+
+        if (sampleInterval > 0) {
+            sampler = executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    takeSample(System.currentTimeMillis() / 1000);
+                }
+            }, random.nextInt((int) sampleInterval) + 1, sampleInterval, TimeUnit.SECONDS);
+        }
+
+        scheduleReboot();
+    }
+
+    /**
+     * Stop the node.
+     */
+    public void stop() {
+        if (sampler != null) {
+            sampler.cancel(false);
+        }
+
+        synchronized (this) {
+            if (rebooter != null) {
+                rebooter.cancel(false);
+            }
+        }
+
+        server.destroy();
+    }
+
+    /**
+     * Reboot the node, making it unreachable for a while.
+     */
+    public void reboot() {
+        log.log(Level.FINE, "Node {0} rebooting", String.format("%04x", id));
+
+        stats.reboot();
+        rebootCount++;
+        bootTime = System.currentTimeMillis() + Math.round(profile.getDowntime() * 1000);
+        link.down(Math.round(profile.getDowntime() * 1000));
+    }
+
+    /**
+     * Schedule the next spontaneous reboot, if the node reboots on it's own.
+     * Reboots are a Poisson process, so the time until the next one doesn't depend on the last.
+     */
+    private synchronized void scheduleReboot() {
+        if (profile.getRebootInterval() <= 0 || executor.isShutdown()) {
+            return;
+        }
+
+        long delay = Math.round(-Math.log(1 - random.nextDouble()) * profile.getRebootInterval() * 1000);
+
+        rebooter = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                reboot();
+                scheduleReboot();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Take a new sample, and store it.
+     * @param time The time of the sample, in seconds since the epoch.
+     */
+    private synchronized void takeSample(long time) {
+        int sampleId = nextSampleId++;
+        samples.put(sampleId, Corpus.delimit(Corpus.sample(random, baseline, sampleId, time + clockOffset)));
+    }
+
+    /**
+     * Get the time on the node's clock.
+     * @return The epoch, in seconds.
+     */
+    private long getEpoch() {
+        return System.currentTimeMillis() / 1000 + clockOffset;
+    }
+
+    /**
+     * Base of the node's resources, counting requests.
+     */
+    private abstract static class NodeResource extends CoapResource {
+
+        /**
+         * Counts the requests.
+         */
+        private final FarmStats stats;
+
+        /**
+         * Create a new resource.
+         * @param name The name of the resource.
+         * @param stats Counts the requests.
+         */
+        public NodeResource(String name, FarmStats stats) {
+            super(name);
+            this.stats = stats;
+        }
+
+        @Override
+        public void handleRequest(Exchange exchange) {
+            stats.request();
+            super.handleRequest(exchange);
+        }
+    }
+
+    /**
+     * The samples, with a child resource per id.
+     */
+    private class SampleResource extends NodeResource {
+
+        /**
+         * Create the resource.
+         */
+        public SampleResource() {
+            super("sample", stats);
+        }
+
+        @Override
+        public void handleGET(CoapExchange exchange) {
+            Map.Entry<Integer, byte[]> latest;
+
+            synchronized (SimulatedNode.this) {
+                latest = samples.lastEntry();
+            }
+
+            respondSample(exchange, latest == null ? null : latest.getValue());
+        }
+
+        @Override
+        public Resource getChild(String name) {
+            try {
+                return new SampleIdResource(Integer.parseInt(name));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A single sample.
+     * Created for every request, as the samples come and go.
+     */
+    private class SampleIdResource extends NodeResource {
+
+        /**
+         * The id of the sample.
+         */
+        private final int sampleId;
+
+        /**
+         * Create the resource.
+         * @param sampleId The id of the sample.
+         */
+        public SampleIdResource(int sampleId) {
+            super(Integer.toString(sampleId), stats);
+            this.sampleId = sampleId;
+        }
+
+        @Override
+        public void handleGET(CoapExchange exchange) {
+            byte[] sample;
+
+            synchronized (SimulatedNode.this) {
+                sample = samples.get(sampleId);
+            }
+
+            respondSample(exchange, sample);
+        }
+
+        @Override
+        public void handleDELETE(CoapExchange exchange) {
+            byte[] sample;
+
+            synchronized (SimulatedNode.this) {
+                sample = samples.remove(sampleId);
+            }
+
+            if (sample == null) {
+                exchange.respond(ResponseCode.NOT_FOUND);
+                return;
+            }
+
+            stats.sampleDeleted();
+            exchange.respond(ResponseCode.DELETED);
+        }
+    }
+
+    /**
+     * Respond with a sample.
+     * @param exchange The exchange to respond to.
+     * @param sample The delimited sample, null if there isn't one.
+     */
+    private void respondSample(CoapExchange exchange, byte[] sample) {
+        if (sample == null) {
+            exchange.respond(ResponseCode.NOT_FOUND);
+            return;
+        }
+
+        stats.sampleServed();
+        exchange.respond(ResponseCode.CONTENT, sample, MediaTypeRegistry.APPLICATION_OCTET_STREAM);
+    }
+
+    /**
+     * The config.
+     */
+    private class ConfigResource extends NodeResource {
+
+        /**
+         * Create the resource.
+         */
+        public ConfigResource() {
+            super("config", stats);
+        }
+
+        @Override
+        public void handleGET(CoapExchange exchange) {
+            exchange.respond(ResponseCode.CONTENT, config, MediaTypeRegistry.APPLICATION_OCTET_STREAM);
+        }
+
+        @Override
+        public void handlePOST(CoapExchange exchange) {
+            byte[] payload = exchange.getRequestPayload();
+
+            try {
+                if (SensorConfig.parseDelimitedFrom(new ByteArrayInputStream(payload)) == null) {
+                    throw new InvalidProtocolBufferException("Empty config");
+                }
+            } catch (IOException e) {
+                exchange.respond(ResponseCode.BAD_REQUEST, e.getMessage());
+                return;
+            }
+
+            config = payload;
+            exchange.respond(ResponseCode.CHANGED);
+        }
+    }
+
+    /**
+     * The node's clock.
+     */
+    private class DateResource extends NodeResource {
+
+        /**
+         * Create the resource.
+         */
+        public DateResource() {
+            super("date", stats);
+        }
+
+        @Override
+        public void handleGET(CoapExchange exchange) {
+            exchange.respond(ResponseCode.CONTENT, Long.toString(getEpoch()), MediaTypeRegistry.TEXT_PLAIN);
+        }
+
+        @Override
+        public void handlePOST(CoapExchange exchange) {
+            try {
+                clockOffset = Long.parseLong(exchange.getRequestText().trim()) - System.currentTimeMillis() / 1000;
+            } catch (NumberFormatException e) {
+                exchange.respond(ResponseCode.BAD_REQUEST, "Invalid epoch");
+                return;
+            }
+
+            exchange.respond(ResponseCode.CHANGED);
+        }
+    }
+
+    /**
+     * The time since the node booted.
+     */
+    private class UptimeResource extends NodeResource {
+
+        /**
+         * Create the resource.
+         */
+        public UptimeResource() {
+            super("uptime", stats);
+        }
+
+        @Override
+        public void handleGET(CoapExchange exchange) {
+            long uptime = Math.max(0, (System.currentTimeMillis() - bootTime) / 1000);
+            exchange.respond(ResponseCode.CONTENT, Long.toString(uptime), MediaTypeRegistry.TEXT_PLAIN);
+        }
+    }
+
+    /**
+     * The reboot counter, and a way to reboot the node.
+     */
+    private class RebootResource extends NodeResource {
+
+        /**
+         * Create the resource.
+         */
+        public RebootResource() {
+            super("reboot", stats);
+        }
+
+        @Override
+        public void handleGET(CoapExchange exchange) {
+            exchange.respond(ResponseCode.CONTENT, Integer.toString(rebootCount), MediaTypeRegistry.TEXT_PLAIN);
+        }
+
+        @Override
+        public void handlePOST(CoapExchange exchange) {
+            // Like the real thing, the node reboots before it can answer
+            reboot();
+        }
+    }
+
+    /**
+     * The node's parent, neighbours and routes.
+     */
+    private class RoutesResource extends NodeResource {
+
+        /**
+         * Create the resource.
+         */
+        public RoutesResource() {
+            super("routes", stats);
+        }
+
+        @Override
+        public void handleGET(CoapExchange exchange) {
+            exchange.respond(ResponseCode.CONTENT, routes, MediaTypeRegistry.TEXT_PLAIN);
+        }
+    }
+}
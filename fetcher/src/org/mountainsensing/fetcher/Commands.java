@@ -0,0 +1,116 @@
+package org.mountainsensing.fetcher;
+
+import com.beust.jcommander.JCommander;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.mountainsensing.fetcher.operations.*;
+
+/**
+ * Registry of all the commands, and the operations implementing them.
+ * Every parser gets new instances of the operations, so command lines can be parsed
+ * more than once in the same JVM (ie by the daemon).
+ */
+public class Commands {
+
+    /**
+     * Map of all the command names to their associated operation.
+     * Ordered to give a sensible output when using --help.
+     */
+    private static final Map<String, Class<? extends Operation>> commands = new LinkedHashMap<>();
+    static {
+        commands.put("get-sample", SampleOperation.Get.class);
+        commands.put("grab-sample", SampleOperation.Grab.class);
+        commands.put("del-sample", SampleOperation.Delete.class);
+        commands.put("decode-sample", SampleOperation.Decode.class);
+        commands.put("query-samples", SampleOperation.Query.class);
+
+        commands.put("get-config", ConfigOperation.Get.class);
+        commands.put("edit-config", ConfigOperation.Edit.class);
+        commands.put("force-config", ConfigOperation.Force.class);
+        commands.put("decode-config", ConfigOperation.Decode.class);
+
+        commands.put("get-date", DateOperation.Get.class);
+        commands.put("set-date", DateOperation.Set.class);
+
+        commands.put("get-uptime", UptimeOperation.class);
+
+        commands.put("get-reboot", RebootOperation.Get.class);
+        commands.put("force-reboot", RebootOperation.Force.class);
+
+        commands.put("get-routes", RouteOperation.class);
+        commands.put("routes-diff", RouteDiffOperation.class);
+        commands.put("discover", DiscoverOperation.class);
+
+        commands.put("ping", PingOperation.class);
+
+        commands.put("upload", UploadOperation.class);
+
+        commands.put("daemon", DaemonOperation.class);
+    }
+
+    /**
+     * Private constructor as this is a static utility class.
+     */
+    private Commands() {
+
+    }
+
+    /**
+     * Create a parser that knows about every command.
+     * @param options The object main (ie not command specific) parameters are parsed into.
+     * @return A parser, with a new instance of every operation as a command.
+     */
+    public static JCommander newParser(Object options) {
+        JCommander parser = new JCommander(options);
+
+        for (String name : commands.keySet()) {
+            parser.addCommand(name, newOperation(name));
+        }
+
+        return parser;
+    }
+
+    /**
+     * Get the operation for the command a parser parsed.
+     * @param parser A parser created by {@link #newParser(Object)}, that has parsed some arguments.
+     * @return The operation, with it's parameters parsed. Null if no command was parsed.
+     */
+    public static Operation getParsedOperation(JCommander parser) {
+        String name = parser.getParsedCommand();
+
+        if (name == null) {
+            return null;
+        }
+
+        return (Operation) parser.getCommands().get(name).getObjects().get(0);
+    }
+
+    /**
+     * Get the name of the command an operation implements.
+     * @param operation The operation.
+     * @return The name of the command, or the name of the operation's class if it isn't a command.
+     */
+    public static String getName(Operation operation) {
+        for (Map.Entry<String, Class<? extends Operation>> command : commands.entrySet()) {
+            if (command.getValue() == operation.getClass()) {
+                return command.getKey();
+            }
+        }
+
+        return operation.getClass().getSimpleName();
+    }
+
+    /**
+     * Create a new instance of the operation for a command.
+     * @param name The name of the command.
+     * @return A new operation.
+     */
+    private static Operation newOperation(String name) {
+        try {
+            return commands.get(name).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            // All the operations have public no argument constructors, so this is a bug
+            throw new IllegalStateException("Unable to create operation for command " + name, e);
+        }
+    }
+}
@@ -5,23 +5,24 @@
  */
 package org.mountainsensing.fetcher;
 
-import org.mountainsensing.fetcher.operations.NodeOperation;
+import org.mountainsensing.fetcher.utils.AsyncLogHandler;
 import org.mountainsensing.fetcher.utils.ContextFormatter;
+import org.mountainsensing.fetcher.utils.Metrics;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.ParameterException;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.logging.ConsoleHandler;
-import java.util.logging.FileHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.mountainsensing.fetcher.net.CoapEndpointPool;
+import org.mountainsensing.fetcher.net.NodeHealth;
+import org.mountainsensing.fetcher.net.Topology;
 import org.mountainsensing.fetcher.net.NodeNameService;
-import org.mountainsensing.fetcher.operations.*;
+import org.mountainsensing.fetcher.operations.SampleOperation;
 import org.mountainsensing.fetcher.net.NodeNameService.LineTracker;
 
 /**
@@ -34,35 +35,6 @@ public class Main {
      */
     private static final String PROGRAM_NAME = "fetcher";
 
-    /**
-     * Map of all the command names to their associated operation.
-     * Ordered to give a sensible output when using --help.
-     */
-    private static final Map<String, Operation> operations = new LinkedHashMap<>();
-    static {
-        operations.put("get-sample", new SampleOperation.Get());
-        operations.put("grab-sample", new SampleOperation.Grab());
-        operations.put("del-sample", new SampleOperation.Delete());
-        operations.put("decode-sample", new SampleOperation.Decode());
-
-        operations.put("get-config", new ConfigOperation.Get());
-        operations.put("edit-config", new ConfigOperation.Edit());
-        operations.put("force-config", new ConfigOperation.Force());
-        operations.put("decode-config", new ConfigOperation.Decode());
-
-        operations.put("get-date", new DateOperation.Get());
-        operations.put("set-date", new DateOperation.Set());
-
-        operations.put("get-uptime", new UptimeOperation());
-
-        operations.put("get-reboot", new RebootOperation.Get());
-        operations.put("force-reboot", new RebootOperation.Force());
-
-        operations.put("get-routes", new RouteOperation());
-
-        operations.put("ping", new PingOperation());
-    }
-
     private static final Logger log = Logger.getLogger(SampleOperation.class.getName());
 
     /**
@@ -135,8 +107,29 @@ public class Main {
 
         Operation.setContextFormatter(logFormatter);
 
+        if (options.hasMetricsFile()) {
+            Metrics.getInstance().setFile(new File(options.getMetricsFile()));
+        }
+
+        if (options.hasRtoFile()) {
+            CoapEndpointPool.getInstance().getEstimator().setFile(new File(options.getRtoFile()));
+        }
+
+        if (options.hasHealthFile()) {
+            NodeHealth.getInstance().setFile(new File(options.getHealthFile()));
+        }
+
+        if (options.hasRoutesFile()) {
+            Topology.getInstance().setFile(new File(options.getRoutesFile()));
+        }
+
         operation.perform(options.getTimeout(), options.getRetries());
 
+        Metrics.getInstance().writeFile();
+        CoapEndpointPool.getInstance().getEstimator().writeFile();
+        NodeHealth.getInstance().writeFile();
+        Topology.getInstance().writeFile();
+
         exit(true);
     }
 
@@ -179,13 +172,9 @@ public class Main {
      * @throws ParameterException If there was an error parsing, such as a missing required parameter or command.
      */
     private static Operation parseArgs(String[] args, Options options) throws ParameterException {
-        JCommander parser = new JCommander(options);
+        JCommander parser = Commands.newParser(options);
         parser.setProgramName(PROGRAM_NAME);
 
-        for (String opName : operations.keySet()) {
-            parser.addCommand(opName, operations.get(opName));
-        }
-
         parser.parse(args);
 
         if (options.shouldShowHelp()) {
@@ -202,7 +191,9 @@ public class Main {
             throw new ParameterException("Command is required");
         }
 
-        Operation operation = operations.get(parser.getParsedCommand());
+        options.validate();
+
+        Operation operation = Commands.getParsedOperation(parser);
 
         if (operation.shouldShowHelp()) {
             parser.usage(parser.getParsedCommand());
@@ -229,8 +220,8 @@ public class Main {
         // Enable all logging for everything
         rootLogger.setLevel(Level.ALL);
 
-        // Console handler.
-        ConsoleHandler console = new ConsoleHandler();
+        // Console handler. Records are written by a background thread, so logging doesn't wait on the console or disk.
+        AsyncLogHandler console = new AsyncLogHandler("log-console", new AsyncLogHandler.ConsoleOutput(), options.getLogBuffer(), options.getLogOverflow());
         console.setLevel(options.getConsoleLevel());
         console.setFormatter(logFormatter.getConsoleFormatter());
         fetcherLogger.addHandler(console);
@@ -239,7 +230,8 @@ public class Main {
         if (options.hasLogFile()) {
             try {
                 // Append to the log file if it's present
-                FileHandler file = new FileHandler(options.getLogFile(), true);
+                AsyncLogHandler.Output output = new AsyncLogHandler.RotatingFileOutput(options.getLogFile(), options.getLogFileLimit(), options.getLogFileCount());
+                AsyncLogHandler file = new AsyncLogHandler("log-file", output, options.getLogBuffer(), options.getLogOverflow());
                 file.setLevel(options.getFileLevel());
                 file.setFormatter(logFormatter.getFileFormatter());
                 fetcherLogger.addHandler(file);
@@ -248,6 +240,15 @@ public class Main {
             }
         }
 
+        // Don't create records no handler will publish, so logging at FINE costs nothing unless it's wanted
+        Level lowest = console.getLevel();
+        for (Handler handler : fetcherLogger.getHandlers()) {
+            if (handler.getLevel().intValue() < lowest.intValue()) {
+                lowest = handler.getLevel();
+            }
+        }
+        fetcherLogger.setLevel(lowest);
+
         isLoggingSetup = true;
     }
 
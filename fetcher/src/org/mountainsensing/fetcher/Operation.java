@@ -21,9 +21,10 @@ public abstract class Operation {
 
     /**
      * Set the formatter to use for setting the context.
+     * This must be called before any operation is performed, by whatever runs them (ie Main, or the benchmarks).
      * @param formatter The formatter to use.
      */
-    protected static void setContextFormatter(ContextFormatter formatter) {
+    public static void setContextFormatter(ContextFormatter formatter) {
         Operation.formatter = formatter;
     }
 
@@ -35,6 +36,14 @@ public abstract class Operation {
         formatter.setContext(context);
     }
 
+    /**
+     * Get the current context.
+     * @return The context, null if none is set.
+     */
+    protected String getContext() {
+        return formatter.getContext();
+    }
+
     /**
      * Clear the current context.
      */
@@ -5,12 +5,29 @@ import com.beust.jcommander.IStringConverter;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 import java.util.logging.Level;
+import org.mountainsensing.fetcher.utils.AsyncLogHandler;
 
 /**
  * Main options parsed from the command line.
  */
 public class Options {
-    @Parameter(names = {"-t", "--timeout"}, description = "CoAP timeout in seconds")
+
+    /**
+     * Minimum level of messages printed to the log file, unless --file-level is given.
+     */
+    private static final Level DEFAULT_FILE_LEVEL = Level.FINE;
+
+    /**
+     * Size in bytes after which the log file is rotated, unless --log-file-limit is given.
+     */
+    private static final long DEFAULT_LOG_FILE_LIMIT = 8 * 1024 * 1024;
+
+    /**
+     * Number of rotated log files to keep, unless --log-file-count is given.
+     */
+    private static final int DEFAULT_LOG_FILE_COUNT = 4;
+
+    @Parameter(names = {"-t", "--timeout"}, description = "Initial CoAP timeout in seconds, for nodes without an estimated retransmission timeout")
     private int timeout = 10;
 
     @Parameter(names = {"-r", "--retries"}, description = "Number of retries for node / comms errors before giving up. Client induced errors are never retried")
@@ -25,12 +42,40 @@ public class Options {
     @Parameter(names = {"--console-level"}, converter = LevelConverter.class, validateWith=LevelValidator.class, description = "Minimum log level of messages displayed on the console")
     private Level consoleLevel = Level.INFO;
 
-    @Parameter(names = {"--file-level"}, converter = LevelConverter.class, validateWith=LevelValidator.class, description = "Minimum log level of messages printed to the log file. Not valid without --log-file.")
-    private Level fileLevel = Level.FINE;
+    @Parameter(names = {"--file-level"}, converter = LevelConverter.class, validateWith=LevelValidator.class, description = "Minimum log level of messages printed to the log file. Not valid without --log-file. Default: FINE")
+    private Level fileLevel = null;
 
     @Parameter(names = {"--log-file"}, description = "Log messages to a seperate file")
     private String logFile = null;
 
+    @Parameter(names = {"--log-overflow"}, converter = OverflowConverter.class, validateWith=OverflowValidator.class, description = "What to do when messages are logged faster than they can be written. block to wait, drop to drop the least severe messages")
+    private AsyncLogHandler.OverflowPolicy logOverflow = AsyncLogHandler.OverflowPolicy.DROP;
+
+    @Parameter(names = {"--log-buffer"}, validateWith=PositiveValidator.class, description = "Number of log messages that can be waiting to be written")
+    private int logBuffer = AsyncLogHandler.DEFAULT_CAPACITY;
+
+    @Parameter(names = {"--log-file-limit"}, validateWith=NonNegativeValidator.class, description = "Size in bytes after which the log file is rotated, 0 to never rotate it. Not valid without --log-file. Default: " + DEFAULT_LOG_FILE_LIMIT)
+    private Long logFileLimit = null;
+
+    @Parameter(names = {"--log-file-count"}, validateWith=NonNegativeValidator.class, description = "Number of rotated log files to keep. Not valid without --log-file. Default: " + DEFAULT_LOG_FILE_COUNT)
+    private Integer logFileCount = null;
+
+    @Parameter(names = {"--metrics-file"}, description = "Write metrics (requests, round trip times, errors...) to this file in the Prometheus text format, for the node_exporter textfile collector. "
+        + "Written once the command has run, or after every job of the daemon")
+    private String metricsFile = null;
+
+    @Parameter(names = {"--rto-file"}, description = "Read the estimated CoAP retransmission timeout of every node from this file, and save them back to it, "
+        + "so the first request to a node starts with a good timeout. Saved once the command has run, or after every job of the daemon")
+    private String rtoFile = null;
+
+    @Parameter(names = {"--health-file"}, description = "Read which nodes are down from this file, and save it back to it, so nodes that are down are only probed with a ping "
+        + "until they answer. Saved once the command has run, or after every job of the daemon")
+    private String healthFile = null;
+
+    @Parameter(names = {"--routes-file"}, description = "Read the routing tree of the mesh from this file, and save it back to it, so nodes can be scheduled by where they are in the mesh "
+        + "(see --per-branch). The tree is updated by get-routes, and saved once the command has run, or after every job of the daemon")
+    private String routesFile = null;
+
     @Parameter(names = {"-n", "--nodes"}, description = "File in UNIX hosts format overriding system etc/hosts entries")
     private String hostsFile = null;
 
@@ -59,6 +104,112 @@ public class Options {
         }
     }
 
+    /**
+     * Ensure a log overflow policy is valid.
+     */
+    public static class OverflowValidator implements IParameterValidator {
+        @Override
+        public void validate(String name, String value) throws ParameterException {
+            try {
+                AsyncLogHandler.OverflowPolicy.valueOf(value.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new ParameterException("Parameter " + name + " must be block or drop", e);
+            }
+        }
+    }
+
+    /**
+     * Convert a log overflow policy to it's proper enum.
+     */
+    public static class OverflowConverter implements IStringConverter<AsyncLogHandler.OverflowPolicy> {
+        @Override
+        public AsyncLogHandler.OverflowPolicy convert(String value) {
+            return AsyncLogHandler.OverflowPolicy.valueOf(value.toUpperCase());
+        }
+    }
+
+    /**
+     * Ensure a number is a valid TCP port, that can be listened on at a known port number.
+     */
+    public static class PortValidator implements IParameterValidator {
+        @Override
+        public void validate(String name, String value) throws ParameterException {
+            try {
+                int port = Integer.parseInt(value);
+
+                if (port >= 1 && port <= 65535) {
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                // Fall through to the exception below
+            }
+
+            throw new ParameterException("Parameter " + name + " should be a port, from 1 to 65535");
+        }
+    }
+
+    /**
+     * Ensure a number is a positive integer.
+     */
+    public static class PositiveValidator implements IParameterValidator {
+        @Override
+        public void validate(String name, String value) throws ParameterException {
+            try {
+                if (Integer.parseInt(value) >= 1) {
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                // Fall through to the exception below
+            }
+
+            throw new ParameterException("Parameter " + name + " should be a positive integer");
+        }
+    }
+
+    /**
+     * Ensure a number is a non negative integer.
+     */
+    public static class NonNegativeValidator implements IParameterValidator {
+        @Override
+        public void validate(String name, String value) throws ParameterException {
+            try {
+                if (Long.parseLong(value) >= 0) {
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                // Fall through to the exception below
+            }
+
+            throw new ParameterException("Parameter " + name + " should be a non negative integer");
+        }
+    }
+
+    /**
+     * Check the options that depend on each other, once they have all been parsed.
+     * @throws ParameterException If an option that is only valid with --log-file was given without it.
+     */
+    public void validate() throws ParameterException {
+        if (hasLogFile()) {
+            return;
+        }
+
+        requireLogFile("--file-level", fileLevel);
+        requireLogFile("--log-file-limit", logFileLimit);
+        requireLogFile("--log-file-count", logFileCount);
+    }
+
+    /**
+     * Check an option that is only valid with --log-file wasn't given.
+     * @param name The name of the option.
+     * @param value The value of the option, null if it wasn't given.
+     * @throws ParameterException If the option was given.
+     */
+    private static void requireLogFile(String name, Object value) throws ParameterException {
+        if (value != null) {
+            throw new ParameterException("Parameter " + name + " is not valid without --log-file");
+        }
+    }
+
     /**
      * Get the timeout for operations.
      * @return The timeout in seconds.
@@ -104,7 +255,7 @@ public class Options {
      * @return The minimum level for File logging.
      */
     public Level getFileLevel() {
-        return fileLevel;
+        return fileLevel != null ? fileLevel : DEFAULT_FILE_LEVEL;
     }
 
     /**
@@ -123,6 +274,102 @@ public class Options {
         return logFile != null;
     }
 
+    /**
+     * Get what to do when messages are logged faster than they can be written.
+     * @return The overflow policy of the log handlers.
+     */
+    public AsyncLogHandler.OverflowPolicy getLogOverflow() {
+        return logOverflow;
+    }
+
+    /**
+     * Get the number of log messages that can be waiting to be written, by each log handler.
+     * @return The capacity of the log buffers.
+     */
+    public int getLogBuffer() {
+        return logBuffer;
+    }
+
+    /**
+     * Get the size after which the log file is rotated.
+     * @return The size in bytes, 0 if the log file should never be rotated.
+     */
+    public long getLogFileLimit() {
+        return logFileLimit != null ? logFileLimit : DEFAULT_LOG_FILE_LIMIT;
+    }
+
+    /**
+     * Get the number of rotated log files to keep.
+     * @return The number of old log files.
+     */
+    public int getLogFileCount() {
+        return logFileCount != null ? logFileCount : DEFAULT_LOG_FILE_COUNT;
+    }
+
+    /**
+     * Get the file to write metrics to.
+     * @return The path to the metrics file, null if metrics shouldn't be written.
+     */
+    public String getMetricsFile() {
+        return metricsFile;
+    }
+
+    /**
+     * Check if metrics should be written to a file.
+     * @return True if so, false otherwise.
+     */
+    public boolean hasMetricsFile() {
+        return metricsFile != null;
+    }
+
+    /**
+     * Get the file to save retransmission timeout estimates to.
+     * @return The path to the RTO file, null if estimates shouldn't be saved.
+     */
+    public String getRtoFile() {
+        return rtoFile;
+    }
+
+    /**
+     * Check if retransmission timeout estimates should be saved to a file.
+     * @return True if so, false otherwise.
+     */
+    public boolean hasRtoFile() {
+        return rtoFile != null;
+    }
+
+    /**
+     * Get the file to save the health of nodes to.
+     * @return The path to the health file, null if the health of nodes shouldn't be saved.
+     */
+    public String getHealthFile() {
+        return healthFile;
+    }
+
+    /**
+     * Check if the health of nodes should be saved to a file.
+     * @return True if so, false otherwise.
+     */
+    public boolean hasHealthFile() {
+        return healthFile != null;
+    }
+
+    /**
+     * Get the file to save the routing tree of the mesh to.
+     * @return The path to the routes file, null if the routing tree shouldn't be saved.
+     */
+    public String getRoutesFile() {
+        return routesFile;
+    }
+
+    /**
+     * Check if the routing tree of the mesh should be saved to a file.
+     * @return True if so, false otherwise.
+     */
+    public boolean hasRoutesFile() {
+        return routesFile != null;
+    }
+
     /**
      * Get the hosts file specified.
      * @return The path to the hosts file, null if none was specified.
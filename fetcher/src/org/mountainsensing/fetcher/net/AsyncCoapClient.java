@@ -0,0 +1,238 @@
+package org.mountainsensing.fetcher.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.Request;
+import org.mountainsensing.fetcher.CoapException;
+import org.mountainsensing.fetcher.CoapException.Method;
+import org.mountainsensing.fetcher.utils.Metrics;
+
+/**
+ * A non-blocking CoAP client for a single URI.
+ *
+ * Every request returns a CompletableFuture straight away, instead of holding the calling thread for the whole exchange.
+ * The future is completed with the response if it was successful, or exceptionally with a {@link CoapException}
+ * if the request failed or no response was received.
+ *
+ * Futures are always completed by an Executor supplied by the caller, so whatever is done with a response
+ * never runs on (and never blocks) the network threads.
+ *
+ * Requests are sent using the shared client for the node, from {@link CoapEndpointPool}.
+ * This makes instances cheap, they can be created for every request.
+ *
+ * Every request is counted in the {@link Metrics}, by node, resource (the first segment of the path) and method,
+ * along with it's round trip time and the size of the payloads.
+ */
+public class AsyncCoapClient {
+
+    /**
+     * Requests made, by the response code received or timeout.
+     */
+    private static final Metrics.Counter requests = Metrics.getInstance().counter("coap_requests_total",
+        "CoAP requests made to nodes, by response code (timeout if no response was received)", "node", "resource", "method", "code");
+
+    /**
+     * Round trip time of requests that got a response.
+     */
+    private static final Metrics.Histogram rtt = Metrics.getInstance().histogram("coap_rtt_seconds",
+        "Time between sending a CoAP request and receiving it's response, including any retransmissions", Metrics.TIME_BUCKETS, "node", "resource", "method");
+
+    /**
+     * Payload bytes sent and received.
+     */
+    private static final Metrics.Counter bytes = Metrics.getInstance().counter("coap_payload_bytes_total",
+        "CoAP payload bytes sent to (tx) and received from (rx) nodes", "node", "resource", "direction");
+
+    /**
+     * The URI requests are made to.
+     */
+    private final URI uri;
+
+    /**
+     * The executor used to complete futures.
+     */
+    private final Executor executor;
+
+    /**
+     * The address of the node, as a metric label.
+     */
+    private final String node;
+
+    /**
+     * The resource requests are made to, as a metric label.
+     */
+    private final String resource;
+
+    /**
+     * Create a client for a given URI.
+     * @param uri The URI requests will be made to.
+     * @param executor The executor used to complete the futures returned by requests.
+     */
+    public AsyncCoapClient(URI uri, Executor executor) {
+        this.uri = uri;
+        this.executor = executor;
+        this.node = uri.getHost() != null ? uri.getHost().replace("[", "").replace("]", "") : "";
+
+        // Only the first segment, so sample ids don't create a label per sample
+        String path = uri.getPath() != null ? uri.getPath().replaceFirst("^/+", "") : "";
+        this.resource = path.contains("/") ? path.substring(0, path.indexOf('/')) : path;
+    }
+
+    /**
+     * Get the URI requests are made to.
+     * @return The URI.
+     */
+    public URI getURI() {
+        return uri;
+    }
+
+    /**
+     * Send a GET request.
+     * @param error A message describing the request failing.
+     * @return A future completed with the successful response.
+     */
+    public CompletableFuture<CoapResponse> get(String error) {
+        return send(Request.newGet(), Method.GET, error);
+    }
+
+    /**
+     * Send a POST request.
+     * @param payload The payload to post.
+     * @param format The content format of the payload, see {@link org.eclipse.californium.core.coap.MediaTypeRegistry}.
+     * @param error A message describing the request failing.
+     * @return A future completed with the successful response.
+     */
+    public CompletableFuture<CoapResponse> post(byte[] payload, int format, String error) {
+        Request request = Request.newPost();
+        request.setPayload(payload);
+        request.getOptions().setContentFormat(format);
+        return send(request, Method.POST, error);
+    }
+
+    /**
+     * Send a POST request with a text payload.
+     * @param payload The payload to post.
+     * @param format The content format of the payload, see {@link org.eclipse.californium.core.coap.MediaTypeRegistry}.
+     * @param error A message describing the request failing.
+     * @return A future completed with the successful response.
+     */
+    public CompletableFuture<CoapResponse> post(String payload, int format, String error) {
+        return post(payload.getBytes(StandardCharsets.UTF_8), format, error);
+    }
+
+    /**
+     * Send a DELETE request.
+     * @param error A message describing the request failing.
+     * @return A future completed with the successful response.
+     */
+    public CompletableFuture<CoapResponse> delete(String error) {
+        return send(Request.newDelete(), Method.DELETE, error);
+    }
+
+    /**
+     * Send a request to our URI, using the shared client for the node.
+     * @param request The request to send.
+     * @param method The method of the request.
+     * @param error A message describing the request failing.
+     * @return A future completed with the successful response.
+     */
+    private CompletableFuture<CoapResponse> send(Request request, Method method, String error) {
+        CompletableFuture<CoapResponse> future = new CompletableFuture<>();
+        CoapClient client;
+        InetAddress address;
+
+        try {
+            // The host is a literal address, so this will not cause any DNS lookups
+            address = InetAddress.getByName(uri.getHost());
+            client = CoapEndpointPool.getInstance().getClient(address);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        request.setURI(uri);
+
+        if (request.getPayloadSize() > 0) {
+            bytes.add(request.getPayloadSize(), node, resource, "tx");
+        }
+
+        client.advanced(new Handler(method, error, future), CoapEndpointPool.getInstance().track(request, address));
+        return future;
+    }
+
+    /**
+     * Handler completing a future once a response has been received.
+     */
+    private class Handler implements CoapHandler {
+
+        /**
+         * The method used for the request.
+         */
+        private final Method method;
+
+        /**
+         * A message describing the request failing.
+         */
+        private final String error;
+
+        /**
+         * The future to complete.
+         */
+        private final CompletableFuture<CoapResponse> future;
+
+        /**
+         * When the request was sent, in nanoseconds.
+         */
+        private final long start = System.nanoTime();
+
+        /**
+         * Create a Handler.
+         * @param method The method used for the request.
+         * @param error A message describing the request failing.
+         * @param future The future to complete.
+         */
+        public Handler(Method method, String error, CompletableFuture<CoapResponse> future) {
+            this.method = method;
+            this.error = error;
+            this.future = future;
+        }
+
+        @Override
+        public void onLoad(final CoapResponse response) {
+            rtt.observe((System.nanoTime() - start) / 1e9, node, resource, method.name());
+            requests.inc(node, resource, method.name(), response.getCode().name());
+            bytes.add(response.getPayload() != null ? response.getPayload().length : 0, node, resource, "rx");
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (response.isSuccess()) {
+                        future.complete(response);
+                    } else {
+                        future.completeExceptionally(new CoapException(uri, method, response, error));
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onError() {
+            requests.inc(node, resource, method.name(), "timeout");
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // Timed out, or the request was rejected. Either way there is no response
+                    future.completeExceptionally(new CoapException(uri, method, null, error));
+                }
+            });
+        }
+    }
+}
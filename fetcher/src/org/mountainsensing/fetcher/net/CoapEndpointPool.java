@@ -0,0 +1,454 @@
+package org.mountainsensing.fetcher.net;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MessageObserverAdapter;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+
+/**
+ * Pool of CoAP endpoints and clients, shared by everything talking to nodes.
+ *
+ * Endpoints are created the first time they're needed, and kept for the lifetime of the pool.
+ * This means the message ID and token state, deduplicator, and socket buffers are set up once, instead of for every request.
+ * All the endpoints share one executor.
+ *
+ * Every node has it's own retransmission timeout, estimated by an {@link RtoEstimator}.
+ * Californium only supports one timeout per endpoint, so RTOs are rounded to a set of buckets, growing by
+ * {@link #BUCKET_FACTOR}, and there is one endpoint per local interface and bucket.
+ * Requests tracked with {@link #track(Request, InetAddress)} feed their round trip time back to the estimator.
+ *
+ * Every node gets a reusable CoapClient, that sends every request through the endpoint for the interface the node is reached through,
+ * and the RTO of the node at the time. The interface is only looked up the first time a node is talked to.
+ */
+public class CoapEndpointPool {
+
+    private static final Logger log = Logger.getLogger(CoapEndpointPool.class.getName());
+
+    /**
+     * The singleton instance.
+     */
+    private static final CoapEndpointPool INSTANCE = new CoapEndpointPool();
+
+    /**
+     * Default CoAP timeout, in seconds.
+     */
+    private static final int DEFAULT_TIMEOUT = 10;
+
+    /**
+     * Size of the UDP socket buffers, in bytes.
+     * Large enough to absorb bursts of responses when many nodes are processed at once.
+     */
+    private static final int SOCKET_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Protocol to use for the base URI of clients.
+     */
+    private static final String PROTOCOL = "coap";
+
+    /**
+     * Ratio between the timeouts of consecutive buckets.
+     * RTOs are rounded by at most half of this.
+     */
+    private static final double BUCKET_FACTOR = 1.25;
+
+    /**
+     * Base config of the endpoints, that the config of every bucket starts from.
+     */
+    private final NetworkConfig config;
+
+    /**
+     * Config of the endpoints of every bucket, by bucket.
+     */
+    private final Map<Integer, NetworkConfig> configs = new HashMap<>();
+
+    /**
+     * Estimator of the RTO of every node.
+     */
+    private final RtoEstimator estimator = new RtoEstimator();
+
+    /**
+     * Executor shared by all the endpoints.
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Endpoints, by the local address they are bound to, then by bucket.
+     */
+    private final Map<InetAddress, Map<Integer, Endpoint>> endpoints = new ConcurrentHashMap<>();
+
+    /**
+     * Clients, by the address of the node they talk to.
+     */
+    private final ConcurrentMap<InetAddress, CoapClient> clients = new ConcurrentHashMap<>();
+
+    /**
+     * Local address used to reach every node, by the address of the node.
+     */
+    private final ConcurrentMap<InetAddress, InetAddress> localAddresses = new ConcurrentHashMap<>();
+
+    /**
+     * Private constructor as this is a Singleton.
+     */
+    private CoapEndpointPool() {
+        // Don't save / read from the Californium.properties file
+        config = NetworkConfig.createStandardWithoutFile();
+        config.setInt(NetworkConfig.Keys.UDP_CONNECTOR_RECEIVE_BUFFER, SOCKET_BUFFER_SIZE);
+        config.setInt(NetworkConfig.Keys.UDP_CONNECTOR_SEND_BUFFER, SOCKET_BUFFER_SIZE);
+        // Crop rotation is cheaper than mark and sweep, there's no need to scan all the exchanges periodically
+        config.setString(NetworkConfig.Keys.DEDUPLICATOR, NetworkConfig.Keys.DEDUPLICATOR_CROP_ROTATION);
+        setTimeout(DEFAULT_TIMEOUT);
+
+        executor = Executors.newScheduledThreadPool(config.getInt(NetworkConfig.Keys.PROTOCOL_STAGE_THREAD_COUNT), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "coap-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Get the Singleton instance of this class.
+     * @return The Singleton instance.
+     */
+    public static CoapEndpointPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Set the CoAP timeout of nodes without an RTO estimate.
+     * @param timeout The timeout in seconds.
+     */
+    public final void setTimeout(int timeout) {
+        // Need to scale the timeout from seconds to ms
+        estimator.setInitialRto(timeout * 1000);
+    }
+
+    /**
+     * Get the estimator of the RTO of every node.
+     * @return The estimator.
+     */
+    public RtoEstimator getEstimator() {
+        return estimator;
+    }
+
+    /**
+     * Get the endpoint to use to talk to a node.
+     * @param node The address of the node.
+     * @return The endpoint for the local interface the node is reached through, with the node's current RTO.
+     * @throws IOException If the endpoint could not be started.
+     */
+    public Endpoint getEndpoint(InetAddress node) throws IOException {
+        InetAddress local = localAddresses.get(node);
+
+        if (local == null) {
+            local = getLocalAddress(node);
+            localAddresses.putIfAbsent(node, local);
+        }
+
+        int bucket = getBucket(estimator.getRto(node));
+
+        Map<Integer, Endpoint> buckets = endpoints.get(local);
+        Endpoint endpoint = buckets != null ? buckets.get(bucket) : null;
+
+        if (endpoint != null) {
+            return endpoint;
+        }
+
+        synchronized (endpoints) {
+            buckets = endpoints.get(local);
+
+            if (buckets == null) {
+                buckets = new ConcurrentHashMap<>();
+                endpoints.put(local, buckets);
+            }
+
+            // Someone else might have beaten us to it
+            if (buckets.containsKey(bucket)) {
+                return buckets.get(bucket);
+            }
+
+            endpoint = new CoapEndpoint(new InetSocketAddress(local, 0), getConfig(bucket));
+            endpoint.setExecutor(executor);
+            endpoint.start();
+
+            log.log(Level.FINE, "Started CoAP endpoint on {0}, with a {1}ms timeout", new Object[] {endpoint.getAddress(), getBucketRto(bucket)});
+            buckets.put(bucket, endpoint);
+            return endpoint;
+        }
+    }
+
+    /**
+     * Get the client to use to talk to a node.
+     * The client's URI is the root of the node, requests to other resources should set their own URI.
+     * @param node The address of the node.
+     * @return A client, sending every request through the right endpoint for the node at the time.
+     * @throws IOException If the endpoint for the node could not be started.
+     */
+    public CoapClient getClient(InetAddress node) throws IOException {
+        // Start the endpoint now, so failing to is reported to the caller
+        getEndpoint(node);
+
+        CoapClient client = clients.get(node);
+
+        if (client != null) {
+            return client;
+        }
+
+        try {
+            // This will add ://, and insert square brackets around IPv6 addresses.
+            client = new NodeClient(new URI(PROTOCOL, node.getHostAddress(), "/", null), node);
+        } catch (URISyntaxException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+
+        CoapClient existing = clients.putIfAbsent(node, client);
+        return existing != null ? existing : client;
+    }
+
+    /**
+     * Measure the round trip time of a request, and feed it to the estimator of the node.
+     * Only the first response or acknowledgement counts, later blocks of a blockwise transfer are ignored.
+     * This must be called just before sending the request.
+     * @param request The request. Non confirmable requests aren't measured, requests without a type are assumed to be confirmable.
+     * @param node The address of the node the request is sent to.
+     * @return The request.
+     */
+    public Request track(Request request, final InetAddress node) {
+        // Clients only set the type of requests as they send them
+        if (request.getType() == CoAP.Type.NON) {
+            return request;
+        }
+
+        final long start = System.nanoTime();
+
+        request.addMessageObserver(new MessageObserverAdapter() {
+            private final AtomicInteger retransmissions = new AtomicInteger();
+
+            private final AtomicBoolean measured = new AtomicBoolean();
+
+            @Override
+            public void onRetransmission() {
+                retransmissions.incrementAndGet();
+            }
+
+            @Override
+            public void onAcknowledgement() {
+                measure();
+            }
+
+            @Override
+            public void onResponse(Response response) {
+                measure();
+            }
+
+            /**
+             * Feed the time since the request was first sent to the estimator, the first time this is called.
+             */
+            private void measure() {
+                if (measured.compareAndSet(false, true)) {
+                    estimator.update(node, (System.nanoTime() - start) / 1e6, retransmissions.get());
+                }
+            }
+        });
+
+        return request;
+    }
+
+    /**
+     * Ping a node with an empty confirmable message, without blocking.
+     * Unlike {@link CoapClient#ping()}, this goes through the endpoint for the node.
+     * @param node The address of the node.
+     * @param timeout How long to wait for the node to answer, in ms.
+     * @return A future completed with true if the node answered, false otherwise.
+     * @throws IOException If the endpoint could not be started.
+     */
+    public CompletableFuture<Boolean> ping(InetAddress node, long timeout) throws IOException {
+        final CompletableFuture<Boolean> answered = new CompletableFuture<>();
+        final Request request = new Request(null, CoAP.Type.CON);
+        request.setToken(new byte[0]);
+
+        try {
+            // This will add ://, and insert square brackets around IPv6 addresses.
+            request.setURI(new URI(PROTOCOL, node.getHostAddress(), "/", null));
+        } catch (URISyntaxException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+
+        request.addMessageObserver(new MessageObserverAdapter() {
+            @Override
+            public void onReject() {
+                // Nodes answer pings with a reset
+                answered.complete(true);
+            }
+
+            @Override
+            public void onTimeout() {
+                answered.complete(false);
+            }
+
+            @Override
+            public void onCancel() {
+                answered.complete(false);
+            }
+        });
+
+        request.send(getEndpoint(node));
+
+        // The request would otherwise keep being retransmitted for much longer
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                request.cancel();
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+
+        return answered;
+    }
+
+    /**
+     * Stop all the endpoints, and forget about all the clients.
+     * The pool can still be used afterwards, endpoints will be recreated as needed.
+     */
+    public void shutdown() {
+        synchronized (endpoints) {
+            clients.clear();
+            localAddresses.clear();
+
+            for (Map<Integer, Endpoint> buckets : endpoints.values()) {
+                for (Endpoint endpoint : buckets.values()) {
+                    endpoint.destroy();
+                }
+            }
+
+            endpoints.clear();
+        }
+    }
+
+    /**
+     * Client of a node, choosing the endpoint of every request when it is sent.
+     * The client is shared by all the requests to the node, so the endpoint isn't set on it, as the RTO of the node
+     * can move to another bucket while other requests are in flight.
+     */
+    private class NodeClient extends CoapClient {
+
+        /**
+         * The address of the node.
+         */
+        private final InetAddress node;
+
+        /**
+         * Create a client.
+         * @param uri The root of the node.
+         * @param node The address of the node.
+         */
+        private NodeClient(URI uri, InetAddress node) {
+            super(uri);
+            this.node = node;
+        }
+
+        @Override
+        protected Endpoint getEffectiveEndpoint(Request request) {
+            try {
+                return CoapEndpointPool.this.getEndpoint(node);
+            } catch (IOException e) {
+                // getClient() already started the endpoint, unless the RTO of the node just moved to another bucket
+                throw new IllegalStateException("Unable to start CoAP endpoint for " + node.getHostAddress(), e);
+            }
+        }
+    }
+
+    /**
+     * Get the config of the endpoints of a bucket.
+     * This is the base config, with the timeout of the bucket, and the backoff suited to it.
+     * @param bucket The bucket.
+     * @return The config.
+     */
+    private NetworkConfig getConfig(int bucket) {
+        synchronized (configs) {
+            NetworkConfig bucketConfig = configs.get(bucket);
+
+            if (bucketConfig == null) {
+                bucketConfig = NetworkConfig.createStandardWithoutFile();
+
+                for (String key : new String[] {NetworkConfig.Keys.UDP_CONNECTOR_RECEIVE_BUFFER, NetworkConfig.Keys.UDP_CONNECTOR_SEND_BUFFER, NetworkConfig.Keys.DEDUPLICATOR}) {
+                    bucketConfig.setString(key, config.getString(key));
+                }
+
+                int rto = getBucketRto(bucket);
+                bucketConfig.setInt(NetworkConfig.Keys.ACK_TIMEOUT, rto);
+                bucketConfig.setFloat(NetworkConfig.Keys.ACK_TIMEOUT_SCALE, (float) RtoEstimator.getBackoff(rto));
+                configs.put(bucket, bucketConfig);
+            }
+
+            return bucketConfig;
+        }
+    }
+
+    /**
+     * Get the bucket an RTO is rounded to.
+     * @param rto The RTO, in ms.
+     * @return The bucket, 0 being {@link RtoEstimator#MIN_RTO}.
+     */
+    private static int getBucket(double rto) {
+        return (int) Math.round(Math.log(rto / RtoEstimator.MIN_RTO) / Math.log(BUCKET_FACTOR));
+    }
+
+    /**
+     * Get the timeout of the endpoints of a bucket.
+     * @param bucket The bucket.
+     * @return The timeout, in ms.
+     */
+    private static int getBucketRto(int bucket) {
+        return (int) Math.round(RtoEstimator.MIN_RTO * Math.pow(BUCKET_FACTOR, bucket));
+    }
+
+    /**
+     * Get the local address used to reach a node.
+     * This uses the routing table of the OS, without sending any packets.
+     * @param node The address of the node.
+     * @return The local address, or the wildcard address if it can't be determined.
+     */
+    private static InetAddress getLocalAddress(InetAddress node) {
+        try (DatagramSocket probe = new DatagramSocket()) {
+            // Connecting a UDP socket only looks up the route, nothing is sent
+            probe.connect(node, CoAP.DEFAULT_COAP_PORT);
+
+            InetAddress local = probe.getLocalAddress();
+            if (local != null && !local.isAnyLocalAddress()) {
+                return local;
+            }
+        } catch (SocketException e) {
+            log.log(Level.FINE, "Unable to find local interface for " + node.getHostAddress() + ": " + e.getMessage(), e);
+        }
+
+        return new InetSocketAddress(0).getAddress();
+    }
+}
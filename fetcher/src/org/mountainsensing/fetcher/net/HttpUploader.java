@@ -0,0 +1,165 @@
+/**
+ * upload samples to the backend over HTTP
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * POSTs samples to the backend, the same way the poster does: the body is the delimited sample,
+ * and the address of the node the sample is from is passed as the ip query parameter.
+ * Connections are kept alive and reused between uploads (by HttpURLConnection), as long as every response is read fully.
+ * This is thread safe.
+ */
+public class HttpUploader {
+
+    /**
+     * Content type the poster uses.
+     */
+    private static final String CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+    /**
+     * Size of the buffer used to drain responses.
+     */
+    private static final int DRAIN_BUFFER_SIZE = 1024;
+
+    /**
+     * The URL of the backend.
+     */
+    private final String server;
+
+    /**
+     * Connect and read timeout, in milliseconds.
+     */
+    private final int timeout;
+
+    /**
+     * Create a new uploader.
+     * @param server The URL of the backend.
+     * @param timeout Connect and read timeout, in milliseconds.
+     */
+    public HttpUploader(String server, int timeout) {
+        this.server = server;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Upload a sample from a file, streaming it straight from the file.
+     * @param source The IPv6 address of the node the sample is from.
+     * @param file The file containing the delimited sample.
+     * @return The HTTP status code of the response.
+     * @throws IOException If the sample can't be uploaded.
+     */
+    public int upload(String source, Path file) throws IOException {
+        HttpURLConnection connection = open(source, Files.size(file));
+
+        try (OutputStream body = connection.getOutputStream()) {
+            Files.copy(file, body);
+        }
+
+        return finish(connection);
+    }
+
+    /**
+     * Upload a sample.
+     * @param source The IPv6 address of the node the sample is from.
+     * @param sample The delimited sample.
+     * @return The HTTP status code of the response.
+     * @throws IOException If the sample can't be uploaded.
+     */
+    public int upload(String source, byte[] sample) throws IOException {
+        HttpURLConnection connection = open(source, sample.length);
+
+        try (OutputStream body = connection.getOutputStream()) {
+            body.write(sample);
+        }
+
+        return finish(connection);
+    }
+
+    /**
+     * Check if a status code means the upload succeeded.
+     * @param status The HTTP status code.
+     * @return True if it is a 2xx code, false otherwise.
+     */
+    public static boolean isSuccess(int status) {
+        return status / 100 == 2;
+    }
+
+    /**
+     * Check if a status code means the server failed to handle the upload, and it could succeed later.
+     * @param status The HTTP status code.
+     * @return True if it is a 5xx code, false otherwise.
+     */
+    public static boolean isServerError(int status) {
+        return status / 100 == 5;
+    }
+
+    /**
+     * Open a connection for uploading a sample.
+     * @param source The IPv6 address of the node the sample is from.
+     * @param length The length of the body.
+     * @return The connection, ready for the body to be written.
+     * @throws IOException If the connection can't be opened.
+     */
+    private HttpURLConnection open(String source, long length) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) getURL(source).openConnection();
+
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", CONTENT_TYPE);
+        connection.setDoOutput(true);
+        // Stream the body, instead of HttpURLConnection buffering it all to work out the length
+        connection.setFixedLengthStreamingMode(length);
+
+        return connection;
+    }
+
+    /**
+     * Get the response to an upload.
+     * The response is read fully, so the connection can be reused.
+     * @param connection The connection the body has been written to.
+     * @return The HTTP status code.
+     * @throws IOException If the response can't be read.
+     */
+    private int finish(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+
+        try (InputStream response = isSuccess(status) ? connection.getInputStream() : connection.getErrorStream()) {
+            if (response != null) {
+                byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+                while (response.read(buffer) != -1) {
+                    // Discard
+                }
+            }
+        }
+
+        return status;
+    }
+
+    /**
+     * Get the URL to upload a sample to.
+     * @param source The IPv6 address of the node the sample is from.
+     * @return The URL.
+     * @throws MalformedURLException If the server URL is invalid.
+     */
+    private URL getURL(String source) throws MalformedURLException {
+        try {
+            return new URL(server + "?ip=" + URLEncoder.encode(source, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * http endpoint serving the fetcher's metrics
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.net;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.mountainsensing.fetcher.utils.Metrics;
+
+/**
+ * Minimal HTTP server, so Prometheus can scrape the {@link Metrics} of a long running fetcher directly.
+ * Only {@code GET /metrics} is served, from a single thread.
+ */
+public class MetricsServer {
+
+    private static final Logger log = Logger.getLogger(MetricsServer.class.getName());
+
+    /**
+     * Path the metrics are served on.
+     */
+    private static final String PATH = "/metrics";
+
+    /**
+     * The underlying server.
+     */
+    private final HttpServer server;
+
+    /**
+     * Thread handling requests.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Start serving the metrics.
+     * @param port The TCP port to listen on, on every interface.
+     * @throws IOException If the port can't be bound.
+     */
+    public MetricsServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "metrics-http");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        server.setExecutor(executor);
+        server.createContext(PATH, new MetricsHandler());
+        server.start();
+
+        log.log(Level.INFO, "Serving metrics on port {0}", Integer.toString(server.getAddress().getPort()));
+    }
+
+    /**
+     * Stop serving the metrics.
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Handler writing the metrics in response to GET requests.
+     */
+    private static class MetricsHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_METHOD, -1);
+                    return;
+                }
+
+                // Buffered first, so a failure can't send a partial response with a success code
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                try (Writer writer = new OutputStreamWriter(body, StandardCharsets.UTF_8)) {
+                    Metrics.getInstance().write(writer);
+                }
+
+                exchange.getResponseHeaders().set("Content-Type", Metrics.CONTENT_TYPE);
+
+                if ("HEAD".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+                    return;
+                }
+
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.size());
+                try (OutputStream out = exchange.getResponseBody()) {
+                    body.writeTo(out);
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
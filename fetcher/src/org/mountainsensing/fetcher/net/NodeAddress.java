@@ -85,6 +85,24 @@ public class NodeAddress {
         return hostName;
     }
 
+    /**
+     * Get the short id of this node, as used by the routes resource of nodes.
+     * @return The last 2 bytes of the address, as 4 lower case hex digits.
+     */
+    public String getShortId() {
+        return getShortId(address);
+    }
+
+    /**
+     * Get the short id of an address, as used by the routes resource of nodes.
+     * @param address The address.
+     * @return The last 2 bytes of the address, as 4 lower case hex digits.
+     */
+    public static String getShortId(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        return String.format("%02x%02x", bytes[bytes.length - 2] & 0xff, bytes[bytes.length - 1] & 0xff);
+    }
+
     /**
      * Check if the hos tname of this node is known.
      * @return True if it is, false otherwise.
@@ -0,0 +1,315 @@
+/**
+ * circuit breaker for nodes that are down
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.net;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.mountainsensing.fetcher.utils.FileUtils;
+import org.mountainsensing.fetcher.utils.FormatUtils;
+import org.mountainsensing.fetcher.utils.Metrics;
+
+/**
+ * Keeps track of which nodes are down, so operations don't waste all their retries and timeouts on them.
+ *
+ * A node that doesn't answer at all during {@link #THRESHOLD} consecutive operations is considered down (the circuit is open).
+ * Operations then skip it, apart from a cheap CoAP ping probing it on an exponential schedule,
+ * starting at {@link #MIN_PROBE_INTERVAL} and doubling up to {@link #MAX_PROBE_INTERVAL}.
+ * Once a probe is answered, operations on the node resume, but a single failure is enough to consider it down again.
+ * Only answering an operation resets the node.
+ *
+ * The state can be saved to a file, and read back by the next run, so runs from cron don't forget which nodes are down.
+ * This is thread safe.
+ */
+public class NodeHealth {
+
+    private static final Logger log = Logger.getLogger(NodeHealth.class.getName());
+
+    /**
+     * The singleton instance.
+     */
+    private static final NodeHealth INSTANCE = new NodeHealth();
+
+    /**
+     * Number of consecutive failed operations after which a node is considered down.
+     */
+    public static final int THRESHOLD = 3;
+
+    /**
+     * Interval between the first probes of a node that is down, in ms.
+     */
+    public static final long MIN_PROBE_INTERVAL = 5 * 60 * 1000;
+
+    /**
+     * Longest interval between probes of a node that is down, in ms.
+     */
+    public static final long MAX_PROBE_INTERVAL = 12 * 60 * 60 * 1000;
+
+    /**
+     * Whether every node is down.
+     */
+    private static final Metrics.Gauge downGauge = Metrics.getInstance().gauge("node_down",
+        "Whether a node is considered down, and is only being probed", "node");
+
+    /**
+     * Probes of nodes that are down.
+     */
+    private static final Metrics.Counter probes = Metrics.getInstance().counter("node_probes_total",
+        "Pings probing nodes that are down, by result (up or down)", "node", "result");
+
+    /**
+     * The health of a node.
+     */
+    private static class Health {
+
+        /**
+         * Number of consecutive failed operations.
+         */
+        private int failures;
+
+        /**
+         * Interval until the next probe, in ms. 0 if the node has never been down.
+         */
+        private long probeInterval;
+
+        /**
+         * When the node should next be probed, in ms since the epoch. 0 if the node isn't down.
+         */
+        private long nextProbe;
+
+        /**
+         * When the node last answered, in ms since the epoch. 0 if it never has.
+         */
+        private long lastSeen;
+    }
+
+    /**
+     * Health of every node, by address. Nodes that have never failed aren't in it.
+     */
+    private final Map<InetAddress, Health> nodes = new HashMap<>();
+
+    /**
+     * The file the state is read from and saved to, null if it isn't saved.
+     */
+    private File file;
+
+    /**
+     * Private constructor as this is a Singleton.
+     */
+    private NodeHealth() {
+    }
+
+    /**
+     * Get the Singleton instance of this class.
+     * @return The Singleton instance.
+     */
+    public static NodeHealth getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Check if a node is down.
+     * @param node The address of the node.
+     * @return True if the node is down, and operations should only probe it.
+     */
+    public synchronized boolean isDown(InetAddress node) {
+        Health health = nodes.get(node);
+        return health != null && health.nextProbe != 0;
+    }
+
+    /**
+     * Check if a node that is down is due to be probed.
+     * @param node The address of the node.
+     * @return True if the node is down, and should be probed now.
+     */
+    public synchronized boolean isProbeDue(InetAddress node) {
+        return isDown(node) && System.currentTimeMillis() >= nodes.get(node).nextProbe;
+    }
+
+    /**
+     * Describe why a node is down, for logging.
+     * @param node The address of the node.
+     * @return A description of when the node was last seen, and when it will next be probed.
+     */
+    public synchronized String describe(InetAddress node) {
+        Health health = nodes.get(node);
+
+        if (health == null) {
+            return "Node is up";
+        }
+
+        return "Node has failed " + health.failures + " time(s) in a row, last seen "
+            + (health.lastSeen == 0 ? "never" : new Date(health.lastSeen).toString())
+            + (health.nextProbe == 0 ? "" : ", next probe in " + FormatUtils.getInterval(Math.max(health.nextProbe - System.currentTimeMillis(), 0) / 1000));
+    }
+
+    /**
+     * Record a node answering an operation.
+     * @param node The address of the node.
+     */
+    public synchronized void success(InetAddress node) {
+        Health health = nodes.remove(node);
+
+        if (health != null && health.nextProbe != 0) {
+            log.log(Level.INFO, "{0} is back up", node.getHostAddress());
+        }
+
+        downGauge.set(0, node.getHostAddress());
+    }
+
+    /**
+     * Record a node not answering an operation at all.
+     * @param node The address of the node.
+     */
+    public synchronized void failure(InetAddress node) {
+        Health health = getHealth(node);
+        health.failures++;
+
+        if (health.failures < THRESHOLD || health.nextProbe != 0) {
+            return;
+        }
+
+        // Back off further if the node was already down, and answered a probe in the meantime
+        health.probeInterval = health.probeInterval == 0 ? MIN_PROBE_INTERVAL : Math.min(health.probeInterval * 2, MAX_PROBE_INTERVAL);
+        health.nextProbe = System.currentTimeMillis() + health.probeInterval;
+
+        log.log(Level.WARNING, "{0} is down after {1} failed operations, only probing it from now on", new Object[] {node.getHostAddress(), health.failures});
+        downGauge.set(1, node.getHostAddress());
+    }
+
+    /**
+     * Record the result of probing a node that is down.
+     * If it answered, operations will be tried again, but the node will be considered down again if they fail once.
+     * Otherwise the interval until the next probe is doubled.
+     * @param node The address of the node.
+     * @param up True if the node answered the probe, false otherwise.
+     */
+    public synchronized void probed(InetAddress node, boolean up) {
+        Health health = getHealth(node);
+        probes.inc(node.getHostAddress(), up ? "up" : "down");
+
+        if (up) {
+            health.failures = THRESHOLD - 1;
+            health.nextProbe = 0;
+            health.lastSeen = System.currentTimeMillis();
+            downGauge.set(0, node.getHostAddress());
+            return;
+        }
+
+        health.probeInterval = Math.min(health.probeInterval * 2, MAX_PROBE_INTERVAL);
+        health.nextProbe = System.currentTimeMillis() + health.probeInterval;
+    }
+
+    /**
+     * Set the file the state is saved to, and read any state already in it.
+     * @param file The file. It doesn't have to exist.
+     */
+    public synchronized void setFile(File file) {
+        this.file = file;
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                try {
+                    parse(line);
+                } catch (IOException | RuntimeException e) {
+                    log.log(Level.WARNING, "Ignoring invalid node health \"" + line + "\" in " + file + ": " + e.getMessage());
+                }
+            }
+        } catch (FileNotFoundException e) {
+            log.log(Level.FINE, "No node health in {0} yet", file);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to read node health from " + file, e);
+        }
+    }
+
+    /**
+     * Save the state to the file, if there is one.
+     * Errors are logged, as losing the state only costs time.
+     */
+    public synchronized void writeFile() {
+        if (file == null) {
+            return;
+        }
+
+        try {
+            FileUtils.replace(file, new FileUtils.Contents() {
+                @Override
+                public void write(OutputStream out) throws IOException {
+                    Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                    writer.write("# address failures probe-interval next-probe last-seen (ms, times since the epoch, 0 if none)\n");
+
+                    for (Map.Entry<InetAddress, Health> entry : nodes.entrySet()) {
+                        Health health = entry.getValue();
+                        writer.write(entry.getKey().getHostAddress() + " " + health.failures + " " + health.probeInterval + " " + health.nextProbe + " " + health.lastSeen + "\n");
+                    }
+
+                    writer.flush();
+                }
+            });
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to write node health to " + file, e);
+        }
+    }
+
+    /**
+     * Get the health of a node, adding it if it isn't known yet.
+     * @param node The address of the node.
+     * @return The health of the node.
+     */
+    private Health getHealth(InetAddress node) {
+        Health health = nodes.get(node);
+
+        if (health == null) {
+            health = new Health();
+            nodes.put(node, health);
+        }
+
+        return health;
+    }
+
+    /**
+     * Read the health of a node from a line of the file.
+     * @param line The line.
+     * @throws IOException If the line is malformed.
+     * @throws NumberFormatException If a number is malformed.
+     */
+    private void parse(String line) throws IOException {
+        String[] fields = line.trim().split("\\s+");
+
+        if (fields.length != 5 || !NodeAddress.isAddress(fields[0])) {
+            throw new IOException("Expected an address and 4 numbers");
+        }
+
+        InetAddress node = InetAddress.getByName(fields[0]);
+
+        Health health = new Health();
+        health.failures = Integer.parseInt(fields[1]);
+        health.probeInterval = Long.parseLong(fields[2]);
+        health.nextProbe = Long.parseLong(fields[3]);
+        health.lastSeen = Long.parseLong(fields[4]);
+
+        nodes.put(node, health);
+        downGauge.set(health.nextProbe != 0 ? 1 : 0, node.getHostAddress());
+    }
+}
@@ -6,6 +6,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Level;
@@ -200,4 +201,12 @@ public class NodeNameService {
 
         return hosts.get(host);
     }
+
+    /**
+     * Get every known hostname, and the IP address it maps to.
+     * @return An unmodifiable view of the hostnames, and their IP address.
+     */
+    public Map<String, InetAddress> getHosts() {
+        return Collections.unmodifiableMap(hosts);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,474 @@
+/**
+ * per node retransmission timeouts, estimated from round trip times
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.net;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.mountainsensing.fetcher.utils.FileUtils;
+import org.mountainsensing.fetcher.utils.Metrics;
+
+/**
+ * Estimates the retransmission timeout (RTO) of every node from the round trip times of it's exchanges, following CoCoA
+ * (draft-ietf-core-cocoa).
+ *
+ * Every node has two RFC 6298 style estimators: a strong one fed by exchanges that got an answer without being retransmitted,
+ * and a weak one fed by exchanges that needed one or two retransmissions (measured from the first transmission, as we can't
+ * tell which transmission was answered). Both are blended into an overall RTO, the strong one with more weight.
+ * The backoff applied when retransmitting depends on the RTO: a short RTO backs off faster.
+ *
+ * Estimates that haven't been updated for a while drift back towards the defaults, as the route to the node may have changed:
+ * RTOs under 1s after 16 RTOs, and RTOs over 3s after 4 RTOs. Only time spent running counts, as nodes aren't contacted between runs.
+ * A resident process should {@link #pause()} the estimator while no job is running, for the same reason.
+ *
+ * Estimates can be saved to a file, and read back by the next run, so the first exchange with a node starts from a good RTO.
+ * Nodes without an estimate use the initial RTO.
+ * This is thread safe.
+ */
+public class RtoEstimator {
+
+    private static final Logger log = Logger.getLogger(RtoEstimator.class.getName());
+
+    /**
+     * Smallest RTO, in ms.
+     */
+    public static final double MIN_RTO = 250;
+
+    /**
+     * Largest RTO, in ms.
+     */
+    public static final double MAX_RTO = 60 * 1000;
+
+    /**
+     * K of the strong estimator, the weight of the variance.
+     */
+    private static final int K_STRONG = 4;
+
+    /**
+     * K of the weak estimator.
+     */
+    private static final int K_WEAK = 1;
+
+    /**
+     * Weight of a new strong estimate in the overall RTO.
+     */
+    private static final double STRONG_WEIGHT = 0.5;
+
+    /**
+     * Weight of a new weak estimate in the overall RTO.
+     */
+    private static final double WEAK_WEIGHT = 0.25;
+
+    /**
+     * Largest number of retransmissions an exchange can have had to feed the weak estimator.
+     */
+    private static final int MAX_WEAK_RETRANSMISSIONS = 2;
+
+    /**
+     * RTOs under this are short, and aged towards it. In ms.
+     */
+    private static final double SHORT_RTO = 1000;
+
+    /**
+     * RTOs over this are long, and aged towards {@link #DEFAULT_RTO}. In ms.
+     */
+    private static final double LONG_RTO = 3000;
+
+    /**
+     * Long RTOs are aged towards this, the default initial RTO of CoCoA. In ms.
+     */
+    private static final double DEFAULT_RTO = 2000;
+
+    /**
+     * Most times an RTO is aged at once.
+     */
+    private static final int MAX_AGING = 16;
+
+    /**
+     * Current RTO of every node.
+     */
+    private static final Metrics.Gauge rtoGauge = Metrics.getInstance().gauge("coap_rto_seconds",
+        "Estimated retransmission timeout of a node", "node");
+
+    /**
+     * A smoothed round trip time, and it's variance.
+     */
+    private static class Estimator {
+
+        /**
+         * Smoothed round trip time, in ms.
+         */
+        private double srtt;
+
+        /**
+         * Round trip time variance, in ms.
+         */
+        private double rttvar;
+
+        /**
+         * Create an estimator from it's first measurement.
+         * @param rtt The round trip time, in ms.
+         */
+        public Estimator(double rtt) {
+            this(rtt, rtt / 2);
+        }
+
+        /**
+         * Create an estimator from a previous estimate.
+         * @param srtt Smoothed round trip time, in ms.
+         * @param rttvar Round trip time variance, in ms.
+         */
+        public Estimator(double srtt, double rttvar) {
+            this.srtt = srtt;
+            this.rttvar = rttvar;
+        }
+
+        /**
+         * Add a measurement.
+         * @param rtt The round trip time, in ms.
+         */
+        public void update(double rtt) {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+            srtt = 0.875 * srtt + 0.125 * rtt;
+        }
+
+        /**
+         * Get the RTO of this estimator.
+         * @param k The weight of the variance.
+         * @return The RTO, in ms.
+         */
+        public double getRto(int k) {
+            return srtt + k * rttvar;
+        }
+    }
+
+    /**
+     * The estimates of a node.
+     */
+    private static class Estimate {
+
+        /**
+         * The overall RTO, in ms.
+         */
+        private double rto;
+
+        /**
+         * Estimator fed by exchanges that weren't retransmitted, null until there is one.
+         */
+        private Estimator strong;
+
+        /**
+         * Estimator fed by exchanges that were retransmitted, null until there is one.
+         */
+        private Estimator weak;
+
+        /**
+         * When the RTO was last updated or aged, in ms of running time.
+         */
+        private long updated;
+
+        /**
+         * Create a new estimate.
+         * @param rto The initial RTO, in ms.
+         * @param updated The current running time, in ms.
+         */
+        public Estimate(double rto, long updated) {
+            this.rto = rto;
+            this.updated = updated;
+        }
+    }
+
+    /**
+     * Estimates of every node, by address.
+     */
+    private final Map<InetAddress, Estimate> estimates = new HashMap<>();
+
+    /**
+     * RTO of nodes without an estimate, in ms.
+     */
+    private double initialRto = DEFAULT_RTO;
+
+    /**
+     * The file estimates are read from and saved to, null if they aren't saved.
+     */
+    private File file;
+
+    /**
+     * Number of times the estimator has been resumed, minus the number of times it has been paused, plus one.
+     * Running time is only counted while this is positive.
+     */
+    private int running = 1;
+
+    /**
+     * Running time counted up to {@link #since}, in ms.
+     */
+    private long elapsed;
+
+    /**
+     * When running time was last counted up to, in ms since the epoch.
+     */
+    private long since = System.currentTimeMillis();
+
+    /**
+     * Stop counting time for aging estimates, as nodes aren't being contacted.
+     * Every call must be matched by a call to {@link #resume()}.
+     */
+    public synchronized void pause() {
+        elapsed = getRunningTime();
+        since = System.currentTimeMillis();
+        running--;
+    }
+
+    /**
+     * Start counting time for aging estimates again, after {@link #pause()}.
+     */
+    public synchronized void resume() {
+        elapsed = getRunningTime();
+        since = System.currentTimeMillis();
+        running++;
+    }
+
+    /**
+     * Get the time spent running, ie not paused.
+     * @return The running time, in ms.
+     */
+    private long getRunningTime() {
+        return running > 0 ? elapsed + System.currentTimeMillis() - since : elapsed;
+    }
+
+    /**
+     * Set the RTO of nodes without an estimate.
+     * @param rto The RTO, in ms.
+     */
+    public synchronized void setInitialRto(double rto) {
+        initialRto = clamp(rto);
+    }
+
+    /**
+     * Get the current RTO of a node.
+     * @param node The address of the node.
+     * @return The RTO, in ms.
+     */
+    public synchronized double getRto(InetAddress node) {
+        Estimate estimate = estimates.get(node);
+
+        if (estimate == null) {
+            return initialRto;
+        }
+
+        age(estimate);
+        return estimate.rto;
+    }
+
+    /**
+     * Get the backoff factor to apply to the timeout of every retransmission.
+     * @param rto The RTO.
+     * @return The factor to multiply the timeout by: 3 for RTOs under 1s, 1.5 for RTOs over 3s, 2 otherwise.
+     */
+    public static double getBackoff(double rto) {
+        if (rto < SHORT_RTO) {
+            return 3;
+        }
+
+        if (rto > LONG_RTO) {
+            return 1.5;
+        }
+
+        return 2;
+    }
+
+    /**
+     * Add a measured round trip time.
+     * @param node The address of the node.
+     * @param rtt The time between the first transmission of a request and it's acknowledgement, in ms.
+     * @param retransmissions The number of times the request was retransmitted.
+     */
+    public synchronized void update(InetAddress node, double rtt, int retransmissions) {
+        if (retransmissions > MAX_WEAK_RETRANSMISSIONS) {
+            return;
+        }
+
+        Estimate estimate = estimates.get(node);
+
+        if (estimate == null) {
+            estimate = new Estimate(initialRto, getRunningTime());
+            estimates.put(node, estimate);
+        }
+
+        if (retransmissions == 0) {
+            if (estimate.strong == null) {
+                estimate.strong = new Estimator(rtt);
+            } else {
+                estimate.strong.update(rtt);
+            }
+
+            estimate.rto = STRONG_WEIGHT * estimate.strong.getRto(K_STRONG) + (1 - STRONG_WEIGHT) * estimate.rto;
+        } else {
+            if (estimate.weak == null) {
+                estimate.weak = new Estimator(rtt);
+            } else {
+                estimate.weak.update(rtt);
+            }
+
+            estimate.rto = WEAK_WEIGHT * estimate.weak.getRto(K_WEAK) + (1 - WEAK_WEIGHT) * estimate.rto;
+        }
+
+        estimate.rto = clamp(estimate.rto);
+        estimate.updated = getRunningTime();
+
+        rtoGauge.set(estimate.rto / 1000, node.getHostAddress());
+        log.log(Level.FINEST, "RTO of {0} is {1}ms after a {2}ms round trip", new Object[] {node.getHostAddress(), Math.round(estimate.rto), Math.round(rtt)});
+    }
+
+    /**
+     * Set the file estimates are saved to, and read any estimates already in it.
+     * @param file The file. It doesn't have to exist.
+     */
+    public synchronized void setFile(File file) {
+        this.file = file;
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                try {
+                    parse(line);
+                } catch (IOException | RuntimeException e) {
+                    log.log(Level.WARNING, "Ignoring invalid RTO estimate \"" + line + "\" in " + file + ": " + e.getMessage());
+                }
+            }
+        } catch (FileNotFoundException e) {
+            log.log(Level.FINE, "No RTO estimates in {0} yet", file);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to read RTO estimates from " + file, e);
+        }
+    }
+
+    /**
+     * Save the estimates to the file, if there is one.
+     * Errors are logged, as the estimates are only an optimization.
+     */
+    public synchronized void writeFile() {
+        if (file == null) {
+            return;
+        }
+
+        try {
+            FileUtils.replace(file, new FileUtils.Contents() {
+                @Override
+                public void write(OutputStream out) throws IOException {
+                    Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                    writer.write("# address rto strong-srtt strong-rttvar weak-srtt weak-rttvar (ms, - if no estimate)\n");
+
+                    for (Map.Entry<InetAddress, Estimate> entry : estimates.entrySet()) {
+                        Estimate estimate = entry.getValue();
+
+                        writer.write(entry.getKey().getHostAddress() + " " + format(estimate.rto)
+                            + " " + (estimate.strong == null ? "- -" : format(estimate.strong.srtt) + " " + format(estimate.strong.rttvar))
+                            + " " + (estimate.weak == null ? "- -" : format(estimate.weak.srtt) + " " + format(estimate.weak.rttvar)) + "\n");
+                    }
+
+                    writer.flush();
+                }
+            });
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to write RTO estimates to " + file, e);
+        }
+    }
+
+    /**
+     * Read the estimate of a node from a line of the file.
+     * @param line The line.
+     * @throws IOException If the line is malformed.
+     * @throws NumberFormatException If a number is malformed.
+     */
+    private void parse(String line) throws IOException {
+        String[] fields = line.trim().split("\\s+");
+
+        if (fields.length != 6 || !NodeAddress.isAddress(fields[0])) {
+            throw new IOException("Expected an address and 5 numbers");
+        }
+
+        InetAddress node = InetAddress.getByName(fields[0]);
+
+        // Aging starts again from now, nodes weren't contacted while we weren't running
+        Estimate estimate = new Estimate(clamp(Double.parseDouble(fields[1])), getRunningTime());
+        estimate.strong = parseEstimator(fields[2], fields[3]);
+        estimate.weak = parseEstimator(fields[4], fields[5]);
+
+        estimates.put(node, estimate);
+        rtoGauge.set(estimate.rto / 1000, node.getHostAddress());
+    }
+
+    /**
+     * Read an estimator.
+     * @param srtt The smoothed round trip time, or - if there is no estimator.
+     * @param rttvar The round trip time variance, or - if there is no estimator.
+     * @return The estimator, null if there is none.
+     */
+    private static Estimator parseEstimator(String srtt, String rttvar) {
+        if (srtt.equals("-")) {
+            return null;
+        }
+
+        return new Estimator(Double.parseDouble(srtt), Double.parseDouble(rttvar));
+    }
+
+    /**
+     * Move an estimate that hasn't been updated for a while back towards the defaults.
+     * @param estimate The estimate.
+     */
+    private void age(Estimate estimate) {
+        long now = getRunningTime();
+
+        for (int i = 0; i < MAX_AGING; i++) {
+            double rto = estimate.rto;
+
+            if (rto < SHORT_RTO && now - estimate.updated > 16 * rto) {
+                estimate.rto = (SHORT_RTO + rto) / 2;
+                estimate.updated += Math.round(16 * rto);
+            } else if (rto > LONG_RTO && now - estimate.updated > 4 * rto) {
+                estimate.rto = (DEFAULT_RTO + rto) / 2;
+                estimate.updated += Math.round(4 * rto);
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Keep an RTO between {@link #MIN_RTO} and {@link #MAX_RTO}.
+     * @param rto The RTO, in ms.
+     * @return The clamped RTO.
+     */
+    private static double clamp(double rto) {
+        return Math.max(MIN_RTO, Math.min(MAX_RTO, rto));
+    }
+
+    /**
+     * Format a time for the file.
+     * @param ms The time, in ms.
+     * @return The time, to a tenth of a ms.
+     */
+    private static String format(double ms) {
+        return Double.toString(Math.round(ms * 10) / 10.0);
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * routing tree of the mesh
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.net;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.mountainsensing.fetcher.utils.FileUtils;
+import org.mountainsensing.fetcher.utils.RouteGraph;
+
+/**
+ * The latest known routing info of the mesh, by short id (see {@link NodeAddress#getShortId()}).
+ * It is updated with the nodes that answered every routes operation, and used to schedule other operations by where nodes are in the mesh.
+ *
+ * A node without a parent is assumed to be the border router.
+ * The nodes attached to the border router each start a branch of the tree, that all the traffic to the nodes below them goes through.
+ *
+ * The routing info can be saved to a file as a {@link RouteGraph} snapshot, and read back by the next run,
+ * so operations run from cron can use the routes from the last routes run.
+ * This is thread safe.
+ */
+public class Topology {
+
+    private static final Logger log = Logger.getLogger(Topology.class.getName());
+
+    /**
+     * The singleton instance.
+     */
+    private static final Topology INSTANCE = new Topology();
+
+    /**
+     * Name of the graph.
+     */
+    private static final String NAME = "routes";
+
+    /**
+     * The routing info, with nodes named by short id.
+     */
+    private RouteGraph graph = new RouteGraph(NAME);
+
+    /**
+     * The file the routing info is read from and saved to, null if it isn't saved.
+     */
+    private File file;
+
+    /**
+     * Private constructor as this is a Singleton.
+     */
+    private Topology() {
+    }
+
+    /**
+     * Get the Singleton instance of this class.
+     * @return The Singleton instance.
+     */
+    public static Topology getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Update the routing info with the nodes that answered a routes operation.
+     * Nodes that didn't answer keep their previous routing info.
+     * @param update The routing info gathered by the operation, with nodes named by short id.
+     */
+    public synchronized void update(RouteGraph update) {
+        graph.merge(update);
+    }
+
+    /**
+     * Check if the tree is empty.
+     * @return True if no routes are known, false otherwise.
+     */
+    public synchronized boolean isEmpty() {
+        return graph.size() == 0;
+    }
+
+    /**
+     * Get the branch of the tree a node is in.
+     * @param node The short id of the node.
+     * @return The short id of the node attached to the border router the node is below, the node itself if it isn't known.
+     */
+    public synchronized String getBranch(String node) {
+        int id = graph.getId(node);
+        return id == RouteGraph.NONE ? node : graph.getName(graph.getBranch(id));
+    }
+
+    /**
+     * Get the number of hops between a node and the border router.
+     * @param node The short id of the node.
+     * @return The number of hops, 0 if the node isn't known, or it's routes form a loop.
+     */
+    public synchronized int getDepth(String node) {
+        int id = graph.getId(node);
+        return id == RouteGraph.NONE ? 0 : Math.max(graph.getDepth(id), 0);
+    }
+
+    /**
+     * Set the file the routing info is saved to, and read the routing info already in it.
+     * @param file The file. It doesn't have to exist.
+     */
+    public synchronized void setFile(File file) {
+        this.file = file;
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            graph = RouteGraph.readSnapshot(in);
+        } catch (FileNotFoundException e) {
+            log.log(Level.FINE, "No routes in {0} yet", file);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to read routes from " + file, e);
+        }
+    }
+
+    /**
+     * Save the routing info to the file, if there is one.
+     * Errors are logged, as the routing info is only used to schedule nodes.
+     */
+    public synchronized void writeFile() {
+        if (file == null) {
+            return;
+        }
+
+        try {
+            FileUtils.replace(file, new FileUtils.Contents() {
+                @Override
+                public void write(OutputStream out) throws IOException {
+                    graph.writeSnapshot(out);
+                }
+            });
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to write routes to " + file, e);
+        }
+    }
+}
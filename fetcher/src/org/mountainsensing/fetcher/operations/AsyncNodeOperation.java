@@ -0,0 +1,48 @@
+/**
+ * node operations talking to nodes asynchronously
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.operations;
+
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import org.mountainsensing.fetcher.net.AsyncCoapClient;
+
+/**
+ * A NodeOperation that talks to nodes asynchronously.
+ * Processing a node is a chain of CompletableFutures (ie request -> handle response -> next request),
+ * so no thread is held waiting for a node to respond. A small number of worker threads can then keep
+ * as many nodes in flight as the --parallelism allows.
+ */
+public abstract class AsyncNodeOperation extends NodeOperation {
+
+    /**
+     * Workers only handle responses, they never wait for nodes.
+     * There's no point having more of them than processors.
+     */
+    @Override
+    protected int getWorkerCount(int parallelism) {
+        return Math.min(parallelism, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Get a client to asynchronously talk to a URI, on behalf of the node currently being processed.
+     * @param uri The URI.
+     * @return A client for the URI.
+     */
+    protected AsyncCoapClient getClient(URI uri) {
+        return new AsyncCoapClient(uri, getNodeExecutor());
+    }
+
+    /**
+     * Get a future that has already been completed exceptionally.
+     * @param <T> The type of the future.
+     * @param error The error to complete the future with.
+     * @return A failed future.
+     */
+    protected static <T> CompletableFuture<T> failedFuture(Throwable error) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
+    }
+}
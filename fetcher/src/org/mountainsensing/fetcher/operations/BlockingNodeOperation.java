@@ -0,0 +1,50 @@
+/**
+ * node operations blocking a worker thread per node
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.operations;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+import org.mountainsensing.fetcher.CoapException;
+import org.mountainsensing.fetcher.net.NodeAddress;
+
+/**
+ * A NodeOperation that talks to nodes synchronously.
+ * Every node is processed by {@link #processNode(URI, NodeAddress)} on one of the worker threads,
+ * which it holds until the node is done, so there is a worker per node processed concurrently.
+ */
+public abstract class BlockingNodeOperation extends NodeOperation {
+
+    /**
+     * Process a node with this operation.
+     * This may be called concurrently for different nodes, so any state about the node
+     * must be kept local to the call, and not in fields of the operation.
+     * @param uri The URI representing the node / URI.
+     * @param nodeAddr The IP address of the node.
+     * @return True if the node requires further processing (this will be called again for the same node), false otherwise.
+     * @throws org.mountainsensing.fetcher.CoapException If a CoAP I/O error occurs.
+     * @throws java.io.IOException If an I/O error occurs other than CoAP.
+     */
+    protected abstract boolean processNode(URI uri, NodeAddress nodeAddr) throws CoapException, IOException;
+
+    /**
+     * Run {@link #processNode(URI, NodeAddress)} on one of the worker threads.
+     */
+    @Override
+    protected final CompletableFuture<Boolean> processNodeAsync(final URI uri, final NodeAddress nodeAddr) {
+        return CompletableFuture.supplyAsync(new Supplier<Boolean>() {
+            @Override
+            public Boolean get() {
+                try {
+                    return processNode(uri, nodeAddr);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }
+        }, getNodeExecutor());
+    }
+}
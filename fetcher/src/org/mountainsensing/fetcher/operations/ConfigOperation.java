@@ -19,15 +19,17 @@ import java.net.URI;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.eclipse.californium.core.CoapClient;
 import org.eclipse.californium.core.CoapResponse;
 import org.eclipse.californium.core.coap.MediaTypeRegistry;
-import org.mountainsensing.fetcher.CoapException;
-import org.mountainsensing.fetcher.CoapException.Method;
+import org.mountainsensing.fetcher.net.AsyncCoapClient;
 import org.mountainsensing.fetcher.net.NodeAddress;
 import org.mountainsensing.fetcher.utils.FormatUtils;
+import org.mountainsensing.fetcher.utils.IOFunction;
+import org.mountainsensing.fetcher.utils.MessageWriter;
 import org.mountainsensing.fetcher.utils.ProtoBufUtils;
 import org.mountainsensing.pb.Settings.SensorConfig;
 import org.mountainsensing.pb.Settings.SensorConfig.Builder;
@@ -36,7 +38,7 @@ import org.mountainsensing.pb.Settings.SensorConfig.RoutingMode;
 /**
  * Operation for getting / setting the config of a node.
  */
-public abstract class ConfigOperation extends NodeOperation {
+public abstract class ConfigOperation extends AsyncNodeOperation {
 
     private static final Logger log = Logger.getLogger(SampleOperation.class.getName());
 
@@ -64,8 +66,15 @@ public abstract class ConfigOperation extends NodeOperation {
                 return FormatUtils.toHex(message.getPowerID());
             }
         });
+
+        configPrinter = ProtoBufUtils.newPrinter(SensorConfig.getDescriptor(), configOverrideMap);
     }
 
+    /**
+     * Printer for Configs, using the overrides.
+     */
+    private static final ProtoBufUtils.Printer<SensorConfig> configPrinter;
+
     public static final String RESSOURCE = "config";
 
     /**
@@ -174,9 +183,49 @@ public abstract class ConfigOperation extends NodeOperation {
     @Parameters(commandDescription = "Get the configuration from the node(s)")
     public static class Get extends ConfigOperation {
 
+        @ParametersDelegate
+        private ExportOptions export = new ExportOptions();
+
+        /**
+         * Where configs are written as records, null if they are logged. Only open during {@link #perform(int, int)}.
+         */
+        private MessageWriter<SensorConfig> writer;
+
+        @Override
+        public void validate() {
+            export.validate();
+        }
+
+        @Override
+        public void perform(int timeout, int retries) {
+            try {
+                writer = export.open(SensorConfig.getDescriptor(), null);
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "Unable to open output: " + e.getMessage(), e);
+                return;
+            }
+
+            try {
+                super.perform(timeout, retries);
+            } finally {
+                export.close(writer);
+                writer = null;
+            }
+        }
+
         @Override
-        protected void processNode(URI uri, NodeAddress nodeAddr) throws CoapException, IOException {
-            log.log(Level.INFO, "Config is \n{0}", configToString(getConfig(uri)));
+        protected CompletableFuture<Boolean> processNodeAsync(final URI uri, NodeAddress nodeAddr) {
+            return getConfig(uri).thenApply(new IOFunction<SensorConfig, Boolean>() {
+                @Override
+                protected Boolean applyIO(SensorConfig config) throws IOException {
+                    if (writer != null) {
+                        writer.write(SampleOperation.getHostAddress(uri), config);
+                    } else {
+                        log.log(Level.INFO, "Config is \n{0}", configToString(config));
+                    }
+                    return false;
+                }
+            });
         }
     }
 
@@ -201,7 +250,7 @@ public abstract class ConfigOperation extends NodeOperation {
         }
 
         @Override
-        protected void processNode(URI uri, NodeAddress nodeAddr) throws CoapException, IOException {
+        protected CompletableFuture<Boolean> processNodeAsync(URI uri, NodeAddress nodeAddr) {
             Builder configBuilder = SensorConfig.newBuilder();
 
             configBuilder.setInterval(settings.interval);
@@ -220,11 +269,15 @@ public abstract class ConfigOperation extends NodeOperation {
                 configBuilder.setPowerID(settings.powerID);
             }
 
-            SensorConfig newConfig = configBuilder.build();
-
-            setConfig(uri, newConfig);
+            final SensorConfig newConfig = configBuilder.build();
 
-            log.log(Level.INFO, "Config set to \n{0}", configToString(newConfig));
+            return setConfig(uri, newConfig).thenApply(new IOFunction<Void, Boolean>() {
+                @Override
+                protected Boolean applyIO(Void result) throws IOException {
+                    log.log(Level.INFO, "Config set to \n{0}", configToString(newConfig));
+                    return false;
+                }
+            });
         }
     }
 
@@ -238,8 +291,22 @@ public abstract class ConfigOperation extends NodeOperation {
         private Settings settings = new Settings();
 
         @Override
-        protected void processNode(URI uri, NodeAddress nodeAddr) throws CoapException, IOException {
-            SensorConfig oldConfig = getConfig(uri);
+        protected CompletableFuture<Boolean> processNodeAsync(final URI uri, NodeAddress nodeAddr) {
+            return getConfig(uri).thenCompose(new Function<SensorConfig, CompletableFuture<Boolean>>() {
+                @Override
+                public CompletableFuture<Boolean> apply(SensorConfig oldConfig) {
+                    return updateConfig(uri, oldConfig);
+                }
+            });
+        }
+
+        /**
+         * Update the config of a node with the settings requested.
+         * @param uri The URI to post the config to.
+         * @param oldConfig The current config of the node.
+         * @return A future completed with false once the config has been updated.
+         */
+        private CompletableFuture<Boolean> updateConfig(URI uri, SensorConfig oldConfig) {
             Builder editBuilder = SensorConfig.newBuilder();
 
             editBuilder.setInterval(settings.interval != null ? settings.interval : oldConfig.getInterval());
@@ -262,11 +329,15 @@ public abstract class ConfigOperation extends NodeOperation {
                 editBuilder.setPowerID(oldConfig.getPowerID());
             }
 
-            SensorConfig newConfig = editBuilder.build();
+            final SensorConfig newConfig = editBuilder.build();
 
-            setConfig(uri, newConfig);
-
-            log.log(Level.INFO, "Config updated to \n{0}", configToString(newConfig));
+            return setConfig(uri, newConfig).thenApply(new IOFunction<Void, Boolean>() {
+                @Override
+                protected Boolean applyIO(Void result) throws IOException {
+                    log.log(Level.INFO, "Config updated to \n{0}", configToString(newConfig));
+                    return false;
+                }
+            });
         }
     }
 
@@ -274,14 +345,53 @@ public abstract class ConfigOperation extends NodeOperation {
      * Decode operation. Decodes a config.
      */
     @Parameters(commandDescription = "Decode a delimited protocol buffer encoded configuration")
-    public static class Decode extends DecodeOperation {
+    public static class Decode extends DecodeOperation<SensorConfig> {
 
         private static final String CONFIG_START = "+++SERIALDUMP+++CONFIG+++START+++";
         private static final String CONFIG_END = "+++SERIALDUMP+++CONFIG+++END+++";
 
+        @ParametersDelegate
+        private ExportOptions export = new ExportOptions();
+
+        /**
+         * Where configs are written as records, null if they are logged. Only open during {@link #perform(int, int)}.
+         */
+        private MessageWriter<SensorConfig> writer;
+
+        @Override
+        public void validate() {
+            export.validate();
+        }
+
+        @Override
+        public void perform(int timeout, int retries) {
+            try {
+                writer = export.open(SensorConfig.getDescriptor(), null);
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "Unable to open output: " + e.getMessage(), e);
+                return;
+            }
+
+            try {
+                super.perform(timeout, retries);
+            } finally {
+                export.close(writer);
+                writer = null;
+            }
+        }
+
+        @Override
+        protected SensorConfig parse(byte[] data, int offset, int length) throws IOException {
+            return SensorConfig.parseDelimitedFrom(new ByteArrayInputStream(data, offset, length));
+        }
+
         @Override
-        protected void decode(byte[] data, String nodeId) throws IOException {
-            log.log(Level.INFO, "Decoded config to \n{0}", configToString(SensorConfig.parseDelimitedFrom(new ByteArrayInputStream(data))));
+        protected void output(SensorConfig config, String nodeId) throws IOException {
+            if (writer != null) {
+                writer.write(nodeId, config);
+            } else {
+                log.log(Level.INFO, "Decoded config to \n{0}", configToString(config));
+            }
         }
 
         @Override
@@ -298,42 +408,47 @@ public abstract class ConfigOperation extends NodeOperation {
     /**
      * Get the config from a URI.
      * @param uri The URI to get the config from.
-     * @return The parsed config.
-     * @throws IOException If we fail to get the config, or parse it.
+     * @return A future completed with the parsed config.
+     * It is completed exceptionally if we fail to get the config, or parse it.
      */
-    protected SensorConfig getConfig(URI uri) throws IOException {
-        CoapClient client = new CoapClient(uri);
+    protected CompletableFuture<SensorConfig> getConfig(URI uri) {
+        AsyncCoapClient client = getClient(uri);
 
         log.log(Level.FINE, "Attempting to get config from: {0}", client.getURI());
 
-        CoapResponse response = client.get();
-
-        if (response != null && response.isSuccess()) {
-            return SensorConfig.parseDelimitedFrom(new ByteArrayInputStream(response.getPayload()));
-        }
-
-        throw new CoapException(uri, Method.GET, response, "Failed to get config");
+        return client.get("Failed to get config").thenApply(new IOFunction<CoapResponse, SensorConfig>() {
+            @Override
+            protected SensorConfig applyIO(CoapResponse response) throws IOException {
+                return SensorConfig.parseDelimitedFrom(new ByteArrayInputStream(response.getPayload()));
+            }
+        });
     }
 
     /**
      * Set the config on a URI.
      * @param uri The URI to post the config to.
      * @param config The config to post.
-     * @throws IOException If we fail to serialize the config, or post it.
+     * @return A future completed once the config has been posted.
+     * It is completed exceptionally if we fail to serialize the config, or post it.
      */
-    protected void setConfig(URI uri, SensorConfig config) throws IOException {
-        CoapClient client = new CoapClient(uri);
+    protected CompletableFuture<Void> setConfig(URI uri, SensorConfig config) {
+        AsyncCoapClient client = getClient(uri);
         ByteArrayOutputStream out = new ByteArrayOutputStream();
-        config.writeDelimitedTo(out);
 
-        log.log(Level.FINE, "Attempting to post config to: {0}", client.getURI());
-
-        CoapResponse response = client.post(out.toByteArray(), MediaTypeRegistry.APPLICATION_OCTET_STREAM);
-        if (response != null && response.isSuccess()) {
-            return;
+        try {
+            config.writeDelimitedTo(out);
+        } catch (IOException e) {
+            return failedFuture(e);
         }
 
-        throw new CoapException(uri, Method.POST, response, "Failed to post config");
+        log.log(Level.FINE, "Attempting to post config to: {0}", client.getURI());
+
+        return client.post(out.toByteArray(), MediaTypeRegistry.APPLICATION_OCTET_STREAM, "Failed to post config").thenApply(new Function<CoapResponse, Void>() {
+            @Override
+            public Void apply(CoapResponse response) {
+                return null;
+            }
+        });
     }
 
     @Override
@@ -347,6 +462,6 @@ public abstract class ConfigOperation extends NodeOperation {
      * @return A string representing the config, properly formatted.
      */
     private static String configToString(SensorConfig config) throws IOException {
-        return ProtoBufUtils.toString(config, configOverrideMap);
+        return configPrinter.toString(config);
     }
 }
@@ -0,0 +1,367 @@
+/**
+ * long running fetcher, running commands on a schedule
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.operations;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.Parameters;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.LineNumberReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.mountainsensing.fetcher.Commands;
+import org.mountainsensing.fetcher.Operation;
+import org.mountainsensing.fetcher.Options;
+import org.mountainsensing.fetcher.net.CoapEndpointPool;
+import org.mountainsensing.fetcher.net.MetricsServer;
+import org.mountainsensing.fetcher.net.NodeHealth;
+import org.mountainsensing.fetcher.net.Topology;
+import org.mountainsensing.fetcher.utils.FormatUtils;
+import org.mountainsensing.fetcher.utils.Metrics;
+
+/**
+ * Operation that stays resident, and runs other commands on a schedule.
+ * This avoids starting a JVM, and setting up new CoAP endpoints, for every cron run.
+ * The jobs are read from a file, with one job per line:
+ * {@code <interval> <command> [command parameters]}. ie {@code 10m grab-sample --all}.
+ * The file is read again on SIGHUP.
+ * Metrics, RTO estimates, the health of nodes, and the routing tree are written to their files after every job, and metrics can be served over HTTP for Prometheus to scrape.
+ */
+@Parameters(commandDescription = "Stay resident, and run commands from a job file on a schedule. The job file is reloaded on SIGHUP")
+public class DaemonOperation extends Operation {
+
+    private static final Logger log = Logger.getLogger(DaemonOperation.class.getName());
+
+    /**
+     * Start of a comment in the job file.
+     */
+    private static final String COMMENT = "#";
+
+    /**
+     * Signal used to request the job file is reloaded.
+     */
+    private static final String RELOAD_SIGNAL = "HUP";
+
+    /**
+     * Maximum number of jobs that can run at the same time.
+     * Jobs running longer than their interval are delayed, not run concurrently with themselves.
+     */
+    private static final int MAX_RUNNING_JOBS = 4;
+
+    @Parameter(names = {"-c", "--jobs"}, required = true, description = "Job file. One job per line: <interval (ie 30s, 10m, 1h, 1d)> <command> [command parameters]. Lines starting with " + COMMENT + " are ignored")
+    private String jobsPath;
+
+    @Parameter(names = {"--metrics-port"}, validateWith = Options.PortValidator.class, description = "Serve metrics in the Prometheus text format over HTTP on this port, at /metrics")
+    private Integer metricsPort = null;
+
+    /**
+     * Server for the metrics, null if they aren't served.
+     */
+    private MetricsServer metricsServer;
+
+    /**
+     * Scheduler running the jobs.
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Currently scheduled jobs, by their definition.
+     */
+    private final Map<String, ScheduledFuture<?>> scheduled = new LinkedHashMap<>();
+
+    /**
+     * Released when the daemon should stop.
+     */
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    /**
+     * Timeout for each job, in seconds.
+     */
+    private int timeout;
+
+    /**
+     * Retries for each job.
+     */
+    private int retries;
+
+    @Override
+    public void validate() throws IOException {
+        // Fail straight away if the jobs are invalid, rather than once running
+        readJobs();
+    }
+
+    @Override
+    public void perform(int timeout, int retries) {
+        this.timeout = timeout;
+        this.retries = retries;
+
+        scheduler = Executors.newScheduledThreadPool(MAX_RUNNING_JOBS, new JobThreadFactory());
+
+        if (metricsPort != null) {
+            try {
+                metricsServer = new MetricsServer(metricsPort);
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "Unable to serve metrics on port " + metricsPort + ": " + e.getMessage(), e);
+            }
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                log.log(Level.INFO, "Stopping");
+                scheduler.shutdownNow();
+                CoapEndpointPool.getInstance().shutdown();
+                if (metricsServer != null) {
+                    metricsServer.stop();
+                }
+                stopped.countDown();
+            }
+        });
+
+        onSignal(RELOAD_SIGNAL, new Runnable() {
+            @Override
+            public void run() {
+                log.log(Level.INFO, "Reloading jobs from {0}", jobsPath);
+                reload();
+            }
+        });
+
+        // RTO estimates shouldn't age between jobs, as nodes aren't contacted
+        CoapEndpointPool.getInstance().getEstimator().pause();
+
+        reload();
+
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Read the job file, and update the schedule to match it.
+     * Unchanged jobs keep their schedule, new or modified jobs are run straight away.
+     * If the job file can't be read, or is invalid, the current schedule is kept.
+     */
+    private synchronized void reload() {
+        Map<String, Job> jobs;
+
+        try {
+            jobs = readJobs();
+        } catch (IOException | ParameterException e) {
+            log.log(Level.SEVERE, "Unable to load jobs, keeping current jobs: " + e.getMessage(), e);
+            return;
+        }
+
+        // Cancel any jobs no longer present. Runs in progress are allowed to finish
+        Iterator<Map.Entry<String, ScheduledFuture<?>>> it = scheduled.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, ScheduledFuture<?>> entry = it.next();
+            if (!jobs.containsKey(entry.getKey())) {
+                log.log(Level.INFO, "Removed job {0}", entry.getKey());
+                entry.getValue().cancel(false);
+                it.remove();
+            }
+        }
+
+        for (Job job : jobs.values()) {
+            if (!scheduled.containsKey(job.toString())) {
+                log.log(Level.INFO, "Scheduled job {0}", job);
+                scheduled.put(job.toString(), scheduler.scheduleAtFixedRate(job, 0, job.interval, TimeUnit.SECONDS));
+            }
+        }
+    }
+
+    /**
+     * Read, and check, all the jobs from the job file.
+     * @return The jobs, by their definition.
+     * @throws IOException If the job file can't be read.
+     * @throws ParameterException If a job is invalid.
+     */
+    private Map<String, Job> readJobs() throws IOException, ParameterException {
+        Map<String, Job> jobs = new LinkedHashMap<>();
+
+        try (LineNumberReader reader = new LineNumberReader(new InputStreamReader(new FileInputStream(jobsPath), StandardCharsets.UTF_8))) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+
+                if (line.isEmpty() || line.startsWith(COMMENT)) {
+                    continue;
+                }
+
+                try {
+                    Job job = new Job(line.split("\\s+"));
+                    // Check the command itself is valid now, rather than on the first run
+                    job.parse().validate();
+                    jobs.put(job.toString(), job);
+                } catch (Exception e) {
+                    throw new ParameterException(jobsPath + ":" + reader.getLineNumber() + ": " + e.getMessage(), e);
+                }
+            }
+        }
+
+        return jobs;
+    }
+
+    /**
+     * Run a handler whenever a signal is received.
+     * The signal API isn't part of the public JDK, so it is only used if present.
+     * @param name The name of the signal, without SIG (ie HUP).
+     * @param handler The handler to run.
+     */
+    private static void onSignal(String name, final Runnable handler) {
+        try {
+            Class<?> signalClass = Class.forName("sun.misc.Signal");
+            Class<?> handlerClass = Class.forName("sun.misc.SignalHandler");
+
+            Object signal = signalClass.getConstructor(String.class).newInstance(name);
+            Object signalHandler = Proxy.newProxyInstance(handlerClass.getClassLoader(), new Class<?>[] {handlerClass}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    switch (method.getName()) {
+                        case "handle":
+                            handler.run();
+                            return null;
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        default:
+                            return handler.toString();
+                    }
+                }
+            });
+
+            signalClass.getMethod("handle", signalClass, handlerClass).invoke(null, signal, signalHandler);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.log(Level.WARNING, "Unable to handle SIG" + name + ", jobs will not be reloaded: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * A command, run every interval.
+     */
+    private class Job implements Runnable {
+
+        /**
+         * Interval between runs, in seconds.
+         */
+        private final long interval;
+
+        /**
+         * Command line of the command.
+         */
+        private final String[] args;
+
+        /**
+         * Create a new job.
+         * @param tokens The job definition, split into tokens.
+         * @throws IllegalArgumentException If the definition is invalid.
+         */
+        public Job(String[] tokens) {
+            if (tokens.length < 2) {
+                throw new IllegalArgumentException("Expected an interval and a command");
+            }
+
+            interval = FormatUtils.parseInterval(tokens[0]);
+            args = Arrays.copyOfRange(tokens, 1, tokens.length);
+        }
+
+        /**
+         * Parse the command of the job.
+         * A new operation is returned every time, so no state is kept between runs.
+         * @return The operation for the command, with it's parameters parsed.
+         * @throws ParameterException If the command is invalid.
+         */
+        public Operation parse() throws ParameterException {
+            // Main options (ie timeout) are shared by all the jobs, and are taken from the daemon
+            JCommander parser = Commands.newParser(new Object());
+            parser.parse(args);
+
+            Operation operation = Commands.getParsedOperation(parser);
+
+            if (operation == null) {
+                throw new ParameterException("Command is required");
+            }
+
+            if (operation instanceof DaemonOperation) {
+                throw new ParameterException("The daemon can not be run as a job");
+            }
+
+            return operation;
+        }
+
+        @Override
+        public void run() {
+            setContext(args[0]);
+            CoapEndpointPool.getInstance().getEstimator().resume();
+
+            try {
+                Operation operation = parse();
+                operation.validate();
+
+                log.log(Level.FINE, "Running job {0}", this);
+                long start = System.nanoTime();
+
+                operation.perform(timeout, retries);
+
+                log.log(Level.FINE, "Finished job in {0}ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            } catch (Exception e) {
+                // Throwing would stop any further runs of the job
+                log.log(Level.SEVERE, "Job failed: " + e.getMessage(), e);
+            } finally {
+                CoapEndpointPool.getInstance().getEstimator().pause();
+                Metrics.getInstance().writeFile();
+                CoapEndpointPool.getInstance().getEstimator().writeFile();
+                NodeHealth.getInstance().writeFile();
+                Topology.getInstance().writeFile();
+                clearContext();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return FormatUtils.getInterval(interval) + ": " + String.join(" ", args);
+        }
+    }
+
+    /**
+     * ThreadFactory creating daemon threads with meaningful names for running jobs.
+     */
+    private static class JobThreadFactory implements ThreadFactory {
+
+        /**
+         * Number of threads created so far.
+         */
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "job-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -7,17 +7,14 @@ package org.mountainsensing.fetcher.operations;
 
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
-import java.io.IOException;
-import java.net.InetAddress;
 import java.net.URI;
 import java.text.DateFormat;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.eclipse.californium.core.CoapClient;
 import org.eclipse.californium.core.CoapResponse;
 import org.eclipse.californium.core.coap.MediaTypeRegistry;
-import org.mountainsensing.fetcher.CoapException;
-import org.mountainsensing.fetcher.CoapException.Method;
 import org.mountainsensing.fetcher.net.NodeAddress;
 import org.mountainsensing.fetcher.utils.EpochDate;
 import org.mountainsensing.fetcher.utils.UTCEpochDateFormat;
@@ -25,16 +22,20 @@ import org.mountainsensing.fetcher.utils.UTCEpochDateFormat;
 /**
  * Operations for getting / setting the date on the nodes.
  */
-public abstract class DateOperation extends NodeOperation {
+public abstract class DateOperation extends AsyncNodeOperation {
 
     private static final Logger log = Logger.getLogger(SampleOperation.class.getName());
 
     private static final String RESSOURCE = "date";
 
     /**
-     * The format to use for displaying dates.
+     * Get the format to use for displaying dates.
+     * DateFormats aren't thread safe, so a new one is needed for every node.
+     * @return A DateFormat.
      */
-    private static final DateFormat dateFormat = new UTCEpochDateFormat();
+    private static DateFormat getDateFormat() {
+        return new UTCEpochDateFormat();
+    }
 
     /**
      * Get operation.
@@ -43,17 +44,15 @@ public abstract class DateOperation extends NodeOperation {
     public static class Get extends DateOperation {
 
         @Override
-        protected void processNode(URI uri, NodeAddress nodeAddr) throws IOException {
-            CoapClient client = new CoapClient(uri);
-            CoapResponse response = client.get();
-
-            if (response != null && response.isSuccess()) {
-                EpochDate date = new EpochDate(Long.parseLong(response.getResponseText()));
-                log.log(Level.INFO, "Epoch is {0} Drift: {1,number,+#;-#}s", new Object[] {dateFormat.format(date), date.getEpoch() - new EpochDate().getEpoch()});
-                return;
-            }
-
-            throw new CoapException(uri, Method.GET, response, "Failed to get date");
+        protected CompletableFuture<Boolean> processNodeAsync(URI uri, NodeAddress nodeAddr) {
+            return getClient(uri).get("Failed to get date").thenApply(new Function<CoapResponse, Boolean>() {
+                @Override
+                public Boolean apply(CoapResponse response) {
+                    EpochDate date = new EpochDate(Long.parseLong(response.getResponseText()));
+                    log.log(Level.INFO, "Epoch is {0} Drift: {1,number,+#;-#}s", new Object[] {getDateFormat().format(date), date.getEpoch() - new EpochDate().getEpoch()});
+                    return false;
+                }
+            });
         }
     }
 
@@ -67,21 +66,19 @@ public abstract class DateOperation extends NodeOperation {
         private Integer epoch = null;
 
         @Override
-        protected void processNode(URI uri, NodeAddress nodeAddr) throws IOException {
-            CoapClient client = new CoapClient(uri);
-
+        protected CompletableFuture<Boolean> processNodeAsync(URI uri, NodeAddress nodeAddr) {
             // Get a date option represeting the current time, or if sepcified the command line param time
-            EpochDate date = epoch == null ? new EpochDate() : new EpochDate(epoch);
+            final EpochDate date = epoch == null ? new EpochDate() : new EpochDate(epoch);
 
             String time = Long.toString(date.getEpoch());
 
-            CoapResponse response = client.post(time, MediaTypeRegistry.TEXT_PLAIN);
-            if (response != null && response.isSuccess()) {
-                log.log(Level.INFO, "Epoch set to {0}", dateFormat.format(date));
-                return;
-            }
-
-            throw new CoapException(uri, Method.POST, response, "Failed to set time");
+            return getClient(uri).post(time, MediaTypeRegistry.TEXT_PLAIN, "Failed to set time").thenApply(new Function<CoapResponse, Boolean>() {
+                @Override
+                public Boolean apply(CoapResponse response) {
+                    log.log(Level.INFO, "Epoch set to {0}", getDateFormat().format(date));
+                    return false;
+                }
+            });
         }
     }
 
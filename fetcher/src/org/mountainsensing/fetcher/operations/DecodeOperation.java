@@ -6,32 +6,78 @@
 package org.mountainsensing.fetcher.operations;
 
 import com.beust.jcommander.Parameter;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.LineNumberReader;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.xml.bind.DatatypeConverter;
 import org.mountainsensing.fetcher.Operation;
+import org.mountainsensing.fetcher.utils.FormatUtils;
+import org.mountainsensing.fetcher.utils.LineScanner;
 
 /**
  * Abstract operation for decoding data.
  * This is typically used to decode protocol buffer encoded things and serial dumps.
  * Supports reading from stdin, or multiple files.
+ * Inputs, and chunks of messages within an input, are decoded in parallel,
+ * but messages are output in order, with the same context as if they had been decoded one by one.
+ * @param <T> The type of message decoded.
  */
-public abstract class DecodeOperation extends Operation {
+public abstract class DecodeOperation<T> extends Operation {
 
     private static final Logger log = Logger.getLogger(SampleOperation.class.getName());
 
     private static final String NODEID = "+++SERIALDUMP+++NODEID+++";
 
+    /**
+     * Size of the buffer used for reading binary streams.
+     */
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Initial size of the buffer binary messages are read into, enough for any sample or config.
+     */
+    private static final int INITIAL_MESSAGE_BUFFER_SIZE = 1024;
+
+    /**
+     * Largest binary message accepted, anything larger is assumed to be corrupt input.
+     */
+    private static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+
+    /**
+     * Largest size of a varint encoded message length.
+     */
+    private static final int MAX_VARINT_SIZE = 5;
+
+    /**
+     * Number of messages decoded together by a single task.
+     * Smaller chunks are decoded when a streamed input has nothing more to read yet, so live inputs aren't held back.
+     */
+    private static final int CHUNK_SIZE = 256;
+
+    /**
+     * Maximum number of chunks read from an input before they are output.
+     */
+    private static final int MAX_PENDING_CHUNKS = 8;
+
     /**
      * Context to use for stdin.
      */
@@ -46,6 +92,9 @@ public abstract class DecodeOperation extends Operation {
     @Parameter(names = {"-H", "--hex-dump"}, description = "Input is a hex encoded, one message per line")
     private boolean isHex = false;
 
+    @Parameter(names = {"-j", "--parallelism"}, validateWith = NodeOperation.ParallelismValidator.class, description = "Maximum number of threads decoding at once")
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
     @Override
     public void perform(int timeout, int retries) {
         // Store humman readable names for the inputs - usefull for setting the context
@@ -65,121 +114,597 @@ public abstract class DecodeOperation extends Operation {
             log.log(Level.WARNING, e.getMessage(), e);
         }
 
-        for (InputStream in : inputs.keySet()) {
-
-            setContext(inputs.get(in));
+        List<Reader> readers = new ArrayList<>();
+        for (Map.Entry<InputStream, String> input : inputs.entrySet()) {
+            readers.add(new Reader(input.getKey(), input.getValue()));
+        }
 
-            try {
+        ForkJoinPool pool = new ForkJoinPool(parallelism, new DecodeThreadFactory(), null, false);
 
-                if (isDump) {
-                    decodeDump(in, inputs.get(in));
+        try {
+            // Only read a few inputs ahead of the one being output, as their messages are kept until they are output
+            for (int i = 0; i < readers.size() && i < parallelism; i++) {
+                pool.execute(readers.get(i));
+            }
 
-                } else if (isHex) {
-                    decodeHex(in, inputs.get(in));
+            for (int i = 0; i < readers.size(); i++) {
+                output(readers.get(i));
 
-                // Otherwise binary
-                } else {
-                    decodeBinary(in);
+                if (i + parallelism < readers.size()) {
+                    pool.execute(readers.get(i + parallelism));
                 }
-            } catch (IOException e) {
-                log.log(Level.WARNING, e.getMessage(), e);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
         }
 
         clearContext();
     }
 
     /**
-     * Decode a serial dump.
-     * @param in A stream to the serial dump.
-     * @param name A human readable name for the input stream.
-     * @throws IOException If an error occurs.
+     * Output all the messages of an input, in order, as they are decoded.
+     * @param reader The reader of the input.
+     * @throws InterruptedException If interrupted while waiting for messages to be decoded.
+     */
+    private void output(Reader reader) throws InterruptedException {
+        while (true) {
+            Chunk chunk = reader.chunks.take();
+
+            if (chunk == reader.end) {
+                return;
+            }
+
+            for (Message message : chunk.join()) {
+                setContext(reader.getContext(message.position));
+
+                if (message.error != null) {
+                    log.log(Level.WARNING, message.error.getMessage(), message.error);
+                    continue;
+                }
+
+                try {
+                    output(message.decoded, message.nodeId);
+                } catch (IOException e) {
+                    log.log(Level.WARNING, e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads an input, splitting it into chunks of messages that are decoded in parallel.
+     * Chunks are passed to the output in order through a bounded queue, so a reader can only get a little ahead of the output.
      */
-    private void decodeDump(InputStream in, String name) throws IOException {
-        boolean shouldDecode = false;
-        LineNumberReader reader = new LineNumberReader(new InputStreamReader(in));
-        String line;
-        String nodeId = null;
+    private class Reader extends RecursiveAction {
+
+        private static final long serialVersionUID = 1;
+
+        /**
+         * The input.
+         */
+        private final InputStream in;
+
+        /**
+         * Human readable name for the input.
+         */
+        private final String name;
+
+        /**
+         * Chunks that have been read, in order.
+         */
+        private final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(MAX_PENDING_CHUNKS);
+
+        /**
+         * Queued once the whole input has been read.
+         */
+        private final Chunk end = new Chunk();
+
+        /**
+         * The chunk being read.
+         */
+        private Chunk chunk = new Chunk();
+
+        /**
+         * Separates the name and position of a message in the context.
+         */
+        private final String separator = isDump || isHex ? ":" : "#";
+
+        /**
+         * Position in the input being read, the line or message number. 0 before anything has been read.
+         */
+        private long position = 0;
+
+        /**
+         * True if the lines being read are in a memory mapped file, so can be used after they've been scanned.
+         */
+        private boolean isMapped = false;
+
+        /**
+         * Create a new reader.
+         * @param in The input.
+         * @param name Human readable name for the input.
+         */
+        public Reader(InputStream in, String name) {
+            this.in = in;
+            this.name = name;
+        }
+
+        /**
+         * Get the context of a position in the input.
+         * @param position The position.
+         * @return The context.
+         */
+        private String getContext(long position) {
+            return position == 0 ? name : name + separator + position;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                if (isDump) {
+                    readLines(new DumpHandler());
 
-        while ((line = reader.readLine()) != null) {
+                } else if (isHex) {
+                    readLines(new LineScanner.Handler() {
+                        @Override
+                        public void line(ByteBuffer buffer, int start, int end, long number) throws IOException {
+                            position = number;
+
+                            if (start != end) {
+                                addHex(buffer, start, end, null);
+                            }
+                        }
+                    });
+
+                // Otherwise binary
+                } else {
+                    readBinary();
+                }
+
+            } catch (IOException e) {
+                chunk.messages.add(new Message(position, e));
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing useful to do, it's been read
+                }
+            }
 
-            setContext(name + ":" + reader.getLineNumber());
+            try {
+                flush(false);
+                queue(end);
+            } catch (InterruptedException e) {
+                // The output has given up
+                Thread.currentThread().interrupt();
+            }
+        }
 
-            if (line.isEmpty()) {
-                continue;
+        /**
+         * Read a line based input.
+         * Files are memory mapped, and lines are only copied if they can't be.
+         * @param handler Handles the lines.
+         * @throws IOException If an error occurs.
+         */
+        private void readLines(LineScanner.Handler handler) throws IOException {
+            LineScanner scanner = new LineScanner(handler);
+
+            if (in instanceof FileInputStream) {
+                isMapped = true;
+                scanner.scan(((FileInputStream) in).getChannel());
+            } else {
+                scanner.scan(new FlushingInputStream(in));
             }
+        }
 
-            if (line.equals(NODEID)) {
-                nodeId = reader.readLine();
+        /**
+         * Add a hex encoded message.
+         * @param buffer Buffer containing the line the message is on.
+         * @param start Index of the first hex digit.
+         * @param end Index after the last hex digit.
+         * @param nodeId The ID of the node the message is from, null if unknown.
+         * @throws IOException If interrupted while waiting for the output.
+         */
+        private void addHex(ByteBuffer buffer, int start, int end, String nodeId) throws IOException {
+            // The scanner reuses it's buffer for streams
+            if (!isMapped) {
+                buffer = ByteBuffer.wrap(Arrays.copyOfRange(buffer.array(), start, end));
+                end -= start;
+                start = 0;
             }
 
-            if (line.equals(startMarker())) {
-                if (nodeId == null) {
-                    throw new IOException("Input " + name + " does not have a NODEID!");
+            add(new Message(position, nodeId, buffer, start, end - start, true));
+        }
+
+        /**
+         * Handles the lines of a serial dump.
+         * Lines are only compared to the markers as bytes, so nothing is created for lines that aren't messages.
+         */
+        private class DumpHandler implements LineScanner.Handler {
+
+            /**
+             * The node id marker, as ASCII.
+             */
+            private final byte[] nodeIdMarker = NODEID.getBytes(StandardCharsets.US_ASCII);
+
+            /**
+             * The start marker, as ASCII.
+             */
+            private final byte[] startMarker = startMarker().getBytes(StandardCharsets.US_ASCII);
+
+            /**
+             * The end marker, as ASCII.
+             */
+            private final byte[] endMarker = endMarker().getBytes(StandardCharsets.US_ASCII);
+
+            /**
+             * True if the line is between a start and end marker.
+             */
+            private boolean shouldDecode = false;
+
+            /**
+             * True if the line is the node id, following a node id marker.
+             */
+            private boolean isNodeId = false;
+
+            /**
+             * The ID of the node the dump is from, null until the node id marker.
+             */
+            private String nodeId = null;
+
+            @Override
+            public void line(ByteBuffer buffer, int start, int end, long number) throws IOException {
+                position = number;
+
+                if (isNodeId) {
+                    nodeId = LineScanner.toString(buffer, start, end);
+                    isNodeId = false;
+                    return;
+                }
+
+                if (start == end) {
+                    return;
+                }
+
+                if (LineScanner.equals(buffer, start, end, nodeIdMarker)) {
+                    isNodeId = true;
+                    return;
+                }
+
+                if (LineScanner.equals(buffer, start, end, startMarker)) {
+                    if (nodeId == null) {
+                        throw new IOException("Input " + name + " does not have a NODEID!");
+                    }
+
+                    shouldDecode = true;
+                    return;
                 }
 
-                shouldDecode = true;
-                continue;
+                if (LineScanner.equals(buffer, start, end, endMarker)) {
+                    shouldDecode = false;
+                    return;
+                }
+
+                if (shouldDecode) {
+                    addHex(buffer, start, end, nodeId);
+                }
             }
+        }
+
+        /**
+         * Read consecutive delimited messages from a binary stream.
+         * Messages are read into a buffer that grows to the largest message, and each one is copied out of it
+         * as it waits in a chunk to be decoded, so inputs of any size can be read.
+         * @throws IOException If an error occurs reading, or the stream doesn't contain delimited messages.
+         */
+        private void readBinary() throws IOException {
+            InputStream input = new BufferedInputStream(new FlushingInputStream(in), STREAM_BUFFER_SIZE);
+            byte[] buffer = new byte[INITIAL_MESSAGE_BUFFER_SIZE];
+
+            while (true) {
+                // Read the varint length, keeping it in the buffer as the message is delimited
+                int prefix = 0;
+                int length = 0;
+                int b;
+
+                do {
+                    b = input.read();
+
+                    if (b == -1) {
+                        if (prefix == 0) {
+                            return;
+                        }
+                        throw new EOFException("Input " + name + " ends in the middle of a message length");
+                    }
+
+                    if (prefix == MAX_VARINT_SIZE) {
+                        throw new IOException("Input " + name + " has a malformed message length");
+                    }
+
+                    length |= (b & 0x7F) << (7 * prefix);
+                    buffer[prefix++] = (byte) b;
+                } while ((b & 0x80) != 0);
+
+                position++;
+
+                if (length < 0 || length > MAX_MESSAGE_SIZE) {
+                    throw new IOException("Message length " + (length & 0xFFFFFFFFL) + " is larger than the maximum of " + MAX_MESSAGE_SIZE + ", input is corrupt");
+                }
+
+                if (buffer.length < prefix + length) {
+                    buffer = Arrays.copyOf(buffer, Math.max(prefix + length, buffer.length * 2));
+                }
 
-            if (line.equals(endMarker())) {
-                shouldDecode = false;
-                continue;
+                for (int read = 0; read < length;) {
+                    int count = input.read(buffer, prefix + read, length - read);
+
+                    if (count == -1) {
+                        throw new EOFException("Input " + name + " ends in the middle of a message");
+                    }
+
+                    read += count;
+                }
+
+                add(new Message(position, null, ByteBuffer.wrap(Arrays.copyOf(buffer, prefix + length)), 0, prefix + length, false));
             }
+        }
+
+        /**
+         * Add a message to the current chunk, starting to decode the chunk once it is full.
+         * @param message The message.
+         * @throws IOException If interrupted while waiting for the output.
+         */
+        private void add(Message message) throws IOException {
+            chunk.messages.add(message);
 
-            if (!shouldDecode) {
-                continue;
+            if (chunk.messages.size() < CHUNK_SIZE) {
+                return;
             }
 
+            flushChunk(false);
+        }
+
+        /**
+         * Pass the current chunk to the output while reading, even if it isn't full.
+         * @param isWaiting True if the input has nothing more to read yet. The chunk is then decoded straight away on this thread,
+         * as it is about to block reading, and may be holding the only thread of the pool.
+         * @throws IOException If interrupted while waiting for the output.
+         */
+        private void flushChunk(boolean isWaiting) throws IOException {
             try {
-                decode(DatatypeConverter.parseHexBinary(line), nodeId);
-            } catch (IOException | IllegalArgumentException e) {
-                log.log(Level.WARNING, e.getMessage(), e);
+                flush(isWaiting);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted reading " + name);
             }
         }
+
+        /**
+         * Stream decoding the messages read so far before it would block waiting for more input.
+         * Messages from a live input (such as a serial port or pipe) are then output as they arrive, instead of once a whole chunk has.
+         * Inputs that have more to read straight away, like files, are still decoded in full chunks.
+         */
+        private class FlushingInputStream extends FilterInputStream {
+
+            /**
+             * Create a stream.
+             * @param in The input.
+             */
+            public FlushingInputStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                flushIfWaiting();
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                flushIfWaiting();
+                return super.read(buffer, offset, length);
+            }
+
+            /**
+             * Flush the current chunk if the input has nothing to read without blocking.
+             * @throws IOException If interrupted while waiting for the output.
+             */
+            private void flushIfWaiting() throws IOException {
+                if (super.available() == 0) {
+                    flushChunk(true);
+                }
+            }
+        }
+
+        /**
+         * Start decoding the current chunk, and pass it to the output.
+         * @param isInline True to decode the chunk on this thread, false to decode it on the pool.
+         * @throws InterruptedException If interrupted while waiting for the output.
+         */
+        private void flush(boolean isInline) throws InterruptedException {
+            if (chunk.messages.isEmpty()) {
+                return;
+            }
+
+            if (isInline) {
+                chunk.invoke();
+            } else {
+                chunk.fork();
+            }
+
+            queue(chunk);
+            chunk = new Chunk();
+        }
+
+        /**
+         * Pass a chunk to the output, waiting for the output to catch up if needed.
+         * @param queued The chunk.
+         * @throws InterruptedException If interrupted while waiting.
+         */
+        private void queue(final Chunk queued) throws InterruptedException {
+            // Let the pool start another thread while we wait, so the chunks we're waiting on still get decoded
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                /**
+                 * True once the chunk is queued.
+                 */
+                private boolean isQueued = false;
+
+                @Override
+                public boolean block() throws InterruptedException {
+                    if (!isQueued) {
+                        chunks.put(queued);
+                        isQueued = true;
+                    }
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return isQueued || (isQueued = chunks.offer(queued));
+                }
+            });
+        }
     }
 
     /**
-     * Decode a hex dump.
-     * @param in A stream to the hex dump.
-     * @param name A human readable name for the input stream.
-     * @throws IOException If an error occurs.
+     * Task decoding a chunk of messages.
      */
-    private void decodeHex(InputStream in, String name) throws IOException {
-        LineNumberReader reader = new LineNumberReader(new InputStreamReader(in));
-        String line;
+    private class Chunk extends RecursiveTask<List<Message>> {
 
-        while ((line = reader.readLine()) != null) {
+        private static final long serialVersionUID = 1;
 
-            setContext(name + ":" + reader.getLineNumber());
+        /**
+         * The messages, in order.
+         */
+        private final List<Message> messages = new ArrayList<>(CHUNK_SIZE);
 
-            if (line.isEmpty()) {
-                continue;
-            }
+        @Override
+        protected List<Message> compute() {
+            // Hex is decoded into the same buffer for every message
+            byte[] decoded = new byte[INITIAL_MESSAGE_BUFFER_SIZE];
 
-            try {
-                decode(DatatypeConverter.parseHexBinary(line), null);
-            } catch (IOException | IllegalArgumentException e) {
-                log.log(Level.WARNING, e.getMessage(), e);
+            for (Message message : messages) {
+                if (message.error != null) {
+                    continue;
+                }
+
+                try {
+                    if (message.isHex) {
+                        if (decoded.length < message.length / 2) {
+                            decoded = new byte[Math.max(message.length / 2, decoded.length * 2)];
+                        }
+
+                        int length = FormatUtils.parseHex(message.buffer, message.offset, message.offset + message.length, decoded);
+                        message.decoded = parse(decoded, 0, length);
+
+                    } else {
+                        message.decoded = parse(message.buffer.array(), message.offset, message.length);
+                    }
+                } catch (IOException | IllegalArgumentException e) {
+                    message.error = e;
+                }
+
+                // Not needed any more, and may be keeping a mapped region alive
+                message.buffer = null;
             }
+
+            return messages;
         }
     }
 
     /**
-     * Decode a binary thing.
-     * @param in A stream to the binary things.
-     * @throws IOException If an error occurs.
+     * A message from an input, and the result of decoding it.
      */
-    private void decodeBinary(InputStream in) throws IOException {
-        byte[] buffer = new byte[8192];
-        int bytesRead;
-        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+    private class Message {
+
+        /**
+         * Position of the message in the input.
+         */
+        private final long position;
+
+        /**
+         * The ID of the node the message is from, null if unknown.
+         */
+        private final String nodeId;
+
+        /**
+         * Buffer containing the encoded message, null once it has been decoded.
+         */
+        private ByteBuffer buffer;
+
+        /**
+         * Index of the message in the buffer.
+         */
+        private final int offset;
+
+        /**
+         * Length of the message in the buffer.
+         */
+        private final int length;
+
+        /**
+         * True if the message is encoded as hex, false if it is binary.
+         */
+        private final boolean isHex;
+
+        /**
+         * The decoded message, null until it has been decoded.
+         */
+        private T decoded;
+
+        /**
+         * The error reading or decoding the message, null if there was none.
+         */
+        private Exception error;
+
+        /**
+         * Create a new message.
+         * @param position Position of the message in the input.
+         * @param nodeId The ID of the node the message is from, null if unknown.
+         * @param buffer Buffer containing the encoded message. It must be backed by an array if the message is binary.
+         * @param offset Index of the message in the buffer.
+         * @param length Length of the message in the buffer.
+         * @param isHex True if the message is encoded as hex, false if it is binary and delimited.
+         */
+        public Message(long position, String nodeId, ByteBuffer buffer, int offset, int length, boolean isHex) {
+            this.position = position;
+            this.nodeId = nodeId;
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+            this.isHex = isHex;
+        }
 
-        while ((bytesRead = in.read(buffer)) != -1) {
-            binary.write(buffer, 0, bytesRead);
+        /**
+         * Create a new message for an error reading the input.
+         * @param position Position of the error in the input.
+         * @param error The error.
+         */
+        public Message(long position, Exception error) {
+            this(position, null, null, 0, 0, false);
+            this.error = error;
         }
+    }
 
-        decode(binary.toByteArray(), null);
+    /**
+     * ThreadFactory creating threads with meaningful names for decoding.
+     */
+    private static class DecodeThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+
+        /**
+         * Number of threads created so far.
+         */
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("decode-" + count.incrementAndGet());
+            return thread;
+        }
     }
 
     /**
@@ -195,10 +720,22 @@ public abstract class DecodeOperation extends Operation {
     protected abstract String endMarker();
 
     /**
-     * Decode and print the encoded data.
-     * @param data The encoded data.
+     * Decode a message.
+     * This is called concurrently, for messages from any input.
+     * @param data Buffer containing the encoded data, a single delimited message. It may be reused once this returns.
+     * @param offset Offset of the message in the buffer.
+     * @param length Length of the message, including it's delimiter.
+     * @return The decoded message.
+     * @throws IOException If the message can't be decoded.
+     */
+    protected abstract T parse(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Print, or otherwise output, a decoded message.
+     * This is called from a single thread, in the order of the inputs.
+     * @param message The decoded message.
      * @param nodeId The ID of the node (ie last 2 bytes of it's IPv6 address). May be null if the id is unknown.
      * @throws IOException An any I/O errors.
      */
-    protected abstract void decode(byte[] data, String nodeId) throws IOException;
+    protected abstract void output(T message, String nodeId) throws IOException;
 }
@@ -0,0 +1,537 @@
+/**
+ * discover the nodes of the mesh from their routes
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.operations;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.Parameters;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.Request;
+import org.mountainsensing.fetcher.CoapException;
+import org.mountainsensing.fetcher.CoapException.Method;
+import org.mountainsensing.fetcher.Operation;
+import org.mountainsensing.fetcher.net.CoapEndpointPool;
+import org.mountainsensing.fetcher.net.MalformedHostException;
+import org.mountainsensing.fetcher.net.NodeAddress;
+import org.mountainsensing.fetcher.net.NodeNameService;
+import org.mountainsensing.fetcher.net.Topology;
+import org.mountainsensing.fetcher.utils.RouteGraph;
+import org.mountainsensing.fetcher.utils.UTCDateFormat;
+
+/**
+ * Operation finding every node in the mesh, without having to know them beforehand.
+ *
+ * Starting from the border router, the routes ressource of every node found is fetched, and the nodes it mentions
+ * (parent, neighbours, and routes) are crawled in turn. Nodes are crawled breadth first, several at once.
+ * The routes ressource only gives the short id of nodes (see {@link NodeAddress#getShortId()}), they are turned back into full addresses using:
+ * <ul>
+ * <li>The nodes given on the command line.</li>
+ * <li>The hosts files (see {@link NodeNameService}), for nodes that don't share the prefix of the mesh.</li>
+ * <li>The prefix of the mesh, which is the address of the border router unless given.</li>
+ * </ul>
+ *
+ * The nodes found are printed in the UNIX hosts format, named by short id, so they can be used with --nodes.
+ * The routes of the nodes that answered also update the routing tree of the mesh (see {@link Topology}).
+ */
+@Parameters(commandDescription = "Find the nodes in the mesh by crawling the routes of every node, starting from the border router. "
+    + "Prints the nodes found in the UNIX hosts format, named by short id, to use with --nodes")
+public class DiscoverOperation extends Operation {
+
+    private static final Logger log = Logger.getLogger(DiscoverOperation.class.getName());
+
+    /**
+     * Protocol to use for communication with nodes.
+     */
+    private static final String PROTOCOL = "coap";
+
+    /**
+     * Pattern matching a short id in the routes ressource.
+     */
+    private static final Pattern SHORT_ID = Pattern.compile("[0-9a-fA-F]{4}");
+
+    /**
+     * Format of the time in the header of the output.
+     */
+    private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+
+    /**
+     * The border router, followed by any other nodes to start from.
+     */
+    @Parameter(description = "<border router> [node(s)]", validateWith = NodeOperation.NodeValidator.class, required = true)
+    private List<String> seeds = new ArrayList<>();
+
+    @Parameter(names = {"-j", "--parallelism"}, validateWith = NodeOperation.ParallelismValidator.class, description = "Maximum number of nodes to crawl concurrently")
+    private int parallelism = 4;
+
+    @Parameter(names = {"-p", "--prefix"}, description = "Address the addresses of nodes are made from, by replacing it's last 2 bytes with their short id. "
+        + "Default: the address of the border router")
+    private String prefix;
+
+    @Parameter(names = {"-o", "--output"}, description = "Write the nodes found to this file instead of stdout")
+    private String output;
+
+    /**
+     * Address of every node found, by short id, in the order they were found.
+     * Only accessed by the thread running {@link #perform(int, int)}, as are all the crawl state fields.
+     */
+    private final Map<String, InetAddress> addresses = new LinkedHashMap<>();
+
+    /**
+     * Routing info of every node that answered, by short id.
+     */
+    private final Map<String, RouteOperation.RouteInfo> found = new HashMap<>();
+
+    /**
+     * Addresses known from the command line and hosts files, by short id.
+     */
+    private final Map<String, InetAddress> known = new HashMap<>();
+
+    /**
+     * Hostnames of every address, from the hosts files.
+     */
+    private final Map<InetAddress, Set<String>> names = new HashMap<>();
+
+    /**
+     * The address the addresses of nodes are made from.
+     */
+    private byte[] base;
+
+    /**
+     * Crawls of nodes, as they complete. Only valid during {@link #perform(int, int)}.
+     */
+    private CompletionService<Crawl> crawls;
+
+    /**
+     * Number of crawls that haven't completed yet.
+     */
+    private int pending;
+
+    /**
+     * The number of attempts to make for every node.
+     */
+    private int attempts;
+
+    /**
+     * Crawl of a single node, fetching it's routes.
+     */
+    private class Crawl implements Callable<Crawl> {
+
+        /**
+         * Short id of the node.
+         */
+        private final String id;
+
+        /**
+         * Address of the node.
+         */
+        private final InetAddress address;
+
+        /**
+         * The node, to log with.
+         */
+        private final String context;
+
+        /**
+         * The routing info of the node, null if it didn't answer.
+         */
+        private RouteOperation.RouteInfo info;
+
+        /**
+         * Create a crawl.
+         * @param id The short id of the node.
+         * @param address The address of the node.
+         * @param context The node, to log with.
+         */
+        public Crawl(String id, InetAddress address, String context) {
+            this.id = id;
+            this.address = address;
+            this.context = context;
+        }
+
+        @Override
+        public Crawl call() {
+            setContext(context);
+
+            try {
+                // This will add ://, and insert square brackets around IPv6 addresses. Trailing slash like the other operations.
+                URI uri = new URI(PROTOCOL, address.getHostAddress(), "/" + RouteOperation.RESSOURCE + "/", null);
+
+                for (int attempt = 1; info == null; attempt++) {
+                    try {
+                        info = getRoutes(uri);
+                    } catch (IOException e) {
+                        log.log(Level.WARNING, e.getMessage(), e);
+
+                        // Client errors won't go away, and give up once we're out of attempts
+                        if (attempt >= attempts || (e instanceof CoapException && ((CoapException) e).isClientError())) {
+                            break;
+                        }
+                    }
+                }
+            } catch (URISyntaxException e) {
+                log.log(Level.WARNING, e.getMessage(), e);
+            } finally {
+                clearContext();
+            }
+
+            return this;
+        }
+
+        /**
+         * Fetch the routes of the node.
+         * @param uri The URI of the routes ressource.
+         * @return The routing info of the node.
+         * @throws IOException If the node didn't answer, or the request failed.
+         */
+        private RouteOperation.RouteInfo getRoutes(URI uri) throws IOException {
+            Request request = Request.newGet();
+            request.setURI(uri);
+            CoapEndpointPool pool = CoapEndpointPool.getInstance();
+            CoapResponse response = pool.getClient(address).advanced(pool.track(request, address));
+
+            if (response == null || !response.isSuccess()) {
+                throw new CoapException(uri, Method.GET, response, "Failed to get routes");
+            }
+
+            return RouteOperation.RouteInfo.parse(response.getResponseText());
+        }
+    }
+
+    @Override
+    public void validate() {
+        if (prefix != null && !NodeAddress.isAddress(prefix)) {
+            throw new ParameterException("Parameter --prefix should be an IPv{4,6} address");
+        }
+    }
+
+    @Override
+    public void perform(int timeout, int retries) {
+        CoapEndpointPool.getInstance().setTimeout(timeout);
+
+        List<NodeAddress> seedAddrs = getAddresses();
+
+        if (seedAddrs.isEmpty()) {
+            log.log(Level.SEVERE, "No nodes to start from");
+            return;
+        }
+
+        try {
+            // The prefix is a literal address, so this will not cause any DNS lookups
+            base = prefix != null ? InetAddress.getByName(prefix).getAddress() : seedAddrs.get(0).getAddress().getAddress();
+        } catch (UnknownHostException e) {
+            log.log(Level.SEVERE, "Invalid prefix " + prefix, e);
+            return;
+        }
+
+        loadKnownAddresses(seedAddrs);
+
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism, new NodeOperation.WorkerThreadFactory("discover"));
+        crawls = new ExecutorCompletionService<>(workers);
+        attempts = Math.max(retries, 1);
+
+        try {
+            for (NodeAddress seed : seedAddrs) {
+                discover(seed.getShortId());
+            }
+
+            crawl();
+        } catch (InterruptedException e) {
+            log.log(Level.WARNING, "Interrupted crawling the mesh", e);
+            Thread.currentThread().interrupt();
+        } finally {
+            workers.shutdownNow();
+            crawls = null;
+        }
+
+        updateTopology();
+
+        String borderRouter = seedAddrs.get(0).getShortId();
+
+        try {
+            writeNodes(borderRouter);
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Failed to write the nodes found: " + e.getMessage(), e);
+        }
+
+        // Don't count the border router, it isn't a node to poll
+        int nodes = addresses.size() - 1;
+        int answered = found.size() - (found.containsKey(borderRouter) ? 1 : 0);
+        log.log(Level.INFO, "Found {0} node(s), {1} of which answered", new Object[] {nodes, answered});
+    }
+
+    /**
+     * Get the addresses of the nodes to start from.
+     * @return The addresses, with any unresolvable / unparseable nodes discarded.
+     */
+    private List<NodeAddress> getAddresses() {
+        List<NodeAddress> seedAddrs = new ArrayList<>();
+
+        for (String seed : seeds) {
+            setContext(seed);
+            try {
+                seedAddrs.add(new NodeAddress(seed));
+            } catch (UnknownHostException e) {
+                log.log(Level.WARNING, "Unable to resolve address. Discarding node.", e);
+            } catch (MalformedHostException e) {
+                // Shouldn't happen as they are validated before hand
+                log.log(Level.SEVERE, "Unexpected unparseable IP - bug in validation code? " + seed, e);
+            } finally {
+                clearContext();
+            }
+        }
+
+        return seedAddrs;
+    }
+
+    /**
+     * Load the addresses known from the hosts files and command line, and their hostnames.
+     * An address from the hosts files is only used for a short id if it doesn't share the prefix of the mesh,
+     * as the prefix gives the same address otherwise. The nodes given on the command line always win.
+     * @param seedAddrs The nodes given on the command line.
+     */
+    private void loadKnownAddresses(List<NodeAddress> seedAddrs) {
+        for (Map.Entry<String, InetAddress> host : NodeNameService.getInstance().getHosts().entrySet()) {
+            InetAddress address = host.getValue();
+
+            if (!names.containsKey(address)) {
+                names.put(address, new LinkedHashSet<String>());
+            }
+            names.get(address).add(host.getKey());
+
+            if (address.getAddress().length != base.length || hasPrefix(address)) {
+                continue;
+            }
+
+            String id = NodeAddress.getShortId(address);
+            InetAddress previous = known.get(id);
+
+            if (previous == null) {
+                known.put(id, address);
+            } else if (!previous.equals(address)) {
+                log.log(Level.WARNING, "Hosts {0} and {1} have the same last 2 bytes. Using {0} for {2}.", new Object[] {previous.getHostAddress(), address.getHostAddress(), id});
+            }
+        }
+
+        for (NodeAddress seed : seedAddrs) {
+            known.put(seed.getShortId(), seed.getAddress());
+        }
+    }
+
+    /**
+     * Check if an address shares the prefix of the mesh.
+     * @param address The address.
+     * @return True if all but it's last 2 bytes are the same as the prefix, false otherwise.
+     */
+    private boolean hasPrefix(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        return Arrays.equals(Arrays.copyOf(bytes, bytes.length - 2), Arrays.copyOf(base, base.length - 2));
+    }
+
+    /**
+     * Get the full address of a node.
+     * @param id The short id of the node.
+     * @return The address it is known by, or the prefix of the mesh with the short id as the last 2 bytes.
+     * @throws UnknownHostException Never, the prefix is always a valid address.
+     */
+    private InetAddress resolve(String id) throws UnknownHostException {
+        if (known.containsKey(id)) {
+            return known.get(id);
+        }
+
+        int value = Integer.parseInt(id, 16);
+        byte[] bytes = base.clone();
+        bytes[bytes.length - 2] = (byte) (value >> 8);
+        bytes[bytes.length - 1] = (byte) value;
+        return InetAddress.getByAddress(bytes);
+    }
+
+    /**
+     * Start crawling a node, if it hasn't been found already.
+     * @param node The short id of the node, as given by the routes ressource.
+     */
+    private void discover(String node) {
+        if (node == null || !SHORT_ID.matcher(node).matches()) {
+            log.log(Level.FINE, "Ignoring invalid short id {0}", node);
+            return;
+        }
+
+        String id = node.toLowerCase(Locale.ROOT);
+
+        if (addresses.containsKey(id)) {
+            return;
+        }
+
+        InetAddress address;
+
+        try {
+            address = resolve(id);
+        } catch (UnknownHostException e) {
+            log.log(Level.SEVERE, "Unexpected invalid address for " + id, e);
+            return;
+        }
+
+        addresses.put(id, address);
+        crawls.submit(new Crawl(id, address, describe(id)));
+        pending++;
+    }
+
+    /**
+     * Crawl every node found, until no new nodes are found.
+     * New nodes are queued as soon as the routes mentioning them are received, so they are crawled breadth first.
+     * @throws InterruptedException If interrupted while waiting for a node.
+     */
+    private void crawl() throws InterruptedException {
+        while (pending > 0) {
+            Future<Crawl> result = crawls.take();
+            pending--;
+
+            Crawl crawl;
+
+            try {
+                crawl = result.get();
+            } catch (ExecutionException e) {
+                log.log(Level.SEVERE, "Unexpected error crawling node: " + e.getCause().getMessage(), e.getCause());
+                continue;
+            }
+
+            if (crawl.info == null) {
+                continue;
+            }
+
+            RouteOperation.RouteInfo info = crawl.info;
+            found.put(crawl.id, info);
+
+            setContext(describe(crawl.id));
+            log.log(Level.INFO, "Got routes. Parent {0}, {1} neighbour(s), {2} route(s)", new Object[] {info.parent, info.neighbours.size(), info.routes.size()});
+            clearContext();
+
+            discover(info.parent);
+
+            for (String neighbour : info.neighbours) {
+                discover(neighbour);
+            }
+
+            for (Map.Entry<String, String> route : info.routes.entrySet()) {
+                discover(route.getValue());
+                discover(route.getKey());
+            }
+        }
+    }
+
+    /**
+     * Update the routing tree of the mesh with the routes of the nodes that answered.
+     */
+    private void updateTopology() {
+        if (found.isEmpty()) {
+            return;
+        }
+
+        RouteGraph graph = new RouteGraph(RouteOperation.RESSOURCE);
+
+        for (Map.Entry<String, RouteOperation.RouteInfo> node : found.entrySet()) {
+            node.getValue().addTo(graph, node.getKey());
+        }
+
+        for (Map.Entry<String, InetAddress> node : addresses.entrySet()) {
+            if (graph.getId(node.getKey()) != RouteGraph.NONE) {
+                graph.setLabel(node.getKey(), names.containsKey(node.getValue()) ? names.get(node.getValue()).iterator().next() : node.getValue().getHostAddress());
+            }
+        }
+
+        Topology.getInstance().update(graph);
+    }
+
+    /**
+     * Write the nodes found, in the UNIX hosts format.
+     * Every node is named by it's short id, followed by any hostnames it already has. Nodes that didn't answer are commented as such.
+     * @param borderRouter The short id of the border router, which is left out.
+     * @throws IOException If the nodes can't be written.
+     */
+    private void writeNodes(String borderRouter) throws IOException {
+        OutputStream stream = output != null ? new FileOutputStream(output) : System.out;
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+
+        try {
+            out.println("# Nodes found from " + addresses.get(borderRouter).getHostAddress() + ", " + new UTCDateFormat(DATE_FORMAT).format(new Date()) + " UTC");
+
+            for (Map.Entry<String, InetAddress> node : addresses.entrySet()) {
+                if (node.getKey().equals(borderRouter)) {
+                    continue;
+                }
+
+                StringBuilder line = new StringBuilder(node.getValue().getHostAddress()).append('\t').append(node.getKey());
+
+                if (names.containsKey(node.getValue())) {
+                    for (String name : names.get(node.getValue())) {
+                        if (!name.equalsIgnoreCase(node.getKey())) {
+                            line.append(' ').append(name);
+                        }
+                    }
+                }
+
+                if (!found.containsKey(node.getKey())) {
+                    line.append("\t# didn't answer");
+                }
+
+                out.println(line);
+            }
+        } finally {
+            if (output != null) {
+                out.close();
+            } else {
+                out.flush();
+            }
+        }
+
+        if (out.checkError()) {
+            throw new IOException("Error writing " + (output != null ? output : "to stdout"));
+        }
+    }
+
+    /**
+     * Describe a node, for logging.
+     * @param id The short id of the node.
+     * @return The first hostname of the node and it's address, or just it's address if it has no hostname.
+     */
+    private String describe(String id) {
+        InetAddress address = addresses.get(id);
+
+        if (names.containsKey(address)) {
+            return names.get(address).iterator().next() + "/" + address.getHostAddress();
+        }
+
+        return address.getHostAddress();
+    }
+}
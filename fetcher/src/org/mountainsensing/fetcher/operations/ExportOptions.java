@@ -0,0 +1,125 @@
+/**
+ * options for exporting samples and configs as records
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.operations;
+
+import com.beust.jcommander.IParameterValidator;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.GeneratedMessage;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.mountainsensing.fetcher.utils.MessageWriter;
+
+/**
+ * Options for writing messages as machine readable records instead of logging them.
+ * Used as a delegate by the operations that print samples or configs.
+ */
+class ExportOptions {
+
+    private static final Logger log = Logger.getLogger(ExportOptions.class.getName());
+
+    /**
+     * Format logging messages as text, instead of writing records.
+     */
+    private static final String TEXT_FORMAT = "text";
+
+    /**
+     * Size of the buffer records are written through.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Parameter(names = {"-f", "--format"}, validateWith = FormatValidator.class, description = "Output format: text (logged), or jsonl or csv with one record per message")
+    private String format = TEXT_FORMAT;
+
+    @Parameter(names = {"-o", "--output"}, description = "File to write records to, instead of stdout. Requires --format jsonl or csv")
+    private String output;
+
+    /**
+     * Validate a format input.
+     */
+    public static class FormatValidator implements IParameterValidator {
+        @Override
+        public void validate(String name, String value) throws ParameterException {
+            if (value.equals(TEXT_FORMAT)) {
+                return;
+            }
+
+            for (MessageWriter.Format format : MessageWriter.Format.values()) {
+                if (format.name().toLowerCase(Locale.ROOT).equals(value)) {
+                    return;
+                }
+            }
+
+            throw new ParameterException("Parameter " + name + " should be one of " + TEXT_FORMAT + ", " + Arrays.toString(MessageWriter.Format.values()).toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Check the options are consistent.
+     * @throws ParameterException If they are not.
+     */
+    public void validate() throws ParameterException {
+        if (output != null && !isEnabled()) {
+            throw new ParameterException("Parameter --output requires --format jsonl or csv");
+        }
+    }
+
+    /**
+     * Check if records should be written.
+     * @return True if they should be, false if messages should be logged as text.
+     */
+    public boolean isEnabled() {
+        return !format.equals(TEXT_FORMAT);
+    }
+
+    /**
+     * Open the output, if records should be written.
+     * @param <M> The type of message written.
+     * @param type The descriptor of the message type.
+     * @param embeddings Messages embedded in fields of the message type, by field number. May be null.
+     * @return The writer, or null if messages should be logged as text.
+     * @throws IOException If the output can't be opened.
+     */
+    public <M extends GeneratedMessage> MessageWriter<M> open(Descriptors.Descriptor type, Map<Integer, ? extends MessageWriter.Embedding> embeddings) throws IOException {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        OutputStream stream = output != null ? new FileOutputStream(output) : System.out;
+
+        return MessageWriter.create(MessageWriter.Format.valueOf(format.toUpperCase(Locale.ROOT)), type, embeddings,
+                new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), BUFFER_SIZE));
+    }
+
+    /**
+     * Close the output, or flush it if it is stdout.
+     * @param writer The writer returned by {@link #open(Descriptors.Descriptor, Map)}. May be null.
+     */
+    public void close(MessageWriter<?> writer) {
+        if (writer == null) {
+            return;
+        }
+
+        try {
+            if (output != null) {
+                writer.close();
+            } else {
+                writer.flush();
+            }
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Unable to write records: " + e.getMessage(), e);
+        }
+    }
+}
@@ -14,13 +14,30 @@ import java.net.URISyntaxException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.eclipse.californium.core.network.config.NetworkConfig;
 import org.mountainsensing.fetcher.CoapException;
+import org.mountainsensing.fetcher.Commands;
 import org.mountainsensing.fetcher.Operation;
+import org.mountainsensing.fetcher.net.CoapEndpointPool;
 import org.mountainsensing.fetcher.net.MalformedHostException;
 import org.mountainsensing.fetcher.net.NodeAddress;
+import org.mountainsensing.fetcher.net.NodeHealth;
+import org.mountainsensing.fetcher.net.Topology;
+import org.mountainsensing.fetcher.utils.Metrics;
 
 /**
  * Common class / interface for all operations.
@@ -32,14 +49,62 @@ public abstract class NodeOperation extends Operation {
     private static final Logger log = Logger.getLogger(NodeOperation.class.getName());
 
     /**
-     * Californium key for the timeout property.
+     * Protocol to use for communication with nodes.
      */
-    private static final String COAP_TIMEOUT_KEY = "ACK_TIMEOUT";
+    private static final String PROTOCOL = "coap";
 
     /**
-     * Protocol to use for communication with nodes.
+     * Longest delay before retrying a node, in ms.
      */
-    private static final String PROTOCOL = "coap";
+    private static final long MAX_RETRY_DELAY = 60 * 1000;
+
+    /**
+     * How long to wait for a node that is down to answer a probe, in RTOs of the node.
+     * Long enough for the probe to be retransmitted once.
+     */
+    private static final int PROBE_TIMEOUT_RTOS = 3;
+
+    /**
+     * Failed attempts at processing a node, by the CoAP response code (timeout if there was none, io for other errors).
+     */
+    private static final Metrics.Counter errors = Metrics.getInstance().counter("node_errors_total",
+        "Failed attempts at processing a node, by CoAP response code (timeout if there was no response, io for other errors)", "node", "operation", "code");
+
+    /**
+     * Retries after failed attempts at processing a node.
+     */
+    private static final Metrics.Counter retryCount = Metrics.getInstance().counter("node_retries_total",
+        "Attempts at processing a node that were retried after failing", "node", "operation");
+
+    /**
+     * Time taken to process every node.
+     */
+    private static final Metrics.Histogram nodeDuration = Metrics.getInstance().histogram("node_duration_seconds",
+        "Time taken to process a node, including retries", Metrics.TIME_BUCKETS, "node", "operation");
+
+    /**
+     * Nodes skipped as they are down.
+     */
+    private static final Metrics.Counter skipped = Metrics.getInstance().counter("node_skipped_total",
+        "Nodes that weren't processed as they are down, and weren't due a probe", "node", "operation");
+
+    /**
+     * Runs of every operation.
+     */
+    private static final Metrics.Counter runs = Metrics.getInstance().counter("operation_runs_total",
+        "Runs of an operation", "operation");
+
+    /**
+     * Duration of the last run of every operation.
+     */
+    private static final Metrics.Gauge runDuration = Metrics.getInstance().gauge("operation_last_duration_seconds",
+        "Time taken by the last run of an operation, to process all it's nodes", "operation");
+
+    /**
+     * End of the last run of every operation.
+     */
+    private static final Metrics.Gauge runEnd = Metrics.getInstance().gauge("operation_last_run_timestamp_seconds",
+        "When the last run of an operation finished, in seconds since the epoch", "operation");
 
     /**
      * The list of nodes to process.
@@ -47,6 +112,25 @@ public abstract class NodeOperation extends Operation {
     @Parameter(description = "node(s)", validateWith = NodeValidator.class, required = true)
     private List<String> nodes = new ArrayList<>();
 
+    @Parameter(names = {"-j", "--parallelism"}, validateWith = ParallelismValidator.class, description = "Maximum number of nodes to process concurrently")
+    private int parallelism = 1;
+
+    @Parameter(names = {"--per-branch"}, validateWith = ParallelismValidator.class, description = "Maximum number of nodes below the same node attached to the border router to process concurrently. "
+        + "Only used once the routes of the mesh are known (see get-routes and --routes-file)")
+    private int perBranch = 2;
+
+    /**
+     * Threads used to process nodes, and to handle the results of asynchronous requests.
+     * Only valid during {@link #perform(int, int)}.
+     */
+    private ExecutorService workers;
+
+    /**
+     * Thread delaying retries of nodes, before handing them back to the workers.
+     * Only valid during {@link #perform(int, int)}.
+     */
+    private ScheduledExecutorService retryTimer;
+
     /**
      * Validator to check a String is a valid representation of a node (IPv4, Ipv6, or hostname).
      */
@@ -60,15 +144,53 @@ public abstract class NodeOperation extends Operation {
     }
 
     /**
-     * Set the CoAP timeout.
-     * @param timeout The timeout in seconds.
+     * Validator to check the parallelism is at least one.
      */
-    private void setTimeout(int timeout) {
-        // Don't save / read from the Californium.properties file
-        NetworkConfig config = NetworkConfig.createStandardWithoutFile();
-        // Nedd to scale the timeout from seconds to ms
-        config.setInt(COAP_TIMEOUT_KEY, timeout * 1000);
-        NetworkConfig.setStandard(config);
+    public static class ParallelismValidator implements IParameterValidator {
+        @Override
+        public void validate(String name, String value) throws ParameterException {
+            try {
+                if (Integer.parseInt(value) >= 1) {
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                // Fall through to the exception below
+            }
+
+            throw new ParameterException("Parameter " + name + " should be a positive integer");
+        }
+    }
+
+    /**
+     * Factory for the worker threads used to process nodes.
+     * Threads are named so log output from different nodes can be told apart when debugging.
+     */
+    static class WorkerThreadFactory implements ThreadFactory {
+
+        /**
+         * Prefix of the name of the threads.
+         */
+        private final String name;
+
+        /**
+         * Number of threads created so far, used for naming.
+         */
+        private final AtomicInteger count = new AtomicInteger();
+
+        /**
+         * Create a factory.
+         * @param name Prefix of the name of the threads.
+         */
+        public WorkerThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
     }
 
     /**
@@ -78,20 +200,93 @@ public abstract class NodeOperation extends Operation {
     protected abstract String getRessource();
 
     /**
-     * Process a node with this operation.
+     * Process a node with this operation, without blocking.
+     * This may be called concurrently for different nodes, so any state about the node
+     * must be kept local to the call, and not in fields of the operation.
+     * Operations that talk to nodes asynchronously extend {@link AsyncNodeOperation}, others extend {@link BlockingNodeOperation}.
      * @param uri The URI representing the node / URI.
      * @param nodeAddr The IP address of the node.
-     * @throws org.mountainsensing.fetcher.CoapException If a CoAP I/O error occurs.
-     * @throws java.io.IOException If an I/O error occurs other than CoAP.
+     * @return A future completed with true if the node requires further processing (this will be called again for the same node), false otherwise.
+     * It is completed exceptionally with a CoapException or IOException if processing the node failed.
+     */
+    protected abstract CompletableFuture<Boolean> processNodeAsync(URI uri, NodeAddress nodeAddr);
+
+    /**
+     * Check if this operation skips nodes that are down (see {@link NodeHealth}).
+     * @return True by default. Operations that are as cheap as a probe should return false.
+     */
+    protected boolean skipsDownNodes() {
+        return true;
+    }
+
+    /**
+     * Get the number of worker threads to use.
+     * @param parallelism The maximum number of nodes that will be processed concurrently.
+     * @return The number of threads. By default one per node processed concurrently, in case processing a node blocks.
      */
-    protected abstract void processNode(URI uri, NodeAddress nodeAddr) throws CoapException, IOException;
+    protected int getWorkerCount(int parallelism) {
+        return parallelism;
+    }
+
+    /**
+     * Get an Executor running tasks on the worker threads, for the node currently being processed.
+     * Tasks run by it will log with the same context as the caller, so this should be used for anything
+     * done on behalf of a node (such as handling the response to a request).
+     * @return An Executor for the current node.
+     */
+    protected Executor getNodeExecutor() {
+        return getContextExecutor(getContext());
+    }
+
+    /**
+     * Get an Executor running tasks on the worker threads, with a given logging context.
+     * @param context The context to log with.
+     * @return An Executor.
+     */
+    private Executor getContextExecutor(final String context) {
+        return new Executor() {
+            @Override
+            public void execute(final Runnable task) {
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        setContext(context);
+                        try {
+                            task.run();
+                        } finally {
+                            clearContext();
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Get the underlying cause of an exception thrown by a future.
+     * @param error The error a future was completed with.
+     * @return The cause of the error.
+     */
+    protected static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null) {
+            error = error.getCause();
+        }
+
+        return error;
+    }
 
     /**
-     * Test if the node in the last call to processNode requires further processing.
-     * @return
+     * Get the code of an error processing a node, as a metric label.
+     * @param error The error.
+     * @return The name of the CoAP response code, timeout if no response was received, or io if it isn't a CoAP error.
      */
-    protected boolean shouldKeepProcessingNode() {
-        return false;
+    private static String getErrorCode(Throwable error) {
+        if (!(error instanceof CoapException)) {
+            return "io";
+        }
+
+        CoapException coapError = (CoapException) error;
+        return coapError.getCode() == null ? "timeout" : coapError.getCode().name();
     }
 
     /**
@@ -121,59 +316,352 @@ public abstract class NodeOperation extends Operation {
 
     @Override
     public void perform(int timeout, int retries) {
-        setTimeout(timeout);
+        CoapEndpointPool.getInstance().setTimeout(timeout);
+        long start = System.nanoTime();
 
         List<NodeAddress> nodeAddrs = getAddresses(nodes);
 
-        for (NodeAddress node : nodeAddrs) {
-            setContext(node.toString());
+        // No point having more lanes than nodes
+        int lanes = Math.min(parallelism, Math.max(nodeAddrs.size(), 1));
 
-            URI uri;
-            try {
-                // This will add ://, and insert square brackets around IPv6 addresses. Trailing slash to make it easy to append to.
-                uri = new URI(PROTOCOL, node.getAddress().getHostAddress(), "/" + getRessource() + "/", null);
-            } catch (URISyntaxException e) {
-                log.log(Level.WARNING, e.getMessage(), e);
-                continue;
+        workers = Executors.newFixedThreadPool(getWorkerCount(lanes), new WorkerThreadFactory("node-worker"));
+        retryTimer = Executors.newSingleThreadScheduledExecutor(new WorkerThreadFactory("node-retry"));
+
+        // Without routes every node is it's own branch, and nodes are processed in the order given
+        NodeScheduler scheduler = new NodeScheduler(nodeAddrs, Topology.getInstance(), perBranch);
+        CountDownLatch done = new CountDownLatch(lanes);
+
+        if (!Topology.getInstance().isEmpty()) {
+            log.log(Level.FINE, "Scheduling {0} node(s) in {1} branch(es), at most {2} at once per branch", new Object[] {nodeAddrs.size(), scheduler.getBranchCount(), perBranch});
+        }
+
+        // Every lane processes one node at a time, moving onto the next pending node once it's done
+        for (int i = 0; i < lanes; i++) {
+            startNext(scheduler, retries, done);
+        }
+
+        try {
+            while (!done.await(1, TimeUnit.MINUTES)) {
+                log.log(Level.FINE, "Still waiting for {0} lane(s) to finish processing nodes", done.getCount());
             }
+        } catch (InterruptedException e) {
+            log.log(Level.WARNING, "Interrupted waiting for nodes to be processed", e);
+            Thread.currentThread().interrupt();
+        } finally {
+            retryTimer.shutdownNow();
+            retryTimer = null;
+            workers.shutdownNow();
+            workers = null;
 
-            int retryAttempt = 0;
+            String operation = Commands.getName(this);
+            runs.inc(operation);
+            runDuration.set((System.nanoTime() - start) / 1e9, operation);
+            runEnd.set(System.currentTimeMillis() / 1e3, operation);
+        }
+    }
 
-            do {
-                try {
-                    processNode(uri, node);
-                    // Reset the retry attempt on success
-                    retryAttempt = 0;
-                    continue;
+    /**
+     * Start processing the next pending node in a lane.
+     * If the branches of all the pending nodes are busy, the lane is parked until another lane finishes a node.
+     * @param scheduler The scheduler handing out the nodes left to process.
+     * @param retries The number of times processing a node can be retried before giving up.
+     * @param done Latch counted down when the lane runs out of nodes.
+     */
+    private void startNext(final NodeScheduler scheduler, final int retries, final CountDownLatch done) {
+        final NodeAddress node;
 
-                } catch (CoapException e) {
-                    log.log(Level.WARNING, e.getMessage(), e);
+        synchronized (scheduler) {
+            node = scheduler.acquire();
 
-                    // If the error is our fault (bad request, file not found..), don't retry
-                    if (e.isClientError()) {
-                        retryAttempt = 0;
-                        continue;
+            if (node == null) {
+                if (!scheduler.hasPending()) {
+                    done.countDown();
+                }
+                return;
+            }
+        }
+
+        new NodeTask(node, retries).start().whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void result, Throwable error) {
+                // Parked lanes, and this one, can try to get a node again
+                final int lanes = scheduler.release(node) + 1;
+
+                // Go through the workers so lanes never build up a deep stack of completed nodes
+                for (int i = 0; i < lanes; i++) {
+                    workers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            startNext(scheduler, retries, done);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * State machine processing a single node, including any retries.
+     * All the retry / further processing state of a node is kept here, so nodes can be processed concurrently.
+     * Each step is started once the previous one has completed, so no thread is held waiting for the node.
+     */
+    private class NodeTask {
+
+        /**
+         * The node to process.
+         */
+        private final NodeAddress node;
+
+        /**
+         * The number of times processing can be retried before giving up.
+         */
+        private final int retries;
+
+        /**
+         * Executor for handling the result of every step, with the context of this node.
+         */
+        private final Executor executor;
+
+        /**
+         * Future completed once the node has been processed.
+         */
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        /**
+         * URI representing the node.
+         */
+        private URI uri;
+
+        /**
+         * The number of consecutive failed attempts.
+         */
+        private int retryAttempt = 0;
+
+        /**
+         * Whether the node has answered any attempt, even with an error.
+         */
+        private boolean answered = false;
+
+        /**
+         * Whether an attempt failed because the node didn't answer at all.
+         */
+        private boolean timedOut = false;
+
+        /**
+         * When processing the node started, in nanoseconds.
+         */
+        private long start;
+
+        /**
+         * The node, as a metric label.
+         */
+        private final String nodeLabel;
+
+        /**
+         * The operation, as a metric label.
+         */
+        private final String operationLabel;
+
+        /**
+         * Create a task for a node.
+         * @param node The node to process.
+         * @param retries The number of times processing can be retried before giving up.
+         */
+        public NodeTask(NodeAddress node, int retries) {
+            this.node = node;
+            this.retries = retries;
+            this.executor = getContextExecutor(node.toString());
+            this.nodeLabel = node.getAddress().getHostAddress();
+            this.operationLabel = Commands.getName(NodeOperation.this);
+        }
+
+        /**
+         * Start processing the node.
+         * @return A future completed once the node has been processed, whether successfully or not.
+         */
+        public CompletableFuture<Void> start() {
+            start = System.nanoTime();
+
+            done.whenComplete(new BiConsumer<Void, Throwable>() {
+                @Override
+                public void accept(Void result, Throwable error) {
+                    nodeDuration.observe((System.nanoTime() - start) / 1e9, nodeLabel, operationLabel);
+                }
+            });
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // This will add ://, and insert square brackets around IPv6 addresses. Trailing slash to make it easy to append to.
+                        uri = new URI(PROTOCOL, node.getAddress().getHostAddress(), "/" + getRessource() + "/", null);
+                    } catch (URISyntaxException e) {
+                        log.log(Level.WARNING, e.getMessage(), e);
+                        done.complete(null);
+                        return;
                     }
 
-                } catch (IOException e) {
-                    log.log(Level.WARNING, e.getMessage(), e);
+                    if (!skipsDownNodes() || !NodeHealth.getInstance().isDown(node.getAddress())) {
+                        attempt();
+                    } else if (NodeHealth.getInstance().isProbeDue(node.getAddress())) {
+                        probe();
+                    } else {
+                        log.log(Level.INFO, "Skipping node as it is down. {0}", NodeHealth.getInstance().describe(node.getAddress()));
+                        skipped.inc(nodeLabel, operationLabel);
+                        done.complete(null);
+                    }
                 }
+            });
+
+            return done;
+        }
 
-                retryAttempt++;
-
-            /*
-                Keep going as long as either:
-                        retryAttempt != 0 -> the most recent operation didn't succed
-                    and
-                        retryAttempt < RETRIES -> we still have attempts to try again left
-                or
-                        retryAttempt == 0 -> the most recent operation did succeed
-                    and
-                        shouldKeepProcessingNode() -> that operation needs to process the node more
-            */
-            } while ((retryAttempt != 0 && retryAttempt < retries) || (retryAttempt == 0 && shouldKeepProcessingNode()));
-
-            clearContext();
+        /**
+         * Ping the node as it is down, and only process it if it answers.
+         */
+        private void probe() {
+            double rto = CoapEndpointPool.getInstance().getEstimator().getRto(node.getAddress());
+            CompletableFuture<Boolean> up;
+
+            try {
+                up = CoapEndpointPool.getInstance().ping(node.getAddress(), Math.round(rto * PROBE_TIMEOUT_RTOS));
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Unable to probe node: " + e.getMessage(), e);
+                done.complete(null);
+                return;
+            }
+
+            up.whenCompleteAsync(new BiConsumer<Boolean, Throwable>() {
+                @Override
+                public void accept(Boolean result, Throwable error) {
+                    boolean isUp = error == null && result;
+                    NodeHealth.getInstance().probed(node.getAddress(), isUp);
+
+                    if (isUp) {
+                        log.log(Level.INFO, "Node answered probe, processing it");
+                        attempt();
+                    } else {
+                        log.log(Level.INFO, "Node still down. {0}", NodeHealth.getInstance().describe(node.getAddress()));
+                        done.complete(null);
+                    }
+                }
+            }, executor);
+        }
+
+        /**
+         * Process the node once.
+         */
+        private void attempt() {
+            CompletableFuture<Boolean> result;
+
+            try {
+                result = processNodeAsync(uri, node);
+            } catch (RuntimeException e) {
+                result = new CompletableFuture<>();
+                result.completeExceptionally(e);
+            }
+
+            // Always handle the result on a worker with our context, whatever thread completed the future
+            result.whenCompleteAsync(new BiConsumer<Boolean, Throwable>() {
+                @Override
+                public void accept(Boolean shouldKeepProcessing, Throwable error) {
+                    handleResult(shouldKeepProcessing, error);
+                }
+            }, executor);
+        }
+
+        /**
+         * Decide what to do once an attempt at processing the node is over.
+         * @param shouldKeepProcessing Whether the node needs further processing. Only valid if error is null.
+         * @param error The error processing the node failed with, null if it succeeded.
+         */
+        private void handleResult(Boolean shouldKeepProcessing, Throwable error) {
+            if (error == null) {
+                // Reset the retry attempt on success
+                retryAttempt = 0;
+                answered = true;
+
+                if (shouldKeepProcessing) {
+                    attempt();
+                } else {
+                    finish();
+                }
+                return;
+            }
+
+            Throwable cause = unwrap(error);
+
+            if (!(cause instanceof IOException)) {
+                log.log(Level.SEVERE, "Unexpected error processing node: " + cause.getMessage(), cause);
+                finish();
+                return;
+            }
+
+            log.log(Level.WARNING, cause.getMessage(), cause);
+            errors.inc(nodeLabel, operationLabel, getErrorCode(cause));
+
+            if (cause instanceof CoapException) {
+                if (((CoapException) cause).getCode() == null) {
+                    timedOut = true;
+                } else {
+                    answered = true;
+                }
+            }
+
+            // If the error is our fault (bad request, file not found..), don't retry
+            if (cause instanceof CoapException && ((CoapException) cause).isClientError()) {
+                finish();
+                return;
+            }
+
+            retryAttempt++;
+
+            // Keep going as long as we still have attempts to try again left
+            if (retryAttempt < retries) {
+                retryCount.inc(nodeLabel, operationLabel);
+                retry();
+            } else {
+                finish();
+            }
+        }
+
+        /**
+         * Record whether the node answered, and complete processing it.
+         * A node is only considered to have failed if it didn't answer anything, other errors aren't it's fault.
+         */
+        private void finish() {
+            if (answered) {
+                NodeHealth.getInstance().success(node.getAddress());
+            } else if (timedOut) {
+                NodeHealth.getInstance().failure(node.getAddress());
+            }
+
+            done.complete(null);
+        }
+
+        /**
+         * Process the node again after a delay, so a struggling node or network isn't hammered with retries.
+         * The delay is the node's RTO, doubling with every consecutive failed attempt,
+         * and randomized so nodes that failed together don't all retry together.
+         */
+        private void retry() {
+            double rto = CoapEndpointPool.getInstance().getEstimator().getRto(node.getAddress());
+            double backoff = Math.min(rto * Math.pow(2, retryAttempt - 1), MAX_RETRY_DELAY);
+            long delay = Math.round(backoff * ThreadLocalRandom.current().nextDouble(0.5, 1.5));
+
+            log.log(Level.FINE, "Retrying in {0}ms", delay);
+
+            retryTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            attempt();
+                        }
+                    });
+                }
+            }, delay, TimeUnit.MILLISECONDS);
         }
     }
 }
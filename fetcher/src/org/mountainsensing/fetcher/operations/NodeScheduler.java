@@ -0,0 +1,177 @@
+/**
+ * order nodes are processed in, by where they are in the mesh
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.operations;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import org.mountainsensing.fetcher.net.NodeAddress;
+import org.mountainsensing.fetcher.net.Topology;
+
+/**
+ * Hands out the nodes to process to lanes, using the routing tree of the mesh (see {@link Topology}).
+ *
+ * All the traffic to the nodes of a branch goes through the link between the top of the branch and the border router,
+ * so processing many nodes of a branch at once collapses that link. At most a set number of nodes of a branch are processed at once,
+ * and the branches are interleaved so the load is spread across them.
+ * Within a branch the deepest nodes go first, while the long path to them is known to be up.
+ *
+ * A lane that can't get a node as all the remaining nodes are in busy branches is parked, until a node is released.
+ * Nodes that aren't in the tree are each treated as their own branch.
+ * This is thread safe.
+ */
+class NodeScheduler {
+
+    /**
+     * Nodes left to process, in the order they should be processed in.
+     */
+    private final List<NodeAddress> pending = new LinkedList<>();
+
+    /**
+     * The branch of every node.
+     */
+    private final Map<NodeAddress, String> branches = new HashMap<>();
+
+    /**
+     * Number of nodes being processed in every branch.
+     */
+    private final Map<String, Integer> active = new HashMap<>();
+
+    /**
+     * Maximum number of nodes of a branch to process at once.
+     */
+    private final int perBranch;
+
+    /**
+     * Number of lanes waiting for a node to be released.
+     */
+    private int parked = 0;
+
+    /**
+     * Create a scheduler.
+     * @param nodes The nodes to process.
+     * @param topology The routing tree of the mesh.
+     * @param perBranch Maximum number of nodes of a branch to process at once.
+     */
+    public NodeScheduler(List<NodeAddress> nodes, final Topology topology, int perBranch) {
+        this.perBranch = perBranch;
+
+        // Group the nodes by branch, in the order they were given
+        Map<String, List<NodeAddress>> byBranch = new LinkedHashMap<>();
+        final Map<NodeAddress, Integer> depths = new HashMap<>();
+
+        for (NodeAddress node : nodes) {
+            String branch = topology.getBranch(node.getShortId());
+            branches.put(node, branch);
+            depths.put(node, topology.getDepth(node.getShortId()));
+
+            if (!byBranch.containsKey(branch)) {
+                byBranch.put(branch, new ArrayList<NodeAddress>());
+            }
+
+            byBranch.get(branch).add(node);
+        }
+
+        Comparator<NodeAddress> deepestFirst = new Comparator<NodeAddress>() {
+            @Override
+            public int compare(NodeAddress a, NodeAddress b) {
+                return Integer.compare(depths.get(b), depths.get(a));
+            }
+        };
+
+        List<List<NodeAddress>> queues = new ArrayList<>(byBranch.values());
+
+        for (List<NodeAddress> queue : queues) {
+            Collections.sort(queue, deepestFirst);
+        }
+
+        // Start with the deepest branches, they take the longest
+        Collections.sort(queues, new Comparator<List<NodeAddress>>() {
+            @Override
+            public int compare(List<NodeAddress> a, List<NodeAddress> b) {
+                return Integer.compare(depths.get(b.get(0)), depths.get(a.get(0)));
+            }
+        });
+
+        // Take one node from every branch in turn
+        for (int i = 0; !queues.isEmpty(); i++) {
+            Iterator<List<NodeAddress>> it = queues.iterator();
+
+            while (it.hasNext()) {
+                List<NodeAddress> queue = it.next();
+
+                if (i < queue.size()) {
+                    pending.add(queue.get(i));
+                } else {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of branches the nodes are in.
+     * @return The number of branches.
+     */
+    public synchronized int getBranchCount() {
+        return new HashSet<>(branches.values()).size();
+    }
+
+    /**
+     * Get the next node to process, if it's branch isn't busy.
+     * If every remaining node is in a busy branch, the caller is parked, and will be told to try again by {@link #release(NodeAddress)}.
+     * @return The node, or null if there isn't one. {@link #hasPending()} tells if the caller was parked.
+     */
+    public synchronized NodeAddress acquire() {
+        Iterator<NodeAddress> it = pending.iterator();
+
+        while (it.hasNext()) {
+            NodeAddress node = it.next();
+            String branch = branches.get(node);
+            int count = active.containsKey(branch) ? active.get(branch) : 0;
+
+            if (count < perBranch) {
+                it.remove();
+                active.put(branch, count + 1);
+                return node;
+            }
+        }
+
+        if (!pending.isEmpty()) {
+            parked++;
+        }
+
+        return null;
+    }
+
+    /**
+     * Check if there are nodes left to process.
+     * @return True if so, false otherwise.
+     */
+    public synchronized boolean hasPending() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * Release a node once it has been processed.
+     * @param node The node, as returned by {@link #acquire()}.
+     * @return The number of parked lanes, that should try to get a node again.
+     */
+    public synchronized int release(NodeAddress node) {
+        String branch = branches.get(node);
+        active.put(branch, active.get(branch) - 1);
+
+        int woken = parked;
+        parked = 0;
+        return woken;
+    }
+}
@@ -11,13 +11,14 @@ import java.net.URI;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.eclipse.californium.core.CoapClient;
+import org.mountainsensing.fetcher.net.CoapEndpointPool;
 import org.mountainsensing.fetcher.net.NodeAddress;
 
 /**
  * Operation for pinging nodes (using CoAP).
  */
 @Parameters(commandDescription = "Send a CoAP ping packet to the node(s)")
-public class PingOperation extends NodeOperation {
+public class PingOperation extends BlockingNodeOperation {
 
     private static final Logger log = Logger.getLogger(SampleOperation.class.getName());
 
@@ -28,8 +29,14 @@ public class PingOperation extends NodeOperation {
     }
 
     @Override
-    protected void processNode(URI uri, NodeAddress nodeAddr) throws IOException {
-        CoapClient client = new CoapClient(uri.getHost());
+    protected boolean skipsDownNodes() {
+        // Pinging a node is as cheap as probing it
+        return false;
+    }
+
+    @Override
+    protected boolean processNode(URI uri, NodeAddress nodeAddr) throws IOException {
+        CoapClient client = CoapEndpointPool.getInstance().getClient(nodeAddr.getAddress());
 
         long startTime = System.currentTimeMillis();
 
@@ -38,9 +45,9 @@ public class PingOperation extends NodeOperation {
             long endTime = System.currentTimeMillis();
 
             log.log(Level.INFO, "Node is up, RTT {0}ms", endTime -startTime);
-
-        } else {
-            throw new IOException("No response");
+            return false;
         }
+
+        throw new IOException("No response");
     }
 }
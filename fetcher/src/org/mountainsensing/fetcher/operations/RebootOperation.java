@@ -7,26 +7,33 @@ package org.mountainsensing.fetcher.operations;
 
 import com.beust.jcommander.Parameters;
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.eclipse.californium.core.CoapClient;
 import org.eclipse.californium.core.CoapResponse;
-import org.eclipse.californium.core.coap.MediaTypeRegistry;
-import org.mountainsensing.fetcher.CoapException;
-import org.mountainsensing.fetcher.CoapException.Method;
+import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.coap.Request;
+import org.mountainsensing.fetcher.net.CoapEndpointPool;
 import org.mountainsensing.fetcher.net.NodeAddress;
 
 /**
  * Operations for rebooting / getting reboot count from the nodes.
  */
-public abstract class RebootOperation extends NodeOperation {
+public abstract class RebootOperation extends AsyncNodeOperation {
 
     private static final Logger log = Logger.getLogger(SampleOperation.class.getName());
 
     static final String RESSOURCE = "reboot";
 
+    /**
+     * Time to wait for a response to a blind reboot, in ms.
+     */
+    private static final long BLIND_TIMEOUT = 1000;
+
     /**
      * Operation to reboot a node.
      */
@@ -34,12 +41,30 @@ public abstract class RebootOperation extends NodeOperation {
     public static class Force extends RebootOperation {
 
         @Override
-        protected void processNode(URI uri, NodeAddress nodeAddr) throws IOException {
-            CoapClient client = new CoapClient(uri);
-            // Rediculously short timeout - we don't actually expect a response.
-            client.setTimeout(1000);
-            client.useNONs();
-            client.post(new byte[0], MediaTypeRegistry.UNDEFINED);
+        protected CompletableFuture<Boolean> processNodeAsync(final URI uri, final NodeAddress nodeAddr) {
+            // Non confirmable requests never time out, so there's nothing to wait for asynchronously.
+            // Instead briefly block a worker, giving the node a chance to answer.
+            return CompletableFuture.supplyAsync(new Supplier<Boolean>() {
+                @Override
+                public Boolean get() {
+                    Request request = Request.newPost();
+                    request.setType(Type.NON);
+                    request.setURI(uri);
+                    request.setPayload(new byte[0]);
+
+                    try {
+                        request.send(CoapEndpointPool.getInstance().getEndpoint(nodeAddr.getAddress()));
+                        // Rediculously short timeout - we don't actually expect a response.
+                        request.waitForResponse(BLIND_TIMEOUT);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+
+                    return false;
+                }
+            }, getNodeExecutor());
         }
     }
 
@@ -50,16 +75,14 @@ public abstract class RebootOperation extends NodeOperation {
     public static class Get extends RebootOperation {
 
         @Override
-        protected void processNode(URI uri, NodeAddress nodeAddr) throws IOException {
-            CoapClient client = new CoapClient(uri);
-            CoapResponse response = client.get();
-
-            if (response != null && response.isSuccess()) {
-                log.log(Level.INFO, "Reboot count is {0}", response.getResponseText());
-                return;
-            }
-
-            throw new CoapException(uri, Method.GET, response, "Failed to get reboot count");
+        protected CompletableFuture<Boolean> processNodeAsync(URI uri, NodeAddress nodeAddr) {
+            return getClient(uri).get("Failed to get reboot count").thenApply(new Function<CoapResponse, Boolean>() {
+                @Override
+                public Boolean apply(CoapResponse response) {
+                    log.log(Level.INFO, "Reboot count is {0}", response.getResponseText());
+                    return false;
+                }
+            });
         }
     }
 
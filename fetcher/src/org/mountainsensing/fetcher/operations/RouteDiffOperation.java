@@ -0,0 +1,216 @@
+/**
+ * compare route snapshots
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.operations;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.Parameters;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.mountainsensing.fetcher.Operation;
+import org.mountainsensing.fetcher.utils.RouteGraph;
+
+/**
+ * Operation comparing two route snapshots saved by get-routes, to see how the mesh changed.
+ * For every node that answered in both, parent changes, lost neighbours, and hop depth changes are reported.
+ * Nodes that only answered in one of the snapshots are reported too.
+ */
+@Parameters(commandDescription = "Compare two route snapshots (see get-routes --snapshots), reporting parent changes, lost neighbours, and hop depth changes. "
+    + "Given a directory, the two latest snapshots in it are compared")
+public class RouteDiffOperation extends Operation {
+
+    private static final Logger log = Logger.getLogger(RouteDiffOperation.class.getName());
+
+    @Parameter(description = "<old snapshot> <new snapshot> | <snapshot directory>", required = true)
+    private List<String> paths = new ArrayList<>();
+
+    @Override
+    public void validate() {
+        if (paths.size() > 2) {
+            throw new ParameterException("Expected two snapshots, or a directory of snapshots");
+        }
+    }
+
+    @Override
+    public void perform(int timeout, int retries) {
+        RouteGraph older;
+        RouteGraph newer;
+
+        try {
+            File[] files = getSnapshots();
+            older = read(files[0]);
+            newer = read(files[1]);
+        } catch (IOException e) {
+            log.log(Level.SEVERE, e.getMessage(), e);
+            return;
+        }
+
+        log.log(Level.INFO, "Comparing routes from {0} to {1}", new Object[] {new Date(older.getTime()), new Date(newer.getTime())});
+
+        int parentChanges = 0;
+        int lostNeighbours = 0;
+        int depthChanges = 0;
+        int missing = 0;
+
+        for (int id = 0; id < newer.size(); id++) {
+            if (newer.getParent(id) == RouteGraph.NONE) {
+                continue;
+            }
+
+            int oldId = older.getId(newer.getName(id));
+
+            setContext(describe(newer, id));
+            try {
+                if (oldId == RouteGraph.NONE || older.getParent(oldId) == RouteGraph.NONE) {
+                    log.log(Level.INFO, "New node, parent {0}, depth {1}", new Object[] {newer.getName(newer.getParent(id)), formatDepth(newer.getDepth(id))});
+                    continue;
+                }
+
+                String oldParent = older.getName(older.getParent(oldId));
+                String newParent = newer.getName(newer.getParent(id));
+
+                if (!oldParent.equals(newParent)) {
+                    log.log(Level.INFO, "Parent changed from {0} to {1}", new Object[] {oldParent, newParent});
+                    parentChanges++;
+                }
+
+                List<String> lost = getLostNeighbours(older, oldId, newer, id);
+                if (!lost.isEmpty()) {
+                    log.log(Level.INFO, "Lost neighbour(s) {0}", String.join(", ", lost));
+                    lostNeighbours++;
+                }
+
+                if (older.getDepth(oldId) != newer.getDepth(id)) {
+                    log.log(Level.INFO, "Depth changed from {0} to {1}", new Object[] {formatDepth(older.getDepth(oldId)), formatDepth(newer.getDepth(id))});
+                    depthChanges++;
+                }
+            } finally {
+                clearContext();
+            }
+        }
+
+        for (int oldId = 0; oldId < older.size(); oldId++) {
+            if (older.getParent(oldId) == RouteGraph.NONE) {
+                continue;
+            }
+
+            int id = newer.getId(older.getName(oldId));
+
+            if (id == RouteGraph.NONE || newer.getParent(id) == RouteGraph.NONE) {
+                setContext(describe(older, oldId));
+                log.log(Level.INFO, "Missing from the newer snapshot");
+                clearContext();
+                missing++;
+            }
+        }
+
+        log.log(Level.INFO, "{0} parent change(s), {1} node(s) lost neighbours, {2} depth change(s), {3} node(s) missing",
+            new Object[] {parentChanges, lostNeighbours, depthChanges, missing});
+    }
+
+    /**
+     * Get the snapshots to compare.
+     * @return The older, and newer snapshot.
+     * @throws IOException If a directory was given, and it doesn't have two snapshots.
+     */
+    private File[] getSnapshots() throws IOException {
+        if (paths.size() == 2) {
+            return new File[] {new File(paths.get(0)), new File(paths.get(1))};
+        }
+
+        File[] snapshots = new File(paths.get(0)).listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(RouteOperation.SNAPSHOT_PREFIX) && name.endsWith(RouteOperation.SNAPSHOT_SUFFIX);
+            }
+        });
+
+        if (snapshots == null || snapshots.length < 2) {
+            throw new IOException("Need at least two route snapshots in " + paths.get(0));
+        }
+
+        // The names sort by time
+        Arrays.sort(snapshots);
+        return Arrays.copyOfRange(snapshots, snapshots.length - 2, snapshots.length);
+    }
+
+    /**
+     * Read a snapshot.
+     * @param file The snapshot.
+     * @return The graph in the snapshot.
+     * @throws IOException If the snapshot can't be read.
+     */
+    private static RouteGraph read(File file) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return RouteGraph.readSnapshot(in);
+        } catch (IOException e) {
+            throw new IOException("Unable to read route snapshot " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get the neighbours a node had in an older snapshot, but doesn't have in a newer one.
+     * Ids are given in the order nodes are first seen, so they differ between snapshots: the new neighbours are mapped
+     * to ids of the older snapshot and sorted, then merged with the old ones, which are already sorted.
+     * This takes O(k log k) time for k neighbours, for the sort.
+     * @param older The older snapshot.
+     * @param oldId The id of the node in the older snapshot.
+     * @param newer The newer snapshot.
+     * @param id The id of the node in the newer snapshot.
+     * @return The names of the neighbours lost.
+     */
+    private static List<String> getLostNeighbours(RouteGraph older, int oldId, RouteGraph newer, int id) {
+        // Map the new neighbours to ids of the older snapshot, so they can be compared
+        int[] current = newer.getNeighbours(id);
+        for (int i = 0; i < current.length; i++) {
+            current[i] = older.getId(newer.getName(current[i]));
+        }
+        Arrays.sort(current);
+
+        List<String> lost = new ArrayList<>();
+        int i = 0;
+
+        for (int neighbour : older.getNeighbours(oldId)) {
+            while (i < current.length && current[i] < neighbour) {
+                i++;
+            }
+
+            if (i == current.length || current[i] != neighbour) {
+                lost.add(older.getName(neighbour));
+            }
+        }
+
+        return lost;
+    }
+
+    /**
+     * Describe a node, for logging.
+     * @param graph The graph the node is in.
+     * @param id The id of the node.
+     * @return The label and short id of the node, or just it's short id if it has no label.
+     */
+    private static String describe(RouteGraph graph, int id) {
+        return graph.getLabel(id) != null ? graph.getLabel(id) + "/" + graph.getName(id) : graph.getName(id);
+    }
+
+    /**
+     * Format a depth.
+     * @param depth The depth.
+     * @return The number of hops, or loop if the routes of the node form a loop.
+     */
+    private static String formatDepth(int depth) {
+        return depth == RouteGraph.NONE ? "loop" : depth + " hop(s)";
+    }
+}
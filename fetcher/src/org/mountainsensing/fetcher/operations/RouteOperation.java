@@ -7,6 +7,7 @@ package org.mountainsensing.fetcher.operations;
 
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -15,52 +16,72 @@ import java.net.InetAddress;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.eclipse.californium.core.CoapClient;
 import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.Request;
 import org.mountainsensing.fetcher.CoapException;
 import org.mountainsensing.fetcher.CoapException.Method;
+import org.mountainsensing.fetcher.net.CoapEndpointPool;
 import org.mountainsensing.fetcher.net.NodeAddress;
+import org.mountainsensing.fetcher.net.Topology;
 import org.mountainsensing.fetcher.utils.RouteGraph;
+import org.mountainsensing.fetcher.utils.UTCDateFormat;
 
 /**
  * Operation to get routing info from a node.
  */
 @Parameters(commandDescription = "Get the parent node, neighbours and routing table from the node(s)")
-public class RouteOperation extends NodeOperation {
+public class RouteOperation extends BlockingNodeOperation {
 
     private static final Logger log = Logger.getLogger(SampleOperation.class.getName());
 
-    private static final String RESSOURCE = "routes";
+    static final String RESSOURCE = "routes";
 
     /**
-     * Size (in chars) of the IDs returned by the routes ressource.
+     * Start of the name of route snapshots.
      */
-    private static final int NODE_ID_SIZE = 4;
+    static final String SNAPSHOT_PREFIX = "routes-";
+
+    /**
+     * End of the name of route snapshots.
+     */
+    static final String SNAPSHOT_SUFFIX = ".routes";
+
+    /**
+     * Format of the time in the name of route snapshots, so they sort by time.
+     */
+    private static final String SNAPSHOT_DATE_FORMAT = "yyyyMMdd-HHmmss";
 
     /**
      * All of the route information we've gathered.
+     * Synchronized as nodes may be processed concurrently.
      */
-    private final Map<NodeAddress, RouteInfo> routes = new LinkedHashMap<>();
+    private final Map<NodeAddress, RouteInfo> routes = Collections.synchronizedMap(new LinkedHashMap<NodeAddress, RouteInfo>());
 
     /**
      * The routes page on the nodes only returns the last 2 bytes of the IPv6 address.
      * We can recover the full ip addresse's from keeping track of what nodes we've talked to.
+     * Only accessed through {@link #registerNodeAddress(NodeAddress)} once nodes are being processed, which is synchronized.
      */
     private final Map<String, NodeAddress> realAddresses = new HashMap<>();
 
     @Parameter(names = {"-g", "--graph"}, description = "Write a DOT graph of routes / neighbors to this file")
     private String graphPath;
 
+    @Parameter(names = {"-s", "--snapshots"}, description = "Save a binary snapshot of the routes to this directory, to compare with routes-diff")
+    private String snapshotPath;
+
     /**
      * POD class to group routing info obtained from a node together.
      */
-    private static class RouteInfo {
+    static class RouteInfo {
         /**
          * Neighbours of a node.
          */
@@ -76,6 +97,54 @@ public class RouteOperation extends NodeOperation {
          * Parent of a node.
          */
         public String parent;
+
+        /**
+         * Parse the routes ressource of a node.
+         * The first line is the parent, followed by a line per neighbour, and a line per route (dest@via).
+         * @param text The contents of the ressource.
+         * @return The routing info of the node.
+         */
+        public static RouteInfo parse(String text) {
+            String[] entries = text.split("\n");
+
+            RouteInfo info = new RouteInfo();
+
+            info.parent = entries[0];
+
+            for (String entry : Arrays.copyOfRange(entries, 1, entries.length)) {
+                if (entry.isEmpty()) {
+                    continue;
+                }
+
+                if (entry.contains("@")) {
+                    info.routes.put(entry.split("@")[0], entry.split("@")[1]);
+                } else {
+                    info.neighbours.add(entry);
+                }
+            }
+
+            return info;
+        }
+
+        /**
+         * Add this routing info to a graph.
+         * @param graph The graph.
+         * @param nodeId The short id of the node this is the routing info of.
+         */
+        public void addTo(RouteGraph graph, String nodeId) {
+            // Add the parent as a route
+            graph.setParent(nodeId, parent);
+            graph.addRoute(nodeId, parent);
+
+            for (String neighbour : neighbours) {
+                graph.addNeighbour(nodeId, neighbour);
+            }
+
+            // Use the keys to add routes to the "via" nodes
+            for (String route : routes.values()) {
+                graph.addRoute(nodeId, route);
+            }
+        }
     }
 
     /**
@@ -83,35 +152,19 @@ public class RouteOperation extends NodeOperation {
      * This is used to keep track of what "ids" (2 bytes returned by the ressource) map to what real addresses.
      * @param addr The address processed.
      */
-    private void registerNodeAddress(NodeAddress addr) {
+    private synchronized void registerNodeAddress(NodeAddress addr) {
         // ID of the node as used in the routes ressource
-        String nodeId = addr.getAddress().getHostAddress().substring(addr.getAddress().getHostAddress().length() - NODE_ID_SIZE);
+        String nodeId = addr.getShortId();
 
         // If the id is already known to us, but with a different address the graph is going to be messed up
         if (realAddresses.containsKey(nodeId) && !realAddresses.get(nodeId).equals(addr)) {
-            log.log(Level.WARNING, "Nodes {0} and {1} have the same last {2} bytes. They will be treated as the same node in the graph.", new Object[] {addr, realAddresses.get(nodeId), NODE_ID_SIZE / 2});
+            log.log(Level.WARNING, "Nodes {0} and {1} have the same last 2 bytes. They will be treated as the same node in the graph.", new Object[] {addr, realAddresses.get(nodeId)});
             return;
         }
 
         realAddresses.put(nodeId, addr);
     }
 
-    /**
-     * Get the best String representation of a node we have.
-     * Our order of preference is: hostname > full ipv6 > last bytes of ipv6
-     * @param node The node to search for.
-     * @return The best String representation of node available.
-     */
-    private String getRealAddressString(String node) {
-        // If this node's address hasn't been seen before, it's short ID is the best we can do
-        if (!realAddresses.containsKey(node)) {
-            return node;
-        }
-
-        // Otherwise get the best String representation of it's full IPv6 address
-        return nodeAddressToString(realAddresses.get(node));
-    }
-
     /**
      * Get the best String representation of an IP address.
      * Our order of preference is hostname > full IP
@@ -130,13 +183,27 @@ public class RouteOperation extends NodeOperation {
         // Get NodeOperation.perform() to talk to all the nodes
         super.perform(timeout, retries);
 
+        RouteGraph graph = makeGraph();
+        Topology.getInstance().update(graph);
+
+        if (snapshotPath != null) {
+            File snapshot = new File(snapshotPath, SNAPSHOT_PREFIX + new UTCDateFormat(SNAPSHOT_DATE_FORMAT).format(new Date(graph.getTime())) + SNAPSHOT_SUFFIX);
+
+            try (OutputStream snapshotOut = new BufferedOutputStream(new FileOutputStream(snapshot))) {
+                graph.writeSnapshot(snapshotOut);
+                log.log(Level.FINE, "Saved route snapshot to {0}", snapshot);
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "Failed to write route snapshot: " + e.getMessage(), e);
+            }
+        }
+
         // If we aren't writing a graph, we're done
         if (graphPath == null) {
             return;
         }
 
         try (OutputStream graphOut = new FileOutputStream(new File(graphPath))) {
-            makeGraph().write(graphOut);
+            graph.write(graphOut);
         } catch (IOException e) {
             log.log(Level.SEVERE, "Failed to write graph file: " + e.getMessage(), e);
         }
@@ -144,26 +211,20 @@ public class RouteOperation extends NodeOperation {
 
     /**
      * Biuld a graph representing the routing information.
+     * Nodes are named by their short id, and labeled with the best String representation of their address we have.
      * @return A graph
      */
     private RouteGraph makeGraph() {
         RouteGraph graph = new RouteGraph(RESSOURCE);
 
-        // Add all the edges in, looking up "real" ip addresses as we find them
         for (NodeAddress node : routes.keySet()) {
-            RouteInfo info = routes.get(node);
-            String nodeId = nodeAddressToString(node);
-
-            // Add the parent as a route
-            graph.addRoute(nodeId, getRealAddressString(info.parent));
-
-            for (String neighbour : info.neighbours) {
-                graph.addNeighbour(nodeId, getRealAddressString(neighbour));
-            }
+            routes.get(node).addTo(graph, node.getShortId());
+        }
 
-            // Use the keys to add routes to the "via" nodes
-            for (String route : info.routes.values()) {
-                graph.addRoute(nodeId, getRealAddressString(route));
+        // Label the nodes we know the "real" address of
+        for (Map.Entry<String, NodeAddress> entry : realAddresses.entrySet()) {
+            if (graph.getId(entry.getKey()) != RouteGraph.NONE) {
+                graph.setLabel(entry.getKey(), nodeAddressToString(entry.getValue()));
             }
         }
 
@@ -171,34 +232,20 @@ public class RouteOperation extends NodeOperation {
     }
 
     @Override
-    protected void processNode(URI uri, NodeAddress nodeAddr) throws IOException {
+    protected boolean processNode(URI uri, NodeAddress nodeAddr) throws IOException {
         registerNodeAddress(nodeAddr);
 
-        CoapClient client = new CoapClient(uri);
-        CoapResponse response = client.get();
+        Request request = Request.newGet();
+        request.setURI(uri);
+        CoapEndpointPool pool = CoapEndpointPool.getInstance();
+        CoapResponse response = pool.getClient(nodeAddr.getAddress()).advanced(pool.track(request, nodeAddr.getAddress()));
 
         if (response != null && response.isSuccess()) {
-            String[] entries = response.getResponseText().split("\n");
-
-            RouteInfo info = new RouteInfo();
-
-            info.parent = entries[0];
-
-            for (String entry : Arrays.copyOfRange(entries, 1, entries.length)) {
-                if (entry.isEmpty()) {
-                    continue;
-                }
-
-                if (entry.contains("@")) {
-                    info.routes.put(entry.split("@")[0], entry.split("@")[1]);
-                } else {
-                    info.neighbours.add(entry);
-                }
-            }
+            RouteInfo info = RouteInfo.parse(response.getResponseText());
 
             log.log(Level.INFO, "Got route info: \nParent: {0}\nNeighbours: {1}\nRoutes: {2}", new Object[] {info.parent, info.neighbours, info.routes});
             routes.put(nodeAddr, info);
-            return;
+            return false;
         }
 
         throw new CoapException(uri, Method.GET, response, "Failed to get routes");
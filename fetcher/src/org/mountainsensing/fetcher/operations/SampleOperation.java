@@ -5,28 +5,53 @@
  */
 package org.mountainsensing.fetcher.operations;
 
-import com.beust.jcommander.IParameterValidator;
+import com.beust.jcommander.IStringConverter;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 import com.beust.jcommander.Parameters;
+import com.beust.jcommander.ParametersDelegate;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Files;
+import java.text.ParsePosition;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.SortedSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.eclipse.californium.core.CoapClient;
 import org.eclipse.californium.core.CoapResponse;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.mountainsensing.fetcher.CoapException;
-import org.mountainsensing.fetcher.CoapException.Method;
+import org.mountainsensing.fetcher.Operation;
+import org.mountainsensing.fetcher.net.AsyncCoapClient;
 import org.mountainsensing.fetcher.net.NodeAddress;
+import org.mountainsensing.fetcher.storage.ArchivingSink;
+import org.mountainsensing.fetcher.storage.DeleteJournal;
+import org.mountainsensing.fetcher.storage.DirectorySink;
+import org.mountainsensing.fetcher.storage.SampleArchive;
+import org.mountainsensing.fetcher.storage.SampleQueue;
+import org.mountainsensing.fetcher.storage.SampleSink;
 import org.mountainsensing.fetcher.utils.EpochDate;
-import org.mountainsensing.fetcher.utils.FormatUtils;
+import org.mountainsensing.fetcher.utils.FileUtils;
+import org.mountainsensing.fetcher.utils.IOFunction;
+import org.mountainsensing.fetcher.utils.MessageWriter;
+import org.mountainsensing.fetcher.utils.Metrics;
 import org.mountainsensing.fetcher.utils.ProtoBufUtils;
+import org.mountainsensing.fetcher.utils.UTCDateFormat;
 import org.mountainsensing.fetcher.utils.UTCEpochDateFormat;
 import org.mountainsensing.pb.Readings.Sample;
 import org.mountainsensing.pb.Rs485Message.Rs485;
@@ -34,16 +59,33 @@ import org.mountainsensing.pb.Rs485Message.Rs485;
 /**
  * Operations for dealing with Samples.
  */
-public abstract class SampleOperation extends NodeOperation {
+public abstract class SampleOperation extends AsyncNodeOperation {
 
     private static final Logger log = Logger.getLogger(SampleOperation.class.getName());
 
+    /**
+     * Samples fetched from every node.
+     */
+    private static final Metrics.Counter samplesFetched = Metrics.getInstance().counter("samples_fetched_total",
+        "Samples fetched and decoded from a node", "node");
+
+    /**
+     * Samples deleted from every node.
+     */
+    private static final Metrics.Counter samplesDeleted = Metrics.getInstance().counter("samples_deleted_total",
+        "Samples deleted from a node", "node");
+
     /**
      * Map used to override the printing of Samples.
      * The key is the integer id of the field to override the printing for,
      * mapping to a FieldOverride returning the String to use for that field.
      */
     private static final Map<Integer, ProtoBufUtils.FieldOverride<Sample>> sampleOverrideMap;
+
+    /**
+     * Messages embedded in Samples, flattened when writing Samples as records.
+     */
+    private static final Map<Integer, MessageWriter.Embedding> sampleEmbeddings;
     static {
         sampleOverrideMap = new HashMap<>();
         // Field 1 is the sampling time, we need to handle it sepcially to print epoch + human readable time.
@@ -59,16 +101,41 @@ public abstract class SampleOperation extends NodeOperation {
             @Override
             public String toString(Sample message) throws IOException {
                 StringBuilder avr = new StringBuilder();
+                print(message, avr, "");
+                return avr.toString();
+            }
 
-                avr.append(System.lineSeparator());
+            @Override
+            public void print(Sample message, Appendable out, String indent) throws IOException {
+                out.append(System.lineSeparator());
 
                 // Append the logical representation of the message
-                avr.append(FormatUtils.indent(ProtoBufUtils.toString(Rs485.parseFrom(message.getAVR()))));
-                return avr.toString();
+                ProtoBufUtils.<Rs485>getPrinter(Rs485.getDescriptor()).print(Rs485.parseFrom(message.getAVR()), out, indent + ProtoBufUtils.INDENT);
+            }
+        });
+
+        samplePrinter = ProtoBufUtils.newPrinter(Sample.getDescriptor(), sampleOverrideMap);
+
+        sampleEmbeddings = new HashMap<>();
+        // Field 10 is the embedded AVR message - flatten it into the sample's columns
+        sampleEmbeddings.put(Sample.AVR_FIELD_NUMBER, new MessageWriter.Embedding() {
+            @Override
+            public Descriptors.Descriptor getType() {
+                return Rs485.getDescriptor();
+            }
+
+            @Override
+            public Message parse(ByteString data) throws IOException {
+                return Rs485.parseFrom(data);
             }
         });
     }
 
+    /**
+     * Printer for Samples, using the overrides.
+     */
+    private static final ProtoBufUtils.Printer<Sample> samplePrinter;
+
     /**
      * Canary value for the latest sample.
      */
@@ -76,22 +143,19 @@ public abstract class SampleOperation extends NodeOperation {
 
     private static final String RESSOURCE = "sample";
 
-    @Parameter(names = {"-s", "--sample-id"}, validateWith = SampleExclusionValidator.class, description = "Sample id. " + LATEST_SAMPLE + " for latest sample.")
-    protected int sampleId = LATEST_SAMPLE;
+    /**
+     * Description of the option to use a queue as the destination.
+     */
+    private static final String QUEUE_DESCRIPTION = "Append samples to a segmented queue in the destination, instead of one file per sample. "
+            + "The poster doesn't understand the queue, use the upload command with --queue instead.";
 
     /**
-     * Ensures that any Operations who implement other means of specifying the sample (ie --all) can verify both options aren't supplied.
+     * Description of the option to archive samples.
      */
-    public static class SampleExclusionValidator implements IParameterValidator {
-        private static String previousName = null;
-        @Override
-        public void validate(String name, String value) throws ParameterException {
-            if (previousName != null) {
-                throw new ParameterException("Parameter " + name + " can not be used in conjunction with " + previousName);
-            }
-            previousName = name;
-        }
-    }
+    private static final String ARCHIVE_DESCRIPTION = "Also add samples to the columnar archive in this directory, stored by node and field for querying";
+
+    @Parameter(names = {"-s", "--sample-id"}, description = "Sample id. " + LATEST_SAMPLE + " for latest sample.")
+    protected int sampleId = LATEST_SAMPLE;
 
     /**
      * Get a single sample from the node, without deleting it.
@@ -99,10 +163,49 @@ public abstract class SampleOperation extends NodeOperation {
     @Parameters(commandDescription = "Get a sample from the node(s)")
     public static class Get extends SampleOperation {
 
+        @ParametersDelegate
+        private ExportOptions export = new ExportOptions();
+
+        /**
+         * Where samples are written as records, null if they are logged. Only open during {@link #perform(int, int)}.
+         */
+        private MessageWriter<Sample> writer;
+
         @Override
-        public void processSample(URI uri) throws IOException {
-            Sample sample = getSample(uri);
-            log.log(Level.INFO, "Got sample: \n{0}", sampleToString(sample));
+        public void validate() {
+            export.validate();
+        }
+
+        @Override
+        public void perform(int timeout, int retries) {
+            try {
+                writer = export.open(Sample.getDescriptor(), sampleEmbeddings);
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "Unable to open output: " + e.getMessage(), e);
+                return;
+            }
+
+            try {
+                super.perform(timeout, retries);
+            } finally {
+                export.close(writer);
+                writer = null;
+            }
+        }
+
+        @Override
+        public CompletableFuture<Boolean> processSample(final URI uri) {
+            return getSample(uri).thenApply(new IOFunction<Sample, Boolean>() {
+                @Override
+                protected Boolean applyIO(Sample sample) throws IOException {
+                    if (writer != null) {
+                        writer.write(getHostAddress(uri), sample);
+                    } else {
+                        log.log(Level.INFO, "Got sample: \n{0}", sampleToString(sample));
+                    }
+                    return false;
+                }
+            });
         }
     }
 
@@ -121,9 +224,14 @@ public abstract class SampleOperation extends NodeOperation {
         }
 
         @Override
-        public void processSample(URI uri) throws IOException {
-            deleteSample(uri);
-            log.log(Level.INFO, "Deleted sample: {0}", uri);
+        public CompletableFuture<Boolean> processSample(final URI uri) {
+            return deleteSample(uri).thenApply(new Function<Void, Boolean>() {
+                @Override
+                public Boolean apply(Void result) {
+                    log.log(Level.INFO, "Deleted sample: {0}", uri);
+                    return false;
+                }
+            });
         }
     }
 
@@ -143,50 +251,706 @@ public abstract class SampleOperation extends NodeOperation {
          */
         private File dir;
 
-        @Parameter(names = {"-a", "--all"}, validateWith = SampleExclusionValidator.class, description = "Grab all samples from the node(s). This cannot be used in conjunction with --sample")
+        @Parameter(names = {"-q", "--queue"}, description = QUEUE_DESCRIPTION)
+        private boolean isQueue = false;
+
+        @Parameter(names = {"--archive"}, description = ARCHIVE_DESCRIPTION)
+        private String archivePath;
+
+        /**
+         * Actual archive directory to use, null if samples aren't archived.
+         * Will be created by {@link #validate()}.
+         */
+        private File archiveDir;
+
+        /**
+         * Where samples are saved. Only open during {@link #perform(int, int)}.
+         */
+        private SampleSink sink;
+
+        @Parameter(names = {"-a", "--all"}, description = "Grab all samples from the node(s). This cannot be used in conjunction with --sample")
         private boolean shouldProcessAll = false;
 
-        private boolean hasReachedEnd;
+        @Parameter(names = {"-w", "--window"}, validateWith = ParallelismValidator.class, description = "Maximum number of requests in flight per node. Above 1, samples are fetched while previous ones are being deleted. Requires --all")
+        private int window = 1;
+
+        @Parameter(names = {"--delete-journal"}, description = "Record saved samples in this journal, and only delete them from the node(s) once all samples have been fetched. "
+                + "Deletes that fail are retried on the next run. Must be on the same filesystem as the destination. Requires --all")
+        private String journalPath;
+
+        /**
+         * Maximum number of consecutive missing sample ids, below the lowest sample found on a node,
+         * before assuming there are no more samples on the node.
+         */
+        private static final int MAX_MISSING_IDS = 16;
+
+        /**
+         * Suffix of the directory samples are staged in before being recorded in the journal.
+         */
+        private static final String STAGING_SUFFIX = ".incoming";
+
+        /**
+         * Journal of samples pending deletion.
+         * Only open during {@link #perform(int, int)}, if a journal was requested.
+         */
+        private DeleteJournal journal;
+
+        /**
+         * Directory samples are staged in before being recorded in the journal.
+         */
+        private File stagingDir;
 
         @Override
         public void validate() throws IOException {
+            // Checked here, as a validator would have to keep state between parses (ie every daemon job run)
+            if (shouldProcessAll && sampleId != LATEST_SAMPLE) {
+                throw new ParameterException("Parameter --all can not be used in conjunction with --sample-id");
+            }
+
+            if (window > 1 && !shouldProcessAll) {
+                throw new ParameterException("Parameter --window requires --all");
+            }
+
+            if (journalPath != null && !shouldProcessAll) {
+                throw new ParameterException("Parameter --delete-journal requires --all");
+            }
+
             // Make the directory we'll use for output
             dir = mkDir(dirPath);
+            archiveDir = mkDir(archivePath);
+
+            if (journalPath != null) {
+                stagingDir = mkDir(journalPath + STAGING_SUFFIX);
+            }
         }
 
         @Override
-        public void processSample(URI uri) throws IOException, CoapException {
-            Sample sample;
+        public void perform(int timeout, int retries) {
+            setContext(dirPath);
+            try {
+                sink = openSink(dir, isQueue);
+
+                if (archiveDir != null) {
+                    setContext(archivePath);
+                    sink = new ArchivingSink(sink, new SampleArchive(archiveDir));
+                }
 
-            // Assume we've reached the last sample until we know otherwise.
-            hasReachedEnd = true;
+                if (journalPath != null) {
+                    setContext(journalPath);
+                    journal = new DeleteJournal(new File(journalPath));
+                    recoverStaged();
+                }
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "Unable to open destination: " + e.getMessage(), e);
+                closeStorage();
+                return;
+            } finally {
+                clearContext();
+            }
 
             try {
-                sample = getSample(uri);
-                // If we have a sample, it means we haven't reached the end.
-                hasReachedEnd = false;
-            } catch (CoapException e) {
-                // If not found, we've reached the last sample
-                if (e.getCode() == ResponseCode.NOT_FOUND) {
-                    log.log(Level.INFO, "No more samples available");
-                    return;
+                super.perform(timeout, retries);
+            } finally {
+                closeStorage();
+            }
+        }
+
+        /**
+         * Close the sink and journal, if they are open.
+         */
+        private void closeStorage() {
+            if (journal != null) {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Unable to compact delete journal " + journalPath, e);
+                }
+                journal = null;
+            }
+
+            if (sink != null) {
+                try {
+                    sink.close();
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Unable to close destination " + dirPath, e);
+                }
+                sink = null;
+            }
+        }
+
+        /**
+         * Recover any samples left in the staging directory by a crash.
+         * Samples recorded in the journal are moved to the destination, others were never recorded
+         * (so won't be deleted from their node) and are discarded.
+         * @throws IOException If a staged sample can't be moved or discarded.
+         */
+        private void recoverStaged() throws IOException {
+            for (File staged : stagingDir.listFiles()) {
+                int separator = staged.getName().lastIndexOf('_');
+                String node = staged.getName().substring(0, Math.max(separator, 0));
+                int id;
+
+                try {
+                    id = Integer.parseInt(staged.getName().substring(separator + 1));
+                } catch (NumberFormatException e) {
+                    log.log(Level.WARNING, "Ignoring unknown file {0}", staged);
+                    continue;
+                }
+
+                if (journal.isPending(node, id)) {
+                    log.log(Level.INFO, "Recovering sample {0} from node {1}", new Object[] {id, node});
+                    sink.recover(node, staged);
+                } else {
+                    log.log(Level.INFO, "Discarding unrecorded sample {0} from node {1}", new Object[] {id, node});
+                    Files.delete(staged.toPath());
                 }
-                throw e;
             }
+        }
 
-            log.log(Level.INFO, "Got sample with id {0}", sample.getId());
+        /**
+         * Save a sample durably, and record it in the journal.
+         * The sample is staged first, so it is never in the destination without being in the journal
+         * (which would let us fetch it again), and never in the journal without being saved.
+         * @param node The address of the node.
+         * @param sample The sample.
+         * @throws IOException If the sample can't be saved, or recorded.
+         */
+        private void saveRecorded(String node, Sample sample) throws IOException {
+            File staged = new File(stagingDir, node + "_" + sample.getId());
 
-            // Substring strips the aquare backets from around the IPv6 address
-            saveSample(dir, uri.getHost().substring(1, uri.getHost().length() - 1), sample);
+            DirectorySink.write(staged, sample);
+            FileUtils.syncDir(stagingDir);
 
-            deleteSample(getURI(uri, sample.getId()));
-            log.log(Level.INFO, "Sample {0} deleted from node", sample.getId());
+            journal.add(node, sample.getId(), sample.getTime());
+            sink.move(node, staged);
         }
 
         @Override
-        public boolean shouldKeepProcessingNode() {
-            // We have more stuff to do with the node if we need to grab all and we haven't reached the end
-            return shouldProcessAll && !hasReachedEnd;
+        public CompletableFuture<Boolean> processSample(final URI uri) {
+            if (journal != null) {
+                return new DeferredGrab(uri).start();
+            }
+
+            if (window > 1) {
+                return new Pipeline(uri).start();
+            }
+
+            return getSample(uri).handle(new BiFunction<Sample, Throwable, Sample>() {
+                @Override
+                public Sample apply(Sample sample, Throwable error) {
+                    if (error == null) {
+                        return sample;
+                    }
+
+                    // If not found, we've reached the last sample
+                    if (isNotFound(error)) {
+                        log.log(Level.INFO, "No more samples available");
+                        return null;
+                    }
+
+                    throw new CompletionException(unwrap(error));
+                }
+
+            }).thenCompose(new Function<Sample, CompletableFuture<Boolean>>() {
+                @Override
+                public CompletableFuture<Boolean> apply(final Sample sample) {
+                    // No sample means we've reached the end
+                    if (sample == null) {
+                        return CompletableFuture.completedFuture(false);
+                    }
+
+                    log.log(Level.INFO, "Got sample with id {0}", sample.getId());
+
+                    try {
+                        sink.save(getHostAddress(uri), sample);
+                    } catch (IOException e) {
+                        return failedFuture(e);
+                    }
+
+                    return deleteSample(getURI(uri, sample.getId())).thenApply(new Function<Void, Boolean>() {
+                        @Override
+                        public Boolean apply(Void result) {
+                            log.log(Level.INFO, "Sample {0} deleted from node", sample.getId());
+
+                            // We have more stuff to do with the node if we need to grab all, as we haven't reached the end
+                            return shouldProcessAll;
+                        }
+                    });
+                }
+            });
+        }
+
+        /**
+         * Grabs all the samples from a node, with up to window requests in flight.
+         * The node hands out the latest sample first, so once we know its id the older samples
+         * (with lower ids) are fetched explicitly while the previous ones are being deleted.
+         * A missing id (ie a gap left by an earlier partial grab) falls back to asking for the latest
+         * sample again, once everything in flight has completed.
+         * Every sample is saved durably before its delete is sent.
+         */
+        private class Pipeline {
+
+            /**
+             * The sample resource of the node.
+             */
+            private final URI uri;
+
+            /**
+             * Completed with false once all the samples have been grabbed.
+             */
+            private final CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+            /**
+             * Number of requests in flight.
+             */
+            private int inFlight = 0;
+
+            /**
+             * Next sample id to request, LATEST_SAMPLE if we don't know.
+             */
+            private int nextId = LATEST_SAMPLE;
+
+            /**
+             * True if the latest sample has been reported not found.
+             */
+            private boolean hasReachedEnd = false;
+
+            /**
+             * The first error encountered, if any.
+             */
+            private Throwable error;
+
+            /**
+             * Create a new pipeline.
+             * @param uri The sample resource of the node.
+             */
+            public Pipeline(URI uri) {
+                this.uri = uri;
+            }
+
+            /**
+             * Start grabbing samples.
+             * @return A future completed with false once all the samples have been grabbed,
+             * or completed exceptionally once the requests in flight have completed after an error.
+             */
+            public CompletableFuture<Boolean> start() {
+                fill();
+                return done;
+            }
+
+            /**
+             * Send as many requests as allowed, or finish if there is nothing left to do.
+             */
+            private synchronized void fill() {
+                while (error == null && !hasReachedEnd && nextId != LATEST_SAMPLE && inFlight < window) {
+                    fetch(nextId--);
+                }
+
+                if (inFlight > 0) {
+                    return;
+                }
+
+                if (error != null) {
+                    done.completeExceptionally(error);
+                } else if (hasReachedEnd) {
+                    done.complete(false);
+                } else {
+                    // Only ask for the latest once nothing is in flight, otherwise we could get a sample that is being deleted
+                    fetch(LATEST_SAMPLE);
+                }
+            }
+
+            /**
+             * Get, save and delete a sample.
+             * @param id The id of the sample, or LATEST_SAMPLE.
+             */
+            private void fetch(final int id) {
+                inFlight++;
+
+                getSample(getURI(uri, id)).whenComplete(new BiConsumer<Sample, Throwable>() {
+                    @Override
+                    public void accept(Sample sample, Throwable failure) {
+                        if (failure != null) {
+                            fetched(id, failure);
+                            return;
+                        }
+
+                        log.log(Level.INFO, "Got sample with id {0}", sample.getId());
+
+                        try {
+                            sink.save(getHostAddress(uri), sample);
+                        } catch (IOException e) {
+                            fetched(id, e);
+                            return;
+                        }
+
+                        saved(id, sample.getId());
+                    }
+                });
+            }
+
+            /**
+             * Handle a saved sample, and send its delete.
+             * @param id The id the sample was requested with, or LATEST_SAMPLE.
+             * @param sampleId The actual id of the sample.
+             */
+            private synchronized void saved(int id, int sampleId) {
+                // Once we know the latest sample, start fetching older samples explicitly.
+                // Before the delete is sent, or it could complete first and fill() would ask for the latest sample again.
+                if (id == LATEST_SAMPLE) {
+                    nextId = sampleId - 1;
+                }
+
+                delete(sampleId);
+                fill();
+            }
+
+            /**
+             * Handle a failed fetch.
+             * @param id The id of the sample, or LATEST_SAMPLE.
+             * @param failure The reason the fetch failed.
+             */
+            private synchronized void fetched(int id, Throwable failure) {
+                inFlight--;
+
+                if (!isNotFound(failure)) {
+                    fail(failure);
+                } else if (id == LATEST_SAMPLE) {
+                    log.log(Level.INFO, "No more samples available");
+                    hasReachedEnd = true;
+                } else {
+                    log.log(Level.FINE, "Sample {0} not found, will ask for the latest sample", id);
+                    nextId = LATEST_SAMPLE;
+                }
+
+                fill();
+            }
+
+            /**
+             * Delete a saved sample.
+             * The request in flight for getting the sample is now used for deleting it.
+             * @param id The id of the sample.
+             */
+            private void delete(final int id) {
+                deleteSample(getURI(uri, id)).whenComplete(new BiConsumer<Void, Throwable>() {
+                    @Override
+                    public void accept(Void result, Throwable failure) {
+                        deleted(id, failure);
+                    }
+                });
+            }
+
+            /**
+             * Handle a completed delete.
+             * @param id The id of the sample.
+             * @param failure The reason the delete failed, null if it succeeded.
+             */
+            private synchronized void deleted(int id, Throwable failure) {
+                inFlight--;
+
+                if (failure == null) {
+                    log.log(Level.INFO, "Sample {0} deleted from node", id);
+                } else {
+                    fail(failure);
+                }
+
+                fill();
+            }
+
+            /**
+             * Record an error, stopping any new requests from being sent.
+             * @param failure The error.
+             */
+            private void fail(Throwable failure) {
+                if (error == null) {
+                    error = unwrap(failure);
+                }
+            }
+        }
+
+        /**
+         * Grabs all the samples from a node, recording them in the delete journal instead of deleting them.
+         * The latest sample is fetched first, then older ones by explicit id (as they're still on the node),
+         * until {@link #MAX_MISSING_IDS} consecutive ids below the lowest sample found are missing.
+         * Samples already in the journal are not fetched again, once the highest of them still on the node has been fetched
+         * to check the node's storage hasn't been reset since they were saved.
+         * Once everything has been fetched, all the samples in the journal for the node are deleted.
+         * Up to window requests are in flight at once.
+         */
+        private class DeferredGrab {
+
+            /**
+             * The sample resource of the node.
+             */
+            private final URI uri;
+
+            /**
+             * The address of the node.
+             */
+            private final String node;
+
+            /**
+             * Completed with false once all the samples have been grabbed and deleted.
+             */
+            private final CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+            /**
+             * Number of requests in flight.
+             */
+            private int inFlight = 0;
+
+            /**
+             * Next sample id to request, LATEST_SAMPLE if there are none left.
+             */
+            private int nextId = LATEST_SAMPLE;
+
+            /**
+             * Id of the latest sample on the node.
+             */
+            private int latestId;
+
+            /**
+             * Lowest id of a sample known to be on the node.
+             */
+            private int lowestId;
+
+            /**
+             * Id of the sample pending deletion being fetched to check it is still on the node, LATEST_SAMPLE if none is.
+             */
+            private int checkId = LATEST_SAMPLE;
+
+            /**
+             * Samples to delete, null until everything has been fetched.
+             */
+            private Iterator<Integer> deletes;
+
+            /**
+             * The first error encountered, if any.
+             */
+            private Throwable error;
+
+            /**
+             * Create a new deferred grab.
+             * @param uri The sample resource of the node.
+             */
+            public DeferredGrab(URI uri) {
+                this.uri = uri;
+                this.node = getHostAddress(uri);
+            }
+
+            /**
+             * Start grabbing samples.
+             * @return A future completed with false once all the samples have been grabbed and deleted,
+             * or completed exceptionally once the requests in flight have completed after an error.
+             */
+            public synchronized CompletableFuture<Boolean> start() {
+                fetch(LATEST_SAMPLE);
+                return done;
+            }
+
+            /**
+             * Send as many requests as allowed, or finish if there is nothing left to do.
+             */
+            private synchronized void fill() {
+                if (error == null && deletes == null) {
+                    while (inFlight < window && nextId != LATEST_SAMPLE && nextId >= lowestId - MAX_MISSING_IDS) {
+                        int id = nextId--;
+
+                        if (journal.isPending(node, id)) {
+                            lowestId = id;
+                        } else {
+                            fetch(id);
+                        }
+                    }
+
+                    // Everything fetched, start deleting
+                    if (inFlight == 0) {
+                        deletes = journal.getPending(node).iterator();
+                    }
+                }
+
+                if (error == null && deletes != null) {
+                    while (inFlight < window && deletes.hasNext()) {
+                        delete(deletes.next());
+                    }
+                }
+
+                if (inFlight > 0) {
+                    return;
+                }
+
+                if (error != null) {
+                    done.completeExceptionally(error);
+                } else {
+                    done.complete(false);
+                }
+            }
+
+            /**
+             * Get and save a sample.
+             * @param id The id of the sample, or LATEST_SAMPLE.
+             */
+            private void fetch(final int id) {
+                inFlight++;
+
+                getSample(getURI(uri, id)).whenComplete(new BiConsumer<Sample, Throwable>() {
+                    @Override
+                    public void accept(Sample sample, Throwable failure) {
+                        fetched(id, sample, failure);
+                    }
+                });
+            }
+
+            /**
+             * Handle a completed fetch.
+             * @param id The id the sample was requested with, or LATEST_SAMPLE.
+             * @param sample The sample, null if the fetch failed.
+             * @param failure The reason the fetch failed, null if it succeeded.
+             */
+            private synchronized void fetched(int id, Sample sample, Throwable failure) {
+                inFlight--;
+
+                try {
+                    if (failure != null) {
+                        if (!isNotFound(failure)) {
+                            fail(failure);
+                        } else if (id == LATEST_SAMPLE) {
+                            log.log(Level.INFO, "No more samples available");
+                        } else if (id == checkId) {
+                            // Deleted, but we never heard back
+                            journal.remove(node, id);
+                            checkPending();
+                        }
+                        return;
+                    }
+
+                    if (id == LATEST_SAMPLE) {
+                        started(sample);
+                    } else if (id == checkId) {
+                        checked(sample);
+                    }
+
+                    if (journal.isPending(node, sample.getId())) {
+                        log.log(Level.FINE, "Sample {0} already saved", sample.getId());
+                        return;
+                    }
+
+                    log.log(Level.INFO, "Got sample with id {0}", sample.getId());
+                    lowestId = Math.min(lowestId, sample.getId());
+                    saveRecorded(node, sample);
+
+                } catch (IOException e) {
+                    fail(e);
+                } finally {
+                    fill();
+                }
+            }
+
+            /**
+             * Check the samples pending deletion, once the latest sample is known.
+             * @param latest The latest sample.
+             * @throws IOException If the journal can't be updated.
+             */
+            private void started(Sample latest) throws IOException {
+                latestId = latest.getId();
+                lowestId = latestId;
+
+                // Already deleted, but we never heard back. Or the node's storage has been reset, and they were never written again.
+                int gone = journal.discard(node, latestId + 1, Integer.MAX_VALUE);
+                if (gone > 0) {
+                    log.log(Level.INFO, "{0} sample(s) pending deletion are no longer on the node", gone);
+                }
+
+                if (journal.isPending(node, latestId)) {
+                    checked(latest);
+                } else {
+                    checkPending();
+                }
+            }
+
+            /**
+             * Fetch the highest sample pending deletion that is older than the latest sample, to check it,
+             * or start fetching older samples if there are none.
+             */
+            private void checkPending() {
+                SortedSet<Integer> pending = journal.getPending(node).headSet(latestId);
+
+                if (pending.isEmpty()) {
+                    checkId = LATEST_SAMPLE;
+                    nextId = latestId - 1;
+                } else {
+                    checkId = pending.last();
+                    fetch(checkId);
+                }
+            }
+
+            /**
+             * Start fetching older samples, once the highest sample pending deletion still on the node has been fetched.
+             * If it isn't the sample that was saved, the node's storage has been reset since, so the ids pending deletion
+             * up to it now refer to different samples that must not be deleted. Newer ones were saved by this grab.
+             * @param sample The sample on the node, with the id of the highest sample pending deletion.
+             * @throws IOException If the journal can't be updated.
+             */
+            private void checked(Sample sample) throws IOException {
+                Long time = journal.getTime(node, sample.getId());
+
+                // Samples saved by older versions don't have a time, so can't be checked
+                if (time != null && time != sample.getTime()) {
+                    int discarded = journal.discard(node, Integer.MIN_VALUE, sample.getId());
+                    log.log(Level.WARNING, "Node has been reset, discarded {0} sample(s) pending deletion", discarded);
+                }
+
+                checkId = LATEST_SAMPLE;
+                nextId = latestId - 1;
+            }
+
+            /**
+             * Delete a sample in the journal.
+             * @param id The id of the sample.
+             */
+            private void delete(final int id) {
+                inFlight++;
+
+                deleteSample(getURI(uri, id)).whenComplete(new BiConsumer<Void, Throwable>() {
+                    @Override
+                    public void accept(Void result, Throwable failure) {
+                        deleted(id, failure);
+                    }
+                });
+            }
+
+            /**
+             * Handle a completed delete.
+             * @param id The id of the sample.
+             * @param failure The reason the delete failed, null if it succeeded.
+             */
+            private synchronized void deleted(int id, Throwable failure) {
+                inFlight--;
+
+                try {
+                    // Not found means an earlier delete succeeded, but we never heard back
+                    if (failure == null || isNotFound(failure)) {
+                        journal.remove(node, id);
+                        log.log(Level.INFO, "Sample {0} deleted from node", id);
+                    } else {
+                        fail(failure);
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                } finally {
+                    fill();
+                }
+            }
+
+            /**
+             * Record an error, stopping any new requests from being sent.
+             * @param failure The error.
+             */
+            private void fail(Throwable failure) {
+                if (error == null) {
+                    error = unwrap(failure);
+                }
+            }
         }
     }
 
@@ -194,7 +958,7 @@ public abstract class SampleOperation extends NodeOperation {
      * Decode operation. Decodes a sample.
      */
     @Parameters(commandDescription = "Decode a delimited protocol buffer encoded sample")
-    public static class Decode extends DecodeOperation {
+    public static class Decode extends DecodeOperation<Sample> {
 
         private static final String SAMPLE_START = "+++SERIALDUMP+++SAMPLE+++START+++";
         private static final String SAMPLE_END = "+++SERIALDUMP+++SAMPLE+++END+++";
@@ -209,21 +973,125 @@ public abstract class SampleOperation extends NodeOperation {
          */
         private File dir;
 
+        @Parameter(names = {"-q", "--queue"}, description = QUEUE_DESCRIPTION + " Requires --destination")
+        private boolean isQueue = false;
+
+        /**
+         * Where samples are saved, null if they are only printed. Only open during {@link #perform(int, int)}.
+         */
+        private SampleSink sink;
+
+        @Parameter(names = {"--archive"}, description = ARCHIVE_DESCRIPTION)
+        private String archivePath;
+
+        /**
+         * Where samples are archived, null if they aren't. Only open during {@link #perform(int, int)}.
+         */
+        private SampleArchive archive;
+
+        @ParametersDelegate
+        private ExportOptions export = new ExportOptions();
+
+        /**
+         * Where samples are written as records, null if they are logged. Only open during {@link #perform(int, int)}.
+         */
+        private MessageWriter<Sample> writer;
+
         @Override
         public void validate() throws IOException {
+            if (isQueue && dirPath == null) {
+                throw new ParameterException("Parameter --queue requires --destination");
+            }
+
+            export.validate();
+
             // Make the directory we'll use for output - null dirPath will be passed through to dir
             dir = mkDir(dirPath);
+            mkDir(archivePath);
         }
 
         @Override
-        protected void decode(byte[] data, String nodeId) throws IOException {
-            Sample sample = Sample.parseDelimitedFrom(new ByteArrayInputStream(data));
+        public void perform(int timeout, int retries) {
+            try {
+                writer = export.open(Sample.getDescriptor(), sampleEmbeddings);
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "Unable to open output: " + e.getMessage(), e);
+                return;
+            }
+
+            if (archivePath != null) {
+                archive = new SampleArchive(new File(archivePath));
+            }
+
+            try {
+                performWithSink(timeout, retries);
+            } finally {
+                export.close(writer);
+                writer = null;
+
+                if (archive != null) {
+                    try {
+                        archive.close();
+                    } catch (IOException e) {
+                        log.log(Level.WARNING, "Unable to close archive " + archivePath, e);
+                    }
+                    archive = null;
+                }
+            }
+        }
 
+        /**
+         * Perform the decode, opening the destination if there is one.
+         * @param timeout A requested timeout for the operation to complete, in seconds.
+         * @param retries The number of times this operation can retry before aborting.
+         */
+        private void performWithSink(int timeout, int retries) {
             if (dir == null) {
+                super.perform(timeout, retries);
+                return;
+            }
+
+            try {
+                sink = openSink(dir, isQueue);
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "Unable to open destination: " + e.getMessage(), e);
+                return;
+            }
+
+            try {
+                super.perform(timeout, retries);
+            } finally {
+                try {
+                    sink.close();
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Unable to close destination " + dirPath, e);
+                }
+                sink = null;
+            }
+        }
+
+        @Override
+        protected Sample parse(byte[] data, int offset, int length) throws IOException {
+            return Sample.parseDelimitedFrom(new ByteArrayInputStream(data, offset, length));
+        }
+
+        @Override
+        protected void output(Sample sample, String nodeId) throws IOException {
+            // Need to make the node id into a dummy ipv6 address
+            String source = "dead:beef::" + nodeId;
+
+            if (sink != null) {
+                sink.save(source, sample);
+            }
+
+            if (archive != null) {
+                archive.add(source, sample);
+            }
+
+            if (writer != null) {
+                writer.write(nodeId, sample);
+            } else if (sink == null && archive == null) {
                 log.log(Level.INFO, "Decoded sample to \n{0}", sampleToString(sample));
-            } else {
-                // Need to make the node id into a dummy ipv6 address
-                saveSample(dir, "dead:beef::" + nodeId, sample);
             }
         }
 
@@ -238,57 +1106,197 @@ public abstract class SampleOperation extends NodeOperation {
         }
     }
 
+    /**
+     * Query samples in an archive.
+     */
+    @Parameters(commandDescription = "Print the samples from the node(s) in a time range, from an archive written by grab-sample or decode-sample --archive")
+    public static class Query extends Operation {
+
+        @Parameter(names = {"-A", "--archive"}, required = true, description = "Directory of the archive")
+        private String archivePath;
+
+        @Parameter(names = {"-n", "--node"}, description = "Address of a node to get samples from, as archived. Can be given more than once. Default: all the nodes in the archive")
+        private List<String> nodes = new ArrayList<>();
+
+        @Parameter(names = {"--from"}, converter = TimeConverter.class, description = "Earliest sample time, as a UTC epoch, " + TimeConverter.DATE_FORMAT + " or " + TimeConverter.DAY_FORMAT + " (UTC). Default: the start of the archive")
+        private long from = 0;
+
+        @Parameter(names = {"--to"}, converter = TimeConverter.class, description = "Latest sample time (inclusive), in the same formats as --from. Default: the end of the archive")
+        private long to = Long.MAX_VALUE;
+
+        @ParametersDelegate
+        private ExportOptions export = new ExportOptions();
+
+        /**
+         * Convert a time, given as an epoch or a UTC date, to an epoch.
+         */
+        public static class TimeConverter implements IStringConverter<Long> {
+
+            /**
+             * Format of a date and time.
+             */
+            private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+
+            /**
+             * Format of a day, meaning the start of the day.
+             */
+            private static final String DAY_FORMAT = "yyyy-MM-dd";
+
+            @Override
+            public Long convert(String value) {
+                if (value.matches("[0-9]+")) {
+                    return Long.parseLong(value);
+                }
+
+                for (String format : new String[] {DATE_FORMAT, DAY_FORMAT}) {
+                    UTCDateFormat dateFormat = new UTCDateFormat(format);
+                    dateFormat.setLenient(false);
+                    ParsePosition position = new ParsePosition(0);
+                    Date date = dateFormat.parse(value, position);
+
+                    if (date != null && position.getIndex() == value.length()) {
+                        return new EpochDate(date).getEpoch();
+                    }
+                }
+
+                throw new ParameterException("Invalid time " + value + ", should be a UTC epoch, " + DATE_FORMAT + " or " + DAY_FORMAT);
+            }
+        }
+
+        @Override
+        public void validate() throws IOException {
+            if (from > to) {
+                throw new ParameterException("Parameter --from must not be after --to");
+            }
+
+            if (!new File(archivePath).isDirectory()) {
+                throw new IOException("Archive does not exist: " + archivePath);
+            }
+
+            export.validate();
+        }
+
+        @Override
+        public void perform(int timeout, int retries) {
+            final MessageWriter<Sample> writer;
+
+            try {
+                writer = export.open(Sample.getDescriptor(), sampleEmbeddings);
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "Unable to open output: " + e.getMessage(), e);
+                return;
+            }
+
+            // Read only, so this can run while grab-sample is adding to the archive
+            SampleArchive archive = new SampleArchive(new File(archivePath), true);
+
+            try {
+                for (final String node : nodes.isEmpty() ? archive.getNodes() : nodes) {
+                    setContext(node);
+
+                    final int[] count = new int[1];
+                    archive.query(node, from, to, new SampleArchive.SampleVisitor() {
+                        @Override
+                        public void visit(Sample sample) throws IOException {
+                            count[0]++;
+
+                            if (writer != null) {
+                                writer.write(node, sample);
+                            } else {
+                                log.log(Level.INFO, "Archived sample: \n{0}", sampleToString(sample));
+                            }
+                        }
+                    });
+
+                    log.log(Level.FINE, "Found {0} sample(s)", count[0]);
+                }
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "Unable to query archive: " + e.getMessage(), e);
+            } finally {
+                clearContext();
+                export.close(writer);
+
+                try {
+                    archive.close();
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Unable to close archive " + archivePath, e);
+                }
+            }
+        }
+    }
+
     /**
      * Get a sample from a URI.
      * @param uri The URI to get a sample from.
-     * @return The Sample decoded at the URI.
-     * @throws IOException If we fail to communicate with the node, or we fail to decode the sample we got.
+     * @return A future completed with the Sample decoded at the URI.
+     * It is completed exceptionally if we fail to communicate with the node, or we fail to decode the sample we got.
      */
-    protected static Sample getSample(URI uri) throws IOException {
-        CoapClient client = new CoapClient(uri);
+    protected CompletableFuture<Sample> getSample(final URI uri) {
+        AsyncCoapClient client = getClient(uri);
         log.log(Level.FINE, "Attempting to get sample from: {0}", client.getURI());
 
-        CoapResponse response = client.get();
-        if (response != null && response.isSuccess()) {
-            return Sample.parseDelimitedFrom(new ByteArrayInputStream(response.getPayload()));
-        }
-
-        throw new CoapException(uri, Method.GET, response, "Unable to get sample");
+        return client.get("Unable to get sample").thenApply(new IOFunction<CoapResponse, Sample>() {
+            @Override
+            protected Sample applyIO(CoapResponse response) throws IOException {
+                Sample sample = Sample.parseDelimitedFrom(new ByteArrayInputStream(response.getPayload()));
+                samplesFetched.inc(getHostAddress(uri));
+                return sample;
+            }
+        });
     }
 
     /**
      * Delete a sample from a URI.
      * @param uri The URI of the sample.
-     * @throws IOException If we fail to communicate with the node, or we fail to decode the sample we got.
+     * @return A future completed once the sample has been deleted.
+     * It is completed exceptionally if we fail to communicate with the node.
      */
-    protected static void deleteSample(URI uri) throws IOException {
-        CoapClient client = new CoapClient(uri);
-
+    protected CompletableFuture<Void> deleteSample(final URI uri) {
+        AsyncCoapClient client = getClient(uri);
         log.log(Level.FINE, "Attempting to delete sample from: {0}", client.getURI());
 
-        CoapResponse response = client.delete();
-        if (response != null && response.isSuccess()) {
-            return;
+        return client.delete("Failed to delete Sample").thenApply(new Function<CoapResponse, Void>() {
+            @Override
+            public Void apply(CoapResponse response) {
+                samplesDeleted.inc(getHostAddress(uri));
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Open somewhere to save samples to.
+     * @param dir The directory to save samples in.
+     * @param isQueue True to append samples to a {@link SampleQueue}, false to save every sample to it's own file.
+     * @return The sink.
+     * @throws IOException If the sink can't be opened.
+     */
+    protected static SampleSink openSink(File dir, boolean isQueue) throws IOException {
+        if (isQueue) {
+            return new SampleQueue(dir);
         }
 
-        throw new CoapException(uri, Method.DELETE, response, "Failed to delete Sample");
+        return new DirectorySink(dir);
     }
 
     /**
-     * Save a sample as a protocol buffer
-     * @param dir The directory to create the file in.
-     * @param suffix A suffix to append to the filename.
-     * @param sample The sample to save.
-     * @throws IOException If an error occurs encoding the sample, or writing to the file.
+     * Get the address of the node from a URI.
+     * @param uri A URI of the node.
+     * @return The IP address of the node, without the square brackets of IPv6 addresses.
      */
-    protected static void saveSample(File dir, String suffix, Sample sample) throws IOException {
-        File file = new File(dir, System.nanoTime() + "_" + suffix);
+    protected static String getHostAddress(URI uri) {
+        String host = uri.getHost();
+        return host.startsWith("[") ? host.substring(1, host.length() - 1) : host;
+    }
 
-        try (FileOutputStream fileStream = new FileOutputStream(file)) {
-            sample.writeDelimitedTo(fileStream);
-            fileStream.flush();
-            log.log(Level.INFO, "Saved sample to file {0}", file);
-        }
+    /**
+     * Check if an error is a sample that couldn't be found.
+     * @param error The error.
+     * @return True if the node said the sample is not found, false otherwise.
+     */
+    protected static boolean isNotFound(Throwable error) {
+        Throwable cause = unwrap(error);
+        return cause instanceof CoapException && ((CoapException) cause).getCode() == ResponseCode.NOT_FOUND;
     }
 
     /**
@@ -322,16 +1330,17 @@ public abstract class SampleOperation extends NodeOperation {
     }
 
     @Override
-    protected void processNode(URI uri, NodeAddress nodeAddr) throws IOException {
-        processSample(getURI(uri, sampleId));
+    protected CompletableFuture<Boolean> processNodeAsync(URI uri, NodeAddress nodeAddr) {
+        return processSample(getURI(uri, sampleId));
     }
 
     /**
-     * Process a given sample. Returns true if in the case of multiple samples the ID should be decremented.
-     * @param uri
-     * @throws IOException
+     * Process a given sample.
+     * @param uri The URI of the sample.
+     * @return A future completed with true if the node has more samples that need processing, false otherwise.
+     * It is completed exceptionally if an error occurs processing the sample.
      */
-    public abstract void processSample(URI uri) throws IOException;
+    public abstract CompletableFuture<Boolean> processSample(URI uri);
 
     /**
      * Get the URI associated with a given sample ID.
@@ -354,6 +1363,6 @@ public abstract class SampleOperation extends NodeOperation {
      * @return A string representing the sample, properly formatted.
      */
     private static String sampleToString(Sample sample) throws IOException {
-        return ProtoBufUtils.toString(sample, sampleOverrideMap);
+        return samplePrinter.toString(sample);
     }
 }
@@ -0,0 +1,452 @@
+/**
+ * upload saved samples to the backend
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.operations;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.mountainsensing.fetcher.Operation;
+import org.mountainsensing.fetcher.net.HttpUploader;
+import org.mountainsensing.fetcher.storage.DirectorySink;
+import org.mountainsensing.fetcher.storage.QueueReader;
+import org.mountainsensing.fetcher.storage.SampleQueue;
+import org.mountainsensing.fetcher.utils.FileUtils;
+
+/**
+ * Operation uploading saved samples to the backend, replacing the poster.
+ * Several samples are uploaded at once over kept alive connections,
+ * and samples are only archived once the backend has accepted them (2xx).
+ * Uploads are retried on communication and server (5xx) errors. Any other status is a permanent rejection:
+ * the sample is moved to the rejected directory, so it doesn't hold up the ones after it, and can be uploaded again by hand.
+ */
+@Parameters(commandDescription = "Upload saved samples to the backend, and archive them")
+public class UploadOperation extends Operation {
+
+    private static final Logger log = Logger.getLogger(UploadOperation.class.getName());
+
+    /**
+     * System property setting the number of connections the JDK keeps alive per server.
+     * We need one per concurrent upload.
+     */
+    private static final String MAX_CONNECTIONS_PROPERTY = "http.maxConnections";
+
+    /**
+     * Separator between the time and source in sample file names.
+     */
+    private static final String SOURCE_SEPARATOR = "_";
+
+    /**
+     * The outcome of uploading a sample.
+     */
+    private enum Outcome {
+        /**
+         * The backend accepted the sample.
+         */
+        UPLOADED,
+
+        /**
+         * The backend rejected the sample, and it was moved to the rejected directory.
+         */
+        REJECTED,
+
+        /**
+         * The sample couldn't be uploaded, or archived or rejected afterwards. It will be uploaded again next time.
+         */
+        FAILED
+    }
+
+    @Parameter(names = {"-s", "--server"}, description = "URL to POST samples to")
+    private String server = "http://data.mountainsensing.org/feshie/reciever/upload.php";
+
+    @Parameter(names = {"-d", "--source"}, description = "Directory samples were saved in by grab-sample or decode-sample")
+    private String sourcePath = "/ms/queue/";
+
+    @Parameter(names = {"-q", "--queue"}, description = "The source is a segmented queue (see grab-sample --queue), instead of one file per sample")
+    private boolean isQueue = false;
+
+    @Parameter(names = {"-A", "--archive"}, description = "Directory uploaded samples (or queue segments) are moved to. Must be on the same filesystem as the source")
+    private String archivePath = "/ms/archive/";
+
+    @Parameter(names = {"-R", "--rejected"}, description = "Directory samples rejected by the backend are moved to, one file per sample. "
+        + "They can be uploaded again with --source once the backend accepts them")
+    private String rejectedPath = "/ms/rejected/";
+
+    @Parameter(names = {"-j", "--parallelism"}, validateWith = NodeOperation.ParallelismValidator.class, description = "Maximum number of samples uploaded at once")
+    private int parallelism = 4;
+
+    /**
+     * Source directory. Will be created by {@link #validate()}.
+     */
+    private File sourceDir;
+
+    /**
+     * Archive directory. Will be created by {@link #validate()}.
+     */
+    private File archiveDir;
+
+    /**
+     * Rejected directory. Will be created by {@link #validate()}.
+     */
+    private File rejectedDir;
+
+    /**
+     * Uploads samples to the server. Only valid during {@link #perform(int, int)}.
+     */
+    private HttpUploader uploader;
+
+    /**
+     * Threads uploading samples. Only valid during {@link #perform(int, int)}.
+     */
+    private ExecutorService workers;
+
+    /**
+     * Number of times an upload is retried on a communication error.
+     */
+    private int retries;
+
+    /**
+     * Number of samples uploaded.
+     */
+    private final AtomicInteger uploadedCount = new AtomicInteger();
+
+    /**
+     * Number of samples that couldn't be uploaded.
+     */
+    private final AtomicInteger failedCount = new AtomicInteger();
+
+    /**
+     * Number of samples rejected by the backend.
+     */
+    private final AtomicInteger rejectedCount = new AtomicInteger();
+
+    /**
+     * Number of samples that were uploaded, but couldn't be archived, so will be uploaded again next time.
+     */
+    private final AtomicInteger unarchivedCount = new AtomicInteger();
+
+    @Override
+    public void validate() throws IOException {
+        sourceDir = SampleOperation.mkDir(sourcePath);
+        archiveDir = SampleOperation.mkDir(archivePath);
+        rejectedDir = SampleOperation.mkDir(rejectedPath);
+    }
+
+    @Override
+    public void perform(int timeout, int retries) {
+        this.retries = retries;
+
+        if (System.getProperty(MAX_CONNECTIONS_PROPERTY) == null) {
+            System.setProperty(MAX_CONNECTIONS_PROPERTY, Integer.toString(parallelism));
+        }
+
+        uploader = new HttpUploader(server, (int) TimeUnit.SECONDS.toMillis(timeout));
+        workers = Executors.newFixedThreadPool(parallelism, new UploadThreadFactory());
+
+        try {
+            if (isQueue) {
+                uploadQueue();
+            } else {
+                uploadFiles();
+            }
+        } catch (IOException e) {
+            log.log(Level.SEVERE, e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            workers.shutdownNow();
+        }
+
+        log.log(Level.INFO, "Uploaded {0} sample(s), {1} failed, {2} rejected, {3} uploaded but not archived (they will be uploaded again)",
+            new Object[] {uploadedCount.get(), failedCount.get(), rejectedCount.get(), unarchivedCount.get()});
+    }
+
+    /**
+     * Upload every sample file in the source directory.
+     * Each file is archived as soon as it has been uploaded.
+     * @throws IOException If the source directory can't be listed.
+     * @throws InterruptedException If interrupted while waiting for the uploads.
+     */
+    private void uploadFiles() throws IOException, InterruptedException {
+        File[] files = sourceDir.listFiles();
+
+        if (files == null) {
+            throw new IOException("Unable to list " + sourceDir);
+        }
+
+        // Oldest first, the names start with the time the sample was saved
+        Arrays.sort(files);
+
+        List<Future<Outcome>> results = new ArrayList<>();
+
+        for (final File file : files) {
+            int separator = file.getName().indexOf(SOURCE_SEPARATOR);
+
+            // Skip hidden files, and files that aren't samples
+            if (file.getName().startsWith(".") || separator < 0 || !file.isFile()) {
+                continue;
+            }
+
+            final String source = file.getName().substring(separator + 1);
+
+            results.add(workers.submit(new Upload(file.getName()) {
+                @Override
+                protected int upload() throws IOException {
+                    return uploader.upload(source, file.toPath());
+                }
+
+                @Override
+                protected void uploaded() throws IOException {
+                    move(file, archiveDir);
+                }
+
+                @Override
+                protected void rejected() throws IOException {
+                    move(file, rejectedDir);
+                }
+            }));
+        }
+
+        await(results);
+    }
+
+    /**
+     * Upload every record in the source queue that hasn't been uploaded yet.
+     * Records are uploaded a segment at a time, and the cursor is moved past every record uploaded or rejected
+     * before the first one that failed. Fully uploaded segments are archived.
+     * Records uploaded after one that failed will be uploaded again next time.
+     * @throws IOException If the queue can't be read, or the cursor updated.
+     * @throws InterruptedException If interrupted while waiting for the uploads.
+     */
+    private void uploadQueue() throws IOException, InterruptedException {
+        QueueReader reader = new QueueReader(sourceDir);
+        final DirectorySink rejects = new DirectorySink(rejectedDir);
+
+        while (true) {
+            List<SampleQueue.Record> records = reader.read();
+
+            if (records.isEmpty()) {
+                break;
+            }
+
+            List<Future<Outcome>> results = new ArrayList<>();
+
+            for (final SampleQueue.Record record : records) {
+                results.add(workers.submit(new Upload(sourcePath + "#" + record.getSeq()) {
+                    @Override
+                    protected int upload() throws IOException {
+                        return uploader.upload(record.getSource(), record.getPayload());
+                    }
+
+                    @Override
+                    protected void rejected() throws IOException {
+                        rejects.save(record.getSource(), record.getPayload());
+                    }
+                }));
+            }
+
+            List<Outcome> outcomes = await(results);
+
+            long next = reader.getCursor();
+            for (int i = 0; i < records.size() && outcomes.get(i) != Outcome.FAILED; i++) {
+                next = records.get(i).getSeq() + 1;
+            }
+
+            reader.commit(next);
+
+            for (File segment : reader.getConsumedSegments()) {
+                move(segment, archiveDir);
+            }
+
+            // Don't carry on past a record that failed, it would be skipped
+            if (outcomes.contains(Outcome.FAILED)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Wait for uploads to complete.
+     * @param results The results of the uploads.
+     * @return The outcome of each upload.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private List<Outcome> await(List<Future<Outcome>> results) throws InterruptedException {
+        List<Outcome> outcomes = new ArrayList<>();
+
+        for (Future<Outcome> result : results) {
+            try {
+                outcomes.add(result.get());
+            } catch (ExecutionException e) {
+                // Upload handles all expected errors itself
+                log.log(Level.SEVERE, "Unexpected error uploading sample", e.getCause());
+                outcomes.add(Outcome.FAILED);
+            }
+        }
+
+        return outcomes;
+    }
+
+    /**
+     * Move a file to another directory.
+     * @param file The file.
+     * @param dir The directory, on the same filesystem.
+     * @throws IOException If the file can't be moved.
+     */
+    private static void move(File file, File dir) throws IOException {
+        File moved = new File(dir, file.getName());
+
+        Files.move(file.toPath(), moved.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        FileUtils.syncDir(dir);
+        log.log(Level.FINE, "Moved {0} to {1}", new Object[] {file, moved});
+    }
+
+    /**
+     * Task uploading a single sample, with retries on communication and server errors.
+     */
+    private abstract class Upload implements Callable<Outcome> {
+
+        /**
+         * Human readable name of the sample, used as the context.
+         */
+        private final String name;
+
+        /**
+         * Create a new upload.
+         * @param name Human readable name of the sample, used as the context.
+         */
+        public Upload(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Upload the sample.
+         * @return The HTTP status code.
+         * @throws IOException If the sample can't be uploaded.
+         */
+        protected abstract int upload() throws IOException;
+
+        /**
+         * Called once the sample has been uploaded successfully.
+         * @throws IOException If an error occurs.
+         */
+        protected void uploaded() throws IOException {
+
+        }
+
+        /**
+         * Called once the backend has rejected the sample, to move it to the rejected directory.
+         * @throws IOException If the sample can't be moved.
+         */
+        protected abstract void rejected() throws IOException;
+
+        @Override
+        public Outcome call() {
+            setContext(name);
+
+            try {
+                Outcome outcome = tryUpload();
+
+                if (outcome == Outcome.FAILED) {
+                    failedCount.incrementAndGet();
+                    return outcome;
+                }
+
+                if (outcome == Outcome.REJECTED) {
+                    try {
+                        rejected();
+                    } catch (IOException e) {
+                        // It will be uploaded, and rejected, again next time
+                        log.log(Level.SEVERE, e.getMessage(), e);
+                        failedCount.incrementAndGet();
+                        return Outcome.FAILED;
+                    }
+
+                    rejectedCount.incrementAndGet();
+                    return outcome;
+                }
+
+                try {
+                    uploaded();
+                } catch (IOException e) {
+                    // Don't retry, the sample has been uploaded
+                    log.log(Level.SEVERE, e.getMessage(), e);
+                    unarchivedCount.incrementAndGet();
+                    return Outcome.FAILED;
+                }
+
+                // Only counted once it won't be uploaded again
+                uploadedCount.incrementAndGet();
+                return outcome;
+
+            } finally {
+                clearContext();
+            }
+        }
+
+        /**
+         * Upload the sample, retrying on communication and server errors.
+         * @return UPLOADED if the sample was uploaded, REJECTED if the backend refused it, or FAILED otherwise.
+         */
+        private Outcome tryUpload() {
+            for (int attempt = 0; attempt <= retries; attempt++) {
+                try {
+                    int status = upload();
+
+                    if (HttpUploader.isSuccess(status)) {
+                        log.log(Level.FINE, "Uploaded, status code {0}", status);
+                        return Outcome.UPLOADED;
+                    }
+
+                    if (!HttpUploader.isServerError(status)) {
+                        // The server has told us no, retrying isn't going to help
+                        log.log(Level.SEVERE, "Sample rejected by server, status code {0}", status);
+                        return Outcome.REJECTED;
+                    }
+
+                    log.log(Level.WARNING, "Server error, status code {0}", status);
+
+                } catch (IOException e) {
+                    log.log(Level.WARNING, e.getMessage(), e);
+                }
+            }
+
+            return Outcome.FAILED;
+        }
+    }
+
+    /**
+     * ThreadFactory creating daemon threads with meaningful names for uploading.
+     */
+    private static class UploadThreadFactory implements ThreadFactory {
+
+        /**
+         * Number of threads created so far.
+         */
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "upload-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -6,15 +6,13 @@
 package org.mountainsensing.fetcher.operations;
 
 import com.beust.jcommander.Parameters;
-import java.io.IOException;
 import java.net.URI;
 import java.text.DateFormat;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.eclipse.californium.core.CoapClient;
 import org.eclipse.californium.core.CoapResponse;
-import org.mountainsensing.fetcher.CoapException;
-import org.mountainsensing.fetcher.CoapException.Method;
 import org.mountainsensing.fetcher.net.NodeAddress;
 import org.mountainsensing.fetcher.utils.EpochDate;
 import org.mountainsensing.fetcher.utils.FormatUtils;
@@ -24,38 +22,40 @@ import org.mountainsensing.fetcher.utils.UTCDateFormat;
  * Operation for getting the uptime.
  */
 @Parameters(commandDescription = "Get the uptime from the node(s)")
-public class UptimeOperation extends NodeOperation {
+public class UptimeOperation extends AsyncNodeOperation {
 
     private static final Logger log = Logger.getLogger(UptimeOperation.class.getName());
 
     private static final String RESSOURCE = "uptime";
 
     /**
-     * The format to use for displaying dates.
+     * Get the format to use for displaying dates.
+     * DateFormats aren't thread safe, so a new one is needed for every node.
+     * @return A DateFormat.
      */
-    private static final DateFormat dateFormat = new UTCDateFormat();
+    private static DateFormat getDateFormat() {
+        return new UTCDateFormat();
+    }
 
     @Override
-    protected void processNode(URI uri, NodeAddress nodeAddr) throws IOException {
-        CoapClient client = new CoapClient(uri);
-        CoapResponse response = client.get();
-
-        if (response != null && response.isSuccess()) {
-            long uptime = Long.parseLong(response.getResponseText());
-
-            // Boot time is current time - uptime
-            EpochDate bootTime = new EpochDate(new EpochDate().getEpoch() - uptime);
-            log.log(Level.INFO, "Uptime is {0}s ({1}). Boot time: {2}",
-                    new Object[] {
-                        uptime,
-                        FormatUtils.getInterval(uptime),
-                        dateFormat.format(bootTime)
-                    }
-            );
-            return;
-        }
+    protected CompletableFuture<Boolean> processNodeAsync(URI uri, NodeAddress nodeAddr) {
+        return getClient(uri).get("Failed to get uptime").thenApply(new Function<CoapResponse, Boolean>() {
+            @Override
+            public Boolean apply(CoapResponse response) {
+                long uptime = Long.parseLong(response.getResponseText());
 
-        throw new CoapException(uri, Method.GET, response, "Failed to get uptime");
+                // Boot time is current time - uptime
+                EpochDate bootTime = new EpochDate(new EpochDate().getEpoch() - uptime);
+                log.log(Level.INFO, "Uptime is {0}s ({1}). Boot time: {2}",
+                        new Object[] {
+                            uptime,
+                            FormatUtils.getInterval(uptime),
+                            getDateFormat().format(bootTime)
+                        }
+                );
+                return false;
+            }
+        });
     }
 
     @Override
@@ -0,0 +1,658 @@
+/**
+ * column file of a sample archive
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import org.mountainsensing.fetcher.utils.FileUtils;
+
+/**
+ * A column of a {@link SampleArchive}: the values of one field of the samples from one node, with the time of each sample.
+ * The file is a sequence of {@link #BLOCK_SIZE} blocks. Each block starts with a header:
+ * {@link #MAGIC}, the number of entries (int), the length of the entries (int), the CRC32 of the block with this field set to 0 (int),
+ * the lowest and highest time (longs), and the lowest and highest value (longs, or doubles for floating point columns).
+ * The entries follow. Each entry is the time, as a zigzag varint of the difference from the previous entry,
+ * then the value: a zigzag varint of the difference from the previous entry for integer columns, or a float or double.
+ * The first entry of a block is a difference from 0. The rest of the block is zeros. Fixed size numbers are big endian.
+ * Only full blocks are appended to the file, a block is never rewritten, so a crash can't corrupt entries that were already synced.
+ * The last block is kept in memory. When it is flushed, it is saved to a tail file next to the column ({@link #TAIL_SUFFIX}),
+ * holding the index of the block (long) then the block, which is replaced atomically. The tail file is ignored once the block is in the column.
+ * A column can also be opened read only, while another process may be appending to it.
+ */
+class ArchiveColumn implements Closeable {
+
+    private static final Logger log = Logger.getLogger(ArchiveColumn.class.getName());
+
+    /**
+     * Magic number at the start of every block, "MSA1".
+     */
+    static final int MAGIC = 0x4D534131;
+
+    /**
+     * Size of a block.
+     */
+    static final int BLOCK_SIZE = 4096;
+
+    /**
+     * Size of the block header.
+     */
+    static final int HEADER_SIZE = 48;
+
+    /**
+     * Position of the CRC in the block header.
+     */
+    private static final int CRC_POSITION = 12;
+
+    /**
+     * Size of the largest possible entry, two varints of a long.
+     */
+    private static final int MAX_ENTRY_SIZE = 20;
+
+    /**
+     * Suffix of the tail file, appended to the name of the column file.
+     */
+    private static final String TAIL_SUFFIX = ".tail";
+
+    /**
+     * Size of the tail file, the index of the block and the block.
+     */
+    private static final int TAIL_FILE_SIZE = 8 + BLOCK_SIZE;
+
+    /**
+     * The types of values a column can hold.
+     */
+    enum Kind {
+        /**
+         * Integers, booleans and enums, stored as longs.
+         */
+        INTEGER("i64"),
+
+        /**
+         * Floats.
+         */
+        FLOAT("f32"),
+
+        /**
+         * Doubles.
+         */
+        DOUBLE("f64");
+
+        /**
+         * Suffix of column files holding the kind of value.
+         */
+        private final String suffix;
+
+        /**
+         * Create a new kind.
+         * @param suffix Suffix of column files holding the kind of value.
+         */
+        private Kind(String suffix) {
+            this.suffix = suffix;
+        }
+
+        /**
+         * Get the suffix of column files holding this kind of value.
+         * @return The suffix, without a dot.
+         */
+        String getSuffix() {
+            return suffix;
+        }
+    }
+
+    /**
+     * The column file.
+     */
+    private final File file;
+
+    /**
+     * The tail file, holding the last block when it isn't full.
+     */
+    private final File tailFile;
+
+    /**
+     * The type of values in the column.
+     */
+    private final Kind kind;
+
+    /**
+     * Channel to the column file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The last block.
+     */
+    private final ByteBuffer tail = ByteBuffer.allocate(BLOCK_SIZE);
+
+    /**
+     * Index of the last block in the file.
+     */
+    private long tailIndex;
+
+    /**
+     * Number of entries in the last block.
+     */
+    private int count;
+
+    /**
+     * Lowest time in the last block.
+     */
+    private long minTime;
+
+    /**
+     * Highest time in the last block.
+     */
+    private long maxTime;
+
+    /**
+     * Lowest value in the last block, integer columns only.
+     */
+    private long minInteger;
+
+    /**
+     * Highest value in the last block, integer columns only.
+     */
+    private long maxInteger;
+
+    /**
+     * Lowest value in the last block, floating point columns only.
+     */
+    private double minFloating;
+
+    /**
+     * Highest value in the last block, floating point columns only.
+     */
+    private double maxFloating;
+
+    /**
+     * Time of the last entry in the last block.
+     */
+    private long lastTime;
+
+    /**
+     * Value of the last entry in the last block, integer columns only.
+     */
+    private long lastInteger;
+
+    /**
+     * True if there are entries that haven't been synced, in the last block or in full blocks appended to the file.
+     */
+    private boolean isDirty;
+
+    /**
+     * Open a column, creating it if it doesn't exist, and load the last block.
+     * A last block that was partially written during a crash is discarded.
+     * @param file The column file.
+     * @param kind The type of values in the column.
+     * @throws IOException If the column can't be opened or read.
+     */
+    ArchiveColumn(File file, Kind kind) throws IOException {
+        this(file, kind, false);
+    }
+
+    /**
+     * Open a column.
+     * Read only columns are never repaired, and blocks that are being written by another process are skipped when scanning.
+     * @param file The column file.
+     * @param kind The type of values in the column.
+     * @param isReadOnly True to only read the column, in which case it must exist.
+     * @throws IOException If the column can't be opened or read.
+     */
+    ArchiveColumn(File file, Kind kind, boolean isReadOnly) throws IOException {
+        this.file = file;
+        this.tailFile = new File(file.getPath() + TAIL_SUFFIX);
+        this.kind = kind;
+
+        if (isReadOnly) {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            // All the full blocks are scanned from the file, nothing is appended
+            reset(channel.size() / BLOCK_SIZE);
+            loadTailFile();
+            return;
+        }
+
+        if (!file.exists()) {
+            // Left over from a column that was deleted
+            Files.deleteIfExists(tailFile.toPath());
+        }
+
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long size = channel.size();
+        long blocks = size / BLOCK_SIZE;
+
+        if (size % BLOCK_SIZE != 0) {
+            log.log(Level.WARNING, "Discarding {0} bytes of partially written block from {1}", new Object[] {size % BLOCK_SIZE, file});
+            channel.truncate(blocks * BLOCK_SIZE);
+        }
+
+        if (blocks > 0) {
+            ByteBuffer last = ByteBuffer.allocate(BLOCK_SIZE);
+
+            if (!readBlock(blocks - 1, last)) {
+                // The tail file still has the entries that were synced
+                log.log(Level.WARNING, "Discarding partially written block from {0}", file);
+                channel.truncate(--blocks * BLOCK_SIZE);
+            } else if (!isFull(last)) {
+                // Written in place by an older version, move it to the tail file so it's never rewritten
+                load(blocks - 1, last);
+                isDirty = true;
+                flush();
+                channel.truncate(--blocks * BLOCK_SIZE);
+                return;
+            }
+        }
+
+        reset(blocks);
+        loadTailFile();
+    }
+
+    /**
+     * Get the type of values in the column.
+     * @return The kind of value.
+     */
+    Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Append an entry to an integer column.
+     * @param time The time of the sample.
+     * @param value The value.
+     * @throws IOException If the last block is full, and can't be written.
+     */
+    void append(long time, long value) throws IOException {
+        ensureSpace();
+
+        putVarint(time - lastTime);
+        putVarint(value - lastInteger);
+
+        minInteger = Math.min(minInteger, value);
+        maxInteger = Math.max(maxInteger, value);
+        lastInteger = value;
+        appended(time);
+    }
+
+    /**
+     * Append an entry to a floating point column.
+     * @param time The time of the sample.
+     * @param value The value.
+     * @throws IOException If the last block is full, and can't be written.
+     */
+    void append(long time, double value) throws IOException {
+        ensureSpace();
+
+        putVarint(time - lastTime);
+        if (kind == Kind.FLOAT) {
+            tail.putFloat((float) value);
+        } else {
+            tail.putDouble(value);
+        }
+
+        // NaNs would make the min and max NaN
+        if (!Double.isNaN(value)) {
+            minFloating = Math.min(minFloating, value);
+            maxFloating = Math.max(maxFloating, value);
+        }
+        appended(time);
+    }
+
+    /**
+     * Visit the entries with a time in a range, in the order they were appended.
+     * Blocks outside the range are skipped by only reading their header.
+     * @param from The lowest time to visit.
+     * @param to The highest time to visit.
+     * @param visitor Receives the entries.
+     * @throws IOException If the column can't be read, or the visitor throws it.
+     */
+    void scan(long from, long to, SampleArchive.Visitor visitor) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+
+        for (long i = 0; i < tailIndex; i++) {
+            block.clear().limit(HEADER_SIZE);
+            channel.read(block, i * BLOCK_SIZE);
+
+            if (block.getLong(16) > to || block.getLong(24) < from) {
+                continue;
+            }
+
+            if (!readBlock(i, block)) {
+                log.log(Level.WARNING, "Skipping corrupt block {0} of {1}", new Object[] {i, file});
+                continue;
+            }
+
+            decode(block, from, to, visitor);
+        }
+
+        if (count > 0 && minTime <= to && maxTime >= from) {
+            writeHeader();
+            decode(tail, from, to, visitor);
+        }
+    }
+
+    /**
+     * Sync the full blocks appended to the file, and save the last block to the tail file, if they have changed.
+     * @throws IOException If writing fails.
+     */
+    void flush() throws IOException {
+        if (!isDirty) {
+            return;
+        }
+
+        // The blocks before the tail must be synced first, or the tail could end up after a gap
+        channel.force(false);
+
+        if (count == 0) {
+            Files.deleteIfExists(tailFile.toPath());
+        } else {
+            writeHeader();
+            FileUtils.replace(tailFile, new FileUtils.Contents() {
+                @Override
+                public void write(OutputStream out) throws IOException {
+                    ByteBuffer index = ByteBuffer.allocate(8).putLong(0, tailIndex);
+                    out.write(index.array());
+                    out.write(tail.array(), tail.arrayOffset(), BLOCK_SIZE);
+                }
+            });
+        }
+
+        isDirty = false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Make sure the last block has room for another entry, starting a new block if it doesn't.
+     * @throws IOException If the last block is full, and can't be written.
+     */
+    private void ensureSpace() throws IOException {
+        if (tail.position() + MAX_ENTRY_SIZE <= BLOCK_SIZE) {
+            return;
+        }
+
+        writeTail();
+        reset(tailIndex + 1);
+        // The full block still has to be synced
+        isDirty = true;
+    }
+
+    /**
+     * Update the time range of the last block after an entry has been appended.
+     * @param time The time of the entry.
+     */
+    private void appended(long time) {
+        minTime = Math.min(minTime, time);
+        maxTime = Math.max(maxTime, time);
+        lastTime = time;
+        count++;
+        isDirty = true;
+    }
+
+    /**
+     * Start a new, empty, last block.
+     * @param index The index of the block in the file.
+     */
+    private void reset(long index) {
+        tailIndex = index;
+        count = 0;
+        minTime = Long.MAX_VALUE;
+        maxTime = Long.MIN_VALUE;
+        minInteger = Long.MAX_VALUE;
+        maxInteger = Long.MIN_VALUE;
+        minFloating = Double.POSITIVE_INFINITY;
+        maxFloating = Double.NEGATIVE_INFINITY;
+        lastTime = 0;
+        lastInteger = 0;
+        isDirty = false;
+
+        tail.clear();
+        tail.put(new byte[BLOCK_SIZE]);
+        tail.position(HEADER_SIZE);
+    }
+
+    /**
+     * Write the header of the last block, including the CRC, leaving the position after the last entry.
+     */
+    private void writeHeader() {
+        tail.putInt(0, MAGIC);
+        tail.putInt(4, count);
+        tail.putInt(8, tail.position() - HEADER_SIZE);
+        tail.putInt(CRC_POSITION, 0);
+        tail.putLong(16, minTime);
+        tail.putLong(24, maxTime);
+
+        if (kind == Kind.INTEGER) {
+            tail.putLong(32, minInteger);
+            tail.putLong(40, maxInteger);
+        } else {
+            tail.putDouble(32, minFloating);
+            tail.putDouble(40, maxFloating);
+        }
+
+        tail.putInt(CRC_POSITION, crc(tail));
+    }
+
+    /**
+     * Append the last block to the file, once it is full.
+     * @throws IOException If writing fails.
+     */
+    private void writeTail() throws IOException {
+        writeHeader();
+
+        ByteBuffer block = tail.duplicate();
+        block.clear();
+
+        long position = tailIndex * BLOCK_SIZE;
+        while (block.hasRemaining()) {
+            position += channel.write(block, position);
+        }
+    }
+
+    /**
+     * Load the last block from the tail file, if it has one that comes after the full blocks of the file.
+     * @throws IOException If the tail file can't be read.
+     */
+    private void loadTailFile() throws IOException {
+        ByteBuffer contents;
+
+        try {
+            byte[] bytes = Files.readAllBytes(tailFile.toPath());
+            if (bytes.length != TAIL_FILE_SIZE) {
+                log.log(Level.WARNING, "Ignoring tail file {0} of the wrong size", tailFile);
+                return;
+            }
+            contents = ByteBuffer.wrap(bytes);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+
+        // A tail file for an earlier block is left over from before that block was appended to the file
+        if (contents.getLong(0) != tailIndex) {
+            return;
+        }
+
+        contents.position(8);
+        ByteBuffer last = contents.slice();
+
+        if (!isValid(last)) {
+            log.log(Level.WARNING, "Ignoring corrupt tail file {0}", tailFile);
+            return;
+        }
+
+        load(tailIndex, last);
+    }
+
+    /**
+     * Make a block the last block, to carry on appending to it.
+     * @param index The index of the block.
+     * @param block The block.
+     * @throws IOException If the block is corrupt.
+     */
+    private void load(long index, ByteBuffer block) throws IOException {
+        reset(index);
+        decode(block, Long.MIN_VALUE, Long.MAX_VALUE, new SampleArchive.Visitor() {
+            @Override
+            public void visit(long time, long value) throws IOException {
+                append(time, value);
+            }
+
+            @Override
+            public void visit(long time, double value) throws IOException {
+                append(time, value);
+            }
+        });
+        isDirty = false;
+    }
+
+    /**
+     * Check if a block has no room for another entry.
+     * @param block The block.
+     * @return True if the block is full.
+     */
+    private static boolean isFull(ByteBuffer block) {
+        return HEADER_SIZE + block.getInt(8) + MAX_ENTRY_SIZE > BLOCK_SIZE;
+    }
+
+    /**
+     * Read a block from the file, and check it.
+     * @param index The index of the block.
+     * @param block A buffer of {@link #BLOCK_SIZE} to read it into.
+     * @return True if the block is valid, false otherwise.
+     * @throws IOException If the block can't be read.
+     */
+    private boolean readBlock(long index, ByteBuffer block) throws IOException {
+        block.clear();
+
+        long position = index * BLOCK_SIZE;
+        while (block.hasRemaining()) {
+            int read = channel.read(block, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+
+        return isValid(block);
+    }
+
+    /**
+     * Check a block.
+     * @param block A buffer of {@link #BLOCK_SIZE} holding the block.
+     * @return True if the block is valid, false otherwise.
+     */
+    private static boolean isValid(ByteBuffer block) {
+        int length = block.getInt(8);
+        if (block.getInt(0) != MAGIC || length < 0 || HEADER_SIZE + length > BLOCK_SIZE) {
+            return false;
+        }
+
+        int expected = block.getInt(CRC_POSITION);
+        block.putInt(CRC_POSITION, 0);
+        block.position(HEADER_SIZE + length);
+        int actual = crc(block);
+        block.putInt(CRC_POSITION, expected);
+
+        return actual == expected;
+    }
+
+    /**
+     * Visit the entries of a block with a time in a range.
+     * @param block The block, with the position after the last entry.
+     * @param from The lowest time to visit.
+     * @param to The highest time to visit.
+     * @param visitor Receives the entries.
+     * @throws IOException If the visitor throws it, or the block is corrupt.
+     */
+    private void decode(ByteBuffer block, long from, long to, SampleArchive.Visitor visitor) throws IOException {
+        ByteBuffer entries = block.duplicate();
+        entries.limit(HEADER_SIZE + block.getInt(8)).position(HEADER_SIZE);
+
+        long time = 0;
+        long integer = 0;
+
+        try {
+            while (entries.hasRemaining()) {
+                time += getVarint(entries);
+
+                if (kind == Kind.INTEGER) {
+                    integer += getVarint(entries);
+                    if (time >= from && time <= to) {
+                        visitor.visit(time, integer);
+                    }
+                } else {
+                    double floating = kind == Kind.FLOAT ? entries.getFloat() : entries.getDouble();
+                    if (time >= from && time <= to) {
+                        visitor.visit(time, floating);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt block in " + file, e);
+        }
+    }
+
+    /**
+     * Append a zigzag varint to the last block.
+     * @param value The value.
+     */
+    private void putVarint(long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+
+        while ((zigzag & ~0x7FL) != 0) {
+            tail.put((byte) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        tail.put((byte) zigzag);
+    }
+
+    /**
+     * Read a zigzag varint.
+     * @param buffer The buffer to read from.
+     * @return The value.
+     * @throws IOException If the varint is too long.
+     */
+    private static long getVarint(ByteBuffer buffer) throws IOException {
+        long zigzag = 0;
+
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            byte b = buffer.get();
+            zigzag |= (long) (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Compute the CRC32 of a block, up to it's position.
+     * @param block The block.
+     * @return The CRC.
+     */
+    private static int crc(ByteBuffer block) {
+        CRC32 crc = new CRC32();
+        crc.update(block.array(), block.arrayOffset(), block.position());
+        return (int) crc.getValue();
+    }
+}
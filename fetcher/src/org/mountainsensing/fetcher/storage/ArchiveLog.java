@@ -0,0 +1,576 @@
+/**
+ * sample log and sparse index of a sample archive
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import org.mountainsensing.pb.Readings.Sample;
+
+/**
+ * The whole samples from one node in a {@link SampleArchive}, with a sparse index by time and id.
+ * The log file is a sequence of records. Each record is: the length of the body and the CRC32 of the body (both ints),
+ * and the body, the delimited sample.
+ * The index file has an entry for every {@link #GROUP_SIZE} records of the log: the position of the records in the log (long),
+ * their length and number (ints), and the lowest and highest time and id of their samples (longs).
+ * Records after the last entry aren't indexed yet, they are scanned when the log is opened.
+ * All numbers are big endian.
+ */
+class ArchiveLog implements Closeable {
+
+    private static final Logger log = Logger.getLogger(ArchiveLog.class.getName());
+
+    /**
+     * Name of the log file, in the node's directory.
+     */
+    static final String LOG_NAME = "samples.log";
+
+    /**
+     * Name of the index file, in the node's directory.
+     */
+    static final String INDEX_NAME = "samples.idx";
+
+    /**
+     * Number of records covered by an index entry.
+     */
+    static final int GROUP_SIZE = 64;
+
+    /**
+     * Size of an index entry.
+     */
+    private static final int ENTRY_SIZE = 48;
+
+    /**
+     * Size of the length and CRC before each record.
+     */
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /**
+     * Size of the largest record body we accept, anything larger is assumed to be corrupt.
+     */
+    private static final int MAX_BODY_SIZE = 1 << 20;
+
+    /**
+     * An entry of the index, a group of consecutive records.
+     */
+    private static class Group {
+
+        /**
+         * Position of the first record in the log.
+         */
+        private long position;
+
+        /**
+         * Length of the records in the log.
+         */
+        private int length;
+
+        /**
+         * Number of records.
+         */
+        private int count;
+
+        /**
+         * Lowest time of the samples.
+         */
+        private long minTime = Long.MAX_VALUE;
+
+        /**
+         * Highest time of the samples.
+         */
+        private long maxTime = Long.MIN_VALUE;
+
+        /**
+         * Lowest id of the samples.
+         */
+        private long minId = Long.MAX_VALUE;
+
+        /**
+         * Highest id of the samples.
+         */
+        private long maxId = Long.MIN_VALUE;
+
+        /**
+         * Create an empty group.
+         * @param position Position of the first record in the log.
+         */
+        public Group(long position) {
+            this.position = position;
+        }
+
+        /**
+         * Add a record to the group.
+         * @param length Length of the record, including it's header.
+         * @param time Time of the sample.
+         * @param id Id of the sample.
+         */
+        public void add(int length, long time, long id) {
+            this.length += length;
+            count++;
+            minTime = Math.min(minTime, time);
+            maxTime = Math.max(maxTime, time);
+            minId = Math.min(minId, id);
+            maxId = Math.max(maxId, id);
+        }
+
+        /**
+         * Check if the group could contain a sample with a time in a range.
+         * @param from The lowest time.
+         * @param to The highest time.
+         * @return True if it could, false if it definitely doesn't.
+         */
+        public boolean overlaps(long from, long to) {
+            return count > 0 && minTime <= to && maxTime >= from;
+        }
+
+        /**
+         * Check if the group could contain a sample.
+         * @param time The time of the sample.
+         * @param id The id of the sample.
+         * @return True if it could, false if it definitely doesn't.
+         */
+        public boolean mayContain(long time, long id) {
+            return overlaps(time, time) && minId <= id && maxId >= id;
+        }
+    }
+
+    /**
+     * The node's directory.
+     */
+    private final File dir;
+
+    /**
+     * True if the log is only read, possibly while another process is writing it.
+     */
+    private final boolean isReadOnly;
+
+    /**
+     * Channel to the log file.
+     */
+    private final FileChannel logChannel;
+
+    /**
+     * Channel to the index file.
+     */
+    private final FileChannel indexChannel;
+
+    /**
+     * The groups in the index.
+     */
+    private final List<Group> groups = new ArrayList<>();
+
+    /**
+     * The records after the last group in the index.
+     */
+    private Group pending;
+
+    /**
+     * Times of the samples in the pending records.
+     */
+    private final long[] pendingTimes = new long[GROUP_SIZE];
+
+    /**
+     * Ids of the samples in the pending records.
+     */
+    private final long[] pendingIds = new long[GROUP_SIZE];
+
+    /**
+     * True if the log or index have been written since they were last synced.
+     */
+    private boolean isDirty;
+
+    /**
+     * Open the log of a node, creating it if it doesn't exist, and load the index.
+     * Unless the log is read only, records or index entries partially written during a crash are discarded.
+     * @param dir The node's directory.
+     * @param isReadOnly True if the log is only read, possibly while another process is writing it.
+     * @throws IOException If the log or index can't be opened or read.
+     */
+    ArchiveLog(File dir, boolean isReadOnly) throws IOException {
+        this.dir = dir;
+        this.isReadOnly = isReadOnly;
+
+        if (isReadOnly) {
+            logChannel = FileChannel.open(new File(dir, LOG_NAME).toPath(), StandardOpenOption.READ);
+            indexChannel = FileChannel.open(new File(dir, INDEX_NAME).toPath(), StandardOpenOption.READ);
+        } else {
+            logChannel = FileChannel.open(new File(dir, LOG_NAME).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            indexChannel = FileChannel.open(new File(dir, INDEX_NAME).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        try {
+            readIndex();
+            readPending();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Check if a node has a log.
+     * @param dir The node's directory.
+     * @return True if it does, false otherwise.
+     */
+    static boolean exists(File dir) {
+        return new File(dir, LOG_NAME).exists() && new File(dir, INDEX_NAME).exists();
+    }
+
+    /**
+     * Append a sample to the log, unless a sample with the same time and id already is.
+     * @param sample The sample.
+     * @return True if the sample was appended, false if it was already in the log.
+     * @throws IOException If the log or index can't be read or written.
+     */
+    boolean append(Sample sample) throws IOException {
+        long time = Integer.toUnsignedLong(sample.getTime());
+        long id = Integer.toUnsignedLong(sample.getId());
+
+        if (contains(time, id)) {
+            return false;
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        sample.writeDelimitedTo(body);
+
+        CRC32 crc = new CRC32();
+        crc.update(body.toByteArray());
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + body.size());
+        record.putInt(body.size());
+        record.putInt((int) crc.getValue());
+        record.put(body.toByteArray());
+        record.flip();
+
+        long position = getSize();
+        while (record.hasRemaining()) {
+            position += logChannel.write(record, position);
+        }
+
+        addPending(record.capacity(), time, id);
+        isDirty = true;
+        return true;
+    }
+
+    /**
+     * Visit the samples with a time in a range, in the order they were appended.
+     * Only the groups of records that could contain a sample in the range are read.
+     * @param from The lowest time to visit.
+     * @param to The highest time to visit.
+     * @param visitor Receives the samples.
+     * @throws IOException If the log can't be read, or the visitor throws it.
+     */
+    void query(long from, long to, SampleArchive.SampleVisitor visitor) throws IOException {
+        for (Group group : groups) {
+            if (group.overlaps(from, to)) {
+                visitGroup(group, from, to, visitor);
+            }
+        }
+
+        if (pending.overlaps(from, to)) {
+            visitGroup(pending, from, to, visitor);
+        }
+    }
+
+    /**
+     * Visit the samples appended after a position of the log, in the order they were appended.
+     * @param position The position, the end of a record.
+     * @param visitor Receives the samples.
+     * @throws IOException If the log can't be read, or the visitor throws it.
+     */
+    void replay(long position, SampleArchive.SampleVisitor visitor) throws IOException {
+        ByteBuffer records = read(position, (int) (getSize() - position));
+
+        while (records.hasRemaining()) {
+            Sample sample = readRecord(records);
+
+            if (sample == null) {
+                throw new IOException("Corrupt record at " + (position + records.position()) + " in " + new File(dir, LOG_NAME));
+            }
+
+            visitor.visit(sample);
+        }
+    }
+
+    /**
+     * Get the size of the log.
+     * @return The position the next record will be appended at.
+     */
+    long getSize() {
+        return pending.position + pending.length;
+    }
+
+    /**
+     * Sync the log and index to disk, if they have changed.
+     * The log is synced first, so the index never refers to records that aren't on disk.
+     * @throws IOException If syncing fails.
+     */
+    void flush() throws IOException {
+        if (!isDirty) {
+            return;
+        }
+
+        logChannel.force(false);
+        indexChannel.force(false);
+        isDirty = false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!isReadOnly) {
+                flush();
+            }
+        } finally {
+            try {
+                logChannel.close();
+            } finally {
+                indexChannel.close();
+            }
+        }
+    }
+
+    /**
+     * Check if the log contains a sample.
+     * Only the pending records, and groups that could contain the sample, are checked.
+     * @param time The time of the sample.
+     * @param id The id of the sample.
+     * @return True if it does, false otherwise.
+     * @throws IOException If the log can't be read.
+     */
+    private boolean contains(final long time, final long id) throws IOException {
+        for (int i = 0; i < pending.count; i++) {
+            if (pendingTimes[i] == time && pendingIds[i] == id) {
+                return true;
+            }
+        }
+
+        final boolean[] found = new boolean[1];
+
+        for (Group group : groups) {
+            if (!group.mayContain(time, id)) {
+                continue;
+            }
+
+            visitGroup(group, time, time, new SampleArchive.SampleVisitor() {
+                @Override
+                public void visit(Sample sample) {
+                    found[0] |= Integer.toUnsignedLong(sample.getId()) == id;
+                }
+            });
+
+            if (found[0]) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Visit the samples of a group with a time in a range.
+     * @param group The group.
+     * @param from The lowest time to visit.
+     * @param to The highest time to visit.
+     * @param visitor Receives the samples.
+     * @throws IOException If the group can't be read, or the visitor throws it.
+     */
+    private void visitGroup(Group group, long from, long to, SampleArchive.SampleVisitor visitor) throws IOException {
+        ByteBuffer records = read(group.position, group.length);
+
+        while (records.hasRemaining()) {
+            Sample sample = readRecord(records);
+
+            if (sample == null) {
+                log.log(Level.WARNING, "Skipping corrupt records at {0} in {1}", new Object[] {group.position, new File(dir, LOG_NAME)});
+                return;
+            }
+
+            long time = Integer.toUnsignedLong(sample.getTime());
+            if (time >= from && time <= to) {
+                visitor.visit(sample);
+            }
+        }
+    }
+
+    /**
+     * Read the index, discarding entries that were partially written, or that refer to records that aren't in the log.
+     * @throws IOException If the index can't be read or truncated.
+     */
+    private void readIndex() throws IOException {
+        long size = indexChannel.size();
+        ByteBuffer index = read(indexChannel, 0, (int) (size - size % ENTRY_SIZE));
+        long logSize = logChannel.size();
+
+        while (index.hasRemaining()) {
+            Group group = new Group(index.getLong());
+            group.length = index.getInt();
+            group.count = index.getInt();
+            group.minTime = index.getLong();
+            group.maxTime = index.getLong();
+            group.minId = index.getLong();
+            group.maxId = index.getLong();
+
+            if (group.position + group.length > logSize) {
+                break;
+            }
+
+            groups.add(group);
+        }
+
+        long valid = (long) groups.size() * ENTRY_SIZE;
+        if (valid < size && !isReadOnly) {
+            log.log(Level.WARNING, "Discarding {0} bytes of index entries past the end of {1}", new Object[] {size - valid, new File(dir, LOG_NAME)});
+            indexChannel.truncate(valid);
+        }
+    }
+
+    /**
+     * Read the records after the last index entry, indexing them, and discarding any record that was partially written.
+     * @throws IOException If the log can't be read or truncated, or the index written.
+     */
+    private void readPending() throws IOException {
+        Group last = groups.isEmpty() ? null : groups.get(groups.size() - 1);
+        long start = last != null ? last.position + last.length : 0;
+        pending = new Group(start);
+
+        long size = logChannel.size();
+        ByteBuffer records = read(start, (int) (size - start));
+
+        while (records.hasRemaining()) {
+            int position = records.position();
+            Sample sample = readRecord(records);
+
+            if (sample == null) {
+                // Another process could be in the middle of writing it
+                if (!isReadOnly) {
+                    log.log(Level.WARNING, "Discarding {0} bytes of partially written record(s) from {1}", new Object[] {size - start - position, new File(dir, LOG_NAME)});
+                    logChannel.truncate(start + position);
+                }
+                return;
+            }
+
+            addPending(records.position() - position, Integer.toUnsignedLong(sample.getTime()), Integer.toUnsignedLong(sample.getId()));
+        }
+    }
+
+    /**
+     * Add a record to the pending records, writing an index entry once there are {@link #GROUP_SIZE} of them.
+     * @param length Length of the record, including it's header.
+     * @param time Time of the sample.
+     * @param id Id of the sample.
+     * @throws IOException If the index entry can't be written.
+     */
+    private void addPending(int length, long time, long id) throws IOException {
+        pendingTimes[pending.count] = time;
+        pendingIds[pending.count] = id;
+        pending.add(length, time, id);
+
+        if (pending.count < GROUP_SIZE) {
+            return;
+        }
+
+        // A reader just keeps it in memory
+        if (!isReadOnly) {
+            ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+            entry.putLong(pending.position);
+            entry.putInt(pending.length);
+            entry.putInt(pending.count);
+            entry.putLong(pending.minTime);
+            entry.putLong(pending.maxTime);
+            entry.putLong(pending.minId);
+            entry.putLong(pending.maxId);
+            entry.flip();
+
+            long position = (long) groups.size() * ENTRY_SIZE;
+            while (entry.hasRemaining()) {
+                position += indexChannel.write(entry, position);
+            }
+            isDirty = true;
+        }
+
+        groups.add(pending);
+        pending = new Group(pending.position + pending.length);
+    }
+
+    /**
+     * Read a record.
+     * @param records Buffer positioned at the start of the record. It is positioned after the record, if it is valid.
+     * @return The sample, or null if the record is incomplete or corrupt.
+     */
+    private static Sample readRecord(ByteBuffer records) {
+        if (records.remaining() < RECORD_HEADER_SIZE) {
+            return null;
+        }
+
+        int start = records.position();
+        int length = records.getInt();
+        int expected = records.getInt();
+
+        if (length <= 0 || length > MAX_BODY_SIZE || length > records.remaining()) {
+            records.position(start);
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(records.array(), records.arrayOffset() + records.position(), length);
+
+        try {
+            if ((int) crc.getValue() == expected) {
+                Sample sample = Sample.parseDelimitedFrom(new ByteArrayInputStream(records.array(), records.arrayOffset() + records.position(), length));
+                records.position(records.position() + length);
+                return sample;
+            }
+        } catch (IOException e) {
+            // Fall through, it's corrupt
+        }
+
+        records.position(start);
+        return null;
+    }
+
+    /**
+     * Read part of the log.
+     * @param position Position of the start of the part.
+     * @param length Length of the part.
+     * @return A buffer containing the part, positioned at the start.
+     * @throws IOException If the part can't be read.
+     */
+    private ByteBuffer read(long position, int length) throws IOException {
+        return read(logChannel, position, length);
+    }
+
+    /**
+     * Read part of a file.
+     * @param channel Channel to the file.
+     * @param position Position of the start of the part.
+     * @param length Length of the part.
+     * @return A buffer containing the part, positioned at the start.
+     * @throws IOException If the part can't be read, or the file ends before the part does.
+     */
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of archive file");
+            }
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * sample destination that also archives samples
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.mountainsensing.pb.Readings.Sample;
+
+/**
+ * Saves samples to another sink, and adds them to a {@link SampleArchive}.
+ * Samples are archived after they have been saved. Failing to archive a sample is only logged,
+ * as the sample has already been saved and it's node can delete it.
+ */
+public class ArchivingSink implements SampleSink {
+
+    private static final Logger log = Logger.getLogger(ArchivingSink.class.getName());
+
+    /**
+     * Where samples are saved.
+     */
+    private final SampleSink sink;
+
+    /**
+     * Where samples are archived.
+     */
+    private final SampleArchive archive;
+
+    /**
+     * Create a new sink. Closing it closes both the sink and the archive.
+     * @param sink Where samples are saved.
+     * @param archive Where samples are archived.
+     */
+    public ArchivingSink(SampleSink sink, SampleArchive archive) {
+        this.sink = sink;
+        this.archive = archive;
+    }
+
+    @Override
+    public void save(String source, Sample sample) throws IOException {
+        sink.save(source, sample);
+        archive(source, sample);
+    }
+
+    @Override
+    public void move(String source, File staged) throws IOException {
+        Sample sample = read(staged);
+        sink.move(source, staged);
+        archive(source, sample);
+    }
+
+    @Override
+    public void recover(String source, File staged) throws IOException {
+        // The archive is only synced when closed, so a sample saved before a crash won't have been archived
+        Sample sample = read(staged);
+        sink.recover(source, staged);
+        archive(source, sample);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            sink.close();
+        } finally {
+            archive.close();
+        }
+    }
+
+    /**
+     * Add a sample to the archive, logging any error.
+     * @param source The IPv6 address of the node the sample is from.
+     * @param sample The sample, or null if it couldn't be read.
+     */
+    private void archive(String source, Sample sample) {
+        if (sample == null) {
+            return;
+        }
+
+        try {
+            if (!archive.add(source, sample)) {
+                log.log(Level.FINE, "Sample {0} from node {1} already archived", new Object[] {sample.getId(), source});
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to archive sample " + sample.getId() + " from node " + source, e);
+        }
+    }
+
+    /**
+     * Read a staged sample.
+     * @param staged A file containing the delimited sample.
+     * @return The sample, or null if it can't be read.
+     */
+    private static Sample read(File staged) {
+        try (FileInputStream in = new FileInputStream(staged)) {
+            return Sample.parseDelimitedFrom(in);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to read staged sample " + staged + " to archive it", e);
+            return null;
+        }
+    }
+}
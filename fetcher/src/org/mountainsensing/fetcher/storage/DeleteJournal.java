@@ -0,0 +1,263 @@
+/**
+ * journal of samples waiting to be deleted from nodes
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.storage;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.mountainsensing.fetcher.utils.FileUtils;
+
+/**
+ * Append only journal of samples that have been saved, but not yet deleted from their node.
+ * Each line is a record: {@code + <node> <id> <time>} once a sample is saved, and {@code - <node> <id>} once it is deleted.
+ * The time of the sample is kept so a sample still on the node can be told apart from a different one with the same id,
+ * written after the node's storage was reset. Older journals without it are still read.
+ * Records of saved samples are synced to disk before returning, so a sample is never deleted from a node
+ * without being saved first. Records of deleted samples aren't, as losing one only means deleting the sample again.
+ * The journal is compacted to only the pending samples when it is closed.
+ * This is thread safe.
+ */
+public class DeleteJournal implements Closeable {
+
+    private static final Logger log = Logger.getLogger(DeleteJournal.class.getName());
+
+    /**
+     * Record type of a sample that has been saved.
+     */
+    private static final String SAVED = "+";
+
+    /**
+     * Record type of a sample that has been deleted.
+     */
+    private static final String DELETED = "-";
+
+    /**
+     * Suffix of the temporary file used to compact the journal.
+     */
+    private static final String COMPACT_SUFFIX = ".tmp";
+
+    /**
+     * The journal file.
+     */
+    private final File file;
+
+    /**
+     * Stream appending to the journal.
+     */
+    private final FileOutputStream stream;
+
+    /**
+     * Writer appending to the journal.
+     */
+    private final Writer writer;
+
+    /**
+     * Times of the samples pending deletion by id, by node. The time is null for records that don't have one.
+     */
+    private final Map<String, NavigableMap<Integer, Long>> pending = new HashMap<>();
+
+    /**
+     * Open a journal, reading any records already present.
+     * @param file The journal file. It is created if it doesn't exist.
+     * @throws IOException If the journal can't be read or opened for writing.
+     */
+    public DeleteJournal(File file) throws IOException {
+        this.file = file;
+
+        boolean exists = file.exists();
+        if (exists) {
+            read();
+        }
+
+        stream = new FileOutputStream(file, true);
+        writer = new OutputStreamWriter(stream, StandardCharsets.US_ASCII);
+
+        // Make sure the journal itself doesn't disappear on a crash
+        if (!exists) {
+            FileUtils.syncDir(file.getAbsoluteFile().getParentFile());
+        }
+    }
+
+    /**
+     * Replay all the records in the journal.
+     * @throws IOException If the journal can't be read.
+     */
+    private void read() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.US_ASCII))) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                String[] record = line.split(" ");
+
+                try {
+                    if (record.length != 3 && !(record.length == 4 && record[0].equals(SAVED))) {
+                        throw new IllegalArgumentException("Expected 3 fields");
+                    }
+
+                    int id = Integer.parseInt(record[2]);
+
+                    if (record[0].equals(SAVED)) {
+                        getPendingMap(record[1]).put(id, record.length == 4 ? Long.valueOf(record[3]) : null);
+                    } else if (record[0].equals(DELETED)) {
+                        getPendingMap(record[1]).remove(id);
+                    } else {
+                        throw new IllegalArgumentException("Unknown record type " + record[0]);
+                    }
+                } catch (IllegalArgumentException e) {
+                    // Most likely a partially written record from a crash, it was never synced so can be safely ignored
+                    log.log(Level.WARNING, "Ignoring invalid record \"{0}\" in delete journal {1}: {2}", new Object[] {line, file, e.getMessage()});
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the pending ids and their times for a node, creating them if needed.
+     * @param node The node.
+     * @return The mutable map of pending ids to times.
+     */
+    private NavigableMap<Integer, Long> getPendingMap(String node) {
+        NavigableMap<Integer, Long> ids = pending.get(node);
+
+        if (ids == null) {
+            ids = new TreeMap<>();
+            pending.put(node, ids);
+        }
+
+        return ids;
+    }
+
+    /**
+     * Record that a sample has been saved, and needs deleting from it's node.
+     * The record is synced to disk once this returns.
+     * @param node The address of the node.
+     * @param id The id of the sample.
+     * @param time The time of the sample.
+     * @throws IOException If the record can't be written.
+     */
+    public synchronized void add(String node, int id, long time) throws IOException {
+        writer.write(SAVED + " " + node + " " + id + " " + time + "\n");
+        writer.flush();
+        stream.getFD().sync();
+        getPendingMap(node).put(id, time);
+    }
+
+    /**
+     * Record that a sample has been deleted from it's node.
+     * @param node The address of the node.
+     * @param id The id of the sample.
+     * @throws IOException If the record can't be written.
+     */
+    public synchronized void remove(String node, int id) throws IOException {
+        append(DELETED, node, id);
+        writer.flush();
+        getPendingMap(node).remove(id);
+    }
+
+    /**
+     * Forget the samples pending deletion from a node with ids in a range, without deleting them.
+     * @param node The address of the node.
+     * @param from The lowest id to forget.
+     * @param to The highest id to forget.
+     * @return The number of samples forgotten.
+     * @throws IOException If the records can't be written.
+     */
+    public synchronized int discard(String node, int from, int to) throws IOException {
+        NavigableMap<Integer, Long> range = getPendingMap(node).subMap(from, true, to, true);
+        int count = range.size();
+
+        for (int id : range.keySet()) {
+            append(DELETED, node, id);
+        }
+
+        writer.flush();
+        range.clear();
+        return count;
+    }
+
+    /**
+     * Check if a sample is pending deletion.
+     * @param node The address of the node.
+     * @param id The id of the sample.
+     * @return True if the sample has been saved, but not yet deleted from the node.
+     */
+    public synchronized boolean isPending(String node, int id) {
+        return pending.containsKey(node) && pending.get(node).containsKey(id);
+    }
+
+    /**
+     * Get the time of a sample pending deletion.
+     * @param node The address of the node.
+     * @param id The id of the sample.
+     * @return The time of the sample, null if it isn't pending, or was recorded without one.
+     */
+    public synchronized Long getTime(String node, int id) {
+        return pending.containsKey(node) ? pending.get(node).get(id) : null;
+    }
+
+    /**
+     * Get all the samples pending deletion from a node.
+     * @param node The address of the node.
+     * @return A copy of the ids of the samples, in ascending order.
+     */
+    public synchronized SortedSet<Integer> getPending(String node) {
+        return new TreeSet<>(getPendingMap(node).keySet());
+    }
+
+    /**
+     * Append a record to the journal.
+     * @param type The type of the record.
+     * @param node The address of the node.
+     * @param id The id of the sample.
+     * @throws IOException If the record can't be written.
+     */
+    private void append(String type, String node, int id) throws IOException {
+        writer.write(type + " " + node + " " + id + "\n");
+    }
+
+    /**
+     * Close the journal, compacting it to only the samples still pending deletion.
+     * @throws IOException If the journal can't be compacted.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+
+        File compacted = new File(file.getPath() + COMPACT_SUFFIX);
+
+        try (FileOutputStream compactedStream = new FileOutputStream(compacted)) {
+            Writer compactedWriter = new OutputStreamWriter(compactedStream, StandardCharsets.US_ASCII);
+
+            for (Map.Entry<String, NavigableMap<Integer, Long>> node : pending.entrySet()) {
+                for (Map.Entry<Integer, Long> id : node.getValue().entrySet()) {
+                    compactedWriter.write(SAVED + " " + node.getKey() + " " + id.getKey() + (id.getValue() != null ? " " + id.getValue() : "") + "\n");
+                }
+            }
+
+            compactedWriter.flush();
+            compactedStream.getFD().sync();
+        }
+
+        Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        FileUtils.syncDir(file.getAbsoluteFile().getParentFile());
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * sample destination writing one file per sample
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.mountainsensing.fetcher.utils.FileUtils;
+import org.mountainsensing.pb.Readings.Sample;
+
+/**
+ * Saves every sample to it's own file in a directory, named {@code <nanoTime>_<source>}.
+ * This is the format the poster expects. Samples are written to a hidden file first, and moved into place once synced.
+ */
+public class DirectorySink implements SampleSink {
+
+    private static final Logger log = Logger.getLogger(DirectorySink.class.getName());
+
+    /**
+     * Prefix of the hidden file a sample is written to, before it is moved into place.
+     */
+    private static final String TMP_PREFIX = ".";
+
+    /**
+     * The directory samples are saved in.
+     */
+    private final File dir;
+
+    /**
+     * Create a new sink.
+     * @param dir The directory to save samples in. It must already exist.
+     */
+    public DirectorySink(File dir) {
+        this.dir = dir;
+    }
+
+    @Override
+    public void save(String source, Sample sample) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        sample.writeDelimitedTo(payload);
+
+        save(source, payload.toByteArray());
+    }
+
+    /**
+     * Save a sample that has already been encoded.
+     * @param source The IPv6 address of the node the sample is from.
+     * @param sample The delimited sample.
+     * @throws IOException If the sample can't be written.
+     */
+    public void save(String source, byte[] sample) throws IOException {
+        File file = newFile(source);
+        // Hidden until it's complete, so upload and the poster never see a partial sample
+        File tmp = new File(dir, TMP_PREFIX + file.getName());
+
+        try {
+            try (FileOutputStream fileStream = new FileOutputStream(tmp)) {
+                fileStream.write(sample);
+                fileStream.getFD().sync();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+
+        FileUtils.syncDir(dir);
+        log.log(Level.INFO, "Saved sample to file {0}", file);
+    }
+
+    @Override
+    public void move(String source, File staged) throws IOException {
+        File file = newFile(source);
+
+        Files.move(staged.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        FileUtils.syncDir(dir);
+        log.log(Level.INFO, "Saved sample to file {0}", file);
+    }
+
+    @Override
+    public void recover(String source, File staged) throws IOException {
+        // Moving is atomic, so the file is only still there if it hasn't been saved
+        move(source, staged);
+    }
+
+    @Override
+    public void close() {
+
+    }
+
+    /**
+     * Get a new file for a sample.
+     * @param source The IPv6 address of the node the sample is from.
+     * @return A file in the directory.
+     */
+    private File newFile(String source) {
+        return new File(dir, System.nanoTime() + "_" + source);
+    }
+
+    /**
+     * Write a sample as a delimited protocol buffer, and sync it to disk.
+     * @param file The file to write to.
+     * @param sample The sample to write.
+     * @throws IOException If an error occurs encoding the sample, or writing to the file.
+     */
+    public static void write(File file, Sample sample) throws IOException {
+        try (FileOutputStream fileStream = new FileOutputStream(file)) {
+            sample.writeDelimitedTo(fileStream);
+            fileStream.flush();
+            fileStream.getFD().sync();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * consumer of a sample queue
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.mountainsensing.fetcher.utils.FileUtils;
+
+/**
+ * Reads records from a {@link SampleQueue}, keeping track of the records consumed in a cursor file.
+ * The cursor holds the sequence number of the next record to consume.
+ * This can be used while another process appends to the queue, but there should only be one reader per queue.
+ */
+public class QueueReader {
+
+    /**
+     * Name of the cursor file, in the directory of the queue.
+     */
+    private static final String CURSOR_FILE = "cursor";
+
+    /**
+     * Suffix of the temporary file used to update the cursor.
+     */
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /**
+     * Directory of the queue.
+     */
+    private final File dir;
+
+    /**
+     * Sequence number of the next record to consume.
+     */
+    private long cursor;
+
+    /**
+     * Open a queue for reading.
+     * @param dir The directory of the queue.
+     * @throws IOException If the cursor can't be read.
+     */
+    public QueueReader(File dir) throws IOException {
+        this.dir = dir;
+        this.cursor = readCursor(dir);
+    }
+
+    /**
+     * Get the sequence number of the next record to consume.
+     * @return The sequence number.
+     */
+    public long getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Read the next records that haven't been consumed.
+     * Records are returned a segment at a time, so this doesn't return every record that hasn't been consumed.
+     * @return The records, in order. Empty if there are none.
+     * @throws IOException If the queue can't be read.
+     */
+    public List<SampleQueue.Record> read() throws IOException {
+        List<Segment> segments = Segment.list(dir);
+
+        for (int i = 0; i < segments.size(); i++) {
+            // Skip segments that have been entirely consumed
+            if (i + 1 < segments.size() && segments.get(i + 1).getFirstSeq() <= cursor) {
+                continue;
+            }
+
+            List<SampleQueue.Record> records = new ArrayList<>();
+            segments.get(i).read(records);
+
+            List<SampleQueue.Record> unread = new ArrayList<>();
+            for (SampleQueue.Record record : records) {
+                if (record.getSeq() >= cursor) {
+                    unread.add(record);
+                }
+            }
+
+            if (!unread.isEmpty()) {
+                return unread;
+            }
+        }
+
+        return Collections.emptyList();
+    }
+
+    /**
+     * Mark all the records before a sequence number as consumed.
+     * The cursor is synced to disk once this returns.
+     * @param next Sequence number of the next record to consume.
+     * @throws IOException If the cursor can't be written.
+     */
+    public void commit(long next) throws IOException {
+        File tmp = new File(dir, CURSOR_FILE + TMP_SUFFIX);
+
+        try (FileOutputStream stream = new FileOutputStream(tmp)) {
+            stream.write(Long.toString(next).getBytes(StandardCharsets.US_ASCII));
+            stream.flush();
+            stream.getFD().sync();
+        }
+
+        Files.move(tmp.toPath(), new File(dir, CURSOR_FILE).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        FileUtils.syncDir(dir);
+
+        cursor = next;
+    }
+
+    /**
+     * Get the segments whose records have all been consumed.
+     * The last segment is never included, as it may still be appended to.
+     * @return The segment files, in order.
+     * @throws IOException If the queue can't be listed.
+     */
+    public List<File> getConsumedSegments() throws IOException {
+        List<Segment> segments = Segment.list(dir);
+        List<File> consumed = new ArrayList<>();
+
+        for (int i = 0; i + 1 < segments.size() && segments.get(i + 1).getFirstSeq() <= cursor; i++) {
+            consumed.add(segments.get(i).getFile());
+        }
+
+        return consumed;
+    }
+
+    /**
+     * Read the cursor of a queue.
+     * @param dir The directory of the queue.
+     * @return Sequence number of the next record to consume, 0 if nothing has been consumed.
+     * @throws IOException If the cursor can't be read, or is invalid.
+     */
+    static long readCursor(File dir) throws IOException {
+        File file = new File(dir, CURSOR_FILE);
+
+        if (!file.exists()) {
+            return 0;
+        }
+
+        String cursor = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).trim();
+
+        try {
+            return Long.parseLong(cursor);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid queue cursor " + file + ": " + cursor, e);
+        }
+    }
+}
@@ -0,0 +1,593 @@
+/**
+ * columnar per-node archive of samples
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.storage;
+
+import com.google.protobuf.Descriptors;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.mountainsensing.fetcher.utils.FileUtils;
+import org.mountainsensing.pb.Readings.Sample;
+
+/**
+ * Archive of samples, stored by node, so the samples from a node in a time range can be found without reading every sample.
+ * Every node has a directory, named after it's address, containing a log of the whole samples with a sparse index by time and id
+ * (see {@link ArchiveLog}), and a column file per field of {@link Sample} (see {@link ArchiveColumn}), so a field can be read without parsing whole samples.
+ * Integer, boolean, enum and floating point fields have columns, with the time of the sample. Other fields, such as the AVR data, don't.
+ * A sample is only archived once, samples with the same time and id as one already archived from the node are ignored.
+ * The archive is only synced to disk when it is flushed or closed, as it is a copy of samples saved elsewhere.
+ * The log is what is checked for samples already archived, so the columns must never be behind it after a crash:
+ * once the columns are synced, the size of the log they hold the samples of is saved to a checkpoint file ({@link #CHECKPOINT_NAME}),
+ * and the samples after it are added to the columns again when the archive is opened, unless their value already is.
+ * This is thread safe, but only one process should write to an archive at a time. Other processes can open it read only.
+ */
+public class SampleArchive implements Closeable {
+
+    private static final Logger log = Logger.getLogger(SampleArchive.class.getName());
+
+    /**
+     * Name of the checkpoint file, in the node's directory, holding the size of the log the columns are synced up to (long).
+     */
+    private static final String CHECKPOINT_NAME = "columns.checkpoint";
+
+    /**
+     * Receives the values of a column.
+     */
+    public interface Visitor {
+
+        /**
+         * Visit a value of an integer, boolean or enum field.
+         * Booleans are 0 or 1, enums are their number, and unsigned 32 bit integers are unsigned.
+         * @param time The time of the sample.
+         * @param value The value.
+         * @throws IOException To stop scanning.
+         */
+        void visit(long time, long value) throws IOException;
+
+        /**
+         * Visit a value of a floating point field.
+         * @param time The time of the sample.
+         * @param value The value.
+         * @throws IOException To stop scanning.
+         */
+        void visit(long time, double value) throws IOException;
+    }
+
+    /**
+     * Receives samples from the archive.
+     */
+    public interface SampleVisitor {
+
+        /**
+         * Visit a sample.
+         * @param sample The sample.
+         * @throws IOException To stop querying.
+         */
+        void visit(Sample sample) throws IOException;
+    }
+
+    /**
+     * The directory of the archive.
+     */
+    private final File dir;
+
+    /**
+     * True if the archive is only read, possibly while another process is writing it.
+     */
+    private final boolean isReadOnly;
+
+    /**
+     * The fields that are archived, by name.
+     */
+    private final Map<String, Descriptors.FieldDescriptor> fields = new HashMap<>();
+
+    /**
+     * The kind of column each archived field is stored in, by name.
+     */
+    private final Map<String, ArchiveColumn.Kind> kinds = new HashMap<>();
+
+    /**
+     * The open columns, by node and then field name.
+     */
+    private final Map<String, Map<String, ArchiveColumn>> columns = new HashMap<>();
+
+    /**
+     * The open logs, by node.
+     */
+    private final Map<String, ArchiveLog> logs = new HashMap<>();
+
+    /**
+     * The size of the log saved to the checkpoint file, by node.
+     */
+    private final Map<String, Long> checkpoints = new HashMap<>();
+
+    /**
+     * Open an archive to add samples to.
+     * @param dir The directory of the archive. It must already exist.
+     */
+    public SampleArchive(File dir) {
+        this(dir, false);
+    }
+
+    /**
+     * Open an archive.
+     * @param dir The directory of the archive. It must already exist.
+     * @param isReadOnly True to only read the archive, possibly while another process is adding samples to it.
+     */
+    public SampleArchive(File dir, boolean isReadOnly) {
+        this.dir = dir;
+        this.isReadOnly = isReadOnly;
+
+        for (Descriptors.FieldDescriptor field : Sample.getDescriptor().getFields()) {
+            ArchiveColumn.Kind kind = getKind(field);
+
+            // The time is stored with every value instead
+            if (kind != null && field.getNumber() != Sample.TIME_FIELD_NUMBER) {
+                fields.put(field.getName(), field);
+                kinds.put(field.getName(), kind);
+            }
+        }
+    }
+
+    /**
+     * Get the names of the fields that are archived.
+     * @return The names of the fields.
+     */
+    public List<String> getFields() {
+        List<String> names = new ArrayList<>(fields.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Get the nodes with samples in the archive.
+     * @return The IPv6 addresses of the nodes, sorted.
+     */
+    public List<String> getNodes() {
+        List<String> nodes = new ArrayList<>();
+        File[] nodeDirs = dir.listFiles();
+
+        if (nodeDirs != null) {
+            for (File nodeDir : nodeDirs) {
+                if (ArchiveLog.exists(nodeDir)) {
+                    nodes.add(nodeDir.getName());
+                }
+            }
+        }
+
+        Collections.sort(nodes);
+        return nodes;
+    }
+
+    /**
+     * Add a sample to the archive, unless it has already been added.
+     * @param source The IPv6 address of the node the sample is from.
+     * @param sample The sample.
+     * @return True if the sample was added, false if a sample with the same time and id from the node already was.
+     * @throws IOException If the sample's node's log or columns can't be opened or written.
+     * @throws IllegalStateException If the archive is read only.
+     */
+    public synchronized boolean add(String source, Sample sample) throws IOException {
+        if (isReadOnly) {
+            throw new IllegalStateException("Archive " + dir + " is read only");
+        }
+
+        if (!getLog(source).append(sample)) {
+            return false;
+        }
+
+        addColumns(source, sample, false);
+        return true;
+    }
+
+    /**
+     * Visit the samples from a node with a time in a range.
+     * Samples are visited in the order they were added, only the parts of the log that could contain samples in the range are read.
+     * @param source The IPv6 address of the node.
+     * @param from The lowest time of a sample to visit, in seconds since the epoch.
+     * @param to The highest time of a sample to visit, in seconds since the epoch.
+     * @param visitor Receives the samples.
+     * @throws IOException If the log can't be read, or the visitor throws it.
+     */
+    public synchronized void query(String source, long from, long to, SampleVisitor visitor) throws IOException {
+        // Don't create logs for nodes we know nothing about
+        if (!logs.containsKey(source) && !ArchiveLog.exists(new File(dir, source))) {
+            return;
+        }
+
+        getLog(source).query(from, to, visitor);
+    }
+
+    /**
+     * Visit the values of a field from a node, for samples with a time in a range.
+     * Values are visited in the order they were added.
+     * @param source The IPv6 address of the node.
+     * @param field The name of the field.
+     * @param from The lowest time of a sample to visit, in seconds since the epoch.
+     * @param to The highest time of a sample to visit, in seconds since the epoch.
+     * @param visitor Receives the values.
+     * @throws IOException If the column can't be read, or the visitor throws it.
+     * @throws IllegalArgumentException If the field isn't archived.
+     */
+    public synchronized void scan(String source, String field, long from, long to, Visitor visitor) throws IOException {
+        if (!fields.containsKey(field)) {
+            throw new IllegalArgumentException("Field " + field + " is not archived");
+        }
+
+        // Don't create columns for nodes we know nothing about
+        if (!getColumnFile(source, field).exists()) {
+            return;
+        }
+
+        getColumn(source, field).scan(from, to, visitor);
+    }
+
+    /**
+     * Write all the logs and columns to disk, and sync them.
+     * @throws IOException If a log or column can't be written.
+     */
+    public synchronized void flush() throws IOException {
+        for (ArchiveLog nodeLog : logs.values()) {
+            nodeLog.flush();
+        }
+
+        for (Map<String, ArchiveColumn> nodeColumns : columns.values()) {
+            for (ArchiveColumn column : nodeColumns.values()) {
+                column.flush();
+            }
+        }
+
+        // Only once the columns are synced
+        for (Map.Entry<String, ArchiveLog> nodeLog : logs.entrySet()) {
+            writeCheckpoint(nodeLog.getKey(), nodeLog.getValue().getSize());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        IOException error = null;
+
+        if (!isReadOnly) {
+            try {
+                flush();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Unable to flush archive", e);
+                error = e;
+            }
+        }
+
+        for (ArchiveLog nodeLog : logs.values()) {
+            try {
+                nodeLog.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Unable to close archive log", e);
+                error = e;
+            }
+        }
+
+        for (Map<String, ArchiveColumn> nodeColumns : columns.values()) {
+            for (ArchiveColumn column : nodeColumns.values()) {
+                try {
+                    column.close();
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Unable to close archive column", e);
+                    error = e;
+                }
+            }
+        }
+
+        columns.clear();
+        logs.clear();
+        checkpoints.clear();
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Get the log of a node, opening it if it isn't already open.
+     * @param source The IPv6 address of the node.
+     * @return The log.
+     * @throws IOException If the log can't be created or opened.
+     */
+    private ArchiveLog getLog(String source) throws IOException {
+        ArchiveLog nodeLog = logs.get(source);
+
+        if (nodeLog == null) {
+            File nodeDir = getNodeDir(source);
+            boolean isNew = !ArchiveLog.exists(nodeDir);
+
+            nodeLog = new ArchiveLog(nodeDir, isReadOnly);
+            logs.put(source, nodeLog);
+
+            if (isNew) {
+                FileUtils.syncDir(nodeDir);
+            }
+
+            if (!isReadOnly) {
+                recover(source, nodeLog);
+            }
+        }
+
+        return nodeLog;
+    }
+
+    /**
+     * Add the samples in the log of a node that the columns were not synced with to the columns.
+     * @param source The IPv6 address of the node.
+     * @param nodeLog The log of the node.
+     * @throws IOException If the checkpoint, log or columns can't be read or written.
+     */
+    private void recover(final String source, ArchiveLog nodeLog) throws IOException {
+        Long checkpoint = readCheckpoint(source);
+
+        // Archives from before checkpoints were saved were only ever closed cleanly
+        if (checkpoint == null || checkpoint > nodeLog.getSize()) {
+            writeCheckpoint(source, nodeLog.getSize());
+            return;
+        }
+
+        if (checkpoint == nodeLog.getSize()) {
+            checkpoints.put(source, checkpoint);
+            return;
+        }
+
+        final int[] count = new int[1];
+
+        nodeLog.replay(checkpoint, new SampleVisitor() {
+            @Override
+            public void visit(Sample sample) throws IOException {
+                if (addColumns(source, sample, true)) {
+                    count[0]++;
+                }
+            }
+        });
+
+        if (count[0] > 0) {
+            log.log(Level.WARNING, "Added {0} sample(s) from the log of {1} missing from it''s columns", new Object[] {count[0], source});
+        }
+
+        if (columns.containsKey(source)) {
+            for (ArchiveColumn column : columns.get(source).values()) {
+                column.flush();
+            }
+        }
+
+        writeCheckpoint(source, nodeLog.getSize());
+    }
+
+    /**
+     * Add the values of the fields of a sample to the columns of it's node.
+     * @param source The IPv6 address of the node the sample is from.
+     * @param sample The sample.
+     * @param isRecovering True to skip values already in a column, with the same time.
+     * @return True if any value was added, false if they all already were.
+     * @throws IOException If a column can't be opened, read or written.
+     */
+    private boolean addColumns(String source, Sample sample, boolean isRecovering) throws IOException {
+        long time = Integer.toUnsignedLong(sample.getTime());
+        boolean isAdded = false;
+
+        for (Descriptors.FieldDescriptor field : fields.values()) {
+            if (!sample.hasField(field)) {
+                continue;
+            }
+
+            ArchiveColumn column = getColumn(source, field.getName());
+            Number value = getValue(field, sample.getField(field));
+
+            if (isRecovering && contains(column, time, value)) {
+                continue;
+            }
+
+            if (column.getKind() == ArchiveColumn.Kind.INTEGER) {
+                column.append(time, value.longValue());
+            } else {
+                column.append(time, value.doubleValue());
+            }
+            isAdded = true;
+        }
+
+        return isAdded;
+    }
+
+    /**
+     * Check if a column has a value.
+     * @param column The column.
+     * @param time The time of the sample.
+     * @param value The value.
+     * @return True if it does, false otherwise.
+     * @throws IOException If the column can't be read.
+     */
+    private static boolean contains(ArchiveColumn column, final long time, final Number value) throws IOException {
+        final boolean[] found = new boolean[1];
+
+        column.scan(time, time, new Visitor() {
+            @Override
+            public void visit(long entryTime, long entryValue) {
+                found[0] |= entryValue == value.longValue();
+            }
+
+            @Override
+            public void visit(long entryTime, double entryValue) {
+                found[0] |= Double.compare(entryValue, value.doubleValue()) == 0;
+            }
+        });
+
+        return found[0];
+    }
+
+    /**
+     * Read the checkpoint of a node.
+     * @param source The IPv6 address of the node.
+     * @return The size of the log the columns are synced up to, or null if there is no checkpoint.
+     * @throws IOException If the checkpoint can't be read.
+     */
+    private Long readCheckpoint(String source) throws IOException {
+        byte[] bytes;
+
+        try {
+            bytes = Files.readAllBytes(new File(getNodeDir(source), CHECKPOINT_NAME).toPath());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        if (bytes.length != 8) {
+            throw new IOException("Checkpoint of " + source + " is corrupt");
+        }
+
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
+    /**
+     * Save the checkpoint of a node, if it has changed.
+     * @param source The IPv6 address of the node.
+     * @param size The size of the log the columns are synced up to.
+     * @throws IOException If the checkpoint can't be written.
+     */
+    private void writeCheckpoint(String source, final long size) throws IOException {
+        Long checkpoint = checkpoints.get(source);
+
+        if (checkpoint != null && checkpoint == size) {
+            return;
+        }
+
+        FileUtils.replace(new File(getNodeDir(source), CHECKPOINT_NAME), new FileUtils.Contents() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                out.write(ByteBuffer.allocate(8).putLong(0, size).array());
+            }
+        });
+
+        checkpoints.put(source, size);
+    }
+
+    /**
+     * Get the column of a field from a node, opening it if it isn't already open.
+     * @param source The IPv6 address of the node.
+     * @param field The name of the field.
+     * @return The column.
+     * @throws IOException If the column can't be created or opened.
+     */
+    private ArchiveColumn getColumn(String source, String field) throws IOException {
+        Map<String, ArchiveColumn> nodeColumns = columns.get(source);
+
+        if (nodeColumns == null) {
+            nodeColumns = new HashMap<>();
+            columns.put(source, nodeColumns);
+        }
+
+        ArchiveColumn column = nodeColumns.get(field);
+
+        if (column == null) {
+            File file = getColumnFile(source, field);
+            File nodeDir = getNodeDir(source);
+            boolean isNew = !file.exists();
+
+            column = new ArchiveColumn(file, kinds.get(field), isReadOnly);
+            nodeColumns.put(field, column);
+
+            if (isNew) {
+                FileUtils.syncDir(nodeDir);
+            }
+        }
+
+        return column;
+    }
+
+    /**
+     * Get the directory of a node, creating it if it doesn't exist and the archive isn't read only.
+     * @param source The IPv6 address of the node.
+     * @return The directory.
+     * @throws IOException If the directory can't be created.
+     */
+    private File getNodeDir(String source) throws IOException {
+        File nodeDir = new File(dir, source);
+
+        if (!isReadOnly && !nodeDir.isDirectory()) {
+            if (!nodeDir.mkdir()) {
+                throw new IOException("Unable to create archive directory " + nodeDir);
+            }
+            FileUtils.syncDir(dir);
+        }
+
+        return nodeDir;
+    }
+
+    /**
+     * Get the file of a column.
+     * @param source The IPv6 address of the node.
+     * @param field The name of the field.
+     * @return The column file.
+     */
+    private File getColumnFile(String source, String field) {
+        return new File(new File(dir, source), field + "." + kinds.get(field).getSuffix());
+    }
+
+    /**
+     * Get the value of a field, as it is stored in it's column.
+     * Booleans are 0 or 1, enums are their number, and unsigned 32 bit integers are unsigned.
+     * @param field The field.
+     * @param value The value of the field.
+     * @return A Long for integer columns, or a Float or Double for floating point columns.
+     */
+    private static Number getValue(Descriptors.FieldDescriptor field, Object value) {
+        switch (field.getJavaType()) {
+            case FLOAT:
+            case DOUBLE:
+                return (Number) value;
+
+            case BOOLEAN:
+                return (Boolean) value ? 1L : 0L;
+
+            case ENUM:
+                return (long) ((Descriptors.EnumValueDescriptor) value).getNumber();
+
+            case INT:
+                boolean isUnsigned = field.getType() == Descriptors.FieldDescriptor.Type.UINT32 || field.getType() == Descriptors.FieldDescriptor.Type.FIXED32;
+                return isUnsigned ? Integer.toUnsignedLong((Integer) value) : (long) (Integer) value;
+
+            default:
+                return (Long) value;
+        }
+    }
+
+    /**
+     * Get the kind of column a field can be archived in.
+     * @param field The field.
+     * @return The kind of column, or null if the field can't be archived.
+     */
+    private static ArchiveColumn.Kind getKind(Descriptors.FieldDescriptor field) {
+        if (field.isRepeated()) {
+            return null;
+        }
+
+        switch (field.getJavaType()) {
+            case INT:
+            case LONG:
+            case BOOLEAN:
+            case ENUM:
+                return ArchiveColumn.Kind.INTEGER;
+            case FLOAT:
+                return ArchiveColumn.Kind.FLOAT;
+            case DOUBLE:
+                return ArchiveColumn.Kind.DOUBLE;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,436 @@
+/**
+ * segmented, append only queue of samples
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.mountainsensing.fetcher.utils.FileUtils;
+import org.mountainsensing.pb.Readings.Sample;
+
+/**
+ * Queue of samples, appended to segment files in a directory (see {@link Segment} for the format).
+ * Every record has a sequence number and the address of the node it's from.
+ * Concurrent saves are synced to disk together (group commit), so many nodes can save without each waiting on their own sync.
+ * On opening, only the last segment is scanned, and any partially written record from a crash is discarded.
+ * Records are read by a {@link QueueReader}, possibly from another process.
+ * This is thread safe, but only one process should write to a queue at a time.
+ */
+public class SampleQueue implements SampleSink {
+
+    private static final Logger log = Logger.getLogger(SampleQueue.class.getName());
+
+    /**
+     * Size after which a new segment is started.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * A record in the queue.
+     */
+    public static class Record {
+
+        /**
+         * Sequence number of the record.
+         */
+        private final long seq;
+
+        /**
+         * Address of the node the sample is from.
+         */
+        private final String source;
+
+        /**
+         * The delimited sample.
+         */
+        private final byte[] payload;
+
+        /**
+         * Create a new record.
+         * @param seq Sequence number of the record.
+         * @param source Address of the node the sample is from.
+         * @param payload The delimited sample.
+         */
+        public Record(long seq, String source, byte[] payload) {
+            this.seq = seq;
+            this.source = source;
+            this.payload = payload;
+        }
+
+        /**
+         * Get the sequence number of the record.
+         * @return The sequence number.
+         */
+        public long getSeq() {
+            return seq;
+        }
+
+        /**
+         * Get the address of the node the sample is from.
+         * @return The IPv6 address.
+         */
+        public String getSource() {
+            return source;
+        }
+
+        /**
+         * Get the sample.
+         * @return The sample, encoded as a delimited protocol buffer.
+         */
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    /**
+     * Directory of the queue.
+     */
+    private final File dir;
+
+    /**
+     * Size after which a new segment is started.
+     */
+    private final long segmentSize;
+
+    /**
+     * Held while syncing, so concurrent saves share a sync.
+     */
+    private final Object syncLock = new Object();
+
+    /**
+     * Channel appending to the current segment, null if there is none.
+     */
+    private FileChannel channel;
+
+    /**
+     * The current segment, null if there is none.
+     */
+    private Segment segment;
+
+    /**
+     * Sequence number of the next record.
+     */
+    private long nextSeq;
+
+    /**
+     * Sequence number of the last record appended.
+     */
+    private long lastSeq;
+
+    /**
+     * Sequence number of the last record synced by closing a segment.
+     */
+    private long closedSeq;
+
+    /**
+     * Sequence number of the first record appended to the current segment by this process.
+     * Records before it are in a closed segment, or were synced when the queue was opened.
+     */
+    private long segmentFirstSeq;
+
+    /**
+     * Records of segments that couldn't be synced when they were closed, as the first and last sequence number of each segment.
+     * These are never durable, whatever is synced later.
+     */
+    private final NavigableMap<Long, Long> unsynced = new TreeMap<>();
+
+    /**
+     * Sequence number of the last record synced. Guarded by syncLock.
+     */
+    private long syncedSeq;
+
+    /**
+     * Open a queue, with the default segment size.
+     * @param dir The directory of the queue. It must already exist.
+     * @throws IOException If the queue can't be opened or recovered.
+     */
+    public SampleQueue(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Open a queue.
+     * @param dir The directory of the queue. It must already exist.
+     * @param segmentSize Size after which a new segment is started.
+     * @throws IOException If the queue can't be opened or recovered.
+     */
+    public SampleQueue(File dir, long segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+
+        recover();
+    }
+
+    /**
+     * Find where to carry on appending, discarding any partially written record in the last segment.
+     * Earlier segments were synced when they were closed, so don't need checking.
+     * @throws IOException If the last segment can't be read or truncated.
+     */
+    private void recover() throws IOException {
+        List<Segment> segments = Segment.list(dir);
+
+        // Nothing left, carry on from the last record consumed
+        if (segments.isEmpty()) {
+            nextSeq = QueueReader.readCursor(dir);
+        } else {
+            segment = segments.get(segments.size() - 1);
+
+            List<Record> records = new ArrayList<>();
+            long valid = segment.read(records);
+
+            channel = FileChannel.open(segment.getFile().toPath(), StandardOpenOption.WRITE);
+
+            if (valid < channel.size()) {
+                log.log(Level.WARNING, "Discarding {0} bytes of partially written record(s) from {1}", new Object[] {channel.size() - valid, segment.getFile()});
+                channel.truncate(valid);
+            }
+
+            if (valid == 0) {
+                writeHeader();
+            }
+
+            channel.position(channel.size());
+            channel.force(false);
+
+            nextSeq = records.isEmpty() ? segment.getFirstSeq() : records.get(records.size() - 1).getSeq() + 1;
+        }
+
+        lastSeq = nextSeq - 1;
+        closedSeq = lastSeq;
+        segmentFirstSeq = nextSeq;
+        syncedSeq = lastSeq;
+
+        log.log(Level.FINE, "Opened queue {0}, next sequence number is {1}", new Object[] {dir, nextSeq});
+    }
+
+    @Override
+    public void save(String source, Sample sample) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        sample.writeDelimitedTo(payload);
+
+        commit(source, payload.toByteArray());
+    }
+
+    @Override
+    public void move(String source, File staged) throws IOException {
+        commit(source, Files.readAllBytes(staged.toPath()));
+        Files.delete(staged.toPath());
+    }
+
+    @Override
+    public void recover(String source, File staged) throws IOException {
+        byte[] payload = Files.readAllBytes(staged.toPath());
+
+        // A crash before the staged file was removed leaves the record at the end of the current segment
+        if (!contains(source, payload)) {
+            commit(source, payload);
+        }
+
+        Files.delete(staged.toPath());
+    }
+
+    /**
+     * Append a sample, and wait for it to be synced.
+     * @param source Address of the node the sample is from.
+     * @param payload The delimited sample.
+     * @throws IOException If the sample can't be appended or synced.
+     */
+    private void commit(String source, byte[] payload) throws IOException {
+        long seq = append(source, payload);
+        sync(seq);
+
+        log.log(Level.INFO, "Saved sample to queue {0} as {1}", new Object[] {dir, seq});
+    }
+
+    /**
+     * Append a record to the current segment, starting a new one if needed.
+     * @param source Address of the node the sample is from.
+     * @param payload The delimited sample.
+     * @return The sequence number of the record.
+     * @throws IOException If the record can't be written.
+     */
+    private synchronized long append(String source, byte[] payload) throws IOException {
+        ByteBuffer record = Segment.encode(nextSeq, source, payload);
+
+        if (channel == null || channel.position() >= segmentSize) {
+            rotate();
+        }
+
+        long start = channel.position();
+
+        try {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+        } catch (IOException e) {
+            // Don't leave a partial record for later records to be appended after
+            try {
+                channel.truncate(start);
+                channel.position(start);
+            } catch (IOException truncateError) {
+                log.log(Level.WARNING, "Unable to remove partial record, starting a new segment", truncateError);
+                closeSegment();
+            }
+            throw e;
+        }
+
+        lastSeq = nextSeq++;
+        return lastSeq;
+    }
+
+    /**
+     * Close the current segment, and start a new one.
+     * @throws IOException If the current segment can't be synced, or a new one created.
+     */
+    private void rotate() throws IOException {
+        closeSegment();
+
+        segment = new Segment(dir, nextSeq);
+        segmentFirstSeq = nextSeq;
+        // Any existing segment with this name can't have any records we've acknowledged
+        channel = FileChannel.open(segment.getFile().toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        writeHeader();
+
+        FileUtils.syncDir(dir);
+        log.log(Level.FINE, "Started queue segment {0}", segment.getFile());
+    }
+
+    /**
+     * Sync and close the current segment, if there is one.
+     * If it can't be synced, the records appended to it are remembered as never being durable.
+     * @throws IOException If the segment can't be synced.
+     */
+    private void closeSegment() throws IOException {
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            channel.force(false);
+            closedSeq = lastSeq;
+        } catch (IOException e) {
+            if (lastSeq >= segmentFirstSeq) {
+                unsynced.put(segmentFirstSeq, lastSeq);
+            }
+            throw e;
+        } finally {
+            channel.close();
+            channel = null;
+            segment = null;
+        }
+    }
+
+    /**
+     * Write the header of a new segment.
+     * @throws IOException If the header can't be written.
+     */
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Segment.HEADER_SIZE);
+        header.putInt(Segment.MAGIC);
+        header.flip();
+
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    /**
+     * Wait for a record to be synced to disk.
+     * Only one thread syncs at a time, and a sync covers every record appended before it started,
+     * so threads waiting on a sync will usually find their record has been synced by it.
+     * A record in a segment that has since been closed was synced by closing it, unless that failed.
+     * @param seq The sequence number of the record.
+     * @throws IOException If syncing fails, or the segment of the record couldn't be synced when it was closed.
+     */
+    private void sync(long seq) throws IOException {
+        synchronized (syncLock) {
+            FileChannel current;
+            long target;
+
+            synchronized (this) {
+                // Checked first, as later syncs of other segments don't cover it
+                if (isUnsynced(seq)) {
+                    throw new IOException("Queue segment of record " + seq + " couldn't be synced when it was closed");
+                }
+
+                if (syncedSeq >= seq || seq < segmentFirstSeq) {
+                    return;
+                }
+
+                current = channel;
+                target = lastSeq;
+            }
+
+            try {
+                if (current == null) {
+                    throw new ClosedChannelException();
+                }
+                current.force(false);
+            } catch (ClosedChannelException e) {
+                // The segment has since been closed, which syncs it if it succeeded
+                synchronized (this) {
+                    if (closedSeq < seq || isUnsynced(seq)) {
+                        throw new IOException("Queue segment closed before it could be synced", e);
+                    }
+                    target = closedSeq;
+                }
+            }
+
+            syncedSeq = target;
+        }
+    }
+
+    /**
+     * Check if a record is in a segment that couldn't be synced when it was closed.
+     * @param seq The sequence number of the record.
+     * @return True if it is, false otherwise.
+     */
+    private synchronized boolean isUnsynced(long seq) {
+        Map.Entry<Long, Long> lost = unsynced.floorEntry(seq);
+        return lost != null && seq <= lost.getValue();
+    }
+
+    /**
+     * Check if the current segment contains a sample.
+     * @param source Address of the node the sample is from.
+     * @param payload The delimited sample.
+     * @return True if it does, false otherwise.
+     * @throws IOException If the segment can't be read.
+     */
+    private synchronized boolean contains(String source, byte[] payload) throws IOException {
+        if (segment == null) {
+            return false;
+        }
+
+        List<Record> records = new ArrayList<>();
+        segment.read(records);
+
+        for (Record record : records) {
+            if (record.getSource().equals(source) && Arrays.equals(record.getPayload(), payload)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeSegment();
+    }
+}
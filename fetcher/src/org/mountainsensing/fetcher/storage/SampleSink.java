@@ -0,0 +1,43 @@
+/**
+ * destination for samples
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import org.mountainsensing.pb.Readings.Sample;
+
+/**
+ * Somewhere samples are saved to, ready to be uploaded.
+ * Samples are durable (synced to disk) once saved, so they can safely be deleted from their node.
+ * Implementations must be thread safe.
+ */
+public interface SampleSink extends Closeable {
+
+    /**
+     * Save a sample.
+     * @param source The IPv6 address of the node the sample is from.
+     * @param sample The sample.
+     * @throws IOException If the sample can't be saved.
+     */
+    public void save(String source, Sample sample) throws IOException;
+
+    /**
+     * Save a sample that has been written to a file, removing the file.
+     * @param source The IPv6 address of the node the sample is from.
+     * @param staged A file containing the delimited sample, on the same filesystem as the sink.
+     * @throws IOException If the sample can't be saved, or the file removed.
+     */
+    public void move(String source, File staged) throws IOException;
+
+    /**
+     * Save a sample that has been written to a file, that may have already been saved by {@link #move(String, File)}
+     * before a crash, removing the file. The sample is only saved if it wasn't already.
+     * @param source The IPv6 address of the node the sample is from.
+     * @param staged A file containing the delimited sample, on the same filesystem as the sink.
+     * @throws IOException If the sample can't be saved, or the file removed.
+     */
+    public void recover(String source, File staged) throws IOException;
+}
@@ -0,0 +1,233 @@
+/**
+ * segment file of a sample queue
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A segment file of a {@link SampleQueue}, named after the sequence number of it's first record.
+ * A segment starts with {@link #MAGIC}, followed by records. Each record is:
+ * the length of the body and the CRC32 of the body (both ints), and the body:
+ * the sequence number (long), the length of the source (byte), the source (US-ASCII), and the delimited sample.
+ * All numbers are big endian.
+ */
+class Segment implements Comparable<Segment> {
+
+    /**
+     * Magic number at the start of every segment, "MSQ1".
+     */
+    static final int MAGIC = 0x4D535131;
+
+    /**
+     * Size of the segment header.
+     */
+    static final int HEADER_SIZE = 4;
+
+    /**
+     * Size of the length and CRC before each record.
+     */
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /**
+     * Size of the smallest possible record body, with an empty source and sample.
+     */
+    private static final int MIN_BODY_SIZE = 9;
+
+    /**
+     * Size of the largest record body we accept, anything larger is assumed to be corrupt.
+     */
+    private static final int MAX_BODY_SIZE = 1 << 20;
+
+    /**
+     * Maximum length of a source.
+     */
+    private static final int MAX_SOURCE_LENGTH = 255;
+
+    /**
+     * Suffix of segment files.
+     */
+    private static final String SUFFIX = ".seg";
+
+    /**
+     * The segment file.
+     */
+    private final File file;
+
+    /**
+     * Sequence number of the first record in the segment.
+     */
+    private final long firstSeq;
+
+    /**
+     * Create a segment.
+     * @param dir The directory of the queue.
+     * @param firstSeq Sequence number of the first record in the segment.
+     */
+    Segment(File dir, long firstSeq) {
+        this.file = new File(dir, String.format("%020d", firstSeq) + SUFFIX);
+        this.firstSeq = firstSeq;
+    }
+
+    /**
+     * Get the segment file.
+     * @return The file.
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Get the sequence number of the first record in the segment.
+     * @return The sequence number.
+     */
+    long getFirstSeq() {
+        return firstSeq;
+    }
+
+    /**
+     * Read all the valid records in the segment.
+     * Reading stops at the first invalid record, which is normally a record that was being written during a crash.
+     * @param records List the records are added to, in order.
+     * @return The length of the valid part of the segment.
+     * @throws IOException If the segment can't be read, or isn't a segment.
+     */
+    long read(List<SampleQueue.Record> records) throws IOException {
+        byte[] data = Files.readAllBytes(file.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+
+        // Crashed before the header was written
+        if (data.length < HEADER_SIZE) {
+            return 0;
+        }
+
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a queue segment: " + file);
+        }
+
+        long valid = buffer.position();
+        CRC32 crc = new CRC32();
+
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+
+            if (length < MIN_BODY_SIZE || length > MAX_BODY_SIZE || length > buffer.remaining()) {
+                break;
+            }
+
+            crc.reset();
+            crc.update(data, buffer.position(), length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            int end = buffer.position() + length;
+            long seq = buffer.getLong();
+            int sourceLength = buffer.get() & 0xFF;
+
+            if (buffer.position() + sourceLength > end) {
+                break;
+            }
+
+            String source = new String(data, buffer.position(), sourceLength, StandardCharsets.US_ASCII);
+            byte[] payload = Arrays.copyOfRange(data, buffer.position() + sourceLength, end);
+
+            records.add(new SampleQueue.Record(seq, source, payload));
+            buffer.position(end);
+            valid = end;
+        }
+
+        return valid;
+    }
+
+    /**
+     * Encode a record.
+     * @param seq The sequence number of the record.
+     * @param source The source of the sample.
+     * @param payload The delimited sample.
+     * @return A buffer containing the record, ready to be written.
+     * @throws IOException If the record is too large.
+     */
+    static ByteBuffer encode(long seq, String source, byte[] payload) throws IOException {
+        byte[] sourceBytes = source.getBytes(StandardCharsets.US_ASCII);
+        int length = MIN_BODY_SIZE + sourceBytes.length + payload.length;
+
+        if (sourceBytes.length > MAX_SOURCE_LENGTH || length > MAX_BODY_SIZE) {
+            throw new IOException("Sample from " + source + " is too large to be queued");
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        record.position(RECORD_HEADER_SIZE);
+        record.putLong(seq);
+        record.put((byte) sourceBytes.length);
+        record.put(sourceBytes);
+        record.put(payload);
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, length);
+        record.putInt(0, length);
+        record.putInt(4, (int) crc.getValue());
+
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Get all the segments of a queue.
+     * @param dir The directory of the queue.
+     * @return The segments, ordered by sequence number.
+     * @throws IOException If the directory can't be listed.
+     */
+    static List<Segment> list(File dir) throws IOException {
+        File[] files = dir.listFiles();
+
+        if (files == null) {
+            throw new IOException("Unable to list queue " + dir);
+        }
+
+        List<Segment> segments = new ArrayList<>();
+
+        for (File segment : files) {
+            String name = segment.getName();
+
+            if (!name.endsWith(SUFFIX)) {
+                continue;
+            }
+
+            try {
+                segments.add(new Segment(dir, Long.parseLong(name.substring(0, name.length() - SUFFIX.length()))));
+            } catch (NumberFormatException e) {
+                // Not one of ours
+            }
+        }
+
+        Collections.sort(segments);
+        return segments;
+    }
+
+    @Override
+    public int compareTo(Segment other) {
+        return Long.compare(firstSeq, other.firstSeq);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Segment && ((Segment) other).file.equals(file);
+    }
+
+    @Override
+    public int hashCode() {
+        return file.hashCode();
+    }
+}
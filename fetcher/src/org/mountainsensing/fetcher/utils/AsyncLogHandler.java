@@ -0,0 +1,528 @@
+/**
+ * asynchronous logging through a bounded buffer
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.utils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Handler that formats records on the thread logging them, and writes them from a single background thread,
+ * so logging never waits on the console or storage (unless the {@link OverflowPolicy#BLOCK} policy is used).
+ * Formatted records are queued in a bounded ring buffer. The writer takes every queued record at once, writes them,
+ * and only flushes once per batch.
+ * Closing the handler (which the LogManager does when the JVM exits) writes any queued records first.
+ */
+public class AsyncLogHandler extends Handler {
+
+    /**
+     * Default number of records that can be queued.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * What to do when a record is published while the buffer is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait for the writer to make space.
+         */
+        BLOCK,
+
+        /**
+         * Drop the least severe record, oldest first: either a queued record less severe than the new one, or the new one.
+         * Records that are dropped are counted, and reported in the log.
+         */
+        DROP
+    }
+
+    /**
+     * Where the writer writes records to.
+     */
+    public interface Output {
+
+        /**
+         * Write a formatted record.
+         * @param text The record.
+         * @throws IOException If writing fails.
+         */
+        void write(String text) throws IOException;
+
+        /**
+         * Flush the records written.
+         * @throws IOException If flushing fails.
+         */
+        void flush() throws IOException;
+
+        /**
+         * Close the output.
+         * @throws IOException If closing fails.
+         */
+        void close() throws IOException;
+    }
+
+    /**
+     * Output to stderr, like a ConsoleHandler.
+     */
+    public static class ConsoleOutput implements Output {
+
+        /**
+         * Writer to stderr.
+         */
+        private final Writer writer = new BufferedWriter(new OutputStreamWriter(System.err));
+
+        @Override
+        public void write(String text) throws IOException {
+            writer.write(text);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writer.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Never close stderr
+            writer.flush();
+        }
+    }
+
+    /**
+     * Output appending to a file, that is rotated when it gets too big.
+     * Rotating renames the file to {@code <file>.1}, {@code <file>.1} to {@code <file>.2}, and so on, deleting the oldest.
+     * Files are only rotated after a batch has been flushed, so a file can be bigger than the limit by one batch.
+     */
+    public static class RotatingFileOutput implements Output {
+
+        /**
+         * The file.
+         */
+        private final File file;
+
+        /**
+         * Size after which the file is rotated, 0 to never rotate it.
+         */
+        private final long limit;
+
+        /**
+         * Number of old files kept.
+         */
+        private final int count;
+
+        /**
+         * Counts the bytes written to the file.
+         */
+        private CountingOutputStream counter;
+
+        /**
+         * Writer to the file.
+         */
+        private Writer writer;
+
+        /**
+         * Open a file, appending to it if it exists.
+         * @param path Path to the file.
+         * @param limit Size in bytes after which the file is rotated, 0 to never rotate it.
+         * @param count Number of old files kept.
+         * @throws IOException If the file can't be opened.
+         */
+        public RotatingFileOutput(String path, long limit, int count) throws IOException {
+            this.file = new File(path);
+            this.limit = limit;
+            this.count = count;
+
+            open();
+        }
+
+        @Override
+        public void write(String text) throws IOException {
+            writer.write(text);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writer.flush();
+
+            if (limit > 0 && counter.getCount() >= limit) {
+                rotate();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+
+        /**
+         * Open the file for appending.
+         * @throws IOException If the file can't be opened.
+         */
+        private void open() throws IOException {
+            counter = new CountingOutputStream(new FileOutputStream(file, true), file.length());
+            writer = new BufferedWriter(new OutputStreamWriter(counter));
+        }
+
+        /**
+         * Rotate the old files, and start a new file.
+         * @throws IOException If the file can't be closed or opened. Failing to rename a file isn't an error, it's overwritten instead.
+         */
+        private void rotate() throws IOException {
+            writer.close();
+
+            for (int i = count - 1; i >= 0; i--) {
+                File older = new File(file.getPath() + "." + (i + 1));
+                File newer = i == 0 ? file : new File(file.getPath() + "." + i);
+
+                if (newer.exists()) {
+                    older.delete();
+                    newer.renameTo(older);
+                }
+            }
+
+            // With no old files kept, the file is just started again
+            if (count == 0) {
+                file.delete();
+            }
+
+            open();
+        }
+    }
+
+    /**
+     * Stream counting the bytes written to it.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        /**
+         * Number of bytes written.
+         */
+        private long count;
+
+        /**
+         * Create a new stream.
+         * @param out Stream to write to.
+         * @param count Number of bytes already written.
+         */
+        public CountingOutputStream(OutputStream out, long count) {
+            super(out);
+            this.count = count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        /**
+         * Get the number of bytes written.
+         * @return The number of bytes.
+         */
+        public long getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * Where records are written.
+     */
+    private final Output output;
+
+    /**
+     * What to do when a record is published while the buffer is full.
+     */
+    private final OverflowPolicy policy;
+
+    /**
+     * The formatted records, a ring buffer.
+     */
+    private final String[] texts;
+
+    /**
+     * The level of each record, as an int.
+     */
+    private final int[] levels;
+
+    /**
+     * Guards the buffer, and the fields below.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signalled when records are queued, or the handler is closed.
+     */
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * Signalled when the writer takes records, or has written them.
+     */
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * Index of the oldest queued record.
+     */
+    private int head = 0;
+
+    /**
+     * Number of queued records.
+     */
+    private int size = 0;
+
+    /**
+     * Number of records the writer has taken, but not yet written.
+     */
+    private int writing = 0;
+
+    /**
+     * Number of records dropped since they were last reported.
+     */
+    private long dropped = 0;
+
+    /**
+     * True once the handler has been closed.
+     */
+    private boolean isClosed = false;
+
+    /**
+     * The writer thread.
+     */
+    private final Thread writer;
+
+    /**
+     * Create a new handler, and start it's writer thread.
+     * @param name Name of the writer thread.
+     * @param output Where records are written.
+     * @param capacity Number of records that can be queued.
+     * @param policy What to do when a record is published while the buffer is full.
+     */
+    public AsyncLogHandler(String name, Output output, int capacity, OverflowPolicy policy) {
+        this.output = output;
+        this.policy = policy;
+        this.texts = new String[capacity];
+        this.levels = new int[capacity];
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeRecords();
+            }
+        }, name);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (!isLoggable(record)) {
+            return;
+        }
+
+        String text;
+
+        // Format on this thread, as the context of the record is per thread
+        try {
+            text = getFormatter().format(record);
+        } catch (RuntimeException e) {
+            reportError(null, e, ErrorManager.FORMAT_FAILURE);
+            return;
+        }
+
+        int level = record.getLevel().intValue();
+
+        lock.lock();
+        try {
+            if (isClosed) {
+                return;
+            }
+
+            while (size == texts.length) {
+                if (policy == OverflowPolicy.DROP) {
+                    if (!dropLessSevere(level)) {
+                        dropped++;
+                        return;
+                    }
+                    break;
+                }
+
+                notFull.awaitUninterruptibly();
+
+                if (isClosed) {
+                    return;
+                }
+            }
+
+            int tail = (head + size) % texts.length;
+            texts[tail] = text;
+            levels[tail] = level;
+            size++;
+
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until every record published so far has been written and flushed.
+     */
+    @Override
+    public void flush() {
+        lock.lock();
+        try {
+            while ((size > 0 || writing > 0) && writer.isAlive()) {
+                notFull.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write any queued records, stop the writer, and close the output.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            notEmpty.signal();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            output.close();
+        } catch (IOException e) {
+            reportError(null, e, ErrorManager.CLOSE_FAILURE);
+        }
+    }
+
+    /**
+     * Make space by dropping the oldest queued record of the lowest level, if it's less severe than a new record.
+     * Must be called with the lock held, and the buffer full.
+     * @param level The level of the new record.
+     * @return True if a record was dropped, false if the new record should be dropped instead.
+     */
+    private boolean dropLessSevere(int level) {
+        int lowest = -1;
+
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % texts.length;
+            if (levels[index] < level && (lowest < 0 || levels[index] < levels[(head + lowest) % texts.length])) {
+                lowest = i;
+            }
+        }
+
+        if (lowest < 0) {
+            return false;
+        }
+
+        // Shift the newer records down over the dropped one
+        for (int i = lowest; i < size - 1; i++) {
+            int index = (head + i) % texts.length;
+            int next = (head + i + 1) % texts.length;
+            texts[index] = texts[next];
+            levels[index] = levels[next];
+        }
+
+        size--;
+        texts[(head + size) % texts.length] = null;
+        dropped++;
+        return true;
+    }
+
+    /**
+     * Write records until the handler is closed and every record has been written.
+     */
+    private void writeRecords() {
+        String[] batch = new String[texts.length];
+
+        while (true) {
+            int count;
+            long batchDropped;
+
+            lock.lock();
+            try {
+                while (size == 0 && !isClosed) {
+                    notEmpty.awaitUninterruptibly();
+                }
+
+                if (size == 0) {
+                    return;
+                }
+
+                // Take every queued record, so the buffer is free while they're written
+                for (count = 0; count < size; count++) {
+                    int index = (head + count) % texts.length;
+                    batch[count] = texts[index];
+                    texts[index] = null;
+                }
+
+                head = (head + size) % texts.length;
+                size = 0;
+                writing = count;
+                batchDropped = dropped;
+                dropped = 0;
+
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                if (batchDropped > 0) {
+                    LogRecord record = new LogRecord(Level.WARNING, "Log buffer full, dropped {0} record(s)");
+                    record.setParameters(new Object[] {Long.toString(batchDropped)});
+                    output.write(getFormatter().format(record));
+                }
+
+                for (int i = 0; i < count; i++) {
+                    output.write(batch[i]);
+                    batch[i] = null;
+                }
+
+                output.flush();
+            } catch (IOException | RuntimeException e) {
+                reportError(null, e, ErrorManager.WRITE_FAILURE);
+            }
+
+            lock.lock();
+            try {
+                writing = 0;
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
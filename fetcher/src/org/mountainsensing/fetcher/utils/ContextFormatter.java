@@ -1,37 +1,79 @@
 package org.mountainsensing.fetcher.utils;
 
+import java.text.FieldPosition;
 import java.text.MessageFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Formatter;
 import java.util.logging.LogRecord;
 
 /**
  * A wrapper class that can provide context for logging.
+ * Records are formatted into a buffer reused by each thread, and the patterns of messages with parameters are only compiled once,
+ * so formatting doesn't create much garbage. The formatters are thread safe.
  */
 public class ContextFormatter {
 
     /**
-     * The message format to use when no context information is set.
+     * Indentation of the lines of a message after the first.
      */
-    private static final MessageFormat MESSAGE_FORMAT = new MessageFormat("{0} [{1}]: {2}\n");
+    private static final String INDENT = "    ";
 
     /**
-     * The message format to use when context information is set.
+     * Maximum number of message patterns cached.
+     * Messages are normally constants, this stops messages built at runtime using up memory.
      */
-    private static final MessageFormat CONTEXT_FORMAT = new MessageFormat("{0} [{1}] [{3}]: {2}\n");
+    private static final int MAX_CACHED_PATTERNS = 512;
+
+    /**
+     * Largest buffer kept for reuse, after formatting an unusually long record.
+     */
+    private static final int MAX_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Timezone of the dates in logs.
+     */
+    private static final ZoneId UTC = ZoneId.of("UTC");
 
     /**
      * The context information.
-     * Can be null.
+     * This is per thread, as nodes can be processed concurrently. The value can be null.
      */
-    private String context;
+    private final ThreadLocal<String> context = new ThreadLocal<>();
 
     /**
-     * Set the context of any Console or File formatters.
+     * Compiled message patterns, by pattern.
+     * MessageFormat isn't thread safe, so a pattern is locked while it is used.
+     */
+    private final ConcurrentMap<String, MessageFormat> patterns = new ConcurrentHashMap<>();
+
+    /**
+     * Buffer each thread formats records into.
+     */
+    private final ThreadLocal<StringBuffer> buffers = new ThreadLocal<StringBuffer>() {
+        @Override
+        protected StringBuffer initialValue() {
+            return new StringBuffer();
+        }
+    };
+
+    /**
+     * Set the context of any Console or File formatters, for logs made by the current thread.
      * @param context The context of further logs.
      */
     public void setContext(String context) {
-        this.context = context;
+        this.context.set(context);
+    }
+
+    /**
+     * Get the context of logs made by the current thread.
+     * @return The context, null if none is set.
+     */
+    public String getContext() {
+        return context.get();
     }
 
     /**
@@ -57,31 +99,105 @@ public class ContextFormatter {
         return new FileFormatter();
     }
 
-    protected String format(String dateFormat, LogRecord record) {
-        Object[] arguments = new Object[5];
+    /**
+     * Format a record as {@code <date> [<level>] [<context>]: <message>}, on one line, or with every line of the message after the first indented.
+     * The context is left out if none is set.
+     * @param dateFormat The format of the date.
+     * @param record The record.
+     * @return The formatted record.
+     */
+    protected String format(DateTimeFormatter dateFormat, LogRecord record) {
+        StringBuffer buffer = buffers.get();
+        buffer.setLength(0);
+
+        dateFormat.formatTo(Instant.ofEpochMilli(record.getMillis()), buffer);
+        buffer.append(" [").append(record.getLevel().getName()).append(']');
+
+        // Handlers format records on the thread that logged them, so this is the context of the log
+        String recordContext = context.get();
+        if (recordContext != null) {
+            buffer.append(" [").append(recordContext).append(']');
+        }
 
-        arguments[0] = new UTCDateFormat(dateFormat).format(new Date(record.getMillis()));
-        arguments[1] = record.getLevel();
-        arguments[2] = new MessageFormat(record.getMessage()).format(record.getParameters());
+        buffer.append(": ");
 
-        MessageFormat format = MESSAGE_FORMAT;
+        int messageStart = buffer.length();
+        appendMessage(record, buffer);
+        indent(buffer, messageStart);
+        buffer.append('\n');
 
-        if (context != null) {
-            format = CONTEXT_FORMAT;
-            arguments[3] = context;
+        String result = buffer.toString();
+
+        if (buffer.capacity() > MAX_BUFFER_SIZE) {
+            buffers.set(new StringBuffer());
+        }
+
+        return result;
+    }
+
+    /**
+     * Append the message of a record, with it's parameters.
+     * Like {@link Formatter#formatMessage(LogRecord)}, messages without parameters are appended as is.
+     * @param record The record.
+     * @param buffer Where to append the message to.
+     */
+    private void appendMessage(LogRecord record, StringBuffer buffer) {
+        String message = record.getMessage();
+        Object[] parameters = record.getParameters();
+
+        if (message == null || parameters == null || parameters.length == 0 || message.indexOf('{') < 0) {
+            buffer.append(message);
+            return;
+        }
+
+        MessageFormat format = patterns.get(message);
+
+        if (format == null) {
+            try {
+                format = new MessageFormat(message);
+            } catch (IllegalArgumentException e) {
+                // Not a valid pattern, so it can't have been meant as one
+                buffer.append(message);
+                return;
+            }
+
+            if (patterns.size() < MAX_CACHED_PATTERNS) {
+                patterns.putIfAbsent(message, format);
+            }
+        }
+
+        synchronized (format) {
+            format.format(parameters, buffer, new FieldPosition(0));
         }
+    }
 
-        String message = format.format(arguments);
+    /**
+     * Indent every line after the first of the end of a buffer.
+     * @param buffer The buffer.
+     * @param start Index of the first line.
+     */
+    private static void indent(StringBuffer buffer, int start) {
+        int newline = buffer.indexOf("\n", start);
 
         // If the message is only one line, we're done
-        if (!message.contains(System.lineSeparator())) {
-            return message;
+        if (newline < 0) {
+            return;
         }
 
-        // Index of the split between the first line, and the rest of the lines
-        int split = message.indexOf(System.lineSeparator());
-        // Append the first line to the rest of the indented lines
-        return message.substring(0, split) + FormatUtils.indent(message.substring(split));
+        // Only shift the rest of the buffer once, by building the indented lines separately
+        StringBuilder indented = new StringBuilder(buffer.length() - newline + INDENT.length() * 8);
+
+        for (int i = newline; i < buffer.length(); i++) {
+            char c = buffer.charAt(i);
+            indented.append(c);
+
+            if (c == '\n' && i + 1 < buffer.length()) {
+                indented.append(INDENT);
+            }
+        }
+
+        buffer.setLength(newline);
+        buffer.append(indented);
     }
 
     /**
@@ -92,27 +208,27 @@ public class ContextFormatter {
         /**
          * The date format to use for logging.
          */
-        private static final String DATE_FORMAT = "HH:mm:ss";
+        private final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("HH:mm:ss").withZone(UTC);
 
         @Override
         public String format(LogRecord record) {
-            return ContextFormatter.this.format(DATE_FORMAT, record);
+            return ContextFormatter.this.format(dateFormat, record);
         }
     }
 
     /**
-     * A formatter suitable for Console logging.
+     * A formatter suitable for File logging.
      */
     public class FileFormatter extends Formatter {
 
         /**
          * The date format to use for logging.
          */
-        private static final String DATE_FORMAT = "YYYY-MM-dd HH:mm:ss z";
+        private final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss z").withZone(UTC);
 
         @Override
         public String format(LogRecord record) {
-            return ContextFormatter.this.format(DATE_FORMAT, record);
+            return ContextFormatter.this.format(dateFormat, record);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,79 @@
+package org.mountainsensing.fetcher.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Various Utils for dealing with files durably.
+ */
+public class FileUtils {
+
+    private static final Logger log = Logger.getLogger(FileUtils.class.getName());
+
+    /**
+     * Suffix of the temporary file written by {@link #replace(File, Contents)}.
+     */
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /**
+     * Writes the contents of a file replaced by {@link #replace(File, Contents)}.
+     */
+    public interface Contents {
+
+        /**
+         * Write the contents.
+         * @param out The stream to write to. It must not be closed.
+         * @throws IOException If the contents can't be written.
+         */
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Replace the contents of a file, so that anything reading it, even after a crash, only sees the old or the new contents.
+     * The contents are written to a temporary file next to it, which is synced to disk before being moved over the file.
+     * @param file The file to replace. It is created if it doesn't exist.
+     * @param contents Writes the new contents.
+     * @throws IOException If the contents can't be written, or the file replaced. The file is left as it was.
+     */
+    public static void replace(File file, Contents contents) throws IOException {
+        File tmp = new File(file.getPath() + TMP_SUFFIX);
+
+        try {
+            try (FileOutputStream stream = new FileOutputStream(tmp)) {
+                OutputStream out = new BufferedOutputStream(stream);
+                contents.write(out);
+                out.flush();
+                stream.getFD().sync();
+            }
+
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+
+        syncDir(file.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Sync a directory to disk, so that files created in, or moved to, it are durable.
+     * Not all platforms allow opening a directory, in which case this does nothing.
+     * @param dir The directory to sync.
+     */
+    public static void syncDir(File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            log.log(Level.FINEST, "Unable to sync directory " + dir, e);
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package org.mountainsensing.fetcher.utils;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Various Utils for Formatting Strings, such as indenting them.
@@ -22,6 +25,11 @@ public class FormatUtils {
      */
     private static final int HEX_BASE = 16;
 
+    /**
+     * Pattern of an interval accepted by {@link #parseInterval(String)}.
+     */
+    private static final Pattern INTERVAL_PATTERN = Pattern.compile("(\\d{1,9})([smhd])");
+
     /**
      * Indent a String with 4 spaces. Every line in the string will be indented.
      * @param s The String to indented
@@ -64,6 +72,34 @@ public class FormatUtils {
         return Integer.parseInt(s, HEX_BASE);
     }
 
+    /**
+     * Decode hex encoded bytes, ie a line of a hex dump, without creating a String.
+     * @param hex Buffer containing the hex digits. Only absolute gets are used.
+     * @param start Index of the first digit.
+     * @param end Index after the last digit.
+     * @param out Array to decode into, at least half as long as the digits.
+     * @return The number of bytes decoded.
+     * @throws IllegalArgumentException If there is an odd number of digits, or a byte isn't a hex digit.
+     */
+    public static int parseHex(ByteBuffer hex, int start, int end, byte[] out) {
+        if ((end - start) % 2 != 0) {
+            throw new IllegalArgumentException("Hex must have an even number of digits, got " + (end - start));
+        }
+
+        for (int i = start, j = 0; i < end; i += 2, j++) {
+            int high = Character.digit((char) (hex.get(i) & 0xFF), HEX_BASE);
+            int low = Character.digit((char) (hex.get(i + 1) & 0xFF), HEX_BASE);
+
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Invalid hex digit at offset " + (high < 0 ? i - start : i + 1 - start));
+            }
+
+            out[j] = (byte) ((high << 4) | low);
+        }
+
+        return (end - start) / 2;
+    }
+
     /**
      * Get a formatted string from a time interval.
      * @param seconds The interval in seconds.
@@ -77,4 +113,34 @@ public class FormatUtils {
 
         return String.format("%d days, %02d hours, %02d minutes, %02d seconds", days, hours, minutes, secs);
     }
-}
\ No newline at end of file
+
+    /**
+     * Parse a time interval, made of a number and a unit (s, m, h or d). ie 10m, 1h or 1d.
+     * @param s The interval to parse.
+     * @return The interval in seconds.
+     * @throws IllegalArgumentException If the interval is not valid, or not greater than 0.
+     */
+    public static long parseInterval(String s) {
+        Matcher matcher = INTERVAL_PATTERN.matcher(s);
+
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid interval " + s + ", expected a number followed by one of s, m, h or d");
+        }
+
+        long value = Long.parseLong(matcher.group(1));
+        if (value <= 0) {
+            throw new IllegalArgumentException("Interval " + s + " must be greater than 0");
+        }
+
+        switch (matcher.group(2)) {
+            case "s":
+                return value;
+            case "m":
+                return TimeUnit.MINUTES.toSeconds(value);
+            case "h":
+                return TimeUnit.HOURS.toSeconds(value);
+            default:
+                return TimeUnit.DAYS.toSeconds(value);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.mountainsensing.fetcher.utils;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+/**
+ * A Function that can throw an IOException.
+ * This allows steps doing I/O (such as decoding a response) to be chained onto a CompletableFuture.
+ * Any IOException is wrapped in a CompletionException, completing the resulting future exceptionally.
+ * @param <T> The type of the input to the function.
+ * @param <R> The type of the result of the function.
+ */
+public abstract class IOFunction<T, R> implements Function<T, R> {
+
+    @Override
+    public final R apply(T input) {
+        try {
+            return applyIO(input);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Apply this function.
+     * @param input The input to the function.
+     * @return The result of the function.
+     * @throws IOException If an I/O error occurs.
+     */
+    protected abstract R applyIO(T input) throws IOException;
+}
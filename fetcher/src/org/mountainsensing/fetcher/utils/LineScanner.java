@@ -0,0 +1,252 @@
+/**
+ * byte level line scanner for large text inputs
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits text into lines without decoding it, or creating a String per line.
+ * Files are memory mapped a region at a time, so files of any size can be scanned, and lines can be kept without copying them.
+ * Lines are terminated by \n, and any \r before it is removed. Line numbers start at 1.
+ */
+public class LineScanner {
+
+    /**
+     * Receives the lines of an input.
+     */
+    public interface Handler {
+
+        /**
+         * Handle a line.
+         * The line should only be read using absolute gets, as the buffer's position and limit are not set.
+         * @param buffer Buffer containing the line.
+         * @param start Index of the first byte of the line.
+         * @param end Index after the last byte of the line, excluding the line terminator.
+         * @param number Number of the line.
+         * @throws IOException To stop scanning.
+         */
+        void line(ByteBuffer buffer, int start, int end, long number) throws IOException;
+    }
+
+    /**
+     * Size of the regions of a file that are mapped.
+     */
+    private static final long MAP_SIZE = 256 * 1024 * 1024;
+
+    /**
+     * Initial size of the buffer streams are read into.
+     */
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Longest line that can be read from a stream.
+     */
+    private static final int MAX_STREAM_LINE_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * A newline in every byte of a word.
+     */
+    private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+
+    /**
+     * The low bit of every byte of a word.
+     */
+    private static final long LOW_BITS = 0x0101010101010101L;
+
+    /**
+     * The high bit of every byte of a word.
+     */
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    /**
+     * Receives the lines.
+     */
+    private final Handler handler;
+
+    /**
+     * Number of the last line scanned.
+     */
+    private long number = 0;
+
+    /**
+     * Create a new scanner.
+     * @param handler Receives the lines.
+     */
+    public LineScanner(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Scan all the lines of a file, from the start, by mapping it.
+     * Lines can be kept after they have been handled, as the mapping remains valid until it is garbage collected.
+     * @param channel A channel to the file.
+     * @throws IOException If the file can't be mapped, a line is longer than a region, or the handler throws it.
+     */
+    public void scan(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long position = 0;
+
+        while (position < size) {
+            long length = Math.min(MAP_SIZE, size - position);
+            boolean isLast = position + length == size;
+
+            // The lines at the end of a region that don't fit are scanned from the start of the next region
+            long scanned = lines(channel.map(FileChannel.MapMode.READ_ONLY, position, length), (int) length, isLast);
+
+            if (scanned == 0) {
+                throw new IOException("Line " + (number + 1) + " is longer than " + MAP_SIZE + " bytes");
+            }
+
+            position += scanned;
+        }
+    }
+
+    /**
+     * Scan all the lines of a stream.
+     * Lines are read into a reused buffer, so must be copied if they are needed after they have been handled.
+     * @param in The stream.
+     * @throws IOException If the stream can't be read, a line is too long, or the handler throws it.
+     */
+    public void scan(InputStream in) throws IOException {
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        int length = 0;
+
+        while (true) {
+            // The buffer only contains part of a line
+            if (length == buffer.length) {
+                if (buffer.length >= MAX_STREAM_LINE_LENGTH) {
+                    throw new IOException("Line " + (number + 1) + " is longer than " + MAX_STREAM_LINE_LENGTH + " bytes");
+                }
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+
+            int read = in.read(buffer, length, buffer.length - length);
+            boolean isLast = read == -1;
+
+            if (!isLast) {
+                length += read;
+            }
+
+            int scanned = lines(ByteBuffer.wrap(buffer), length, isLast);
+
+            if (isLast) {
+                return;
+            }
+
+            // Keep the start of the last line for the next read
+            System.arraycopy(buffer, scanned, buffer, 0, length - scanned);
+            length -= scanned;
+        }
+    }
+
+    /**
+     * Scan the complete lines in a buffer.
+     * @param buffer The buffer, starting at the start of a line.
+     * @param length The number of bytes in the buffer.
+     * @param isLast True if this is the end of the input, so the last line is complete even if it isn't terminated.
+     * @return The number of bytes scanned.
+     * @throws IOException If the handler throws it.
+     */
+    private int lines(ByteBuffer buffer, int length, boolean isLast) throws IOException {
+        // Little endian so the first byte of a word is the least significant
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        int start = 0;
+        int i = 0;
+
+        // Look for newlines a word at a time
+        while (i + Long.BYTES <= length) {
+            long word = buffer.getLong(i) ^ NEWLINES;
+            // The high bit of the lowest byte that was a newline (now 0) is set, and any set above it are unreliable
+            long found = (word - LOW_BITS) & ~word & HIGH_BITS;
+
+            if (found == 0) {
+                i += Long.BYTES;
+                continue;
+            }
+
+            int newline = i + (Long.numberOfTrailingZeros(found) >>> 3);
+            line(buffer, start, newline);
+            start = newline + 1;
+            i = start;
+        }
+
+        for (; i < length; i++) {
+            if (buffer.get(i) == '\n') {
+                line(buffer, start, i);
+                start = i + 1;
+            }
+        }
+
+        if (isLast && start < length) {
+            line(buffer, start, length);
+            start = length;
+        }
+
+        return start;
+    }
+
+    /**
+     * Pass a line to the handler.
+     * @param buffer Buffer containing the line.
+     * @param start Index of the first byte of the line.
+     * @param end Index of the line terminator.
+     * @throws IOException If the handler throws it.
+     */
+    private void line(ByteBuffer buffer, int start, int end) throws IOException {
+        number++;
+
+        if (end > start && buffer.get(end - 1) == '\r') {
+            end--;
+        }
+
+        handler.line(buffer, start, end, number);
+    }
+
+    /**
+     * Check if a line is equal to some ASCII text.
+     * @param buffer Buffer containing the line.
+     * @param start Index of the first byte of the line.
+     * @param end Index after the last byte of the line.
+     * @param text The text, encoded as ASCII.
+     * @return True if they are equal, false otherwise.
+     */
+    public static boolean equals(ByteBuffer buffer, int start, int end, byte[] text) {
+        if (end - start != text.length) {
+            return false;
+        }
+
+        for (int i = 0; i < text.length; i++) {
+            if (buffer.get(start + i) != text[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Decode a line as ASCII.
+     * @param buffer Buffer containing the line.
+     * @param start Index of the first byte of the line.
+     * @param end Index after the last byte of the line.
+     * @return The line.
+     */
+    public static String toString(ByteBuffer buffer, int start, int end) {
+        byte[] line = new byte[end - start];
+
+        for (int i = 0; i < line.length; i++) {
+            line[i] = buffer.get(start + i);
+        }
+
+        return new String(line, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,643 @@
+/**
+ * streaming machine readable export of protocol buffers
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.utils;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.GeneratedMessage;
+import com.google.protobuf.Message;
+import com.google.protobuf.TextFormat;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes protocol buffer messages one record per message, as JSON lines or CSV.
+ * The columns are worked out once from the descriptor of the message type. Nested messages, and messages embedded in bytes fields
+ * (see {@link Embedding}), are flattened into columns named parent.child.
+ * Repeated fields, and fields of repeated messages, are written as a JSON array or separated by ; in CSV.
+ * Every record starts with a source column, ie the address of the node the message is from.
+ * Records are written straight to the writer, which should be buffered. This is thread safe.
+ * @param <M> The type of message written.
+ */
+public abstract class MessageWriter<M extends GeneratedMessage> implements Closeable, Flushable {
+
+    /**
+     * Formats records can be written in.
+     */
+    public enum Format {
+        /**
+         * One JSON object per line.
+         */
+        JSONL,
+
+        /**
+         * Comma separated values, with a header.
+         */
+        CSV
+    }
+
+    /**
+     * A message embedded in a bytes field, that should be flattened as if it were a nested message.
+     */
+    public interface Embedding {
+
+        /**
+         * Get the type of the embedded message.
+         * @return The descriptor of the message type.
+         */
+        Descriptors.Descriptor getType();
+
+        /**
+         * Parse the embedded message.
+         * @param data The contents of the bytes field.
+         * @return The message.
+         * @throws IOException If the message is invalid.
+         */
+        Message parse(ByteString data) throws IOException;
+    }
+
+    /**
+     * Name of the column containing the source of a message.
+     */
+    public static final String SOURCE_COLUMN = "source";
+
+    /**
+     * Digits used to write bytes fields as hex.
+     */
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * A message, or embedded message, that columns are read from.
+     */
+    private static class Scope {
+
+        /**
+         * Index of the scope containing this one, -1 for the top level message.
+         */
+        private final int parent;
+
+        /**
+         * The field of the parent containing this message, null for the top level message.
+         */
+        private final Descriptors.FieldDescriptor field;
+
+        /**
+         * How the message is embedded in the field, null if it is a nested message.
+         */
+        private final Embedding embedding;
+
+        /**
+         * True if there can be more than one instance of this message per record.
+         */
+        private final boolean isRepeated;
+
+        /**
+         * Create a new scope.
+         * @param parent Index of the scope containing this one, -1 for the top level message.
+         * @param field The field of the parent containing this message, null for the top level message.
+         * @param embedding How the message is embedded in the field, null if it is a nested message.
+         * @param isRepeated True if there can be more than one instance of this message per record.
+         */
+        public Scope(int parent, Descriptors.FieldDescriptor field, Embedding embedding, boolean isRepeated) {
+            this.parent = parent;
+            this.field = field;
+            this.embedding = embedding;
+            this.isRepeated = isRepeated;
+        }
+    }
+
+    /**
+     * A column, a field that isn't a message.
+     */
+    protected static class Column {
+
+        /**
+         * Name of the column, the path to the field.
+         */
+        private final String name;
+
+        /**
+         * Index of the scope containing the field.
+         */
+        private final int scope;
+
+        /**
+         * The field.
+         */
+        private final Descriptors.FieldDescriptor field;
+
+        /**
+         * True if the column can have more than one value per record.
+         */
+        private final boolean isArray;
+
+        /**
+         * Create a new column.
+         * @param name Name of the column, the path to the field.
+         * @param scope Index of the scope containing the field.
+         * @param field The field.
+         * @param isArray True if the column can have more than one value per record.
+         */
+        public Column(String name, int scope, Descriptors.FieldDescriptor field, boolean isArray) {
+            this.name = name;
+            this.scope = scope;
+            this.field = field;
+            this.isArray = isArray;
+        }
+
+        /**
+         * Get the name of the column.
+         * @return The name, the path to the field.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Check if the column can have more than one value per record.
+         * @return True if it can, false otherwise.
+         */
+        public boolean isArray() {
+            return isArray;
+        }
+
+        /**
+         * Get the field of the column.
+         * @return The field.
+         */
+        public Descriptors.FieldDescriptor getField() {
+            return field;
+        }
+    }
+
+    /**
+     * Where records are written.
+     */
+    protected final Writer out;
+
+    /**
+     * The columns, in order.
+     */
+    protected final List<Column> columns = new ArrayList<>();
+
+    /**
+     * The scopes, a scope always comes after the scope containing it.
+     */
+    private final List<Scope> scopes = new ArrayList<>();
+
+    /**
+     * Values of the current field, reused for every field.
+     */
+    private final List<Object> values = new ArrayList<>();
+
+    /**
+     * Create a new writer.
+     * @param type The descriptor of the message type.
+     * @param embeddings Messages embedded in fields of the message type, by field number. May be null.
+     * @param out Where to write records.
+     */
+    protected MessageWriter(Descriptors.Descriptor type, Map<Integer, ? extends Embedding> embeddings, Writer out) {
+        this.out = out;
+
+        scopes.add(new Scope(-1, null, null, false));
+        addColumns(type, 0, "", embeddings);
+    }
+
+    /**
+     * Create a writer.
+     * @param <M> The type of message written.
+     * @param format The format to write.
+     * @param type The descriptor of the message type.
+     * @param embeddings Messages embedded in fields of the message type, by field number. May be null.
+     * @param out Where to write records. This should be buffered.
+     * @return The writer.
+     * @throws IOException If writing the header fails.
+     */
+    public static <M extends GeneratedMessage> MessageWriter<M> create(Format format, Descriptors.Descriptor type, Map<Integer, ? extends Embedding> embeddings, Writer out) throws IOException {
+        switch (format) {
+            case JSONL:
+                return new JsonLinesWriter<>(type, embeddings, out);
+            case CSV:
+                return new CsvWriter<>(type, embeddings, out);
+            default:
+                throw new IllegalArgumentException("Unsupported format " + format);
+        }
+    }
+
+    /**
+     * Add the columns of a message type.
+     * @param type The descriptor of the message type.
+     * @param scope Index of the scope of messages of the type.
+     * @param prefix Prefix of the names of the columns.
+     * @param embeddings Messages embedded in fields of the message type, by field number. May be null.
+     */
+    private void addColumns(Descriptors.Descriptor type, int scope, String prefix, Map<Integer, ? extends Embedding> embeddings) {
+        for (Descriptors.FieldDescriptor field : ProtoBufUtils.getFieldsByNumber(type)) {
+            String name = prefix + field.getName();
+            boolean isRepeated = scopes.get(scope).isRepeated || field.isRepeated();
+            Embedding embedding = embeddings != null ? embeddings.get(field.getNumber()) : null;
+
+            if (embedding != null && field.getType() == Descriptors.FieldDescriptor.Type.BYTES) {
+                scopes.add(new Scope(scope, field, embedding, isRepeated));
+                addColumns(embedding.getType(), scopes.size() - 1, name + ".", null);
+
+            // Types containing themselves can't be flattened, they're written as text instead
+            } else if (field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE && !contains(scope, field.getMessageType())) {
+                scopes.add(new Scope(scope, field, null, isRepeated));
+                addColumns(field.getMessageType(), scopes.size() - 1, name + ".", null);
+
+            } else {
+                columns.add(new Column(name, scope, field, isRepeated));
+            }
+        }
+    }
+
+    /**
+     * Check if a scope, or a scope containing it, is of a message type.
+     * @param scope The index of the scope.
+     * @param type The message type.
+     * @return True if it is, false otherwise.
+     */
+    private boolean contains(int scope, Descriptors.Descriptor type) {
+        for (int i = scope; i > 0; i = scopes.get(i).parent) {
+            Scope current = scopes.get(i);
+            Descriptors.Descriptor currentType = current.embedding != null ? current.embedding.getType() : current.field.getMessageType();
+
+            if (currentType.equals(type)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Write a message as a record.
+     * @param source The source of the message, ie the address of the node it's from. May be null.
+     * @param message The message.
+     * @throws IOException If writing fails, or an embedded message is invalid. Nothing is written if an embedded message is invalid.
+     */
+    public synchronized void write(String source, M message) throws IOException {
+        // Find all the (embedded) messages first, so nothing is written if one is invalid
+        List<List<Message>> instances = new ArrayList<>(scopes.size());
+        instances.add(Collections.<Message>singletonList(message));
+
+        for (int i = 1; i < scopes.size(); i++) {
+            Scope scope = scopes.get(i);
+            List<Message> found = new ArrayList<>();
+
+            for (Message parent : instances.get(scope.parent)) {
+                values.clear();
+                addValues(parent, scope.field, values);
+
+                for (Object value : values) {
+                    found.add(scope.embedding != null ? scope.embedding.parse((ByteString) value) : (Message) value);
+                }
+            }
+
+            instances.add(found);
+        }
+
+        writeRecord(source, instances);
+    }
+
+    /**
+     * Write a record.
+     * @param source The source of the message, may be null.
+     * @param instances The instances of each scope in the record.
+     * @throws IOException If writing fails.
+     */
+    protected abstract void writeRecord(String source, List<List<Message>> instances) throws IOException;
+
+    /**
+     * Get the values of a column in a record.
+     * @param column The column.
+     * @param instances The instances of each scope in the record.
+     * @return The values, only valid until this is next called.
+     */
+    protected List<Object> getValues(Column column, List<List<Message>> instances) {
+        values.clear();
+
+        for (Message message : instances.get(column.scope)) {
+            addValues(message, column.field, values);
+        }
+
+        return values;
+    }
+
+    /**
+     * Add the values of a field of a message to a list.
+     * @param message The message.
+     * @param field The field.
+     * @param values The list.
+     */
+    private static void addValues(Message message, Descriptors.FieldDescriptor field, List<Object> values) {
+        if (field.isRepeated()) {
+            int count = message.getRepeatedFieldCount(field);
+
+            for (int i = 0; i < count; i++) {
+                values.add(message.getRepeatedField(field, i));
+            }
+
+        } else if (message.hasField(field)) {
+            values.add(message.getField(field));
+        }
+    }
+
+    /**
+     * Write a value of a field as text, without any quoting.
+     * Unsigned numbers are written as unsigned, enums by name, bytes as hex, and messages in the protocol buffer text format.
+     * @param field The field.
+     * @param value The value.
+     * @throws IOException If writing fails.
+     */
+    protected void writeValue(Descriptors.FieldDescriptor field, Object value) throws IOException {
+        switch (field.getType()) {
+            case UINT32:
+            case FIXED32:
+                out.write(Integer.toUnsignedString((Integer) value));
+                break;
+
+            case UINT64:
+            case FIXED64:
+                out.write(Long.toUnsignedString((Long) value));
+                break;
+
+            case BYTES:
+                for (byte b : ((ByteString) value)) {
+                    out.write(HEX_DIGITS[(b >> 4) & 0xF]);
+                    out.write(HEX_DIGITS[b & 0xF]);
+                }
+                break;
+
+            case ENUM:
+                out.write(((Descriptors.EnumValueDescriptor) value).getName());
+                break;
+
+            case MESSAGE:
+            case GROUP:
+                out.write(TextFormat.shortDebugString((Message) value));
+                break;
+
+            default:
+                out.write(value.toString());
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Writes one JSON object per record, on a single line.
+     * Fields that aren't set, and repeated fields without any values, are left out.
+     * @param <M> The type of message written.
+     */
+    private static class JsonLinesWriter<M extends GeneratedMessage> extends MessageWriter<M> {
+
+        /**
+         * Create a new writer.
+         * @param type The descriptor of the message type.
+         * @param embeddings Messages embedded in fields of the message type, by field number. May be null.
+         * @param out Where to write records.
+         */
+        public JsonLinesWriter(Descriptors.Descriptor type, Map<Integer, ? extends Embedding> embeddings, Writer out) {
+            super(type, embeddings, out);
+        }
+
+        @Override
+        protected void writeRecord(String source, List<List<Message>> instances) throws IOException {
+            String separator = "";
+            out.write('{');
+
+            if (source != null) {
+                writeString(SOURCE_COLUMN);
+                out.write(':');
+                writeString(source);
+                separator = ",";
+            }
+
+            for (Column column : columns) {
+                List<Object> values = getValues(column, instances);
+
+                if (values.isEmpty()) {
+                    continue;
+                }
+
+                out.write(separator);
+                separator = ",";
+                writeString(column.getName());
+                out.write(':');
+
+                if (column.isArray()) {
+                    out.write('[');
+                    for (int i = 0; i < values.size(); i++) {
+                        if (i > 0) {
+                            out.write(',');
+                        }
+                        writeJson(column.getField(), values.get(i));
+                    }
+                    out.write(']');
+                } else {
+                    writeJson(column.getField(), values.get(0));
+                }
+            }
+
+            out.write('}');
+            out.write('\n');
+        }
+
+        /**
+         * Write a value as JSON.
+         * @param field The field of the value.
+         * @param value The value.
+         * @throws IOException If writing fails.
+         */
+        private void writeJson(Descriptors.FieldDescriptor field, Object value) throws IOException {
+            switch (field.getJavaType()) {
+                case INT:
+                case LONG:
+                case BOOLEAN:
+                    writeValue(field, value);
+                    break;
+
+                case FLOAT:
+                case DOUBLE:
+                    // JSON has no NaN or infinity
+                    if (Double.isNaN(((Number) value).doubleValue()) || Double.isInfinite(((Number) value).doubleValue())) {
+                        out.write("null");
+                    } else {
+                        writeValue(field, value);
+                    }
+                    break;
+
+                case ENUM:
+                    writeString(((Descriptors.EnumValueDescriptor) value).getName());
+                    break;
+
+                case STRING:
+                    writeString((String) value);
+                    break;
+
+                default:
+                    // Bytes and messages don't need escaping, but the text format can contain quotes
+                    if (field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+                        writeString(TextFormat.shortDebugString((Message) value));
+                    } else {
+                        out.write('"');
+                        writeValue(field, value);
+                        out.write('"');
+                    }
+            }
+        }
+
+        /**
+         * Write a JSON string.
+         * @param s The contents of the string.
+         * @throws IOException If writing fails.
+         */
+        private void writeString(String s) throws IOException {
+            out.write('"');
+
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+
+                switch (c) {
+                    case '"':
+                        out.write("\\\"");
+                        break;
+                    case '\\':
+                        out.write("\\\\");
+                        break;
+                    case '\n':
+                        out.write("\\n");
+                        break;
+                    case '\r':
+                        out.write("\\r");
+                        break;
+                    case '\t':
+                        out.write("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            out.write(String.format("\\u%04x", (int) c));
+                        } else {
+                            out.write(c);
+                        }
+                }
+            }
+
+            out.write('"');
+        }
+    }
+
+    /**
+     * Writes comma separated values, with a header naming the columns.
+     * Fields that aren't set are empty.
+     * @param <M> The type of message written.
+     */
+    private static class CsvWriter<M extends GeneratedMessage> extends MessageWriter<M> {
+
+        /**
+         * Separates the values of a repeated field.
+         */
+        private static final char ARRAY_SEPARATOR = ';';
+
+        /**
+         * Create a new writer, and write the header.
+         * @param type The descriptor of the message type.
+         * @param embeddings Messages embedded in fields of the message type, by field number. May be null.
+         * @param out Where to write records.
+         * @throws IOException If writing the header fails.
+         */
+        public CsvWriter(Descriptors.Descriptor type, Map<Integer, ? extends Embedding> embeddings, Writer out) throws IOException {
+            super(type, embeddings, out);
+
+            out.write(SOURCE_COLUMN);
+            for (Column column : columns) {
+                out.write(',');
+                out.write(column.getName());
+            }
+            out.write('\n');
+        }
+
+        @Override
+        protected void writeRecord(String source, List<List<Message>> instances) throws IOException {
+            if (source != null) {
+                writeCell(source);
+            }
+
+            for (Column column : columns) {
+                out.write(',');
+
+                List<Object> values = getValues(column, instances);
+
+                // Only strings, and messages in the text format, can contain anything that needs quoting
+                Descriptors.FieldDescriptor.JavaType type = column.getField().getJavaType();
+                if (type == Descriptors.FieldDescriptor.JavaType.STRING || type == Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+                    StringBuilder cell = new StringBuilder();
+                    for (int i = 0; i < values.size(); i++) {
+                        if (i > 0) {
+                            cell.append(ARRAY_SEPARATOR);
+                        }
+                        cell.append(type == Descriptors.FieldDescriptor.JavaType.STRING ? (String) values.get(i) : TextFormat.shortDebugString((Message) values.get(i)));
+                    }
+                    writeCell(cell.toString());
+                    continue;
+                }
+
+                for (int i = 0; i < values.size(); i++) {
+                    if (i > 0) {
+                        out.write(ARRAY_SEPARATOR);
+                    }
+                    writeValue(column.getField(), values.get(i));
+                }
+            }
+
+            out.write('\n');
+        }
+
+        /**
+         * Write a cell, quoting it if needed.
+         * @param s The contents of the cell.
+         * @throws IOException If writing fails.
+         */
+        private void writeCell(String s) throws IOException {
+            boolean shouldQuote = false;
+
+            for (int i = 0; i < s.length() && !shouldQuote; i++) {
+                char c = s.charAt(i);
+                shouldQuote = c == ',' || c == '"' || c == '\n' || c == '\r' || c == ARRAY_SEPARATOR;
+            }
+
+            if (!shouldQuote) {
+                out.write(s);
+                return;
+            }
+
+            out.write('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"') {
+                    out.write('"');
+                }
+                out.write(c);
+            }
+            out.write('"');
+        }
+    }
+}
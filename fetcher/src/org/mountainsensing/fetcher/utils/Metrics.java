@@ -0,0 +1,543 @@
+/**
+ * operational metrics, in the prometheus text format
+ * mountainsensing.org
+ */
+package org.mountainsensing.fetcher.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registry of the metrics of the fetcher, such as the number of requests made to every node.
+ * Metrics are registered once, by the class updating them, and are kept for the lifetime of the JVM,
+ * so counters keep increasing across the runs of the daemon.
+ * They can be written in the Prometheus text format, to a file read by the node_exporter textfile collector,
+ * or served over HTTP (see {@link org.mountainsensing.fetcher.net.MetricsServer}).
+ * Updating a metric is thread safe, and doesn't lock.
+ */
+public class Metrics {
+
+    private static final Logger log = Logger.getLogger(Metrics.class.getName());
+
+    /**
+     * The singleton instance.
+     */
+    private static final Metrics INSTANCE = new Metrics();
+
+    /**
+     * Prefix of the name of every metric.
+     */
+    private static final String PREFIX = "fetcher_";
+
+    /**
+     * Content type of the text format.
+     */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * Buckets, in seconds, for timing requests and nodes.
+     */
+    public static final double[] TIME_BUCKETS = {0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300};
+
+    /**
+     * The registered metrics, in the order they were registered.
+     */
+    private final List<Family<?>> families = new ArrayList<>();
+
+    /**
+     * File the metrics are written to by {@link #writeFile()}, null if they aren't.
+     */
+    private volatile File file;
+
+    /**
+     * Private constructor, as this is a Singleton.
+     */
+    private Metrics() {
+
+    }
+
+    /**
+     * Get the Singleton instance of this class.
+     * @return The instance.
+     */
+    public static Metrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * A metric, and the values it has for every combination of labels seen so far.
+     * @param <T> The type of value.
+     */
+    public abstract static class Family<T> {
+
+        /**
+         * The name of the metric.
+         */
+        private final String name;
+
+        /**
+         * Description of the metric.
+         */
+        private final String help;
+
+        /**
+         * The names of the labels.
+         */
+        private final String[] labels;
+
+        /**
+         * The values, by their labels in the text format. Sorted so the output is stable.
+         */
+        private final ConcurrentMap<String, T> values = new ConcurrentSkipListMap<>();
+
+        /**
+         * Create a new metric.
+         * @param name The name of the metric, without the prefix.
+         * @param help Description of the metric.
+         * @param labels The names of the labels.
+         */
+        private Family(String name, String help, String[] labels) {
+            this.name = PREFIX + name;
+            this.help = help;
+            this.labels = labels;
+        }
+
+        /**
+         * Get the value for some labels, creating it if it doesn't exist.
+         * @param labelValues The value of every label.
+         * @return The value.
+         * @throws IllegalArgumentException If the number of labels is wrong.
+         */
+        protected T get(String... labelValues) {
+            if (labelValues.length != labels.length) {
+                throw new IllegalArgumentException("Metric " + name + " expects " + labels.length + " label(s), got " + labelValues.length);
+            }
+
+            StringBuilder builder = new StringBuilder();
+
+            for (int i = 0; i < labels.length; i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                builder.append(labels[i]).append("=\"");
+                appendEscaped(builder, labelValues[i]);
+                builder.append('"');
+            }
+
+            String key = builder.toString();
+            T value = values.get(key);
+
+            if (value == null) {
+                value = newValue();
+                T existing = values.putIfAbsent(key, value);
+                if (existing != null) {
+                    value = existing;
+                }
+            }
+
+            return value;
+        }
+
+        /**
+         * Create a new value, for labels that haven't been seen before.
+         * @return The value.
+         */
+        protected abstract T newValue();
+
+        /**
+         * Get the type of the metric, in the text format.
+         * @return The type.
+         */
+        protected abstract String getType();
+
+        /**
+         * Write a value in the text format.
+         * @param writer Where to write the value.
+         * @param labels The labels of the value, in the text format. Empty if there are none.
+         * @param value The value.
+         * @throws IOException If writing fails.
+         */
+        protected abstract void write(Writer writer, String labels, T value) throws IOException;
+
+        /**
+         * Write a sample line.
+         * @param writer Where to write the sample.
+         * @param suffix Suffix of the name of the metric.
+         * @param labels The labels, in the text format. Empty if there are none.
+         * @param value The value.
+         * @throws IOException If writing fails.
+         */
+        protected void writeSample(Writer writer, String suffix, String labels, String value) throws IOException {
+            writer.write(name);
+            writer.write(suffix);
+            if (!labels.isEmpty()) {
+                writer.write('{');
+                writer.write(labels);
+                writer.write('}');
+            }
+            writer.write(' ');
+            writer.write(value);
+            writer.write('\n');
+        }
+
+        /**
+         * Write the metric, and all it's values, in the text format.
+         * @param writer Where to write the metric.
+         * @throws IOException If writing fails.
+         */
+        private void writeAll(Writer writer) throws IOException {
+            if (values.isEmpty()) {
+                return;
+            }
+
+            writer.write("# HELP " + name + " " + help.replace("\\", "\\\\").replace("\n", "\\n") + "\n");
+            writer.write("# TYPE " + name + " " + getType() + "\n");
+
+            for (Map.Entry<String, T> entry : values.entrySet()) {
+                write(writer, entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * A value that only goes up, such as a number of requests.
+     */
+    public static class Counter extends Family<LongAdder> {
+
+        /**
+         * Create a new counter.
+         * @param name The name of the counter, without the prefix.
+         * @param help Description of the counter.
+         * @param labels The names of the labels.
+         */
+        private Counter(String name, String help, String[] labels) {
+            super(name, help, labels);
+        }
+
+        /**
+         * Increment the counter by one.
+         * @param labelValues The value of every label.
+         */
+        public void inc(String... labelValues) {
+            get(labelValues).increment();
+        }
+
+        /**
+         * Increment the counter.
+         * @param amount The amount to increment it by.
+         * @param labelValues The value of every label.
+         */
+        public void add(long amount, String... labelValues) {
+            get(labelValues).add(amount);
+        }
+
+        @Override
+        protected LongAdder newValue() {
+            return new LongAdder();
+        }
+
+        @Override
+        protected String getType() {
+            return "counter";
+        }
+
+        @Override
+        protected void write(Writer writer, String labels, LongAdder value) throws IOException {
+            writeSample(writer, "", labels, Long.toString(value.sum()));
+        }
+    }
+
+    /**
+     * A value that can be set to anything, such as the duration of the last run.
+     */
+    public static class Gauge extends Family<AtomicLong> {
+
+        /**
+         * Create a new gauge.
+         * @param name The name of the gauge, without the prefix.
+         * @param help Description of the gauge.
+         * @param labels The names of the labels.
+         */
+        private Gauge(String name, String help, String[] labels) {
+            super(name, help, labels);
+        }
+
+        /**
+         * Set the gauge.
+         * @param value The value.
+         * @param labelValues The value of every label.
+         */
+        public void set(double value, String... labelValues) {
+            get(labelValues).set(Double.doubleToRawLongBits(value));
+        }
+
+        @Override
+        protected AtomicLong newValue() {
+            return new AtomicLong(Double.doubleToRawLongBits(0));
+        }
+
+        @Override
+        protected String getType() {
+            return "gauge";
+        }
+
+        @Override
+        protected void write(Writer writer, String labels, AtomicLong value) throws IOException {
+            writeSample(writer, "", labels, format(Double.longBitsToDouble(value.get())));
+        }
+    }
+
+    /**
+     * Distribution of observed values, such as round trip times, counted in buckets.
+     */
+    public static class Histogram extends Family<Histogram.Buckets> {
+
+        /**
+         * The upper bound of every bucket, in ascending order. The last bucket (+Inf) is implicit.
+         */
+        private final double[] bounds;
+
+        /**
+         * The buckets of a single set of labels.
+         */
+        protected static class Buckets {
+
+            /**
+             * Number of values in every bucket, not cumulative. The last one is +Inf.
+             */
+            private final LongAdder[] counts;
+
+            /**
+             * Sum of all the values.
+             */
+            private final DoubleAdder sum = new DoubleAdder();
+
+            /**
+             * Create new buckets.
+             * @param size The number of buckets, including +Inf.
+             */
+            private Buckets(int size) {
+                counts = new LongAdder[size];
+                for (int i = 0; i < size; i++) {
+                    counts[i] = new LongAdder();
+                }
+            }
+        }
+
+        /**
+         * Create a new histogram.
+         * @param name The name of the histogram, without the prefix.
+         * @param help Description of the histogram.
+         * @param bounds The upper bound of every bucket, in ascending order.
+         * @param labels The names of the labels.
+         */
+        private Histogram(String name, String help, double[] bounds, String[] labels) {
+            super(name, help, labels);
+            this.bounds = bounds.clone();
+        }
+
+        /**
+         * Observe a value.
+         * @param value The value.
+         * @param labelValues The value of every label.
+         */
+        public void observe(double value, String... labelValues) {
+            Buckets buckets = get(labelValues);
+            int bucket = 0;
+
+            while (bucket < bounds.length && value > bounds[bucket]) {
+                bucket++;
+            }
+
+            buckets.counts[bucket].increment();
+            buckets.sum.add(value);
+        }
+
+        @Override
+        protected Buckets newValue() {
+            return new Buckets(bounds.length + 1);
+        }
+
+        @Override
+        protected String getType() {
+            return "histogram";
+        }
+
+        @Override
+        protected void write(Writer writer, String labels, Buckets value) throws IOException {
+            String separator = labels.isEmpty() ? "" : ",";
+            long count = 0;
+
+            for (int i = 0; i <= bounds.length; i++) {
+                count += value.counts[i].sum();
+                String bound = i < bounds.length ? format(bounds[i]) : "+Inf";
+                writeSample(writer, "_bucket", labels + separator + "le=\"" + bound + "\"", Long.toString(count));
+            }
+
+            writeSample(writer, "_sum", labels, format(value.sum.sum()));
+            writeSample(writer, "_count", labels, Long.toString(count));
+        }
+    }
+
+    /**
+     * Register a new counter.
+     * @param name The name of the counter, without the fetcher_ prefix. Counters should end in _total.
+     * @param help Description of the counter.
+     * @param labels The names of the labels.
+     * @return The counter.
+     */
+    public synchronized Counter counter(String name, String help, String... labels) {
+        return register(new Counter(name, help, labels));
+    }
+
+    /**
+     * Register a new gauge.
+     * @param name The name of the gauge, without the fetcher_ prefix.
+     * @param help Description of the gauge.
+     * @param labels The names of the labels.
+     * @return The gauge.
+     */
+    public synchronized Gauge gauge(String name, String help, String... labels) {
+        return register(new Gauge(name, help, labels));
+    }
+
+    /**
+     * Register a new histogram.
+     * @param name The name of the histogram, without the fetcher_ prefix.
+     * @param help Description of the histogram.
+     * @param bounds The upper bound of every bucket, in ascending order.
+     * @param labels The names of the labels.
+     * @return The histogram.
+     */
+    public synchronized Histogram histogram(String name, String help, double[] bounds, String... labels) {
+        return register(new Histogram(name, help, bounds, labels));
+    }
+
+    /**
+     * Write every metric that has a value, in the Prometheus text format.
+     * @param writer Where to write the metrics.
+     * @throws IOException If writing fails.
+     */
+    public synchronized void write(Writer writer) throws IOException {
+        for (Family<?> family : families) {
+            family.writeAll(writer);
+        }
+    }
+
+    /**
+     * Set the file the metrics are written to by {@link #writeFile()}.
+     * @param file The file, null to not write the metrics.
+     */
+    public void setFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Write the metrics to the file, if one was set.
+     * The file is replaced with {@link FileUtils#replace(File, FileUtils.Contents)}, so anything reading it (ie the node_exporter) never sees a partial file.
+     * Failing to write the file is only logged, as the metrics aren't essential.
+     * Synchronized as concurrent daemon jobs all write the file, through the same temporary file.
+     */
+    public synchronized void writeFile() {
+        File target = file;
+
+        if (target == null) {
+            return;
+        }
+
+        try {
+            FileUtils.replace(target, new FileUtils.Contents() {
+                @Override
+                public void write(OutputStream out) throws IOException {
+                    Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                    Metrics.this.write(writer);
+                    writer.flush();
+                }
+            });
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to write metrics to " + target, e);
+        }
+    }
+
+    /**
+     * Add a metric to the registry.
+     * @param <T> The type of metric.
+     * @param family The metric.
+     * @return The metric.
+     */
+    private <T extends Family<?>> T register(T family) {
+        families.add(family);
+        return family;
+    }
+
+    /**
+     * Format a number in the text format.
+     * @param value The number.
+     * @return The number, as a String.
+     */
+    private static String format(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+
+        // Whole numbers (ie bucket bounds) without a trailing .0
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+
+        // Without an exponent where possible (ie timestamps), so the file is easy to read
+        if (Math.abs(value) >= 1e-3 && Math.abs(value) < 1e15) {
+            return BigDecimal.valueOf(value).toPlainString();
+        }
+
+        return Double.toString(value);
+    }
+
+    /**
+     * Append a label value, escaped for the text format.
+     * @param builder Where to append the value.
+     * @param value The value, null is treated as empty.
+     */
+    private static void appendEscaped(StringBuilder builder, String value) {
+        if (value == null) {
+            return;
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            switch (c) {
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                default:
+                    builder.append(c);
+            }
+        }
+    }
+}
@@ -3,14 +3,30 @@ package org.mountainsensing.fetcher.utils;
 import com.google.protobuf.Descriptors;
 import com.google.protobuf.GeneratedMessage;
 import java.io.IOException;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Utilities for protocol buffers.
  */
 public class ProtoBufUtils {
 
+    /**
+     * Indentation added for each level of nested messages.
+     */
+    public static final String INDENT = "    ";
+
+    /**
+     * Printers without overrides, for each type of message. See getPrinter().
+     */
+    private static final ConcurrentMap<Descriptors.Descriptor, Printer<?>> printers = new ConcurrentHashMap<>();
+
     /**
      * Class for overriding the string representation of a field.
      * See toString().
@@ -25,6 +41,197 @@ public class ProtoBufUtils {
          * @throws IOException If the field could not be properly decoded.
          */
         public abstract String toString(M message) throws IOException;
+
+        /**
+         * Append a string representation of a field.
+         * By default this appends toString(), indented. Overriding this avoids building an intermediate String.
+         * @param message The message being decoded
+         * @param out Where to append the field to.
+         * @param indent The indentation of the field, to add to the start of every line after the first.
+         * @throws IOException If the field could not be properly decoded, or appended.
+         */
+        public void print(M message, Appendable out, String indent) throws IOException {
+            appendIndented(toString(message), out, indent);
+        }
+    }
+
+    /**
+     * Prints a type of protocol buffer message.
+     * The fields of the type, their names and overrides are worked out once, when the printer is created,
+     * so printing a message only visits the fields it has. Printers are thread safe.
+     * @param <M> The type of the Protocol Buffer
+     */
+    public static class Printer<M extends GeneratedMessage> {
+
+        /**
+         * The fields of the type, by number.
+         */
+        private final Descriptors.FieldDescriptor[] fields;
+
+        /**
+         * The name of each field followed by the separator, by number.
+         */
+        private final String[] prefixes;
+
+        /**
+         * The override of each field, by number. Null for fields without an override.
+         */
+        private final List<FieldOverride<M>> overrides;
+
+        /**
+         * The printer of each field that is a message, by number. Filled in the first time it is needed,
+         * as message types can contain themselves.
+         */
+        private final AtomicReferenceArray<Printer<GeneratedMessage>> nested;
+
+        /**
+         * Create a printer for a type of message.
+         * @param type The descriptor of the message type.
+         * @param overrides A map of 1 indexed indexes to FieldOverrides. May be null.
+         */
+        private Printer(Descriptors.Descriptor type, Map<Integer, ? extends FieldOverride<M>> overrides) {
+            List<Descriptors.FieldDescriptor> sorted = getFieldsByNumber(type);
+
+            this.fields = sorted.toArray(new Descriptors.FieldDescriptor[sorted.size()]);
+            this.prefixes = new String[fields.length];
+            this.overrides = new ArrayList<>(fields.length);
+            this.nested = new AtomicReferenceArray<>(fields.length);
+
+            for (int i = 0; i < fields.length; i++) {
+                prefixes[i] = fields[i].getName() + ": ";
+                this.overrides.add(overrides != null ? overrides.get(fields[i].getNumber()) : null);
+            }
+        }
+
+        /**
+         * Get a string representation of a message.
+         * @param message The message
+         * @return A String representing the message.
+         * @throws IOException If the message could not be decoded properly.
+         */
+        public String toString(M message) throws IOException {
+            StringBuilder result = new StringBuilder();
+            print(message, result, "");
+            return result.toString();
+        }
+
+        /**
+         * Append a string representation of a message, one field per line.
+         * @param message The message
+         * @param out Where to append the message to.
+         * @param indent The indentation of the message, added to the start of every line.
+         * @throws IOException If the message could not be decoded properly, or appended.
+         */
+        public void print(M message, Appendable out, String indent) throws IOException {
+            String separator = "";
+
+            for (int i = 0; i < fields.length; i++) {
+                Descriptors.FieldDescriptor field = fields[i];
+
+                // If the field is repeated, print all them at once
+                if (field.isRepeated()) {
+                    int count = message.getRepeatedFieldCount(field);
+
+                    for (int j = 0; j < count; j++) {
+                        out.append(separator);
+                        separator = System.lineSeparator();
+                        printField(message, i, message.getRepeatedField(field, j), out, indent);
+                    }
+
+                // Else just print it, if it is set
+                } else if (message.hasField(field)) {
+                    out.append(separator);
+                    separator = System.lineSeparator();
+                    printField(message, i, message.getField(field), out, indent);
+                }
+            }
+        }
+
+        /**
+         * Print a single field.
+         * @param message The message containing the field.
+         * @param index The index of the field in fields.
+         * @param value The actual field to print
+         * @param out Where to append the field to.
+         * @param indent The indentation of the field.
+         * @throws IOException If the field is a protocol buffer that can't be printed, or the field can't be appended.
+         */
+        private void printField(M message, int index, Object value, Appendable out, String indent) throws IOException {
+            out.append(indent).append(prefixes[index]);
+
+            // If there's an override for this field, use that
+            if (overrides.get(index) != null) {
+                overrides.get(index).print(message, out, indent);
+
+            // If this field is a protobuf, print it ourselves
+            } else if (value instanceof GeneratedMessage) {
+                Printer<GeneratedMessage> printer = nested.get(index);
+
+                if (printer == null) {
+                    printer = getPrinter(fields[index].getMessageType());
+                    nested.set(index, printer);
+                }
+
+                out.append(System.lineSeparator());
+                printer.print((GeneratedMessage) value, out, indent + INDENT);
+
+            // Just a simple field, call toString() on it
+            } else {
+                appendIndented(value.toString(), out, indent);
+            }
+        }
+    }
+
+    /**
+     * Get the fields of a type of message, ordered by number, the same order as getAllFields().
+     * @param type The descriptor of the message type.
+     * @return The fields.
+     */
+    public static List<Descriptors.FieldDescriptor> getFieldsByNumber(Descriptors.Descriptor type) {
+        List<Descriptors.FieldDescriptor> fields = new ArrayList<>(type.getFields());
+
+        Collections.sort(fields, new Comparator<Descriptors.FieldDescriptor>() {
+            @Override
+            public int compare(Descriptors.FieldDescriptor a, Descriptors.FieldDescriptor b) {
+                return Integer.compare(a.getNumber(), b.getNumber());
+            }
+        });
+
+        return fields;
+    }
+
+    /**
+     * Get the printer for a type of message, without any overrides.
+     * Printers are created once for each type, and reused.
+     * @param <M> The type of the Protocol Buffer
+     * @param type The descriptor of the message type.
+     * @return The printer.
+     */
+    public static <M extends GeneratedMessage> Printer<M> getPrinter(Descriptors.Descriptor type) {
+        Printer<?> printer = printers.get(type);
+
+        if (printer == null) {
+            // Racing threads could both create one, but they'd be identical
+            printer = new Printer<>(type, null);
+            printers.putIfAbsent(type, printer);
+        }
+
+        // Without overrides, the printer doesn't depend on the type parameter
+        @SuppressWarnings("unchecked")
+        Printer<M> typed = (Printer<M>) printer;
+        return typed;
+    }
+
+    /**
+     * Create a printer for a type of message, with overrides.
+     * The printer should be kept and reused, instead of calling toString() with overrides.
+     * @param <M> The type of the Protocol Buffer
+     * @param type The descriptor of the message type.
+     * @param overrides A map of 1 indexed indexes to FieldOverrides.
+     * @return The printer.
+     */
+    public static <M extends GeneratedMessage> Printer<M> newPrinter(Descriptors.Descriptor type, Map<Integer, ? extends FieldOverride<M>> overrides) {
+        return new Printer<>(type, overrides);
     }
 
     /**
@@ -35,13 +242,14 @@ public class ProtoBufUtils {
      * @throws java.io.IOException If the message could not be decoded properly.
      */
     public static <M extends GeneratedMessage> String toString(M message) throws IOException {
-        return toString(message, null);
+        return ProtoBufUtils.<M>getPrinter(message.getDescriptorForType()).toString(message);
     }
 
     /**
      * Get a string representation of a protocol buffer message.
      * This method allows the output to be controlled through the use of FieldOverrides. The `toString()` method of a FieldOverride associated with
      * an index will be called to print the filed with that index, instead of just calling `toString()` on the field.
+     * This creates a new printer every time, see newPrinter().
      * @param <M> The type of the Protocol Buffer
      * @param message The message
      * @param overrides A map of 1 indexed indexes to FieldOverrides.
@@ -49,55 +257,25 @@ public class ProtoBufUtils {
      * @throws java.io.IOException If the message could not be decoded properly.
      */
     public static <M extends GeneratedMessage> String toString(M message, Map<Integer, ? extends FieldOverride<M>> overrides) throws IOException {
-        StringBuilder result = new StringBuilder();
-        String separator = "";
-        for (Descriptors.FieldDescriptor descriptor : message.getAllFields().keySet()) {
-
-            result.append(separator);
-            separator = System.lineSeparator();
-
-            // If the field is repeated, print all them at once
-            if (descriptor.isRepeated()) {
-                String sep2 = "";
-                for (Object field : (Collection)message.getAllFields().get(descriptor)) {
-                    result.append(sep2);
-                    sep2 = System.lineSeparator();
-                    printField(message, descriptor, field, overrides, result);
-                };
-
-            // Else just print it
-            } else {
-                printField(message, descriptor, message.getAllFields().get(descriptor), overrides, result);
-            }
-        }
-
-        return result.toString();
+        return newPrinter(message.getDescriptorForType(), overrides).toString(message);
     }
 
     /**
-     * Print a single field to a StringBuilder
-     * @param <M> The type of the ProtocolBuffer containing the field.
-     * @param message The ProtocolBuffer containing the field.
-     * @param descriptor The descriptor for the Field
-     * @param field The actual field to print
-     * @param overrides Any overrides for printing fields
-     * @param toAppend The StringBuilder to append to
-     * @throws IOException If the field is a protocol buffer, and toString() throws one.
+     * Append text, indenting every line after the first.
+     * @param text The text.
+     * @param out Where to append the text to.
+     * @param indent The indentation to add.
+     * @throws IOException If the text can't be appended.
      */
-    private static <M extends GeneratedMessage> void printField(M message, Descriptors.FieldDescriptor descriptor, Object field, Map<Integer, ? extends FieldOverride<M>> overrides, StringBuilder toAppend) throws IOException {
-        toAppend.append(descriptor.getName()).append(": ");
-
-        // If there's an override for this field, use that
-        if (overrides != null && overrides.containsKey(descriptor.getNumber())) {
-            toAppend.append(overrides.get(descriptor.getNumber()).toString(message));
+    private static void appendIndented(String text, Appendable out, String indent) throws IOException {
+        int start = 0;
+        int newline;
 
-        // If this field is a protobuf, print it ourselves
-        } else if (field instanceof GeneratedMessage) {
-            toAppend.append(System.lineSeparator()).append(FormatUtils.indent(ProtoBufUtils.toString((GeneratedMessage) field)));
-
-        // Just a simple field, call toString() on it
-        } else {
-            toAppend.append(field.toString());
+        while (!indent.isEmpty() && (newline = text.indexOf('\n', start)) >= 0 && newline + 1 < text.length()) {
+            out.append(text, start, newline + 1).append(indent);
+            start = newline + 1;
         }
+
+        out.append(text, start, text.length());
     }
-}
\ No newline at end of file
+}
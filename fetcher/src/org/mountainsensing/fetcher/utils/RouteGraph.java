@@ -1,16 +1,27 @@
 package org.mountainsensing.fetcher.utils;
 
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
- * Helper to make a DOT graph from routing info.
+ * Graph of the routing info of a mesh, that can be written out as DOT, or saved as a binary snapshot.
+ *
+ * Nodes are interned to integer ids, in the order they are first seen, and all the per node state is kept in arrays indexed by id.
+ * Every node has a parent (the default route it reported), and adjacency arrays of it's neighbours and of the nodes it routes through,
+ * kept sorted so duplicates are merged.
+ *
+ * Nodes are named by the short id used by the routes resource, and can have a label (such as their hostname) used instead in DOT.
+ * The depth and subtree size of every node in the tree formed by the parents are computed in linear time, and cached until the graph changes.
+ * This is not thread safe.
  */
 public class RouteGraph {
 
@@ -31,14 +42,24 @@ public class RouteGraph {
     private static final String ROUTE_OPTIONS = "[color=\"red\"]";
 
     /**
-     * All the edges we're aware of.
+     * Magic number at the start of a snapshot, "MSRG".
      */
-    private final Set<Edge> neighbours = new HashSet<>();
+    private static final int MAGIC = 0x4d535247;
 
     /**
-     * All the routes we're aware of.
+     * Version of the snapshot format.
      */
-    private final Set<Edge> routes = new HashSet<>();
+    private static final int VERSION = 1;
+
+    /**
+     * Id of no node, for nodes without a parent.
+     */
+    public static final int NONE = -1;
+
+    /**
+     * Initial capacity of the arrays, in nodes.
+     */
+    private static final int INITIAL_CAPACITY = 16;
 
     /**
      * The name of this graph.
@@ -46,63 +67,69 @@ public class RouteGraph {
     private final String name;
 
     /**
-     * Representation of an Edge in the Graph.
+     * When the routing info was gathered, in ms since the epoch.
      */
-    private static class Edge {
+    private long time;
 
-        /**
-         * The first member of this edge.
-         */
-        private final String A;
+    /**
+     * Id of every node, by name.
+     */
+    private final Map<String, Integer> ids = new HashMap<>();
 
-        /**
-         * The second member of this edge.
-         */
-        private final String B;
+    /**
+     * Number of nodes.
+     */
+    private int size = 0;
 
-        /**
-         * Create an edge from two nodes.
-         * @param A The first member of this edge.
-         * @param B The second member of this edge.
-         */
-        public Edge(String A, String B) {
-            this.A = A;
-            this.B = B;
-        }
+    /**
+     * Name of every node, by id.
+     */
+    private String[] names = new String[INITIAL_CAPACITY];
 
-        /**
-         * Get the first member of this edge.
-         * @return The first member of this edge.
-         */
-        public String getA() {
-            return A;
-        }
+    /**
+     * Label of every node, by id. null if the node has none.
+     */
+    private String[] labels = new String[INITIAL_CAPACITY];
 
-        /**
-         * Get the second member of this edge.
-         * @return The second member of this edge.
-         */
-        public String getB() {
-            return B;
-        }
+    /**
+     * Parent of every node, by id. {@link #NONE} if the node has none.
+     */
+    private int[] parents = new int[INITIAL_CAPACITY];
 
-        /**
-         * Check if this Edge equals another.
-         * An Edge is equal to another edge if, and only if,
-         * the first members and the second members are respectively equal.
-         * @param o The edge to chck equality against.
-         * @return True if this Edge equals the other, false otherwise.
-         */
-        @Override
-        public boolean equals(Object o) {
-            return o instanceof Edge && ((Edge)o).A.equals(A) && ((Edge)o).B.equals(B);
-        }
+    /**
+     * Sorted neighbours of every node, by id. Only the first {@link #neighbourCounts} entries are valid.
+     */
+    private int[][] neighbours = new int[INITIAL_CAPACITY][];
 
-        @Override
-        public int hashCode() {
-            return A.hashCode() + B.hashCode();
-        }
-    }
+    /**
+     * Number of neighbours of every node.
+     */
+    private int[] neighbourCounts = new int[INITIAL_CAPACITY];
+
+    /**
+     * Sorted nodes every node routes through, by id. Only the first {@link #routeCounts} entries are valid.
+     */
+    private int[][] routes = new int[INITIAL_CAPACITY][];
+
+    /**
+     * Number of nodes every node routes through.
+     */
+    private int[] routeCounts = new int[INITIAL_CAPACITY];
+
+    /**
+     * Depth of every node in the tree, by id. null if it needs computing.
+     */
+    private int[] depths;
+
+    /**
+     * Size of the subtree of every node, by id. null if it needs computing.
+     */
+    private int[] subtreeSizes;
+
+    /**
+     * Id of the node attached to the root of the tree every node is below, by id. null if it needs computing.
+     */
+    private int[] branches;
 
     /**
      * Create a RouteGraph.
@@ -110,6 +137,128 @@ public class RouteGraph {
      */
     public RouteGraph(String name) {
         this.name = name;
+        this.time = System.currentTimeMillis();
+    }
+
+    /**
+     * Get the name of the graph.
+     * @return The name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get when the routing info was gathered.
+     * @return The time, in ms since the epoch.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Set when the routing info was gathered.
+     * @param time The time, in ms since the epoch.
+     */
+    public void setTime(long time) {
+        this.time = time;
+    }
+
+    /**
+     * Get the number of nodes.
+     * @return The number of nodes.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the id of a node, adding it if it isn't known yet.
+     * @param node The name of the node.
+     * @return The id of the node.
+     */
+    public int intern(String node) {
+        Integer id = ids.get(node);
+
+        if (id != null) {
+            return id;
+        }
+
+        if (size == names.length) {
+            grow();
+        }
+
+        names[size] = node;
+        parents[size] = NONE;
+        ids.put(node, size);
+        changed();
+        return size++;
+    }
+
+    /**
+     * Get the id of a node.
+     * @param node The name of the node.
+     * @return The id of the node, {@link #NONE} if it isn't known.
+     */
+    public int getId(String node) {
+        Integer id = ids.get(node);
+        return id != null ? id : NONE;
+    }
+
+    /**
+     * Get the name of a node.
+     * @param id The id of the node.
+     * @return The name of the node.
+     */
+    public String getName(int id) {
+        return names[id];
+    }
+
+    /**
+     * Get the label of a node.
+     * @param id The id of the node.
+     * @return The label of the node, null if it has none.
+     */
+    public String getLabel(int id) {
+        return labels[id];
+    }
+
+    /**
+     * Set the label of a node, used instead of it's name in DOT.
+     * @param node The name of the node.
+     * @param label The label.
+     */
+    public void setLabel(String node, String label) {
+        labels[intern(node)] = label;
+    }
+
+    /**
+     * Get the parent of a node.
+     * @param id The id of the node.
+     * @return The id of the parent, {@link #NONE} if the node has none.
+     */
+    public int getParent(int id) {
+        return parents[id];
+    }
+
+    /**
+     * Set the parent of a node, it's default route.
+     * @param node The name of the node.
+     * @param parent The name of it's parent.
+     */
+    public void setParent(String node, String parent) {
+        int id = intern(node);
+        parents[id] = intern(parent);
+        changed();
+    }
+
+    /**
+     * Get the neighbours of a node.
+     * @param id The id of the node.
+     * @return The sorted ids of the neighbours.
+     */
+    public int[] getNeighbours(int id) {
+        return neighbours[id] == null ? new int[0] : Arrays.copyOf(neighbours[id], neighbourCounts[id]);
     }
 
     /**
@@ -118,7 +267,14 @@ public class RouteGraph {
      * @param dest The other node in the route.
      */
     public void addRoute(String node, String dest) {
-        routes.add(new Edge(node, dest));
+        int id = intern(node);
+        int destId = intern(dest);
+
+        if (routes[id] == null) {
+            routes[id] = new int[1];
+        }
+
+        routes[id] = insert(routes[id], routeCounts, id, destId);
     }
 
     /**
@@ -127,7 +283,80 @@ public class RouteGraph {
      * @param neighbour One of it's neeighbouring nodes.
      */
     public void addNeighbour(String node, String neighbour) {
-        neighbours.add(new Edge(node, neighbour));
+        int id = intern(node);
+        int neighbourId = intern(neighbour);
+
+        if (neighbours[id] == null) {
+            neighbours[id] = new int[1];
+        }
+
+        neighbours[id] = insert(neighbours[id], neighbourCounts, id, neighbourId);
+    }
+
+    /**
+     * Replace the routing info of the nodes with a parent in another graph by their routing info in that graph.
+     * This is used to update a graph with the nodes that answered a later, possibly partial, run.
+     * @param other The other graph.
+     */
+    public void merge(RouteGraph other) {
+        for (int id = 0; id < other.size; id++) {
+            if (other.parents[id] == NONE) {
+                continue;
+            }
+
+            String node = other.names[id];
+            int ourId = intern(node);
+
+            if (other.labels[id] != null) {
+                labels[ourId] = other.labels[id];
+            }
+
+            setParent(node, other.names[other.parents[id]]);
+
+            neighbourCounts[ourId] = 0;
+            for (int i = 0; i < other.neighbourCounts[id]; i++) {
+                addNeighbour(node, other.names[other.neighbours[id][i]]);
+            }
+
+            routeCounts[ourId] = 0;
+            for (int i = 0; i < other.routeCounts[id]; i++) {
+                addRoute(node, other.names[other.routes[id][i]]);
+            }
+        }
+
+        time = Math.max(time, other.time);
+    }
+
+    /**
+     * Get the depth of a node in the tree formed by the parents.
+     * @param id The id of the node.
+     * @return The number of hops between the node and the root of it's tree (a node without a parent, usually the border router),
+     * {@link #NONE} if the parents of the node form a loop.
+     */
+    public int getDepth(int id) {
+        analyse();
+        return depths[id];
+    }
+
+    /**
+     * Get the size of the subtree of a node in the tree formed by the parents.
+     * @param id The id of the node.
+     * @return The number of nodes below the node, including itself.
+     */
+    public int getSubtreeSize(int id) {
+        analyse();
+        return subtreeSizes[id];
+    }
+
+    /**
+     * Get the branch of the tree formed by the parents a node is in.
+     * @param id The id of the node.
+     * @return The id of the node attached to the root of the tree the node is below,
+     * the node itself if it is a root, or it's parents form a loop.
+     */
+    public int getBranch(int id) {
+        analyse();
+        return branches[id];
     }
 
     /**
@@ -139,29 +368,307 @@ public class RouteGraph {
         try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out))) {
             writer.append(GRAPH).append(" ").append(name).append(" {").append(System.lineSeparator());
 
-            writeEdges(writer, neighbours, NEIGHBOUR_OPTIONS);
+            writeEdges(writer, neighbours, neighbourCounts, NEIGHBOUR_OPTIONS);
 
-            writeEdges(writer, routes, ROUTE_OPTIONS);
+            writeEdges(writer, routes, routeCounts, ROUTE_OPTIONS);
 
             writer.append("}").append(System.lineSeparator());
         }
     }
 
     /**
-     * Write a collection of edges in DOT format.
+     * Save a binary snapshot of the graph.
+     * @param out The stream to write the snapshot to. It is not closed.
+     * @throws IOException If an error is encountered writing the snapshot.
+     */
+    public void writeSnapshot(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        data.writeUTF(name);
+        data.writeLong(time);
+        data.writeInt(size);
+
+        for (int id = 0; id < size; id++) {
+            data.writeUTF(names[id]);
+            data.writeUTF(labels[id] != null ? labels[id] : "");
+            data.writeInt(parents[id]);
+        }
+
+        for (int id = 0; id < size; id++) {
+            writeAdjacency(data, neighbours[id], neighbourCounts[id]);
+            writeAdjacency(data, routes[id], routeCounts[id]);
+        }
+
+        data.flush();
+    }
+
+    /**
+     * Read a binary snapshot of a graph.
+     * @param in The stream to read the snapshot from. It is not closed.
+     * @return The graph.
+     * @throws IOException If an error is encountered reading the snapshot, or it is malformed.
+     */
+    public static RouteGraph readSnapshot(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a route snapshot");
+        }
+
+        int version = data.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported route snapshot version " + version);
+        }
+
+        RouteGraph graph = new RouteGraph(data.readUTF());
+        graph.time = data.readLong();
+
+        int size = data.readInt();
+        if (size < 0) {
+            throw new IOException("Invalid number of nodes " + size);
+        }
+
+        int[] parents = new int[size];
+
+        for (int id = 0; id < size; id++) {
+            String node = data.readUTF();
+            String label = data.readUTF();
+
+            if (graph.intern(node) != id) {
+                throw new IOException("Duplicate node " + node);
+            }
+
+            graph.labels[id] = label.isEmpty() ? null : label;
+            parents[id] = checkId(data.readInt(), size, true);
+        }
+
+        for (int id = 0; id < size; id++) {
+            graph.parents[id] = parents[id];
+
+            for (int neighbour : readAdjacency(data, size)) {
+                graph.addNeighbour(graph.names[id], graph.names[neighbour]);
+            }
+
+            for (int route : readAdjacency(data, size)) {
+                graph.addRoute(graph.names[id], graph.names[route]);
+            }
+        }
+
+        graph.changed();
+        return graph;
+    }
+
+    /**
+     * Compute the depth, subtree size and branch of every node, if the graph has changed since they were last computed.
+     * This is linear in the number of nodes: the tree is walked breadth first from the roots, then the subtree sizes are summed up in reverse.
+     */
+    private void analyse() {
+        if (depths != null) {
+            return;
+        }
+
+        // Children of every node, as offsets into one array (every node has at most one parent)
+        int[] childStart = new int[size + 1];
+        for (int id = 0; id < size; id++) {
+            if (parents[id] != NONE) {
+                childStart[parents[id] + 1]++;
+            }
+        }
+
+        for (int id = 0; id < size; id++) {
+            childStart[id + 1] += childStart[id];
+        }
+
+        int[] children = new int[childStart[size]];
+        int[] filled = Arrays.copyOf(childStart, size);
+        for (int id = 0; id < size; id++) {
+            if (parents[id] != NONE) {
+                children[filled[parents[id]]++] = id;
+            }
+        }
+
+        depths = new int[size];
+        subtreeSizes = new int[size];
+        branches = new int[size];
+        Arrays.fill(depths, NONE);
+
+        // Breadth first from the roots, nodes in loops are never reached
+        int[] order = new int[size];
+        int head = 0;
+        int tail = 0;
+
+        for (int id = 0; id < size; id++) {
+            if (parents[id] == NONE) {
+                depths[id] = 0;
+                branches[id] = id;
+                order[tail++] = id;
+            }
+        }
+
+        while (head < tail) {
+            int id = order[head++];
+
+            for (int i = childStart[id]; i < childStart[id + 1]; i++) {
+                int child = children[i];
+                depths[child] = depths[id] + 1;
+                branches[child] = depths[id] == 0 ? child : branches[id];
+                order[tail++] = child;
+            }
+        }
+
+        for (int id = 0; id < size; id++) {
+            subtreeSizes[id] = 1;
+
+            if (depths[id] == NONE) {
+                branches[id] = id;
+            }
+        }
+
+        // Children come after their parents, so every subtree is complete by the time it's added to it's parent
+        for (int i = tail - 1; i >= 0; i--) {
+            int id = order[i];
+
+            if (parents[id] != NONE) {
+                subtreeSizes[parents[id]] += subtreeSizes[id];
+            }
+        }
+    }
+
+    /**
+     * Forget the computed depths, subtree sizes and branches, as the graph has changed.
+     */
+    private void changed() {
+        depths = null;
+        subtreeSizes = null;
+        branches = null;
+    }
+
+    /**
+     * Grow the per node arrays.
+     */
+    private void grow() {
+        int capacity = names.length * 2;
+
+        names = Arrays.copyOf(names, capacity);
+        labels = Arrays.copyOf(labels, capacity);
+        parents = Arrays.copyOf(parents, capacity);
+        neighbours = Arrays.copyOf(neighbours, capacity);
+        neighbourCounts = Arrays.copyOf(neighbourCounts, capacity);
+        routes = Arrays.copyOf(routes, capacity);
+        routeCounts = Arrays.copyOf(routeCounts, capacity);
+    }
+
+    /**
+     * Insert an id into a sorted adjacency array, if it isn't already in it.
+     * @param adjacency The adjacency array.
+     * @param counts The number of valid entries in the adjacency array of every node.
+     * @param id The node the adjacency array belongs to.
+     * @param other The id to insert.
+     * @return The adjacency array, which may have been reallocated.
+     */
+    private static int[] insert(int[] adjacency, int[] counts, int id, int other) {
+        int count = counts[id];
+        int index = Arrays.binarySearch(adjacency, 0, count, other);
+
+        if (index >= 0) {
+            return adjacency;
+        }
+
+        index = -index - 1;
+
+        if (count == adjacency.length) {
+            adjacency = Arrays.copyOf(adjacency, count * 2);
+        }
+
+        System.arraycopy(adjacency, index, adjacency, index + 1, count - index);
+        adjacency[index] = other;
+        counts[id]++;
+        return adjacency;
+    }
+
+    /**
+     * Write an adjacency array to a snapshot.
+     * @param data The snapshot.
+     * @param adjacency The adjacency array, null if it's empty.
+     * @param count The number of valid entries in the adjacency array.
+     * @throws IOException If an error occurs writing to the snapshot.
+     */
+    private static void writeAdjacency(DataOutputStream data, int[] adjacency, int count) throws IOException {
+        data.writeInt(count);
+
+        for (int i = 0; i < count; i++) {
+            data.writeInt(adjacency[i]);
+        }
+    }
+
+    /**
+     * Read an adjacency array from a snapshot.
+     * @param data The snapshot.
+     * @param size The number of nodes in the snapshot.
+     * @return The adjacency array.
+     * @throws IOException If an error occurs reading from the snapshot, or an id is out of range.
+     */
+    private static int[] readAdjacency(DataInputStream data, int size) throws IOException {
+        int count = data.readInt();
+
+        if (count < 0 || count > size) {
+            throw new IOException("Invalid number of edges " + count);
+        }
+
+        int[] adjacency = new int[count];
+
+        for (int i = 0; i < count; i++) {
+            adjacency[i] = checkId(data.readInt(), size, false);
+        }
+
+        return adjacency;
+    }
+
+    /**
+     * Check an id read from a snapshot is valid.
+     * @param id The id.
+     * @param size The number of nodes in the snapshot.
+     * @param allowNone Whether {@link #NONE} is valid.
+     * @return The id.
+     * @throws IOException If the id is out of range.
+     */
+    private static int checkId(int id, int size, boolean allowNone) throws IOException {
+        if ((id < 0 || id >= size) && !(allowNone && id == NONE)) {
+            throw new IOException("Invalid node id " + id);
+        }
+
+        return id;
+    }
+
+    /**
+     * Write the edges of every node in DOT format.
      * @param writer The Writer to write to in DOT.
-     * @param edges The edges to write.
+     * @param adjacency The adjacency arrays of every node.
+     * @param counts The number of valid entries in the adjacency array of every node.
      * @param options A DOT options String that will be used one every edge.
      * @throws IOException If an error occurs writing to the writer.
      */
-    private static void writeEdges(Writer writer, Collection<? extends Edge> edges, String options) throws IOException {
-        for (Edge edge : edges) {
-            startLine(writer);
-            writer.append(quote(edge.getA())).append(" -- ").append(quote(edge.getB())).append(" ").append(options);
-            endLine(writer);
+    private void writeEdges(Writer writer, int[][] adjacency, int[] counts, String options) throws IOException {
+        for (int id = 0; id < size; id++) {
+            for (int i = 0; i < counts[id]; i++) {
+                startLine(writer);
+                writer.append(quote(getDotName(id))).append(" -- ").append(quote(getDotName(adjacency[id][i]))).append(" ").append(options);
+                endLine(writer);
+            }
         }
     }
 
+    /**
+     * Get the name of a node to use in DOT.
+     * @param id The id of the node.
+     * @return The label of the node if it has one, it's name otherwise.
+     */
+    private String getDotName(int id) {
+        return labels[id] != null ? labels[id] : names[id];
+    }
+
     /**
      * Enclose a String in literal quotes.
      * @param str The String to enclose.
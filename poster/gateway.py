@@ -30,10 +30,12 @@ def processQueue():
     archive = BASE_DIR + ARCHIVE_DIR
     while True:
         try:
-            queue_length = len(os.listdir(queue))
+            # Hidden files are samples still being written by the fetcher
+            queued = [name for name in os.listdir(queue) if not name.startswith(".")]
+            queue_length = len(queued)
             if queue_length > 0:
                 logger.info("%i items in queue" % queue_length)
-                filename = queue + "/" + os.listdir(queue)[0]
+                filename = queue + "/" + queued[0]
                 logger.debug("Sending file %s" % filename)
                 from_ip = filename.split("_")[1]
                 fh = open(filename, 'r')